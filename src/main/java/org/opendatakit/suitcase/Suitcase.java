@@ -1,6 +1,6 @@
 package org.opendatakit.suitcase;
 
-import org.opendatakit.suitcase.net.SuitcaseSwingWorker;
+import org.opendatakit.suitcase.net.SuitcaseTask;
 import org.opendatakit.suitcase.ui.MainPanel;
 import org.opendatakit.suitcase.ui.SuitcaseCLI;
 
@@ -12,7 +12,7 @@ import static org.opendatakit.suitcase.ui.LayoutConsts.WINDOW_WIDTH;
 
 public class Suitcase {
   public static void main(String[] args) {
-    int retCode = SuitcaseSwingWorker.okCode;
+    int retCode = SuitcaseTask.okCode;
     if (args.length > 0) {
       retCode = new SuitcaseCLI(args).startCLI();
       System.exit(retCode);
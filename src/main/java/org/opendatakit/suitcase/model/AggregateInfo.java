@@ -3,6 +3,7 @@ package org.opendatakit.suitcase.model;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class AggregateInfo {
   //These domains are only accessible through https
@@ -27,7 +28,8 @@ public class AggregateInfo {
     this.appId = appId;
     this.userName = userName == null ? "" : userName;
     this.password = password == null ? "" : password;
-    this.tableIdSchemaETag = new TreeMap<>();
+    //written by SyncWrapper.updateTableList while download workers read it
+    this.tableIdSchemaETag = new ConcurrentSkipListMap<>();
   }
 
   public String getServerUrl() {
@@ -0,0 +1,200 @@
+package org.opendatakit.suitcase.model;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Holds 1 page of rows column by column.
+ * Dictionary encoded columns keep an int code per row, all other columns keep their values
+ * back to back as UTF-8 bytes.
+ *
+ * Pages are immutable once built and can be read from multiple threads.
+ */
+class ColumnarPage {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private interface Column {
+    String get(int row);
+  }
+
+  private static class DictionaryColumn implements Column {
+    private final StringDictionary dictionary;
+    private final int[] codes;
+
+    DictionaryColumn(StringDictionary dictionary, int[] codes) {
+      this.dictionary = dictionary;
+      this.codes = codes;
+    }
+
+    @Override
+    public String get(int row) {
+      return this.dictionary.decode(this.codes[row]);
+    }
+  }
+
+  private static class BytesColumn implements Column {
+    private final byte[] bytes;
+    //ends[row] is the end of row in bytes, the start is the end of the previous row
+    private final int[] ends;
+
+    BytesColumn(byte[] bytes, int[] ends) {
+      this.bytes = bytes;
+      this.ends = ends;
+    }
+
+    @Override
+    public String get(int row) {
+      int start = row == 0 ? 0 : this.ends[row - 1];
+      return new String(this.bytes, start, this.ends[row] - start, UTF_8);
+    }
+  }
+
+  private final int size;
+  private final Column[] columns;
+
+  private ColumnarPage(int size, Column[] columns) {
+    this.size = size;
+    this.columns = columns;
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  String get(int row, int column) {
+    if (row < 0 || row >= this.size) {
+      throw new IndexOutOfBoundsException("row: " + row);
+    }
+
+    return this.columns[column].get(row);
+  }
+
+  /**
+   * Builds a ColumnarPage row by row
+   */
+  static class Builder {
+    private final StringDictionary[] dictionaries;
+    private final int[][] codes;
+    private final byte[][] bytes;
+    private final int[] byteLengths;
+    private final int[][] ends;
+    private int size;
+
+    /**
+     * @param dictionaries Dictionary of each column, null for columns stored as plain values
+     * @param expectedRows
+     */
+    Builder(StringDictionary[] dictionaries, int expectedRows) {
+      int columnCount = dictionaries.length;
+      int capacity = Math.max(expectedRows, 1);
+
+      this.dictionaries = new StringDictionary[columnCount];
+      this.codes = new int[columnCount][];
+      this.bytes = new byte[columnCount][];
+      this.byteLengths = new int[columnCount];
+      this.ends = new int[columnCount][];
+      this.size = 0;
+
+      for (int i = 0; i < columnCount; i++) {
+        if (dictionaries[i] != null && !dictionaries[i].isFull()) {
+          this.dictionaries[i] = dictionaries[i];
+          this.codes[i] = new int[capacity];
+        } else {
+          this.bytes[i] = new byte[capacity * 16];
+          this.ends[i] = new int[capacity];
+        }
+      }
+    }
+
+    /**
+     * Sets the value of column in the current row.
+     * A dictionary column whose dictionary fills up is stored as plain values from then on,
+     * rows already set included.
+     *
+     * @param column
+     * @param value
+     */
+    void set(int column, String value) {
+      if (this.dictionaries[column] != null) {
+        int code = this.dictionaries[column].encode(value);
+        if (code >= 0) {
+          this.codes[column] = ensureCapacity(this.codes[column], this.size + 1);
+          this.codes[column][this.size] = code;
+          return;
+        }
+
+        toBytesColumn(column);
+      }
+
+      setBytes(column, this.size, value);
+    }
+
+    /**
+     * Moves on to the next row, every column must have been set for the current row
+     */
+    void endRow() {
+      this.size++;
+    }
+
+    ColumnarPage build() {
+      Column[] columns = new Column[this.dictionaries.length];
+
+      for (int i = 0; i < columns.length; i++) {
+        if (this.dictionaries[i] != null) {
+          columns[i] = new DictionaryColumn(this.dictionaries[i], Arrays.copyOf(this.codes[i], this.size));
+        } else {
+          columns[i] = new BytesColumn(
+              Arrays.copyOf(this.bytes[i], this.byteLengths[i]), Arrays.copyOf(this.ends[i], this.size)
+          );
+        }
+      }
+
+      return new ColumnarPage(this.size, columns);
+    }
+
+    /**
+     * Switches a dictionary column to plain values, decoding the rows already set
+     *
+     * @param column
+     */
+    private void toBytesColumn(int column) {
+      StringDictionary dictionary = this.dictionaries[column];
+      int[] columnCodes = this.codes[column];
+
+      this.dictionaries[column] = null;
+      this.codes[column] = null;
+      this.bytes[column] = new byte[columnCodes.length * 16];
+      this.byteLengths[column] = 0;
+      this.ends[column] = new int[columnCodes.length];
+
+      for (int row = 0; row < this.size; row++) {
+        setBytes(column, row, dictionary.decode(columnCodes[row]));
+      }
+    }
+
+    /**
+     * Appends the value of row to a column stored as plain values, rows are set in order
+     */
+    private void setBytes(int column, int row, String value) {
+      byte[] valueBytes = value.getBytes(UTF_8);
+      int end = this.byteLengths[column] + valueBytes.length;
+
+      if (end > this.bytes[column].length) {
+        this.bytes[column] = Arrays.copyOf(this.bytes[column], Math.max(end, this.bytes[column].length * 2));
+      }
+      System.arraycopy(valueBytes, 0, this.bytes[column], this.byteLengths[column], valueBytes.length);
+      this.byteLengths[column] = end;
+
+      this.ends[column] = ensureCapacity(this.ends[column], row + 1);
+      this.ends[column][row] = end;
+    }
+
+    private static int[] ensureCapacity(int[] array, int capacity) {
+      if (capacity <= array.length) {
+        return array;
+      }
+
+      return Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+    }
+  }
+}
@@ -4,11 +4,21 @@ public class CsvConfig {
   private boolean downloadAttachment;
   private boolean scanFormatting;
   private boolean extraMetadata;
+  private boolean compressed;
 
   public CsvConfig(boolean downloadAttachment, boolean scanFormatting, boolean extraMetadata) {
+    this(downloadAttachment, scanFormatting, extraMetadata, false);
+  }
+
+  /**
+   * @param compressed True to write the csv gzip compressed
+   */
+  public CsvConfig(boolean downloadAttachment, boolean scanFormatting, boolean extraMetadata,
+      boolean compressed) {
     this.downloadAttachment = downloadAttachment;
     this.scanFormatting = scanFormatting;
     this.extraMetadata = extraMetadata;
+    this.compressed = compressed;
   }
 
   public CsvConfig() {
@@ -27,12 +37,41 @@ public class CsvConfig {
     return extraMetadata;
   }
 
+  public boolean isCompressed() {
+    return compressed;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof CsvConfig))
+      return false;
+
+    CsvConfig csvConfig = (CsvConfig) o;
+
+    return downloadAttachment == csvConfig.downloadAttachment &&
+        scanFormatting == csvConfig.scanFormatting &&
+        extraMetadata == csvConfig.extraMetadata &&
+        compressed == csvConfig.compressed;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = (downloadAttachment ? 1 : 0);
+    result = 31 * result + (scanFormatting ? 1 : 0);
+    result = 31 * result + (extraMetadata ? 1 : 0);
+    result = 31 * result + (compressed ? 1 : 0);
+    return result;
+  }
+
   @Override
   public String toString() {
     return "CsvConfig{" +
         "downloadAttachment=" + downloadAttachment +
         ", scanFormatting=" + scanFormatting +
         ", extraMetadata=" + extraMetadata +
+        ", compressed=" + compressed +
         '}';
   }
 }
@@ -9,7 +9,9 @@ import org.apache.wink.json4j.JSONObject;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.opendatakit.sync.client.SyncClient.*;
 
@@ -17,9 +19,14 @@ import static org.opendatakit.sync.client.SyncClient.*;
 public class ODKCsv implements Iterable<String[]> {
   public class ODKCSVIterator implements Iterator<String[]> {
     private int cursor;
+    //position of cursor as page and offset within that page
+    private int pageIndex;
+    private int pageOffset;
 
     ODKCSVIterator() {
       this.cursor = 0;
+      this.pageIndex = 0;
+      this.pageOffset = 0;
     }
 
     @Override
@@ -42,12 +49,21 @@ public class ODKCsv implements Iterable<String[]> {
         throw new NoSuchElementException();
       }
 
+      //pages are never empty, see tryAdd
+      if (this.pageOffset >= pages.get(this.pageIndex).size()) {
+        this.pageIndex++;
+        this.pageOffset = 0;
+      }
+
       String[] nextLine = null;
 
       try {
-        nextLine = get(cursor++, config);
+        nextLine = get(pages.get(this.pageIndex), this.pageOffset, config);
       } catch (Exception e) {
         e.printStackTrace();
+      } finally {
+        this.cursor++;
+        this.pageOffset++;
       }
 
       return nextLine;
@@ -71,6 +87,27 @@ public class ODKCsv implements Iterable<String[]> {
     FRONT, END
   }
 
+  /**
+   * Output layout of 1 CsvConfig.
+   * For each csv column, holds what to do (only KEEP, LINK or SCAN_RAW) and which stored column
+   * to read, so a row is filled without any per cell lookup.
+   */
+  private static class ProjectionPlan {
+    private final String[] header;
+    private final Action[] actions;
+    //Stored column of each csv column
+    private final int[] sources;
+    //Label looked up in Scan's raw output for SCAN_RAW columns
+    private final String[] scanLabels;
+
+    ProjectionPlan(String[] header, Action[] actions, int[] sources, String[] scanLabels) {
+      this.header = header;
+      this.actions = actions;
+      this.sources = sources;
+      this.scanLabels = scanLabels;
+    }
+  }
+
   //Some metadata fields are placed before row data, some are placed after
   private static final Map<Position, List<String>> METADATA_POSITION;
 
@@ -95,6 +132,40 @@ public class ODKCsv implements Iterable<String[]> {
     METADATA_POSITION.put(Position.END, endList);
   }
 
+  //Metadata columns in the order they are stored in a ColumnarPage, before row data
+  private static final List<String> METADATA_COLUMNS;
+  private static final Map<String, Integer> METADATA_STORE_INDEX;
+  //Stored column of the rowId, looked up for every row
+  private static final int ID_STORE_INDEX;
+
+  static {
+    METADATA_COLUMNS = new ArrayList<>();
+    METADATA_COLUMNS.addAll(METADATA_POSITION.get(Position.FRONT));
+    METADATA_COLUMNS.addAll(METADATA_POSITION.get(Position.END));
+
+    METADATA_STORE_INDEX = new HashMap<>();
+    for (int i = 0; i < METADATA_COLUMNS.size(); i++) {
+      METADATA_STORE_INDEX.put(METADATA_COLUMNS.get(i), i);
+    }
+    ID_STORE_INDEX = METADATA_STORE_INDEX.get(ID_ROW_DEF);
+  }
+
+  //Metadata with only a handful of distinct values per table, these are dictionary encoded
+  private static final Set<String> LOW_CARDINALITY_METADATA;
+
+  static {
+    LOW_CARDINALITY_METADATA = new HashSet<>();
+
+    LOW_CARDINALITY_METADATA.add(FORM_ID_ROW_DEF);
+    LOW_CARDINALITY_METADATA.add(LOCALE_ROW_DEF);
+    LOW_CARDINALITY_METADATA.add(SAVEPOINT_TYPE_ROW_DEF);
+    LOW_CARDINALITY_METADATA.add(SAVEPOINT_CREATOR_ROW_DEF);
+    LOW_CARDINALITY_METADATA.add(FILTER_TYPE_ROW_DEF);
+    LOW_CARDINALITY_METADATA.add(FILTER_VALUE_ROW_DEF);
+    LOW_CARDINALITY_METADATA.add("_create_user");
+    LOW_CARDINALITY_METADATA.add("_last_update_user");
+  }
+
   //Maps metadata to its json identifier
   private static final Map<String, String> METADATA_JSON_NAME;
 
@@ -118,19 +189,26 @@ public class ODKCsv implements Iterable<String[]> {
   private static final String CONTENT_TYPE_ELEMENT_NAME = "contentType";
   private static final String URI_FRAG_ELEMENT_NAME = "uriFragment";
   private static final String SCAN_RAW_PREFIX = "raw_";
-  //Due to optimization and how Scan is designed, 1 column is always filtered
-  private static final int NUM_FILTERED = 1; //TODO: generalize this?
 
   private AttachmentManager attMngr;
   private AggregateInfo aggInfo;
   private String tableId;
 
-  private List<JSONArray> jsonRows;
+  //Rows are converted to ColumnarPage as they are added, no JSON is retained
+  private List<ColumnarPage> pages;
+  //Index of the first row of each page in pages
+  private List<Integer> pageStarts;
+  //Dictionary of each stored column, null when the column is stored as plain values
+  private StringDictionary[] dictionaries;
   private String[] completeCSVHeader;
   //Header of row data only
   private String[] completeDataHeader;
   private int size;
   private Map<String, Action> colAction;
+  //Compiled output layout of each CsvConfig seen so far
+  private Map<CsvConfig, ProjectionPlan> plans;
+  //reused across rows, scan formatting is never parallelized
+  private final ScanJson scanRaw;
 
   /**
    * Initialize ODKCsv with rows
@@ -160,15 +238,16 @@ public class ODKCsv implements Iterable<String[]> {
     this.tableId = tableId;
 
     this.size = 0;
-    this.jsonRows = new ArrayList<>();
+    this.pages = new ArrayList<>();
+    this.pageStarts = new ArrayList<>();
+    this.scanRaw = new ScanJson();
 
     if (rows != null) {
-      this.size = rows.size();
-      this.jsonRows.add(rows);
+      initColumns(extractDataHeader(rows.getJSONObject(0)));
 
-      this.completeDataHeader = extractDataHeader(rows.getJSONObject(0));
-      this.completeCSVHeader = buildCSVHeader();
-      this.colAction = buildActionMap();
+      this.size = rows.size();
+      this.pages.add(toColumnarPage(rows));
+      this.pageStarts.add(0);
     }
   }
 
@@ -194,41 +273,7 @@ public class ODKCsv implements Iterable<String[]> {
       throw new IllegalStateException();
     }
 
-    if (!config.isScanFormatting() && config.isExtraMetadata()) {
-      return this.completeCSVHeader;
-    }
-
-    List<String> header = new ArrayList<>();
-    for (String col : this.completeCSVHeader) {
-      Action act = this.colAction.get(col);
-
-      switch (act) {
-      case KEEP:
-      case LINK:
-        //KEEP and LINK both don't affect header
-        header.add(col);
-        break;
-      case SCAN_RAW:
-        if (config.isScanFormatting()) {
-          header.add(SCAN_RAW_PREFIX + header.get(header.size() - 1));
-        }
-        //falls through
-      case FILTER:
-        if (!config.isScanFormatting()) {
-          header.add(col);
-        }
-        break;
-      case EXTRA:
-        if (config.isExtraMetadata()) {
-          header.add(col);
-        }
-        break;
-      default:
-        throw new IllegalStateException("This should not happen");
-      }
-    }
-
-    return header.toArray(new String[] {});
+    return getPlan(config).header;
   }
 
   /**
@@ -244,25 +289,26 @@ public class ODKCsv implements Iterable<String[]> {
       return false;
     }
 
-    if (this.size < 1) {
+    if (this.completeDataHeader == null) {
       // current instance is empty
       if (rows.size() > 0) {
         // initialize with rows
-        this.completeDataHeader = extractDataHeader(rows.getJSONObject(0));
+        initColumns(extractDataHeader(rows.getJSONObject(0)));
 
       } else {
         // initialize with column definitions from table definition
         SyncWrapper syncWrapper = SyncWrapper.getInstance();
         ArrayList<ColumnDefinition> cols = syncWrapper.buildColumnDefinitions(tableId);
-        this.completeDataHeader = extractDataHeaderWithListOfCols(cols);
+        initColumns(extractDataHeaderWithListOfCols(cols));
       }
-      
-      this.completeCSVHeader = buildCSVHeader();
-      this.colAction = buildActionMap();
     }
 
-    this.jsonRows.add(rows);
-    this.size += rows.size();
+    //empty pages are not kept so that every page in pages has at least 1 row
+    if (rows.size() > 0) {
+      this.pages.add(toColumnarPage(rows));
+      this.pageStarts.add(this.size);
+      this.size += rows.size();
+    }
 
     return true;
   }
@@ -278,29 +324,261 @@ public class ODKCsv implements Iterable<String[]> {
    * @throws Exception
    */
   public String[] get(int rowIndex, CsvConfig config) throws JSONException, IOException {
-    if (rowIndex >= size) {
+    if (rowIndex < 0 || rowIndex >= size) {
       throw new NoSuchElementException();
     }
 
     //converts rowIndex to listIndex-rowIndex form
-    int listIndex = 0;
-    while (rowIndex >= this.jsonRows.get(listIndex).size()) {
-      rowIndex -= this.jsonRows.get(listIndex).size();
-      listIndex++;
+    int listIndex = Collections.binarySearch(this.pageStarts, rowIndex);
+    if (listIndex < 0) {
+      //rowIndex is inside the page before the insertion point
+      listIndex = -listIndex - 2;
+    }
+
+    return get(this.pages.get(listIndex), rowIndex - this.pageStarts.get(listIndex), config);
+  }
+
+  /**
+   * Retrieves rows fromIndex (inclusive) to toIndex (exclusive), including data and metadata
+   *
+   * When isParallelizable returns true for config, multiple ranges can be retrieved at the same
+   * time from different threads, as long as no rows are added or cleared meanwhile.
+   *
+   * @param fromIndex
+   * @param toIndex
+   * @param config
+   * @return
+   * @throws JSONException
+   * @throws IOException
+   */
+  public List<String[]> get(int fromIndex, int toIndex, CsvConfig config)
+      throws JSONException, IOException {
+    if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException(fromIndex + " to " + toIndex);
     }
 
-    JSONObject row = this.jsonRows.get(listIndex).getJSONObject(rowIndex);
-    String[] front = getMetadata(row, Position.FRONT, config);
-    String[] middle = getData(row, config);
-    String[] end = getMetadata(row, Position.END, config);
+    List<String[]> lines = new ArrayList<>(toIndex - fromIndex);
+    if (fromIndex == toIndex) {
+      return lines;
+    }
+
+    int listIndex = Collections.binarySearch(this.pageStarts, fromIndex);
+    if (listIndex < 0) {
+      listIndex = -listIndex - 2;
+    }
+    int row = fromIndex - this.pageStarts.get(listIndex);
 
-    //TODO: try to avoid copying arrays
-    String[] sum = new String[front.length + middle.length + end.length];
-    System.arraycopy(front, 0, sum, 0, front.length);
-    System.arraycopy(middle, 0, sum, front.length, middle.length);
-    System.arraycopy(end, 0, sum, front.length + middle.length, end.length);
+    for (int i = fromIndex; i < toIndex; i++) {
+      ColumnarPage page = this.pages.get(listIndex);
+      lines.add(get(page, row, config));
 
-    return sum;
+      if (++row >= page.size()) {
+        listIndex++;
+        row = 0;
+      }
+    }
+
+    return lines;
+  }
+
+  /**
+   * Rows can only be formatted concurrently when no attachment has to be touched, as
+   * AttachmentManager is not meant to be shared between threads
+   *
+   * @param config
+   * @return
+   */
+  public boolean isParallelizable(CsvConfig config) {
+    return !config.isDownloadAttachment() && !config.isScanFormatting();
+  }
+
+  /**
+   * Retrieves 1 row, including data and metadata
+   *
+   * @param page
+   * @param row   Index of row within page
+   * @param config
+   * @return
+   * @throws JSONException
+   * @throws IOException
+   */
+  private String[] get(ColumnarPage page, int row, CsvConfig config)
+      throws JSONException, IOException {
+    ProjectionPlan plan = getPlan(config);
+    String rowId = page.get(row, ID_STORE_INDEX);
+
+    if (config.isScanFormatting() || config.isDownloadAttachment()) {
+      this.attMngr.getListOfRowAttachments(rowId);
+
+      if (config.isScanFormatting()) {
+        this.attMngr.downloadAttachments(rowId, true);
+        this.scanRaw.read(this.attMngr.getScanRawJsonStream(rowId));
+      }
+    }
+
+    String[] line = new String[plan.header.length];
+    for (int i = 0; i < line.length; i++) {
+      switch (plan.actions[i]) {
+      case KEEP:
+        line[i] = page.get(row, plan.sources[i]);
+        break;
+      case LINK:
+        line[i] = makeLink(page.get(row, plan.sources[i]), rowId, config.isDownloadAttachment());
+        break;
+      case SCAN_RAW:
+        line[i] = this.scanRaw.getValue(plan.scanLabels[i]);
+        break;
+      default:
+        throw new IllegalStateException("This should not happen");
+      }
+    }
+
+    if (config.isDownloadAttachment()) {
+      //attachments are downloaded in the background, see awaitAttachmentDownloads
+      this.attMngr.queueAttachmentDownloads(rowId);
+    }
+
+    return line;
+  }
+
+  /**
+   * Drops all buffered rows but keeps the header, so that the next page can be added without
+   * retaining the previous ones (used when streaming a table to disk page by page)
+   */
+  public void clearRows() {
+    this.pages.clear();
+    this.pageStarts.clear();
+    this.size = 0;
+  }
+
+  /**
+   * Retrieves attachment manifests of rows fromIndex (inclusive) to toIndex (exclusive) ahead of
+   * formatting them.
+   * Rows that leave every file column empty cannot have attachments and are not asked about.
+   * The others are retrieved concurrently instead of 1 by 1 while rows are formatted.
+   *
+   * @param fromIndex
+   * @param toIndex
+   * @throws InterruptedException
+   */
+  public void prefetchAttachmentManifests(int fromIndex, int toIndex)
+      throws InterruptedException {
+    if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException(fromIndex + " to " + toIndex);
+    }
+
+    List<Integer> fileColumns = new ArrayList<>();
+    for (int i = 0; i < this.completeDataHeader.length; i++) {
+      if (this.colAction.get(this.completeDataHeader[i]) == Action.LINK) {
+        fileColumns.add(METADATA_COLUMNS.size() + i);
+      }
+    }
+
+    List<String> rowIds = new ArrayList<>();
+    int pageStart = 0;
+    for (ColumnarPage page : this.pages) {
+      int from = Math.max(fromIndex - pageStart, 0);
+      int to = Math.min(toIndex - pageStart, page.size());
+
+      for (int row = from; row < to; row++) {
+        String rowId = page.get(row, ID_STORE_INDEX);
+        boolean hasFile = false;
+
+        for (int column : fileColumns) {
+          String fileName = page.get(row, column);
+          if (!fileName.isEmpty() && !fileName.equals(NULL)) {
+            hasFile = true;
+            break;
+          }
+        }
+
+        if (hasFile) {
+          rowIds.add(rowId);
+        } else {
+          this.attMngr.recordRowWithoutAttachments(rowId);
+        }
+      }
+
+      pageStart += page.size();
+      if (pageStart >= toIndex) {
+        break;
+      }
+    }
+
+    this.attMngr.getListOfRowAttachments(rowIds);
+  }
+
+  /**
+   * Starts downloading Scan's raw JSON of rows fromIndex (inclusive) to toIndex (exclusive) in
+   * the background, so that formatting them does not wait 1 request per row.
+   * Only rows whose attachment manifest has been retrieved are prefetched.
+   *
+   * @param fromIndex
+   * @param toIndex
+   * @throws IOException
+   */
+  public void prefetchScanRawJson(int fromIndex, int toIndex) throws IOException {
+    if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException(fromIndex + " to " + toIndex);
+    }
+
+    List<String> rowIds = new ArrayList<>();
+    for (int i = 0; i < this.pages.size() && this.pageStarts.get(i) < toIndex; i++) {
+      ColumnarPage page = this.pages.get(i);
+      int from = Math.max(fromIndex - this.pageStarts.get(i), 0);
+      int to = Math.min(toIndex - this.pageStarts.get(i), page.size());
+
+      for (int row = from; row < to; row++) {
+        rowIds.add(page.get(row, ID_STORE_INDEX));
+      }
+    }
+
+    this.attMngr.prefetchScanRawJson(rowIds);
+  }
+
+  /**
+   * Drops Scan raw JSON prefetches that are no longer needed, such as after an error
+   */
+  public void cancelScanRawJsonPrefetches() {
+    this.attMngr.cancelScanRawJsonPrefetches();
+  }
+
+  /**
+   * Records rows whose attachments have all been downloaded in logPath, and skips rows already
+   * listed there
+   *
+   * @param logPath null to stop recording
+   * @throws IOException
+   */
+  public void setAttachmentLog(Path logPath) throws IOException {
+    this.attMngr.setCompletedRowLog(logPath);
+  }
+
+  /**
+   * Queues attachment downloads of rows that are no longer held in this csv,
+   * such as rows written before an interrupted download
+   *
+   * @param rowIds
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void queueAttachmentDownloads(Collection<String> rowIds)
+      throws IOException, InterruptedException {
+    this.attMngr.getListOfRowAttachments(rowIds);
+
+    for (String rowId : rowIds) {
+      this.attMngr.queueAttachmentDownloads(rowId);
+    }
+  }
+
+  /**
+   * Waits for attachments queued while retrieving rows
+   *
+   * @return Local path of every attachment that could not be downloaded, mapped to the cause
+   * @throws InterruptedException
+   */
+  public Map<String, Exception> awaitAttachmentDownloads() throws InterruptedException {
+    return this.attMngr.awaitDownloads();
   }
 
   public int getSize() {
@@ -315,6 +593,19 @@ public class ODKCsv implements Iterable<String[]> {
 //    this.attMngr = mngr;
 //  }
 
+  /**
+   * Initializes header, column actions and dictionaries from the data header
+   *
+   * @param dataHeader
+   */
+  private void initColumns(String[] dataHeader) {
+    this.completeDataHeader = dataHeader;
+    this.completeCSVHeader = buildCSVHeader();
+    this.colAction = buildActionMap();
+    this.dictionaries = buildDictionaries();
+    this.plans = new ConcurrentHashMap<>();
+  }
+
   /**
    * Extract data header from 1 row of JSON
    *
@@ -400,8 +691,8 @@ public class ODKCsv implements Iterable<String[]> {
    * @throws JSONException
    */
   private boolean isCompatible(JSONArray rows) throws JSONException {
-    if (this.size < 1) {
-      //this instance is empty -> always compatible
+    if (this.completeDataHeader == null || rows.size() < 1) {
+      //this instance has no header yet or there is nothing to add -> always compatible
       return true;
     }
 
@@ -413,116 +704,56 @@ public class ODKCsv implements Iterable<String[]> {
   }
 
   /**
-   * Retrieves metadata for 1 row
+   * Converts 1 page of JSON rows to a ColumnarPage.
+   * Stored columns are metadata in METADATA_COLUMNS order followed by row data.
    *
-   * @param row
-   * @param pos
-   * @param config
+   * @param rows
    * @return
    * @throws JSONException
    */
-  private String[] getMetadata(JSONObject row, Position pos, CsvConfig config) throws
-      JSONException {
-    List<String> metadataList = METADATA_POSITION.get(pos);
+  private ColumnarPage toColumnarPage(JSONArray rows) throws JSONException {
+    ColumnarPage.Builder builder = new ColumnarPage.Builder(this.dictionaries, rows.size());
 
-    List<String> metadata = new ArrayList<>();
+    for (int i = 0; i < rows.size(); i++) {
+      JSONObject row = rows.getJSONObject(i);
+      int column = 0;
 
-    for (String colName : metadataList) {
-      String jsonName = METADATA_JSON_NAME.get(colName);
+      for (String colName : METADATA_COLUMNS) {
+        String jsonName = METADATA_JSON_NAME.get(colName);
 
-      if (jsonName.startsWith(FILTER_SCOPE_JSON)) {
-        metadata
-            .add(row.getJSONObject(FILTER_SCOPE_JSON).optString(jsonName.split(":")[1].trim(), NULL));
-      } else if (config.isExtraMetadata() || (this.colAction.get(colName) != Action.EXTRA)) {
-        metadata.add(row.optString(jsonName, NULL));
-      }
-      //everything else ignored
-    }
-
-    return metadata.toArray(new String[] {});
-  }
-
-  /**
-   * Retrieves data for 1 row
-   *
-   * @param row
-   * @param config
-   * @return
-   * @throws IOException 
-   * @throws JSONException 
-   * @throws Exception
-   */
-  private String[] getData(JSONObject row, CsvConfig config) throws IOException, JSONException {
-    String rowId = row.optString(ID_JSON);
-
-    ScanJson scanRaw = null;
-    if (config.isScanFormatting() || config.isDownloadAttachment()) {
-      this.attMngr.getListOfRowAttachments(rowId);
-
-      if (config.isScanFormatting()) {
-        this.attMngr.downloadAttachments(rowId, true);
-        scanRaw = new ScanJson(this.attMngr.getScanRawJsonStream(rowId));
-      }
-    }
-
-    int dataLength = this.completeDataHeader.length;
-    if (config.isScanFormatting()) {
-      dataLength -= NUM_FILTERED;
-    }
-    String[] data = new String[dataLength];
-
-    JSONArray columns = row.getJSONArray(ORDERED_COLUMNS_DEF);
-    int offset = 0;
-    for (int i = 0; i < this.completeDataHeader.length; i++) {
-      String colName = this.completeDataHeader[i];
-      Action act = this.colAction.get(colName);
-      String value = columns.getJSONObject(i).optString("value", NULL);
-
-      switch (act) {
-      case KEEP:
-        data[i - offset] = value;
-        break;
-      case FILTER:
-        if (!config.isScanFormatting()) {
-          data[i - offset] = value;
+        if (jsonName.startsWith(FILTER_SCOPE_JSON)) {
+          builder.set(column++,
+              row.getJSONObject(FILTER_SCOPE_JSON).optString(jsonName.split(":")[1].trim(), NULL));
         } else {
-          offset++;
-          //value is ignored when scanFormatting is high
-        }
-        break;
-      case LINK:
-        data[i - offset] = makeLink(value, row, config.isDownloadAttachment());
-        break;
-      case SCAN_RAW:
-        if (config.isScanFormatting()) {
-          value = scanRaw.getValue(this.completeDataHeader[i - 1]);
+          builder.set(column++, row.optString(jsonName, NULL));
         }
-        data[i - offset] = value;
-        break;
       }
-    }
 
-    if (config.isDownloadAttachment()) {
-      this.attMngr.downloadAttachments(rowId, false);
+      JSONArray columns = row.getJSONArray(ORDERED_COLUMNS_DEF);
+      for (int j = 0; j < this.completeDataHeader.length; j++) {
+        builder.set(column++, columns.getJSONObject(j).optString("value", NULL));
+      }
+
+      builder.endRow();
     }
 
-    return data;
+    return builder.build();
   }
 
   /**
    * Builds "Excel compatible" hyperlink using inferred path
    *
    * @param fileName
-   * @param row
+   * @param rowId
    * @param localLink
    * @return
    * @throws IOException
    */
-  private String makeLink(String fileName, JSONObject row, boolean localLink) throws IOException {
+  private String makeLink(String fileName, String rowId, boolean localLink) throws IOException {
     String template = "=HYPERLINK(\"%s\", \"Ctrl + Click to view\")";
     String attachmentUrlStr;
     if (localLink) {
-      URL attachmentUrl = this.attMngr.getAttachmentUrl(row.optString(ID_JSON), fileName, true);
+      URL attachmentUrl = this.attMngr.getAttachmentUrl(rowId, fileName, true);
       if (attachmentUrl == null) {
         return "File is missing on Aggregate server.";
       }
@@ -532,7 +763,7 @@ public class ODKCsv implements Iterable<String[]> {
           this.aggInfo.getServerUrl() + "/" + "tables" + "/" + this.aggInfo.getAppId() + "/" +
               this.tableId + "/ref/" +
               this.aggInfo.getSchemaETag(this.tableId) + "/attachments/" +
-              row.optString(ID_JSON) + "/file/" + fileName;
+              rowId + "/file/" + fileName;
     }
 
     return String.format(template, attachmentUrlStr);
@@ -565,6 +796,124 @@ public class ODKCsv implements Iterable<String[]> {
     return actionMap;
   }
 
+  /**
+   * Creates a dictionary for every low cardinality stored column
+   *
+   * @return
+   */
+  private StringDictionary[] buildDictionaries() {
+    StringDictionary[] dicts =
+        new StringDictionary[METADATA_COLUMNS.size() + this.completeDataHeader.length];
+
+    for (int i = 0; i < METADATA_COLUMNS.size(); i++) {
+      if (LOW_CARDINALITY_METADATA.contains(METADATA_COLUMNS.get(i))) {
+        dicts[i] = new StringDictionary();
+      }
+    }
+
+    //content types of attachments are mostly the same few mime types
+    for (int i = 0; i < this.completeDataHeader.length; i++) {
+      if (this.completeDataHeader[i].endsWith(CONTENT_TYPE_ELEMENT_NAME)) {
+        dicts[METADATA_COLUMNS.size() + i] = new StringDictionary();
+      }
+    }
+
+    return dicts;
+  }
+
+  /**
+   * Returns the compiled ProjectionPlan of config, compiling it on first use
+   *
+   * @param config
+   * @return
+   */
+  private ProjectionPlan getPlan(CsvConfig config) {
+    ProjectionPlan plan = this.plans.get(config);
+
+    if (plan == null) {
+      plan = compilePlan(config);
+      this.plans.put(config, plan);
+    }
+
+    return plan;
+  }
+
+  /**
+   * Works out once which stored column ends up in which csv column and what has to be done to it
+   *
+   * @param config
+   * @return
+   */
+  private ProjectionPlan compilePlan(CsvConfig config) {
+    List<String> header = new ArrayList<>();
+    List<Action> actions = new ArrayList<>();
+    List<Integer> sources = new ArrayList<>();
+    List<String> scanLabels = new ArrayList<>();
+
+    for (int i = 0; i < this.completeCSVHeader.length; i++) {
+      String col = this.completeCSVHeader[i];
+      Action act = this.colAction.get(col);
+
+      int frontSize = METADATA_POSITION.get(Position.FRONT).size();
+      int source;
+      if (i < frontSize) {
+        source = METADATA_STORE_INDEX.get(col);
+      } else if (i < frontSize + this.completeDataHeader.length) {
+        source = METADATA_COLUMNS.size() + i - frontSize;
+      } else {
+        source = METADATA_STORE_INDEX.get(col);
+      }
+
+      switch (act) {
+      case KEEP:
+      case LINK:
+        //KEEP and LINK both don't affect header
+        header.add(col);
+        actions.add(act);
+        sources.add(source);
+        scanLabels.add(null);
+        break;
+      case SCAN_RAW:
+        if (config.isScanFormatting()) {
+          //value comes from Scan's raw output, labeled by the previous data column
+          header.add(SCAN_RAW_PREFIX + header.get(header.size() - 1));
+          actions.add(Action.SCAN_RAW);
+          sources.add(source);
+          scanLabels.add(this.completeCSVHeader[i - 1]);
+        }
+        //falls through
+      case FILTER:
+        if (!config.isScanFormatting()) {
+          header.add(col);
+          actions.add(Action.KEEP);
+          sources.add(source);
+          scanLabels.add(null);
+        }
+        break;
+      case EXTRA:
+        if (config.isExtraMetadata()) {
+          header.add(col);
+          actions.add(Action.KEEP);
+          sources.add(source);
+          scanLabels.add(null);
+        }
+        break;
+      default:
+        throw new IllegalStateException("This should not happen");
+      }
+    }
+
+    int[] sourceArray = new int[sources.size()];
+    for (int i = 0; i < sourceArray.length; i++) {
+      sourceArray[i] = sources.get(i);
+    }
+
+    return new ProjectionPlan(
+        header.toArray(new String[] {}), actions.toArray(new Action[] {}), sourceArray,
+        scanLabels.toArray(new String[] {})
+    );
+  }
+
   @Override
   public Iterator<String[]> iterator() {
     return getODKCSVIterator();
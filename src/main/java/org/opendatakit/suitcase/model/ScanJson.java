@@ -1,47 +1,141 @@
 package org.opendatakit.suitcase.model;
 
-import org.apache.wink.json4j.JSONArray;
-import org.apache.wink.json4j.JSONException;
-import org.apache.wink.json4j.JSONObject;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Handles Scan's raw JSON
  *
- * !!!ATTENTION!!! One per row
+ * Only the name and value of each entry of "fields" are read, everything else is skipped
+ * without being parsed into objects. An instance can be reused for many rows, its map and the
+ * parser's buffers are recycled.
+ *
+ * !!!ATTENTION!!! One row at a time, not thread safe
  */
 public class ScanJson {
-  private Map<String, String> labelValuePair;
+  //Thread safe, and recycles parser buffers per thread
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final String FIELDS_JSON = "fields";
+  private static final String NAME_JSON = "name";
+  private static final String VALUE_JSON = "value";
+  private static final String NULL = "null";
 
-  public ScanJson(InputStream jsonStream) throws JSONException {
-    this.labelValuePair = null;
+  private final Map<String, String> labelValuePair;
+  private boolean hasJson;
 
-    if (jsonStream != null) {
-      this.labelValuePair = buildLabelValuePair(jsonStream);
-    }
+  public ScanJson() {
+    this.labelValuePair = new HashMap<>();
+    this.hasJson = false;
   }
 
-  private Map<String, String> buildLabelValuePair(InputStream jsonStream) throws JSONException {
-    Map<String, String> map = new HashMap<>();
+  public ScanJson(InputStream jsonStream) throws IOException {
+    this();
 
-    JSONArray fields = new JSONObject(jsonStream).getJSONArray("fields");
+    read(jsonStream);
+  }
 
-    for (int i = 0; i < fields.size(); i++) {
-      JSONObject field = fields.getJSONObject(i);
-      map.put(field.optString("name"), field.has("value") ? field.optString("value") : "null");
+  /**
+   * Replaces the label value pairs with those of jsonStream, then closes it
+   *
+   * @param jsonStream Scan's raw JSON, or null when the row has none
+   * @throws IOException
+   */
+  public void read(InputStream jsonStream) throws IOException {
+    this.labelValuePair.clear();
+    this.hasJson = jsonStream != null;
+
+    if (jsonStream == null) {
+      return;
     }
 
-    return map;
+    JsonParser parser = JSON_FACTORY.createParser(jsonStream);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException("Scan JSON is not an object", parser.getCurrentLocation());
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String key = parser.getCurrentName();
+
+        if (parser.nextToken() == JsonToken.START_ARRAY && FIELDS_JSON.equals(key)) {
+          readFields(parser);
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } finally {
+      parser.close();
+    }
   }
 
   public String getValue(String label) {
-    if (this.labelValuePair == null) {
-      return "null";
+    if (!this.hasJson) {
+      return NULL;
     }
 
     return this.labelValuePair.get(label);
   }
+
+  private void readFields(JsonParser parser) throws IOException {
+    JsonToken token;
+
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (token != JsonToken.START_OBJECT) {
+        throw new JsonParseException("Scan field is not an object", parser.getCurrentLocation());
+      }
+
+      String name = null;
+      //a field without value reads as "null", a null value as null
+      String value = NULL;
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String key = parser.getCurrentName();
+        parser.nextToken();
+
+        if (NAME_JSON.equals(key)) {
+          name = readText(parser);
+        } else if (VALUE_JSON.equals(key)) {
+          value = readText(parser);
+        } else {
+          parser.skipChildren();
+        }
+      }
+
+      this.labelValuePair.put(name, value);
+    }
+  }
+
+  /**
+   * Reads the current value as the text JSONObject.optString would give
+   *
+   * @param parser
+   * @return
+   * @throws IOException
+   */
+  private static String readText(JsonParser parser) throws IOException {
+    switch (parser.getCurrentToken()) {
+    case VALUE_NULL:
+      return null;
+    case VALUE_NUMBER_FLOAT:
+      return Double.toString(parser.getDoubleValue());
+    case START_OBJECT:
+    case START_ARRAY:
+      StringWriter writer = new StringWriter();
+      JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+      generator.copyCurrentStructure(parser);
+      generator.close();
+      return writer.toString();
+    default:
+      return parser.getText();
+    }
+  }
 }
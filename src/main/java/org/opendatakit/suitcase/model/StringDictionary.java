@@ -0,0 +1,53 @@
+package org.opendatakit.suitcase.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps each distinct value of a low cardinality column to an int code,
+ * so that every occurrence of the value only costs the code.
+ *
+ * !!!ATTENTION!!! One per column, shared by all pages of an ODKCsv
+ */
+class StringDictionary {
+  //Past this size no value is added, the column is stored as plain values instead
+  private static final int MAX_ENTRIES = 1 << 16;
+
+  private final Map<String, Integer> codes;
+  private final List<String> values;
+
+  StringDictionary() {
+    this.codes = new HashMap<>();
+    this.values = new ArrayList<>();
+  }
+
+  /**
+   * @param value
+   * @return Code of value, -1 when value is new and the dictionary is full
+   */
+  int encode(String value) {
+    Integer code = this.codes.get(value);
+
+    if (code == null) {
+      if (isFull()) {
+        return -1;
+      }
+
+      code = this.values.size();
+      this.values.add(value);
+      this.codes.put(value, code);
+    }
+
+    return code;
+  }
+
+  String decode(int code) {
+    return this.values.get(code);
+  }
+
+  boolean isFull() {
+    return this.values.size() >= MAX_ENTRIES;
+  }
+}
@@ -0,0 +1,105 @@
+package org.opendatakit.suitcase.net;
+
+/**
+ * Picks the number of rows of the next request from how long previous requests took and how
+ * large they were, aiming for each request to take about targetMillis.
+ * The size at most doubles or halves from one request to the next, and never leaves
+ * [minSize, maxSize]. The size is also capped so that a request stays under maxBytes.
+ * A request that failed, say it timed out or the server answered with an error, halves the size.
+ *
+ * !!!ATTENTION!!! Not thread safe, one per sequence of requests
+ */
+public class AdaptiveSizer {
+  public static final long DEFAULT_TARGET_MILLIS = 2000;
+  public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+  //Weight of the latest request in the running estimates
+  private static final double SMOOTHING = 0.5;
+
+  private final int minSize;
+  private final int maxSize;
+  private final long targetMillis;
+  private final long maxBytes;
+  private int size;
+  //running estimates, negative until the first request is recorded
+  private double millisPerRow;
+  private double bytesPerRow;
+
+  /**
+   * @param initialSize  Size of the first request
+   * @param minSize
+   * @param maxSize
+   * @param targetMillis
+   * @param maxBytes
+   */
+  public AdaptiveSizer(int initialSize, int minSize, int maxSize, long targetMillis,
+      long maxBytes) {
+    if (minSize < 1 || maxSize < minSize) {
+      throw new IllegalArgumentException("Invalid size range: " + minSize + " to " + maxSize);
+    }
+
+    if (targetMillis < 1 || maxBytes < 1) {
+      throw new IllegalArgumentException("targetMillis and maxBytes must be positive");
+    }
+
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.targetMillis = targetMillis;
+    this.maxBytes = maxBytes;
+    this.size = clamp(initialSize, minSize, maxSize);
+    this.millisPerRow = -1;
+    this.bytesPerRow = -1;
+  }
+
+  /**
+   * @return Number of rows the next request should contain
+   */
+  public int getSize() {
+    return this.size;
+  }
+
+  /**
+   * Records a finished request and adjusts the size of the next one
+   *
+   * @param rows   Number of rows in the request
+   * @param millis How long the request took
+   * @param bytes  Size of the request
+   */
+  public void record(int rows, long millis, long bytes) {
+    if (rows < 1) {
+      //nothing to learn from, usually the end of the table
+      return;
+    }
+
+    this.millisPerRow = smooth(this.millisPerRow, (double) millis / rows);
+    this.bytesPerRow = smooth(this.bytesPerRow, (double) bytes / rows);
+
+    double wanted = this.targetMillis / Math.max(this.millisPerRow, Double.MIN_VALUE);
+    if (this.bytesPerRow > 0) {
+      wanted = Math.min(wanted, this.maxBytes / this.bytesPerRow);
+    }
+
+    int next = (int) Math.min(wanted, Integer.MAX_VALUE);
+    next = clamp(next, this.size / 2, (int) Math.min((long) this.size * 2, Integer.MAX_VALUE));
+    this.size = clamp(next, this.minSize, this.maxSize);
+  }
+
+  /**
+   * Records a request that failed, halving the size of the next one.
+   * The running estimates are kept, a failure says nothing about how long a row takes.
+   */
+  public void recordFailure() {
+    this.size = clamp(this.size / 2, this.minSize, this.maxSize);
+  }
+
+  private static double smooth(double estimate, double sample) {
+    if (estimate < 0) {
+      return sample;
+    }
+
+    return SMOOTHING * sample + (1 - SMOOTHING) * estimate;
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+}
@@ -9,31 +9,121 @@ import org.opendatakit.suitcase.utils.FileUtils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages downloading attachments and information about attachments
  *
+ * Attachments queued with queueAttachmentDownloads are downloaded on a bounded pool of threads,
+ * call awaitDownloads before relying on them.
+ *
  * !!!ATTENTION!!! One AttachmentManager per table
  */
 public class AttachmentManager {
+  public static final int DEFAULT_CONCURRENT_DOWNLOADS = 4;
+  //rows waiting for a download thread per download thread, the caller runs the download past this
+  private static final int QUEUED_ROWS_PER_THREAD = 16;
+  private static final String THREAD_NAME_PREFIX = "attachment-download-";
+  //Suffix of Scan raw JSON while it is being downloaded
+  private static final String PARTIAL_SUFFIX = ".part";
+
   private AggregateInfo aggInfo;
+  private SyncWrapper syncWrapper;
   private String tableId;
   private String savePath;
   private Map<String, JSONObject> attachmentManifests;
-  private Map<String, Map<String, String>> allAttachments;
+  private ConcurrentMap<String, Map<String, String>> allAttachments;
+
+  private int concurrentDownloads;
+  private ExecutorService downloadExecutor;
+  //Number of queued rows that have not finished downloading, guarded by itself
+  private final int[] outstandingDownloads;
+  //Local path of attachment -> why it could not be downloaded
+  private final Map<String, Exception> failedDownloads;
+  //Rows whose attachments have all been downloaded, recorded in completedRowLog
+  private final Set<String> completedRows;
+  private Path completedRowLog;
+  //Scan raw JSON downloads started ahead of formatting, guarded by itself
+  private final Map<String, Future<?>> scanJsonPrefetches;
+  private ExecutorService scanJsonExecutor;
   
   public AttachmentManager(AggregateInfo aggInfo, String tableId, String savePath) {
+    this(aggInfo, tableId, savePath, SyncWrapper.getInstance());
+  }
+
+  /**
+   * @param syncWrapper Where manifests and attachments are retrieved from
+   */
+  public AttachmentManager(AggregateInfo aggInfo, String tableId, String savePath,
+      SyncWrapper syncWrapper) {
     this.aggInfo = aggInfo;
+    this.syncWrapper = syncWrapper;
     this.tableId = tableId;
     this.savePath = savePath;
 
-    this.attachmentManifests = new HashMap<>();
-    this.allAttachments = new HashMap<>();
+    //manifests are read by download threads
+    this.attachmentManifests = new ConcurrentHashMap<>();
+    this.allAttachments = new ConcurrentHashMap<>();
+
+    this.concurrentDownloads = DEFAULT_CONCURRENT_DOWNLOADS;
+    this.outstandingDownloads = new int[] {0};
+    this.failedDownloads = new ConcurrentHashMap<>();
+    this.completedRows = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.completedRowLog = null;
+    this.scanJsonPrefetches = new HashMap<>();
+    this.scanJsonExecutor = null;
+  }
+
+  /**
+   * Records every row whose attachments have all been downloaded in logPath, 1 rowId per line.
+   * Rows already listed in logPath, say by an interrupted download, are not downloaded again.
+   *
+   * @param logPath null to stop recording
+   * @throws IOException
+   */
+  public void setCompletedRowLog(Path logPath) throws IOException {
+    this.completedRows.clear();
+    this.completedRowLog = logPath;
+
+    if (logPath != null && Files.exists(logPath)) {
+      for (String rowId : Files.readAllLines(logPath, StandardCharsets.UTF_8)) {
+        if (!rowId.isEmpty()) {
+          this.completedRows.add(rowId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets maximum number of attachment downloads running at the same time.
+   * Takes effect on the next download pool, that is after awaitDownloads.
+   *
+   * @param concurrentDownloads
+   */
+  public void setConcurrentDownloads(int concurrentDownloads) {
+    if (concurrentDownloads < 1) {
+      throw new IllegalArgumentException("concurrentDownloads must be positive");
+    }
+
+    this.concurrentDownloads = concurrentDownloads;
   }
 
   /**
@@ -45,7 +135,7 @@ public class AttachmentManager {
   public void getListOfRowAttachments(String rowId) {
     if (!this.allAttachments.containsKey(rowId)) {
       try {
-        JSONObject manifest = SyncWrapper.getInstance().getManifestForRow(tableId, rowId);
+        JSONObject manifest = syncWrapper.getManifestForRow(tableId, rowId);
         JSONArray attachments = manifest.getJSONArray("files");
 
         if (attachments.size() > 0) {
@@ -58,6 +148,8 @@ public class AttachmentManager {
                 (attachmentJson.optString("filename"), attachmentJson.optString("downloadUrl"));
           }
           allAttachments.put(rowId, attachmentsMap);
+        } else {
+          recordRowWithoutAttachments(rowId);
         }
       } catch (Exception e) {
         System.out.println("Attachments Manifest Missing!");
@@ -65,6 +157,53 @@ public class AttachmentManager {
     }
   }
 
+  /**
+   * Retrieves attachment manifests of multiple rows at the same time.
+   * Rows whose manifest has already been retrieved are skipped.
+   *
+   * Aggregate has no call that returns the manifests of all rows of a table, so this still makes
+   * 1 request per row, but up to concurrentDownloads of them at a time.
+   *
+   * @param rowIds
+   * @throws InterruptedException
+   */
+  public void getListOfRowAttachments(Collection<String> rowIds) throws InterruptedException {
+    List<Callable<Void>> requests = new ArrayList<>();
+
+    for (final String rowId : rowIds) {
+      if (!this.allAttachments.containsKey(rowId)) {
+        requests.add(new Callable<Void>() {
+          @Override
+          public Void call() {
+            getListOfRowAttachments(rowId);
+            return null;
+          }
+        });
+      }
+    }
+
+    if (requests.isEmpty()) {
+      return;
+    }
+
+    ExecutorService executor = newExecutor(Math.min(this.concurrentDownloads, requests.size()));
+    try {
+      //failures are handled by getListOfRowAttachments
+      executor.invokeAll(requests);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Records that a row has no attachment, without asking Aggregate
+   *
+   * @param rowId
+   */
+  public void recordRowWithoutAttachments(String rowId) {
+    this.allAttachments.putIfAbsent(rowId, Collections.<String, String>emptyMap());
+  }
+
   /**
    * Retrieves URL for attachment.
    * If a localUrl is requested, url is inferred from filename and aggInfo info
@@ -115,12 +254,18 @@ public class AttachmentManager {
     if (this.attachmentManifests.containsKey(rowId)) {
       try {
         if (scanRawJsonOnly) {
-          SyncWrapper.getInstance().getFileForRow(
-              tableId, rowId, getAttachmentLocalPath(rowId, getScanJsonFilename(rowId)).toString(),
-              getScanJsonFilename(rowId)
-          );
+          Future<?> prefetch;
+          synchronized (this.scanJsonPrefetches) {
+            prefetch = this.scanJsonPrefetches.remove(rowId);
+          }
+
+          if (prefetch != null) {
+            prefetch.get();
+          } else if (Files.notExists(getAttachmentLocalPath(rowId, getScanJsonFilename(rowId)))) {
+            downloadScanRawJson(rowId);
+          }
         } else {
-          SyncWrapper.getInstance().batchGetFilesForRow(
+          syncWrapper.batchGetFilesForRow(
               tableId, rowId, getAttachmentLocalDir(rowId).toString(),
               attachmentManifests.get(rowId)
           );
@@ -132,6 +277,224 @@ public class AttachmentManager {
     }
   }
 
+  /**
+   * Starts downloading Scan's raw JSON of rows on a bounded pool of threads and returns,
+   * so that downloadAttachments(rowId, true) only has to wait for what is still in flight.
+   * Rows whose raw JSON is already on disk, say from an earlier run, and rows whose manifest has
+   * not been retrieved are skipped.
+   * When the pool is busy, downloads run on the calling thread instead.
+   *
+   * @param rowIds
+   * @throws IOException
+   */
+  public void prefetchScanRawJson(Collection<String> rowIds) throws IOException {
+    for (final String rowId : rowIds) {
+      if (!this.attachmentManifests.containsKey(rowId) ||
+          Files.exists(getAttachmentLocalPath(rowId, getScanJsonFilename(rowId)))) {
+        continue;
+      }
+
+      ExecutorService executor;
+      synchronized (this.scanJsonPrefetches) {
+        if (this.scanJsonPrefetches.containsKey(rowId)) {
+          continue;
+        }
+
+        if (this.scanJsonExecutor == null) {
+          this.scanJsonExecutor = newExecutor(this.concurrentDownloads);
+        }
+        executor = this.scanJsonExecutor;
+      }
+
+      Future<?> prefetch = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          downloadScanRawJson(rowId);
+          return null;
+        }
+      });
+
+      synchronized (this.scanJsonPrefetches) {
+        this.scanJsonPrefetches.put(rowId, prefetch);
+      }
+    }
+  }
+
+  /**
+   * Drops Scan raw JSON downloads that have not been waited for and releases their threads
+   */
+  public void cancelScanRawJsonPrefetches() {
+    ExecutorService executor;
+
+    synchronized (this.scanJsonPrefetches) {
+      for (Future<?> prefetch : this.scanJsonPrefetches.values()) {
+        prefetch.cancel(true);
+      }
+      this.scanJsonPrefetches.clear();
+
+      executor = this.scanJsonExecutor;
+      this.scanJsonExecutor = null;
+    }
+
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Queues download of all attachments of a row and returns right away.
+   * When the queue is full, the download runs on the calling thread instead, which keeps the
+   * caller from getting too far ahead of the downloads.
+   * When allAttachment lacks record of requested rowId, IllegalStateException will be thrown.
+   *
+   * @param rowId
+   * @throws IOException
+   */
+  public void queueAttachmentDownloads(final String rowId) throws IOException {
+    if (!this.allAttachments.containsKey(rowId)) {
+      throw new IllegalStateException("Row manifest has not been downloaded");
+    }
+
+    if (!this.attachmentManifests.containsKey(rowId) || this.completedRows.contains(rowId)) {
+      return;
+    }
+
+    //resolved now in case savePath changes while queued
+    final Path localDir = getAttachmentLocalDir(rowId);
+
+    ExecutorService executor;
+    synchronized (this.outstandingDownloads) {
+      if (this.downloadExecutor == null) {
+        this.downloadExecutor = newExecutor(this.concurrentDownloads);
+      }
+      executor = this.downloadExecutor;
+      //awaitDownloads cannot shut executor down until this download is done
+      this.outstandingDownloads[0]++;
+    }
+
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            downloadRow(rowId, localDir);
+          } finally {
+            synchronized (outstandingDownloads) {
+              outstandingDownloads[0]--;
+              outstandingDownloads.notifyAll();
+            }
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      synchronized (this.outstandingDownloads) {
+        this.outstandingDownloads[0]--;
+        this.outstandingDownloads.notifyAll();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for all queued attachment downloads to finish, then releases download threads
+   *
+   * @return Local path of every attachment that could not be downloaded since the last call,
+   * mapped to the cause
+   * @throws InterruptedException
+   */
+  public Map<String, Exception> awaitDownloads() throws InterruptedException {
+    ExecutorService executor;
+
+    synchronized (this.outstandingDownloads) {
+      while (this.outstandingDownloads[0] > 0) {
+        this.outstandingDownloads.wait();
+      }
+
+      executor = this.downloadExecutor;
+      this.downloadExecutor = null;
+    }
+
+    if (executor != null) {
+      executor.shutdown();
+    }
+
+    Map<String, Exception> failed = new TreeMap<>(this.failedDownloads);
+    this.failedDownloads.keySet().removeAll(failed.keySet());
+    return failed;
+  }
+
+  /**
+   * Downloads all attachments of a row in 1 request.
+   * If that fails, files are retrieved one by one so that each failed file is recorded.
+   *
+   * @param rowId
+   * @param localDir
+   */
+  private void downloadRow(String rowId, Path localDir) {
+    try {
+      syncWrapper.batchGetFilesForRow(
+          tableId, rowId, localDir.toString(), attachmentManifests.get(rowId)
+      );
+      recordCompletedRow(rowId);
+      return;
+    } catch (Exception e) {
+      //find out which files failed
+    }
+
+    boolean complete = true;
+    for (String filename : allAttachments.get(rowId).keySet()) {
+      Path localPath = Paths.get(localDir.toString(), filename).toAbsolutePath();
+
+      try {
+        syncWrapper.getFileForRow(tableId, rowId, localPath.toString(), filename);
+      } catch (Exception e) {
+        failedDownloads.put(localPath.toString(), e);
+        complete = false;
+      }
+    }
+
+    if (complete) {
+      recordCompletedRow(rowId);
+    }
+  }
+
+  /**
+   * Downloads Scan's raw JSON next to its final path, then moves it there, so a file at the
+   * final path is always complete
+   *
+   * @param rowId
+   * @throws Exception
+   */
+  private void downloadScanRawJson(String rowId) throws Exception {
+    Path localPath = getAttachmentLocalPath(rowId, getScanJsonFilename(rowId));
+    Path partialPath = localPath.resolveSibling(localPath.getFileName() + PARTIAL_SUFFIX);
+
+    syncWrapper.getFileForRow(
+        tableId, rowId, partialPath.toString(), getScanJsonFilename(rowId)
+    );
+    Files.move(partialPath, localPath, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void recordCompletedRow(String rowId) {
+    this.completedRows.add(rowId);
+
+    Path logPath = this.completedRowLog;
+    if (logPath == null) {
+      return;
+    }
+
+    synchronized (this.completedRows) {
+      try {
+        Files.write(logPath, (rowId + "\n").getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      } catch (IOException e) {
+        //worst case the row is downloaded again on resume
+        e.printStackTrace();
+      }
+    }
+  }
+
   /**
    * Gets InputStream of Scan's Raw JSON.
    * Returns null if row lacks attachment manifest.
@@ -196,6 +559,26 @@ public class AttachmentManager {
     return Paths.get(getAttachmentLocalDir(rowId).toString(), filename).toAbsolutePath();
   }
 
+  private static ExecutorService newExecutor(int threads) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(threads * QUEUED_ROWS_PER_THREAD),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, THREAD_NAME_PREFIX + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }
+    );
+    executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+
+    return executor;
+  }
+
   /**
    * Infers Scan raw JSON's filename
    *
@@ -0,0 +1,143 @@
+package org.opendatakit.suitcase.net;
+
+import org.apache.wink.json4j.JSONException;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends the batches of a RowBatcher in the background, 1 thread per partition.
+ * Batches of different partitions are in flight at the same time, while batches of the same
+ * partition are sent 1 after another in the order they were given, so no rowId is ever in
+ * 2 batches in flight.
+ *
+ * At most MAX_WAITING_BATCHES batches per partition wait to be sent, after that send blocks.
+ * Once a batch fails, the remaining batches are skipped and the failure is thrown by the next
+ * call to send or finish.
+ */
+public class ConcurrentBatchSender implements RowBatcher.BatchSender {
+  private static final int MAX_WAITING_BATCHES = 1;
+  private static final String THREAD_NAME_PREFIX = "update-batch-";
+
+  private final RowBatcher.BatchSender sender;
+  private final ExecutorService[] partitionExecutors;
+  //Batches of each partition that are waiting or in flight
+  private final Semaphore[] partitionSlots;
+  private final AtomicReference<Exception> failure;
+
+  /**
+   * @param sender     Sends each batch, called from multiple threads at once
+   * @param partitions Number of partitions of the RowBatcher
+   */
+  public ConcurrentBatchSender(RowBatcher.BatchSender sender, int partitions) {
+    if (partitions < 1) {
+      throw new IllegalArgumentException("partitions must be positive");
+    }
+
+    this.sender = sender;
+    this.partitionExecutors = new ExecutorService[partitions];
+    this.partitionSlots = new Semaphore[partitions];
+    this.failure = new AtomicReference<>();
+
+    for (int i = 0; i < partitions; i++) {
+      final String threadName = THREAD_NAME_PREFIX + (i + 1);
+
+      this.partitionExecutors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, threadName);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      this.partitionSlots[i] = new Semaphore(MAX_WAITING_BATCHES + 1);
+    }
+  }
+
+  @Override
+  public void send(final String operation, final int partition, final ArrayList<Row> rows)
+      throws IOException, JSONException {
+    throwFailure();
+
+    final Semaphore slots = this.partitionSlots[partition];
+    try {
+      slots.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to send a batch");
+    }
+
+    this.partitionExecutors[partition].execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (failure.get() == null) {
+            sender.send(operation, partition, rows);
+          }
+        } catch (IOException | JSONException | RuntimeException e) {
+          failure.compareAndSet(null, e);
+        } finally {
+          slots.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits until every batch has been sent, then stops the threads
+   *
+   * @throws IOException   When a batch failed, or waiting was interrupted
+   * @throws JSONException When a batch failed
+   */
+  public void finish() throws IOException, JSONException {
+    try {
+      for (ExecutorService executor : this.partitionExecutors) {
+        executor.shutdown();
+      }
+
+      for (ExecutorService executor : this.partitionExecutors) {
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          //keep waiting, batches can take long on a slow server
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for batches");
+    } finally {
+      close();
+    }
+
+    throwFailure();
+  }
+
+  /**
+   * Stops the threads without waiting for batches in flight
+   */
+  public void close() {
+    for (ExecutorService executor : this.partitionExecutors) {
+      executor.shutdownNow();
+    }
+  }
+
+  private void throwFailure() throws IOException, JSONException {
+    Exception e = this.failure.get();
+
+    if (e instanceof IOException) {
+      throw (IOException) e;
+    }
+    if (e instanceof JSONException) {
+      throw (JSONException) e;
+    }
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+  }
+}
@@ -3,97 +3,888 @@ package org.opendatakit.suitcase.net;
 import org.opendatakit.suitcase.model.AggregateInfo;
 import org.opendatakit.suitcase.model.CsvConfig;
 import org.opendatakit.suitcase.model.ODKCsv;
+import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
-import org.opendatakit.aggregate.odktables.rest.RFC4180CsvWriter;
-import org.opendatakit.sync.client.SyncClient;
+import org.opendatakit.aggregate.odktables.rest.RFC4180CsvReader;
 import org.opendatakit.suitcase.ui.DialogUtils;
-import org.opendatakit.suitcase.ui.ProgressBarStatus;
 import org.opendatakit.suitcase.ui.SuitcaseProgressBar;
+import org.opendatakit.suitcase.utils.CsvFileWriter;
 import org.opendatakit.suitcase.utils.FileUtils;
+import org.opendatakit.suitcase.utils.ParallelGzipOutputStream;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
 
 import static org.opendatakit.suitcase.ui.MessageString.*;
+import static org.opendatakit.sync.client.SyncClient.ID_JSON;
+import static org.opendatakit.sync.client.SyncClient.ID_ROW_DEF;
 
-public class DownloadTask extends SuitcaseSwingWorker<Void> {
+public class DownloadTask extends SuitcaseTask<Void> {
   private static final String RETRIEVING_ROW = "Retrieving rows";
   private static final String PROCESSING_ROW = "Processing and writing data";
+  private static final String STREAMING_ROW = "Retrieving and writing rows";
+  private static final String WAITING_ATTACHMENT = "Waiting for attachments";
+  private static final String ARCHIVING_ATTACHMENT = "Archiving attachments";
+  private static final String RETRIEVING_CHANGE = "Retrieving changed rows";
+  private static final String MERGING_CHANGE = "Merging changed rows";
+  //Flag of rows deleted since the dataETag of getRowsSince
+  private static final String DELETED_JSON = "deleted";
+  //Keys of the export state file
+  private static final String DATA_ETAG_KEY = "dataETag";
+  private static final String SCHEMA_ETAG_KEY = "schemaETag";
+  //Keys of the checkpoint file
+  private static final String CURSOR_KEY = "cursor";
+  private static final String ROWS_KEY = "rows";
+  private static final String BYTES_KEY = "bytes";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int FORMAT_THREADS = Runtime.getRuntime().availableProcessors();
+  private static final int COMPRESSION_THREADS = Runtime.getRuntime().availableProcessors();
+  //Shared by every task, so tables downloaded at the same time don't each start a thread per
+  //core. Threads are only started once there is work for them.
+  private static final ExecutorService FORMAT_EXECUTOR =
+      ParallelRowFormatter.newExecutor(FORMAT_THREADS);
+  private static final ExecutorService COMPRESSION_EXECUTOR =
+      ParallelGzipOutputStream.newExecutor(COMPRESSION_THREADS);
+  private static final int GZIP_READ_BUFFER_SIZE = 64 * 1024;
+  //Rows whose attachment manifests are retrieved together
+  private static final int MANIFEST_BATCH_SIZE = 500;
+  //Rows ahead of the one being formatted whose Scan raw JSON is being downloaded
+  private static final int SCAN_PREFETCH_DISTANCE = 64;
+  //Failed attachments listed in the error, the rest are only counted
+  private static final int LISTED_FAILED_ATTACHMENTS = 10;
 
   private AggregateInfo aggInfo;
+  private SyncWrapper syncWrapper;
   private ODKCsv csv;
   private CsvConfig csvConfig;
   private String savePath;
   private boolean isGUI;
+  private boolean streaming;
+  private boolean incremental;
+  private boolean resume;
+  private int partitions;
+  private boolean adaptiveFetch;
+  private CsvFileWriter.SyncPolicy syncPolicy;
+  private boolean archiveAttachments;
+  //dataETag of the table when retrieval started, null when unknown
+  private String dataETag;
+  //FORMAT_EXECUTOR, null when rows are formatted on this thread
+  private ExecutorService formatExecutor;
+  //Local path of each attachment that could not be downloaded -> why
+  private Map<String, Exception> failedAttachments;
+  //Number of rows in the csv once written
+  private int rowsWritten;
 
   public DownloadTask(AggregateInfo aggInfo, ODKCsv csv, CsvConfig csvConfig, String savePath,
       boolean isGUI) {
+    this(aggInfo, csv, csvConfig, savePath, isGUI, false);
+  }
+
+  /**
+   * @param streaming True to write each page to disk as soon as it is retrieved instead of
+   *                  keeping the whole table in csv. The csv is left empty afterwards, so this
+   *                  is meant for callers that do not re-export the same csv.
+   */
+  public DownloadTask(AggregateInfo aggInfo, ODKCsv csv, CsvConfig csvConfig, String savePath,
+      boolean isGUI, boolean streaming) {
     super();
 
     this.aggInfo = aggInfo;
+    this.syncWrapper = SyncWrapper.getInstance();
     this.csv = csv;
     this.csvConfig = csvConfig;
     this.savePath = savePath;
     this.isGUI = isGUI;
+    this.streaming = streaming;
+    this.partitions = 1;
+    this.syncPolicy = CsvFileWriter.SyncPolicy.NONE;
+    this.failedAttachments = new TreeMap<>();
+  }
+
+  /**
+   * When set, an existing csv with a recorded dataETag is brought up to date with only the rows
+   * changed since that dataETag, instead of being downloaded again.
+   * Falls back to a full download when there is no usable previous export.
+   *
+   * @param incremental
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+  }
+
+  /**
+   * When set, a streaming download interrupted part way continues from its last checkpoint
+   * instead of starting over.
+   * Falls back to a full download when there is no usable checkpoint.
+   *
+   * @param resume
+   */
+  public void setResume(boolean resume) {
+    this.resume = resume;
+  }
+
+  /**
+   * Sets number of slices of the table's savepoint timestamp range retrieved at the same time.
+   * A partitioned download cannot be resumed, as there is no single cursor to resume from.
+   *
+   * @param partitions 1 to follow the resume cursor of the whole table on 1 connection
+   */
+  public void setPartitions(int partitions) {
+    if (partitions < 1) {
+      throw new IllegalArgumentException("partitions must be positive");
+    }
+
+    this.partitions = partitions;
+  }
+
+  /**
+   * @return Number of rows in the csv, valid once the task is done
+   */
+  public int getRowsWritten() {
+    return rowsWritten;
+  }
+
+  /**
+   * @return Number of attachments that could not be downloaded, valid once the task is done.
+   * The download is incomplete when this isn't 0.
+   */
+  public int getFailedAttachments() {
+    return failedAttachments.size();
+  }
+
+  /**
+   * When set, the number of rows per page follows response time and size, aiming for requests
+   * of about AdaptiveSizer.DEFAULT_TARGET_MILLIS, instead of staying at the fetch limit
+   *
+   * @param adaptiveFetch
+   */
+  public void setAdaptiveFetch(boolean adaptiveFetch) {
+    this.adaptiveFetch = adaptiveFetch;
+  }
+
+  /**
+   * Sets when the csv is forced to the storage device, NONE by default.
+   * With ON_FLUSH each page of a streaming download is on disk before its checkpoint is.
+   *
+   * @param syncPolicy
+   */
+  public void setSyncPolicy(CsvFileWriter.SyncPolicy syncPolicy) {
+    this.syncPolicy = syncPolicy;
+  }
+
+  /**
+   * Sets the SyncWrapper rows are retrieved through, SyncWrapper.getInstance() by default
+   *
+   * @param syncWrapper
+   */
+  public void setSyncWrapper(SyncWrapper syncWrapper) {
+    this.syncWrapper = syncWrapper;
+  }
+
+  /**
+   * When set, the instances directory is moved into a single zip archive once every attachment
+   * has been downloaded. Attachments already in the archive are kept.
+   * The links in the csv still point into the instances directory, under the same path as their
+   * entry in the archive, so they work again once the archive is extracted there.
+   *
+   * @param archiveAttachments
+   */
+  public void setArchiveAttachments(boolean archiveAttachments) {
+    this.archiveAttachments = archiveAttachments;
   }
 
   @Override
-  protected Void doInBackground() throws IOException, JSONException {
+  protected Void doInBackground() throws IOException, JSONException, InterruptedException {
     //assume csv has already been initialized by caller of this worker
+    startSampling();
+
+    String sinceDataETag = null;
+    if (incremental && csv.getSize() == 0) {
+      sinceDataETag = readExportState();
+    }
+
+    Properties checkpoint = null;
+    if (resume && streaming && partitions == 1 && sinceDataETag == null && csv.getSize() == 0) {
+      checkpoint = readCheckpoint();
+    }
 
     // check existing data, skip check for CLI
-    if (FileUtils.isDownloaded(aggInfo, csv.getTableId(), csvConfig, savePath) &&
+    if (sinceDataETag == null && checkpoint == null &&
+        FileUtils.isDownloaded(aggInfo, csv.getTableId(), csvConfig, savePath) &&
         DialogUtils.promptConfirm(OVERWRITE_CSV, isGUI, !isGUI)) {
       FileUtils.deleteCsv(aggInfo, csvConfig, csv.getTableId(), savePath);
     }
+    if (checkpoint == null) {
+      deleteCheckpoint();
+    }
 
     // then create directory structure when needed
     FileUtils.createDirectory(aggInfo, csvConfig, csv.getTableId(), savePath);
 
-    SyncWrapper syncWrapper = SyncWrapper.getInstance();
+    // rows without attachments are formatted on all cores
+    if (csv.isParallelizable(csvConfig) && FORMAT_THREADS > 1) {
+      formatExecutor = FORMAT_EXECUTOR;
+    }
+
+    try {
+      boolean refreshed = sinceDataETag != null && refreshCsv(sinceDataETag);
+
+      if (!refreshed) {
+        // a csv that is about to be rewritten no longer matches its recorded state
+        Files.deleteIfExists(
+            FileUtils.getExportStatePath(aggInfo, csv.getTableId(), csvConfig, savePath)
+        );
+        if (sinceDataETag != null) {
+          //drop whatever the failed refresh left behind
+          csv.clearRows();
+        }
+
+        if (streaming && csv.getSize() == 0) {
+          streamCsv(checkpoint);
+        } else {
+          retrieveAndWriteCsv();
+        }
+      }
+
+      if (csvConfig.isDownloadAttachment()) {
+        awaitAttachments();
+      }
+
+      if (failedAttachments.isEmpty()) {
+        // a checkpoint is only kept while something is left to do
+        deleteCheckpoint();
+
+        if (archiveAttachments && csvConfig.isDownloadAttachment()) {
+          tracker.startStage(
+              ARCHIVING_ATTACHMENT, ProgressTracker.FILES, ProgressTracker.UNKNOWN
+          );
+          FileUtils.archiveDirectory(
+              FileUtils.getInstancesPath(aggInfo, csv.getTableId(), savePath),
+              FileUtils.getInstancesArchivePath(aggInfo, csv.getTableId(), savePath)
+          );
+        }
+
+        if (dataETag != null) {
+          writeExportState(dataETag);
+        }
+      }
+    } finally {
+      formatExecutor = null;
+    }
+
+    return null;
+  }
 
+  /**
+   * Retrieves the whole table into csv when it is empty, then writes csv out
+   *
+   * @throws IOException
+   * @throws JSONException
+   * @throws InterruptedException
+   */
+  private void retrieveAndWriteCsv() throws IOException, JSONException, InterruptedException {
     // retrieve data from Aggregate and store in csv
     if (csv.getSize() == 0) {
-      publish(new ProgressBarStatus(0, RETRIEVING_ROW, true));
+      tracker.startStage(RETRIEVING_ROW, ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
 
-      JSONObject rows;
-      String cursor = null;
-
-      do {
-        rows = syncWrapper.getRows(csv.getTableId(), cursor);
-        cursor = rows.optString(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON);
-        csv.tryAdd(rows.getJSONArray(SyncClient.ROWS_STR_JSON));
-      } while (rows.getBoolean(SyncClient.HAS_MORE_RESULTS_JSON));
+      RowPageSource fetcher = newPageSource(null);
+      fetcher.start();
+      try {
+        RowPageFetcher.Page page;
+        while ((page = fetcher.take()) != null) {
+          if (dataETag == null) {
+            dataETag = page.getDataETag();
+          }
+          csv.tryAdd(page.getRows());
+          tracker.addCount(page.getRows().size());
+          tracker.addPage();
+        }
+      } finally {
+        fetcher.close();
+      }
     }
 
     // write out csv to file
-    publish(new ProgressBarStatus(0, PROCESSING_ROW, false));
-    RFC4180CsvWriter csvWriter = null;
+    tracker.startStage(PROCESSING_ROW, ProgressTracker.ROWS, csv.getSize());
+    CsvFileWriter csvWriter = null;
     try {
-      csvWriter = new RFC4180CsvWriter(new FileWriter(
-          FileUtils.getCSVPath(aggInfo, csv.getTableId(), csvConfig, savePath).toString()
-      ));
+      csvWriter = newCsvWriter(
+          FileUtils.getCSVPath(aggInfo, csv.getTableId(), csvConfig, savePath), false
+      );
 
       //Write header then rows
       csvWriter.writeNext(csv.getHeader(csvConfig));
+      writeRows(csvWriter);
+      rowsWritten = csv.getSize();
+    } finally {
+      if (csvWriter != null) {
+        csvWriter.close();
+      }
+    }
+  }
 
-      ODKCsv.ODKCSVIterator csvIt = csv.getODKCSVIterator();
-      while (csvIt.hasNext()) {
-        csvWriter.writeNext(csvIt.next(csvConfig));
+  /**
+   * Writes each page out as soon as it is retrieved, so only the pages queued in the fetcher
+   * and the one being written are held in memory at a time.
+   * A checkpoint is recorded after each page, so that an interrupted download can be resumed.
+   *
+   * @param checkpoint Checkpoint to resume from, null to start from the first row
+   * @throws IOException
+   * @throws JSONException
+   * @throws InterruptedException
+   */
+  private void streamCsv(Properties checkpoint)
+      throws IOException, JSONException, InterruptedException {
+    tracker.startStage(STREAMING_ROW, ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
+
+    Path csvPath = FileUtils.getCSVPath(aggInfo, csv.getTableId(), csvConfig, savePath);
+    String startCursor = null;
+    boolean headerWritten = false;
+    rowsWritten = 0;
+
+    if (checkpoint != null) {
+      //drop whatever was written after the last checkpoint
+      FileChannel channel = FileChannel.open(csvPath, StandardOpenOption.WRITE);
+      try {
+        channel.truncate(Long.parseLong(checkpoint.getProperty(BYTES_KEY)));
+      } finally {
+        channel.close();
+      }
+
+      startCursor = checkpoint.getProperty(CURSOR_KEY);
+      rowsWritten = Integer.parseInt(checkpoint.getProperty(ROWS_KEY));
+      dataETag = checkpoint.getProperty(DATA_ETAG_KEY);
+      headerWritten = true;
+    }
+
+    if (csvConfig.isDownloadAttachment()) {
+      csv.setAttachmentLog(
+          FileUtils.getAttachmentLogPath(aggInfo, csv.getTableId(), csvConfig, savePath)
+      );
 
-        //Set value of progress bar with percentage of rows done
-        int progress = (int) ((double) csvIt.getIndex() / csv.getSize() * 100);
-        publish(new ProgressBarStatus(progress, null, null));
+      if (checkpoint != null) {
+        //rows before the checkpoint may still be missing attachments
+        csv.queueAttachmentDownloads(readRowIds(csvPath));
+      }
+    }
+
+    //the next page is retrieved on another thread while this one is written
+    RowPageSource fetcher = newPageSource(startCursor);
+    CsvFileWriter csvWriter = null;
+    try {
+      csvWriter = newCsvWriter(csvPath, checkpoint != null);
+      fetcher.start();
+
+      RowPageFetcher.Page page;
+
+      while ((page = fetcher.take()) != null) {
+        //a resumed download keeps the dataETag it started at
+        if (dataETag == null && checkpoint == null) {
+          dataETag = page.getDataETag();
+        }
+        csv.tryAdd(page.getRows());
+
+        //header can only be built after the first page
+        if (!headerWritten) {
+          csvWriter.writeNext(csv.getHeader(csvConfig));
+          headerWritten = true;
+        }
+
+        writeRows(csvWriter);
+        rowsWritten += csv.getSize();
+        tracker.addPage();
+
+        //drop this page before taking the next one
+        csv.clearRows();
+        csvWriter.flush();
+        if (partitions == 1) {
+          writeCheckpoint(page.getCursor(), rowsWritten, csvWriter.size());
+        }
       }
     } finally {
+      fetcher.close();
       if (csvWriter != null) {
         csvWriter.close();
       }
     }
+  }
 
-    return null;
+  /**
+   * Creates the source of all rows of the table
+   *
+   * @param startCursor Cursor to resume retrieval from, null to start from the first row
+   * @return
+   */
+  private RowPageSource newPageSource(String startCursor) {
+    if (partitions > 1 && startCursor == null) {
+      PartitionedRowFetcher fetcher = new PartitionedRowFetcher(syncWrapper, csv.getTableId(), partitions);
+      fetcher.setAdaptive(adaptiveFetch);
+      return fetcher;
+    }
+
+    RowPageFetcher fetcher = new RowPageFetcher(
+        syncWrapper, csv.getTableId(), RowPageFetcher.DEFAULT_QUEUE_CAPACITY, null, startCursor
+    );
+    if (adaptiveFetch) {
+      fetcher.setAdaptiveSizer(RowPageFetcher.newAdaptiveSizer(syncWrapper, csv.getTableId()));
+    }
+    return fetcher;
+  }
+
+  /**
+   * Brings the existing csv up to date with the rows changed or deleted since sinceDataETag.
+   * Changed rows replace their old line, new rows are appended, deleted rows are dropped.
+   * The csv is rewritten to a temporary file that then replaces it, so an interrupted refresh
+   * leaves the previous export intact.
+   *
+   * @param sinceDataETag
+   * @return false when the existing csv cannot be merged into and has to be downloaded again
+   * @throws IOException
+   * @throws JSONException
+   * @throws InterruptedException
+   */
+  private boolean refreshCsv(String sinceDataETag)
+      throws IOException, JSONException, InterruptedException {
+    tracker.startStage(RETRIEVING_CHANGE, ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
+
+    //rowId -> new line, null when the row has been deleted; latest change wins
+    Map<String, String[]> changes = new LinkedHashMap<>();
+    String[] header = null;
+    String newDataETag = null;
+
+    RowPageFetcher fetcher = new RowPageFetcher(
+        syncWrapper, csv.getTableId(), RowPageFetcher.DEFAULT_QUEUE_CAPACITY, sinceDataETag, null
+    );
+    if (adaptiveFetch) {
+      fetcher.setAdaptiveSizer(RowPageFetcher.newAdaptiveSizer(syncWrapper, csv.getTableId()));
+    }
+    fetcher.start();
+    try {
+      RowPageFetcher.Page page;
+      while ((page = fetcher.take()) != null) {
+        if (newDataETag == null) {
+          newDataETag = page.getDataETag();
+        }
+
+        JSONArray rows = page.getRows();
+        JSONArray keptRows = new JSONArray();
+        for (int i = 0; i < rows.size(); i++) {
+          JSONObject row = rows.getJSONObject(i);
+          if (!row.optBoolean(DELETED_JSON, false)) {
+            keptRows.add(row);
+          }
+        }
+
+        List<String[]> lines = new ArrayList<>();
+        if (keptRows.size() > 0) {
+          if (!csv.tryAdd(keptRows)) {
+            return false;
+          }
+          if (header == null) {
+            header = csv.getHeader(csvConfig);
+          }
+          if (csvConfig.isDownloadAttachment() || csvConfig.isScanFormatting()) {
+            csv.prefetchAttachmentManifests(0, csv.getSize());
+          }
+          lines = csv.get(0, csv.getSize(), csvConfig);
+          csv.clearRows();
+        }
+
+        //apply in server order, lines are in the same order as keptRows
+        int lineIndex = 0;
+        for (int i = 0; i < rows.size(); i++) {
+          JSONObject row = rows.getJSONObject(i);
+          String rowId = row.getString(ID_JSON);
+
+          changes.remove(rowId);
+          if (row.optBoolean(DELETED_JSON, false)) {
+            changes.put(rowId, null);
+          } else {
+            changes.put(rowId, lines.get(lineIndex++));
+          }
+        }
+
+        tracker.addCount(rows.size());
+        tracker.addPage();
+      }
+    } finally {
+      fetcher.close();
+    }
+
+    tracker.startStage(MERGING_CHANGE, ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
+
+    Path csvPath = FileUtils.getCSVPath(aggInfo, csv.getTableId(), csvConfig, savePath);
+    Path tempPath = csvPath.resolveSibling(csvPath.getFileName() + TEMP_SUFFIX);
+
+    RFC4180CsvReader csvReader = null;
+    CsvFileWriter csvWriter = null;
+    try {
+      csvReader = newCsvReader(csvPath);
+      String[] oldHeader = csvReader.readNext();
+      int idIndex = oldHeader == null ? -1 : Arrays.asList(oldHeader).indexOf(ID_ROW_DEF);
+
+      if (idIndex < 0 || (header != null && !Arrays.equals(header, oldHeader))) {
+        //columns have changed since the last export
+        return false;
+      }
+
+      csvWriter = newCsvWriter(tempPath, false);
+      csvWriter.writeNext(oldHeader);
+      rowsWritten = 0;
+
+      String[] line;
+      int rowNumber = 0;
+      while ((line = csvReader.readNext()) != null) {
+        tracker.addCount(1);
+        String rowId = getRowId(line, idIndex, csvPath, ++rowNumber);
+
+        if (changes.containsKey(rowId)) {
+          String[] newLine = changes.remove(rowId);
+          if (newLine != null) {
+            csvWriter.writeNext(newLine);
+            rowsWritten++;
+          }
+        } else {
+          csvWriter.writeNext(line);
+          rowsWritten++;
+        }
+      }
+
+      //whatever is left is new
+      for (String[] newLine : changes.values()) {
+        if (newLine != null) {
+          csvWriter.writeNext(newLine);
+          rowsWritten++;
+        }
+      }
+    } finally {
+      if (csvReader != null) {
+        csvReader.close();
+      }
+      if (csvWriter != null) {
+        csvWriter.close();
+      }
+    }
+
+    // the recorded state still has sinceDataETag until it is replaced at the end, refreshing
+    // again from there applies the same changes to the same rows
+    Files.move(tempPath, csvPath,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    //nothing changed leaves dataETag where it was
+    this.dataETag = newDataETag == null ? sinceDataETag : newDataETag;
+    return true;
+  }
+
+  /**
+   * Reads the checkpoint of an interrupted download of the csv
+   *
+   * @return null when there is no csv, no checkpoint, or the schema has changed since
+   * @throws IOException
+   */
+  private Properties readCheckpoint() throws IOException {
+    Path checkpointPath =
+        FileUtils.getCheckpointPath(aggInfo, csv.getTableId(), csvConfig, savePath);
+
+    if (!FileUtils.isDownloaded(aggInfo, csv.getTableId(), csvConfig, savePath) ||
+        Files.notExists(checkpointPath)) {
+      return null;
+    }
+
+    Properties checkpoint = readProperties(checkpointPath);
+
+    String schemaETag = aggInfo.getSchemaETag(csv.getTableId());
+    if (schemaETag == null || !schemaETag.equals(checkpoint.getProperty(SCHEMA_ETAG_KEY)) ||
+        checkpoint.getProperty(BYTES_KEY) == null || checkpoint.getProperty(ROWS_KEY) == null ||
+        Files.size(FileUtils.getCSVPath(aggInfo, csv.getTableId(), csvConfig, savePath)) <
+            Long.parseLong(checkpoint.getProperty(BYTES_KEY))) {
+      return null;
+    }
+
+    return checkpoint;
+  }
+
+  /**
+   * Records how far the csv has been written.
+   * The checkpoint is replaced in 1 step, so it is never seen half written.
+   *
+   * @param cursor Cursor to resume retrieval from
+   * @param rows   Number of rows written
+   * @param bytes  Size of the csv once those rows are written
+   * @throws IOException
+   */
+  private void writeCheckpoint(String cursor, int rows, long bytes) throws IOException {
+    Properties checkpoint = new Properties();
+    checkpoint.setProperty(CURSOR_KEY, cursor);
+    checkpoint.setProperty(ROWS_KEY, String.valueOf(rows));
+    checkpoint.setProperty(BYTES_KEY, String.valueOf(bytes));
+    checkpoint.setProperty(SCHEMA_ETAG_KEY, aggInfo.getSchemaETag(csv.getTableId()));
+    if (dataETag != null) {
+      checkpoint.setProperty(DATA_ETAG_KEY, dataETag);
+    }
+
+    Path checkpointPath =
+        FileUtils.getCheckpointPath(aggInfo, csv.getTableId(), csvConfig, savePath);
+    Path tempPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + TEMP_SUFFIX);
+    writeProperties(tempPath, checkpoint);
+    Files.move(tempPath, checkpointPath,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void deleteCheckpoint() throws IOException {
+    Files.deleteIfExists(
+        FileUtils.getCheckpointPath(aggInfo, csv.getTableId(), csvConfig, savePath)
+    );
+    Files.deleteIfExists(
+        FileUtils.getAttachmentLogPath(aggInfo, csv.getTableId(), csvConfig, savePath)
+    );
+  }
+
+  private CsvFileWriter newCsvWriter(Path path, boolean append) throws IOException {
+    return new CsvFileWriter(path, append, syncPolicy, CsvFileWriter.DEFAULT_BUFFER_SIZE,
+        COMPRESSION_EXECUTOR, csvConfig.isCompressed() ? COMPRESSION_THREADS : 0);
+  }
+
+  private RFC4180CsvReader newCsvReader(Path path) throws IOException {
+    InputStream in = Files.newInputStream(path);
+    if (csvConfig.isCompressed()) {
+      in = new GZIPInputStream(in, GZIP_READ_BUFFER_SIZE);
+    }
+
+    return new RFC4180CsvReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reads the _id column of a csv
+   *
+   * @param csvPath
+   * @return
+   * @throws IOException
+   */
+  private List<String> readRowIds(Path csvPath) throws IOException {
+    List<String> rowIds = new ArrayList<>();
+
+    RFC4180CsvReader csvReader = newCsvReader(csvPath);
+    try {
+      String[] header = csvReader.readNext();
+      int idIndex = header == null ? -1 : Arrays.asList(header).indexOf(ID_ROW_DEF);
+
+      if (idIndex >= 0) {
+        String[] line;
+        int rowNumber = 0;
+        while ((line = csvReader.readNext()) != null) {
+          rowIds.add(getRowId(line, idIndex, csvPath, ++rowNumber));
+        }
+      }
+    } finally {
+      csvReader.close();
+    }
+
+    return rowIds;
+  }
+
+  /**
+   * Reads the _id of a line of a csv
+   *
+   * @param line
+   * @param idIndex    Index of the _id column in the header
+   * @param csvPath    Path of the csv, for the error
+   * @param rowNumber  Number of the row, counting from 1 after the header, for the error
+   * @return
+   * @throws IOException When line is too short to have an _id, e.g. a hand edited csv
+   */
+  private static String getRowId(String[] line, int idIndex, Path csvPath, int rowNumber)
+      throws IOException {
+    if (line.length <= idIndex) {
+      throw new IOException("Row " + rowNumber + " of " + csvPath + " has no " + ID_ROW_DEF);
+    }
+
+    return line[idIndex];
+  }
+
+  private static Properties readProperties(Path path) throws IOException {
+    Properties properties = new Properties();
+
+    InputStream in = Files.newInputStream(path);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+
+    return properties;
+  }
+
+  private static void writeProperties(Path path, Properties properties) throws IOException {
+    OutputStream out = Files.newOutputStream(path);
+    try {
+      properties.store(out, null);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the dataETag an existing csv was exported at
+   *
+   * @return null when there is no csv, no recorded state, or the schema has changed since
+   * @throws IOException
+   */
+  private String readExportState() throws IOException {
+    Path statePath = FileUtils.getExportStatePath(aggInfo, csv.getTableId(), csvConfig, savePath);
+
+    if (!FileUtils.isDownloaded(aggInfo, csv.getTableId(), csvConfig, savePath) ||
+        Files.notExists(statePath)) {
+      return null;
+    }
+
+    Properties state = readProperties(statePath);
+
+    String schemaETag = aggInfo.getSchemaETag(csv.getTableId());
+    if (schemaETag == null || !schemaETag.equals(state.getProperty(SCHEMA_ETAG_KEY))) {
+      return null;
+    }
+
+    return state.getProperty(DATA_ETAG_KEY);
+  }
+
+  /**
+   * Records the dataETag the csv now reflects, for the next incremental download.
+   * The state is replaced in 1 step, so it is never seen half written.
+   *
+   * @param dataETag
+   * @throws IOException
+   */
+  private void writeExportState(String dataETag) throws IOException {
+    Properties state = new Properties();
+    state.setProperty(DATA_ETAG_KEY, dataETag);
+    state.setProperty(SCHEMA_ETAG_KEY, aggInfo.getSchemaETag(csv.getTableId()));
+
+    Path statePath = FileUtils.getExportStatePath(aggInfo, csv.getTableId(), csvConfig, savePath);
+    Path tempPath = statePath.resolveSibling(statePath.getFileName() + TEMP_SUFFIX);
+    writeProperties(tempPath, state);
+    Files.move(tempPath, statePath,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Waits for attachments still downloading after all rows have been written
+   *
+   * @throws InterruptedException
+   */
+  private void awaitAttachments() throws InterruptedException {
+    tracker.startStage(WAITING_ATTACHMENT, ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
+
+    failedAttachments = csv.awaitAttachmentDownloads();
+  }
+
+  /**
+   * @return Error listing the first attachments that could not be downloaded
+   */
+  private String getFailedAttachmentsError() {
+    StringBuilder error = new StringBuilder(ATTACHMENT_DOWNLOAD_ERR);
+    error.append(NEW_LINE).append(String.format(DOWNLOAD_INCOMPLETE, failedAttachments.size()));
+
+    int listed = 0;
+    for (Map.Entry<String, Exception> failure : failedAttachments.entrySet()) {
+      if (listed++ == LISTED_FAILED_ATTACHMENTS) {
+        error.append(NEW_LINE).append("...");
+        break;
+      }
+      error.append(NEW_LINE).append(failure.getKey()).append(": ")
+          .append(failure.getValue().getMessage());
+    }
+    return error.toString();
+  }
+
+  /**
+   * Writes all rows currently in csv, in order, counting them in tracker
+   *
+   * @param csvWriter
+   * @throws IOException
+   * @throws JSONException
+   * @throws InterruptedException
+   */
+  private void writeRows(CsvFileWriter csvWriter)
+      throws IOException, JSONException, InterruptedException {
+    long bytesWritten = csvWriter.getBytesWritten();
+
+    if (formatExecutor == null) {
+      boolean needManifest = csvConfig.isDownloadAttachment() || csvConfig.isScanFormatting();
+      //rows up to these have their manifest retrieved and their Scan raw JSON requested
+      int manifestsTo = 0;
+      int scanPrefetchedTo = 0;
+
+      ODKCsv.ODKCSVIterator csvIt = csv.getODKCSVIterator();
+      try {
+        while (csvIt.hasNext()) {
+          int index = csvIt.getIndex();
+
+          if (needManifest && index % MANIFEST_BATCH_SIZE == 0) {
+            manifestsTo = Math.min(index + MANIFEST_BATCH_SIZE, csv.getSize());
+            csv.prefetchAttachmentManifests(index, manifestsTo);
+          }
+
+          //top the look ahead up once half of it has been used
+          if (csvConfig.isScanFormatting() &&
+              scanPrefetchedTo - index < SCAN_PREFETCH_DISTANCE / 2 &&
+              scanPrefetchedTo < manifestsTo) {
+            int to = Math.min(index + SCAN_PREFETCH_DISTANCE, manifestsTo);
+            csv.prefetchScanRawJson(Math.max(scanPrefetchedTo, index), to);
+            scanPrefetchedTo = to;
+          }
+
+          csvWriter.writeNext(csvIt.next(csvConfig));
+
+          tracker.addCount(1);
+          tracker.addBytes(csvWriter.getBytesWritten() - bytesWritten);
+          bytesWritten = csvWriter.getBytesWritten();
+        }
+      } finally {
+        if (csvConfig.isScanFormatting()) {
+          csv.cancelScanRawJsonPrefetches();
+        }
+      }
+      return;
+    }
+
+    ParallelRowFormatter formatter = new ParallelRowFormatter(
+        csv, csvConfig, formatExecutor, FORMAT_THREADS,
+        ParallelRowFormatter.getChunkSize(csv.getSize(), FORMAT_THREADS)
+    );
+    try {
+      List<String[]> chunk;
+      while ((chunk = formatter.nextChunk()) != null) {
+        for (String[] line : chunk) {
+          csvWriter.writeNext(line);
+        }
+
+        tracker.addCount(chunk.size());
+        tracker.addBytes(csvWriter.getBytesWritten() - bytesWritten);
+        bytesWritten = csvWriter.getBytesWritten();
+      }
+    } finally {
+      formatter.cancel();
+    }
   }
 
   @Override
@@ -101,12 +892,18 @@ public class DownloadTask extends SuitcaseSwingWorker<Void> {
     try {
       get();
 
-      setString(SuitcaseProgressBar.PB_DONE);
+      if (!failedAttachments.isEmpty()) {
+        DialogUtils.showError(getFailedAttachmentsError(), isGUI);
+        setString(SuitcaseProgressBar.PB_ERROR);
+        returnCode = SuitcaseTask.errorCode;
+      } else {
+        setString(SuitcaseProgressBar.PB_DONE);
+      }
     } catch (InterruptedException e) {
       e.printStackTrace();
       DialogUtils.showError(GENERIC_ERR, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } catch (ExecutionException e) {
       Throwable cause = e.getCause();
 
@@ -122,7 +919,7 @@ public class DownloadTask extends SuitcaseSwingWorker<Void> {
       cause.printStackTrace();
       DialogUtils.showError(errMsg, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } finally {
       setIndeterminate(false);
     }
@@ -10,7 +10,7 @@ import java.util.concurrent.ExecutionException;
 
 import static org.opendatakit.suitcase.ui.MessageString.*;
 
-public class LoginTask extends SuitcaseSwingWorker<Void> {
+public class LoginTask extends SuitcaseTask<Void> {
   private AggregateInfo aggInfo;
   private boolean isGUI;
 
@@ -41,7 +41,7 @@ public class LoginTask extends SuitcaseSwingWorker<Void> {
     } catch (InterruptedException e) {
       e.printStackTrace();
       DialogUtils.showError(GENERIC_ERR, isGUI);
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } catch (ExecutionException e) {
       Throwable cause = e.getCause();
 
@@ -56,7 +56,7 @@ public class LoginTask extends SuitcaseSwingWorker<Void> {
 
       DialogUtils.showError(errMsg, isGUI);
       cause.printStackTrace();
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     }
   }
 }
@@ -0,0 +1,220 @@
+package org.opendatakit.suitcase.net;
+
+import org.opendatakit.suitcase.model.AggregateInfo;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads multiple tables on a pool of workers.
+ * All tables share the login of the SyncWrapper, so it has to be initialized beforehand.
+ */
+public class MultiTableDownload {
+  public static final String STATUS_OK = "OK";
+  public static final String STATUS_INCOMPLETE = "INCOMPLETE";
+  public static final String STATUS_ERROR = "ERROR";
+
+  private static final String TABLE_ID_SEPARATOR = ",";
+  private static final String SUMMARY_FORMAT = "%-40s %-8s %12s %10s";
+
+  /**
+   * Creates the DownloadTask of a table
+   */
+  public interface TaskFactory {
+    DownloadTask newTask(String tableId);
+  }
+
+  public static class TableResult {
+    private final String tableId;
+    private final int returnCode;
+    private final int rows;
+    private final int failedAttachments;
+    private final long millis;
+
+    TableResult(String tableId, int returnCode, int rows, int failedAttachments, long millis) {
+      this.tableId = tableId;
+      this.returnCode = returnCode;
+      this.rows = rows;
+      this.failedAttachments = failedAttachments;
+      this.millis = millis;
+    }
+
+    public String getTableId() {
+      return tableId;
+    }
+
+    public int getReturnCode() {
+      return returnCode;
+    }
+
+    public int getRows() {
+      return rows;
+    }
+
+    /**
+     * @return Number of attachments that could not be downloaded, the table is incomplete when
+     * this isn't 0
+     */
+    public int getFailedAttachments() {
+      return failedAttachments;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    /**
+     * @return STATUS_OK, STATUS_INCOMPLETE when only attachments are missing, or STATUS_ERROR
+     */
+    public String getStatus() {
+      if (returnCode == SuitcaseTask.okCode) {
+        return STATUS_OK;
+      }
+
+      return failedAttachments > 0 ? STATUS_INCOMPLETE : STATUS_ERROR;
+    }
+  }
+
+  private final int workers;
+
+  /**
+   * @param workers Number of tables downloaded at the same time
+   */
+  public MultiTableDownload(int workers) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("workers must be positive");
+    }
+
+    this.workers = workers;
+  }
+
+  /**
+   * Downloads every table and waits for all of them.
+   * A failed table doesn't stop the others.
+   *
+   * @param tableIds
+   * @param factory
+   * @return Result of each table, in the order of tableIds
+   * @throws InterruptedException
+   */
+  public List<TableResult> run(List<String> tableIds, final TaskFactory factory)
+      throws InterruptedException {
+    if (tableIds.isEmpty()) {
+      return new ArrayList<>();
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, tableIds.size()));
+    List<Future<TableResult>> futures = new ArrayList<>();
+
+    try {
+      for (final String tableId : tableIds) {
+        futures.add(executor.submit(new Callable<TableResult>() {
+          @Override
+          public TableResult call() {
+            long start = System.nanoTime();
+
+            DownloadTask task = factory.newTask(tableId);
+            int returnCode = task.blockingExecute();
+
+            return new TableResult(tableId, returnCode, task.getRowsWritten(),
+                task.getFailedAttachments(), (System.nanoTime() - start) / 1000000);
+          }
+        }));
+      }
+
+      List<TableResult> results = new ArrayList<>();
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          results.add(futures.get(i).get());
+        } catch (ExecutionException e) {
+          e.getCause().printStackTrace();
+          results.add(new TableResult(tableIds.get(i), SuitcaseTask.errorCode, 0, 0, 0));
+        }
+      }
+
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Formats results as a table of 1 line per table between a header and the total
+   *
+   * @param results
+   * @return Lines of the table
+   */
+  public static List<String> getSummary(List<TableResult> results) {
+    List<String> lines = new ArrayList<>();
+    lines.add(String.format(SUMMARY_FORMAT, "Table ID", "Status", "Rows", "Seconds"));
+
+    long totalRows = 0;
+    for (TableResult result : results) {
+      totalRows += result.getRows();
+      lines.add(String.format(SUMMARY_FORMAT, result.getTableId(), result.getStatus(),
+          result.getRows(), String.format("%.1f", result.getMillis() / 1000.0)));
+    }
+    lines.add(String.format(SUMMARY_FORMAT, "Total", "", totalRows, ""));
+
+    return lines;
+  }
+
+  /**
+   * Expands a table id argument into table ids.
+   * The argument is a comma separated list of table ids or globs, such as "census,survey_*".
+   * Globs are matched against the tables of aggInfo, "*" selects all of them.
+   * Plain table ids are kept as they are, even when they don't exist.
+   *
+   * @param aggInfo
+   * @param tableIdArg
+   * @return Table ids without duplicates
+   */
+  public static List<String> resolveTableIds(AggregateInfo aggInfo, String tableIdArg) {
+    Set<String> tableIds = new LinkedHashSet<>();
+
+    for (String entry : tableIdArg.split(TABLE_ID_SEPARATOR)) {
+      entry = entry.trim();
+
+      if (entry.isEmpty()) {
+        continue;
+      }
+
+      if (isGlob(entry)) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + entry);
+
+        for (String tableId : new TreeSet<>(aggInfo.getAllTableId())) {
+          if (matcher.matches(Paths.get(tableId))) {
+            tableIds.add(tableId);
+          }
+        }
+      } else {
+        tableIds.add(entry);
+      }
+    }
+
+    return new ArrayList<>(tableIds);
+  }
+
+  /**
+   * @param tableIdArg
+   * @return True when tableIdArg names anything but a single table
+   */
+  public static boolean isMultiTable(String tableIdArg) {
+    return tableIdArg.contains(TABLE_ID_SEPARATOR) || isGlob(tableIdArg);
+  }
+
+  private static boolean isGlob(String entry) {
+    return entry.contains("*") || entry.contains("?") || entry.contains("[");
+  }
+}
@@ -0,0 +1,170 @@
+package org.opendatakit.suitcase.net;
+
+import org.apache.wink.json4j.JSONException;
+import org.opendatakit.suitcase.model.CsvConfig;
+import org.opendatakit.suitcase.model.ODKCsv;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Formats the rows of an ODKCsv in chunks on a pool of threads and hands the chunks back in
+ * their original order.
+ * Only a bounded number of chunks is formatted ahead of the caller, so memory use stays flat
+ * however large the csv is.
+ *
+ * !!!ATTENTION!!! Only for configs where ODKCsv.isParallelizable returns true,
+ * and rows of the csv must not change until the last chunk has been taken
+ */
+public class ParallelRowFormatter {
+  //Bounds of the chunk size picked by getChunkSize
+  public static final int MIN_CHUNK_SIZE = 16;
+  public static final int MAX_CHUNK_SIZE = 256;
+  //Chunks formatted ahead of the caller per thread
+  private static final int CHUNKS_PER_THREAD = 2;
+  private static final String THREAD_NAME_PREFIX = "row-formatter-";
+
+  private final ODKCsv csv;
+  private final CsvConfig config;
+  private final ExecutorService executor;
+  private final int chunkSize;
+  private final int window;
+  private final Deque<Future<List<String[]>>> pending;
+  private int nextIndex;
+
+  /**
+   * @param csv
+   * @param config
+   * @param executor  Pool the chunks are formatted on, usually from newExecutor
+   * @param threads   Number of threads of executor
+   * @param chunkSize Number of rows per chunk, usually from getChunkSize
+   */
+  public ParallelRowFormatter(ODKCsv csv, CsvConfig config, ExecutorService executor, int threads,
+      int chunkSize) {
+    if (!csv.isParallelizable(config)) {
+      throw new IllegalArgumentException(config + " cannot be formatted in parallel");
+    }
+
+    if (threads < 1 || chunkSize < 1) {
+      throw new IllegalArgumentException("threads and chunkSize must be positive");
+    }
+
+    this.csv = csv;
+    this.config = config;
+    this.executor = executor;
+    this.chunkSize = chunkSize;
+    //keep every thread busy while the caller writes the oldest chunk
+    this.window = threads * CHUNKS_PER_THREAD;
+    this.pending = new ArrayDeque<>();
+    this.nextIndex = 0;
+  }
+
+  /**
+   * Waits for the next chunk of rows, in order
+   *
+   * @return Next chunk, or null after the last row
+   * @throws IOException
+   * @throws JSONException
+   * @throws InterruptedException
+   */
+  public List<String[]> nextChunk() throws IOException, JSONException, InterruptedException {
+    fillWindow();
+
+    Future<List<String[]>> head = this.pending.poll();
+    if (head == null) {
+      return null;
+    }
+
+    try {
+      List<String[]> chunk = head.get();
+      fillWindow();
+      return chunk;
+    } catch (ExecutionException e) {
+      cancel();
+
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof JSONException) {
+        throw (JSONException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Drops chunks that have not been taken yet, to be called when the caller gives up
+   */
+  public void cancel() {
+    for (Future<List<String[]>> future : this.pending) {
+      future.cancel(true);
+    }
+    this.pending.clear();
+    this.nextIndex = this.csv.getSize();
+  }
+
+  private void fillWindow() {
+    while (this.pending.size() < this.window && this.nextIndex < this.csv.getSize()) {
+      final int from = this.nextIndex;
+      final int to = Math.min(from + this.chunkSize, this.csv.getSize());
+
+      this.pending.add(this.executor.submit(new Callable<List<String[]>>() {
+        @Override
+        public List<String[]> call() throws Exception {
+          return csv.get(from, to, config);
+        }
+      }));
+      this.nextIndex = to;
+    }
+  }
+
+  /**
+   * Picks a chunk size that splits rows into enough chunks to fill the window, so every thread
+   * has work even when rows is only 1 page
+   *
+   * @param rows    Number of rows of the csv
+   * @param threads Number of threads formatting them
+   * @return Number of rows per chunk, between MIN_CHUNK_SIZE and MAX_CHUNK_SIZE
+   */
+  public static int getChunkSize(int rows, int threads) {
+    int chunks = Math.max(1, threads) * CHUNKS_PER_THREAD;
+    int chunkSize = (rows + chunks - 1) / chunks;
+
+    return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+  }
+
+  /**
+   * Creates a pool of daemon threads for formatting rows
+   *
+   * @param threads
+   * @return
+   */
+  public static ExecutorService newExecutor(int threads) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, THREAD_NAME_PREFIX + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+}
@@ -0,0 +1,412 @@
+package org.opendatakit.suitcase.net;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Retrieves the rows of a table over multiple connections.
+ * The savepoint timestamp range of the table is split into slices, and each slice is paged
+ * through on its own thread. Pages are handed over in whatever order they arrive.
+ *
+ * The range starts out as the range of the first page of the table, then its ends are searched
+ * for with queries of 1 row: stepping outwards in growing steps until a step finds no rows, then
+ * halving the last step. The search stops once the ends are known to a fraction of a slice,
+ * the first and last slices are open ended so rows just outside the ends are still retrieved.
+ * Rows sitting exactly on a slice boundary may be returned by both slices, they are only handed
+ * over once.
+ *
+ * !!!ATTENTION!!! One consumer per fetcher.
+ * Pages have no cursor to resume from.
+ */
+public class PartitionedRowFetcher implements RowPageSource {
+  private static final String THREAD_NAME_PREFIX = "row-slice-fetcher-";
+  private static final int QUEUED_PAGES_PER_SLICE = 2;
+
+  //Format of SyncClient's time range queries, followed by 9 digits of nanoseconds
+  private static final String QUERY_TIME_FORMAT = "yyyy-MM-dd:HH:mm:ss";
+  //Format of savepoint timestamps of rows, followed by 9 digits of nanoseconds
+  private static final String ROW_TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+  private static final String EARLIEST_TIME = "1970-01-01:00:00:00.000000000";
+  private static final String LATEST_TIME = "9999-12-31:23:59:59.999999999";
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  //Ends of the range are searched for until known to 1/RANGE_PRECISION_PER_SLICE of a slice
+  private static final int RANGE_PRECISION_PER_SLICE = 16;
+  //Smallest step when searching for the ends of the range, also the finest precision
+  private static final long MIN_RANGE_STEP = NANOS_PER_SECOND / 1000;
+
+  //Marks the end of a slice or a failed retrieval
+  private static final RowPageFetcher.Page END = new RowPageFetcher.Page(null, null, false, null);
+
+  private final SyncWrapper syncWrapper;
+  private final String tableId;
+  private final int slices;
+  private final BlockingQueue<RowPageFetcher.Page> queue;
+  private final List<Thread> threads;
+  //Boundaries between slices in query format, which is also how rows are compared against them
+  private final Set<String> boundaries;
+  //Rows on a boundary that have already been handed over
+  private final Set<String> boundaryRowIds;
+  private volatile Throwable error;
+  private int slicesEnded;
+  private boolean ended;
+  private String dataETag;
+  private boolean adaptive;
+
+  /**
+   * @param tableId
+   * @param slices Number of slices retrieved at the same time
+   */
+  public PartitionedRowFetcher(String tableId, int slices) {
+    this(SyncWrapper.getInstance(), tableId, slices);
+  }
+
+  /**
+   * @param syncWrapper
+   * @param tableId
+   * @param slices      Number of slices retrieved at the same time
+   */
+  public PartitionedRowFetcher(SyncWrapper syncWrapper, String tableId, int slices) {
+    if (slices < 1) {
+      throw new IllegalArgumentException("slices must be positive");
+    }
+
+    this.syncWrapper = syncWrapper;
+    this.tableId = tableId;
+    this.slices = slices;
+    this.queue = new ArrayBlockingQueue<>(slices * QUEUED_PAGES_PER_SLICE);
+    this.threads = new ArrayList<>();
+    this.boundaries = new HashSet<>();
+    this.boundaryRowIds = new HashSet<>();
+    this.error = null;
+    this.slicesEnded = 0;
+    this.ended = false;
+  }
+
+  /**
+   * Lets page size of each slice follow response time and size instead of the fixed fetch limit,
+   * to be called before start
+   *
+   * @param adaptive
+   */
+  public void setAdaptive(boolean adaptive) {
+    this.adaptive = adaptive;
+  }
+
+  /**
+   * Retrieves the first page of the table, searches for the range of the table starting from the
+   * range of that page, then starts 1 thread per slice
+   *
+   * @throws IOException
+   * @throws JSONException
+   */
+  @Override
+  public void start() throws IOException, JSONException {
+    if (!this.threads.isEmpty() || this.ended) {
+      throw new IllegalStateException("PartitionedRowFetcher has already been started");
+    }
+
+    JSONObject sample = this.syncWrapper.getRows(tableId, null);
+    if (sample == null) {
+      throw new IOException("Unable to retrieve rows of " + tableId);
+    }
+
+    this.dataETag = sample.isNull(SyncClient.DATA_ETAG_JSON) ?
+        null : sample.optString(SyncClient.DATA_ETAG_JSON, null);
+    JSONArray sampleRows = sample.getJSONArray(SyncClient.ROWS_STR_JSON);
+
+    List<String> sliceStarts = new ArrayList<>();
+    sliceStarts.add(EARLIEST_TIME);
+
+    if (sample.getBoolean(SyncClient.HAS_MORE_RESULTS_JSON)) {
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      for (int i = 0; i < sampleRows.size(); i++) {
+        long time = parseRowTime(
+            sampleRows.getJSONObject(i).optString(SyncClient.SAVEPOINT_TIMESTAMP_JSON, null)
+        );
+        min = Math.min(min, time);
+        max = Math.max(max, time);
+      }
+
+      if (min <= max) {
+        long precision = Math.max(MIN_RANGE_STEP, (max - min) / slices / RANGE_PRECISION_PER_SLICE);
+        min = findRangeEnd(min, -Math.max(precision, max - min), precision);
+        max = findRangeEnd(max, Math.max(precision, max - min), precision);
+      }
+
+      if (min < max) {
+        for (int i = 1; i < slices; i++) {
+          String boundary = formatQueryTime(min + (long) ((double) (max - min) * i / slices));
+          if (!boundary.equals(sliceStarts.get(sliceStarts.size() - 1))) {
+            sliceStarts.add(boundary);
+          }
+        }
+      }
+    } else {
+      //the whole table fits in 1 page
+      this.queue.add(new RowPageFetcher.Page(sampleRows, null, false, this.dataETag));
+      this.ended = true;
+      return;
+    }
+
+    this.boundaries.addAll(sliceStarts.subList(1, sliceStarts.size()));
+
+    for (int i = 0; i < sliceStarts.size(); i++) {
+      String start = sliceStarts.get(i);
+      String end = i + 1 < sliceStarts.size() ? sliceStarts.get(i + 1) : LATEST_TIME;
+
+      Thread thread =
+          new Thread(newSliceRunnable(start, end), THREAD_NAME_PREFIX + tableId + "-" + i);
+      thread.setDaemon(true);
+      this.threads.add(thread);
+    }
+
+    for (Thread thread : this.threads) {
+      thread.start();
+    }
+  }
+
+  @Override
+  public RowPageFetcher.Page take() throws IOException, JSONException, InterruptedException {
+    while (true) {
+      if (this.threads.isEmpty()) {
+        //either not started or the table fit in the sample page
+        return this.queue.poll();
+      }
+
+      if (this.slicesEnded == this.threads.size()) {
+        return null;
+      }
+
+      RowPageFetcher.Page page = this.queue.take();
+
+      if (page == END) {
+        this.slicesEnded++;
+
+        if (this.error != null) {
+          close();
+          RowPageFetcher.rethrow(this.error);
+        }
+        continue;
+      }
+
+      return dropRepeatedRows(page);
+    }
+  }
+
+  @Override
+  public void close() {
+    this.ended = true;
+
+    for (Thread thread : this.threads) {
+      thread.interrupt();
+    }
+    this.slicesEnded = this.threads.size();
+    this.queue.clear();
+  }
+
+  private Runnable newSliceRunnable(final String start, final String end) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        AdaptiveSizer sizer = adaptive ? RowPageFetcher.newAdaptiveSizer(tableId) : null;
+
+        try {
+          JSONObject rows;
+          String cursor = null;
+          boolean hasMore;
+
+          do {
+            int fetchLimit =
+                sizer != null ? sizer.getSize() : syncWrapper.getFetchLimit(tableId);
+            long startTime = System.nanoTime();
+
+            rows = syncWrapper.getRowsInSavepointRange(tableId, start, end, cursor, fetchLimit);
+            if (rows == null) {
+              throw new IOException("Unable to retrieve rows of " + tableId);
+            }
+
+            RowPageFetcher.recordPage(
+                sizer, rows.getJSONArray(SyncClient.ROWS_STR_JSON), startTime
+            );
+
+            cursor = rows.optString(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON);
+            hasMore = rows.getBoolean(SyncClient.HAS_MORE_RESULTS_JSON);
+            queue.put(
+                new RowPageFetcher.Page(rows.getJSONArray(SyncClient.ROWS_STR_JSON), null, hasMore,
+                    dataETag)
+            );
+          } while (hasMore);
+        } catch (InterruptedException e) {
+          //consumer gave up, nothing left to do
+          return;
+        } catch (Throwable t) {
+          if (error == null) {
+            error = t;
+          }
+        }
+
+        try {
+          queue.put(END);
+        } catch (InterruptedException e) {
+          //consumer gave up
+        }
+      }
+    };
+  }
+
+  /**
+   * Searches for an end of the range of the table, stepping from a savepoint timestamp a row has
+   * in growing steps until a step finds no rows, then halving the last step down to precision
+   *
+   * @param known     Savepoint timestamp of a row, in nanoseconds since epoch
+   * @param step      First step, negative to search for the start of the range
+   * @param precision
+   * @return A bound no row is beyond, within about precision of the row furthest out
+   * @throws IOException
+   * @throws JSONException
+   */
+  private long findRangeEnd(long known, long step, long precision)
+      throws IOException, JSONException {
+    //EARLIEST_TIME, or as late as nanoseconds since epoch go
+    long limit = step < 0 ? 0 : Long.MAX_VALUE;
+    long reached = known;
+    long beyond = limit;
+
+    // step outwards while rows are found beyond the step
+    while (Math.abs(step) < Math.abs(limit - reached)) {
+      long next = reached + step;
+      if (!hasRowsBeyond(next, step < 0)) {
+        beyond = next;
+        break;
+      }
+      reached = next;
+      if (Math.abs(step) < Long.MAX_VALUE / 2) {
+        step *= 2;
+      }
+    }
+
+    // rows are beyond reached, none are beyond beyond
+    precision = Math.max(precision, Math.abs(beyond - known) / slices / RANGE_PRECISION_PER_SLICE);
+    while (Math.abs(beyond - reached) > precision) {
+      long middle = reached + (beyond - reached) / 2;
+      if (hasRowsBeyond(middle, step < 0)) {
+        reached = middle;
+      } else {
+        beyond = middle;
+      }
+    }
+
+    return beyond;
+  }
+
+  /**
+   * @param time       Nanoseconds since epoch
+   * @param downwards
+   * @return True if a row has a savepoint timestamp beyond time, in the direction given
+   * @throws IOException
+   * @throws JSONException
+   */
+  private boolean hasRowsBeyond(long time, boolean downwards) throws IOException, JSONException {
+    JSONObject rows = downwards ?
+        this.syncWrapper.getRowsInSavepointRange(tableId, EARLIEST_TIME, formatQueryTime(time),
+            null, 1) :
+        this.syncWrapper.getRowsInSavepointRange(tableId, formatQueryTime(time), LATEST_TIME,
+            null, 1);
+    if (rows == null) {
+      throw new IOException("Unable to retrieve rows of " + tableId);
+    }
+
+    return !rows.getJSONArray(SyncClient.ROWS_STR_JSON).isEmpty() ||
+        rows.getBoolean(SyncClient.HAS_MORE_RESULTS_JSON);
+  }
+
+  /**
+   * Removes rows on a slice boundary that another slice has already handed over
+   *
+   * @param page
+   * @return
+   * @throws JSONException
+   */
+  private RowPageFetcher.Page dropRepeatedRows(RowPageFetcher.Page page) throws JSONException {
+    JSONArray rows = page.getRows();
+    JSONArray kept = null;
+
+    for (int i = 0; i < rows.size(); i++) {
+      JSONObject row = rows.getJSONObject(i);
+      String time = row.optString(SyncClient.SAVEPOINT_TIMESTAMP_JSON, "").replace('T', ':');
+
+      boolean repeated = this.boundaries.contains(time) &&
+          !this.boundaryRowIds.add(row.getString(SyncClient.ID_JSON));
+
+      if (repeated && kept == null) {
+        kept = new JSONArray();
+        for (int j = 0; j < i; j++) {
+          kept.add(rows.get(j));
+        }
+      } else if (!repeated && kept != null) {
+        kept.add(row);
+      }
+    }
+
+    if (kept == null) {
+      return page;
+    }
+
+    return new RowPageFetcher.Page(kept, page.getCursor(), page.hasMore(), page.getDataETag());
+  }
+
+  /**
+   * @param time Savepoint timestamp of a row
+   * @return Nanoseconds since epoch
+   * @throws IOException
+   */
+  private static long parseRowTime(String time) throws IOException {
+    if (time == null) {
+      throw new IOException("Row without savepoint timestamp");
+    }
+
+    String[] parts = time.split("\\.");
+    SimpleDateFormat format = new SimpleDateFormat(ROW_TIME_FORMAT);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    try {
+      long seconds = format.parse(parts[0]).getTime() / 1000;
+      long nanos = 0;
+      if (parts.length > 1) {
+        //right pad to 9 digits
+        String fraction = (parts[1] + "000000000").substring(0, 9);
+        nanos = Long.parseLong(fraction);
+      }
+
+      return seconds * NANOS_PER_SECOND + nanos;
+    } catch (ParseException | NumberFormatException e) {
+      throw new IOException("Invalid savepoint timestamp: " + time, e);
+    }
+  }
+
+  /**
+   * @param time Nanoseconds since epoch
+   * @return time in the format of SyncClient's time range queries
+   */
+  private static String formatQueryTime(long time) {
+    SimpleDateFormat format = new SimpleDateFormat(QUERY_TIME_FORMAT);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    return format.format(time / NANOS_PER_SECOND * 1000) +
+        String.format(".%09d", time % NANOS_PER_SECOND);
+  }
+}
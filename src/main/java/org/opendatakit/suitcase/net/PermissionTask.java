@@ -14,7 +14,7 @@ import org.opendatakit.suitcase.model.AggregateInfo;
 import org.opendatakit.suitcase.ui.DialogUtils;
 import org.opendatakit.suitcase.ui.SuitcaseProgressBar;
 
-public class PermissionTask extends SuitcaseSwingWorker<Void> {
+public class PermissionTask extends SuitcaseTask<Void> {
   
   private static final String IN_PROGRESS_STRING = "Updating Permissions...";
   private static final int PUSH_FINISH_WAIT = 5000;
@@ -76,7 +76,7 @@ public class PermissionTask extends SuitcaseSwingWorker<Void> {
       e.printStackTrace();
       DialogUtils.showError(GENERIC_ERR, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } catch (ExecutionException e) {
       Throwable cause = e.getCause();
 
@@ -94,7 +94,7 @@ public class PermissionTask extends SuitcaseSwingWorker<Void> {
       DialogUtils.showError(errMsg, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
       cause.printStackTrace();
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } finally {
       setIndeterminate(false);
     }
@@ -0,0 +1,271 @@
+package org.opendatakit.suitcase.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the progress of a task, such as rows and bytes written, so that it can be reported at
+ * a fixed rate instead of on every row.
+ * Counters can be updated from any thread, they are cheap enough to update per row.
+ * Progress is divided into stages, each with its own counters, unit and optional total.
+ */
+public class ProgressTracker {
+  public static final String ROWS = "rows";
+  public static final String FILES = "files";
+  public static final String TABLES = "tables";
+  public static final long UNKNOWN = -1;
+
+  //Weight of the latest interval in rates
+  private static final double SMOOTHING = 0.3;
+  private static final String DETAIL_SEPARATOR = " | ";
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private final AtomicLong count;
+  private final AtomicLong bytes;
+  private final AtomicLong pages;
+  private volatile String stage;
+  private volatile String unit;
+  private volatile long total;
+
+  //state of the previous sample, guarded by this
+  private long lastSampleTime;
+  private long lastCount;
+  private long lastBytes;
+  private double countRate;
+  private double byteRate;
+
+  public ProgressTracker() {
+    this.count = new AtomicLong();
+    this.bytes = new AtomicLong();
+    this.pages = new AtomicLong();
+    this.stage = null;
+  }
+
+  /**
+   * Starts a new stage and resets all counters
+   *
+   * @param stage Shown as is
+   * @param unit  What count counts, such as ROWS
+   * @param total Expected count at the end of the stage, UNKNOWN if not known
+   */
+  public synchronized void startStage(String stage, String unit, long total) {
+    this.count.set(0);
+    this.bytes.set(0);
+    this.pages.set(0);
+    this.unit = unit;
+    this.total = total;
+    this.stage = stage;
+
+    this.lastSampleTime = System.nanoTime();
+    this.lastCount = 0;
+    this.lastBytes = 0;
+    this.countRate = -1;
+    this.byteRate = -1;
+  }
+
+  /**
+   * Changes the expected count of the current stage, once it becomes known
+   *
+   * @param total
+   */
+  public void setTotal(long total) {
+    this.total = total;
+  }
+
+  public void addCount(long delta) {
+    this.count.addAndGet(delta);
+  }
+
+  public void addBytes(long delta) {
+    this.bytes.addAndGet(delta);
+  }
+
+  public void addPage() {
+    this.pages.incrementAndGet();
+  }
+
+  /**
+   * Takes a sample of the current stage, rates cover the time since the previous sample
+   *
+   * @return null before the first stage
+   */
+  public synchronized Sample sample() {
+    if (this.stage == null) {
+      return null;
+    }
+
+    long now = System.nanoTime();
+    long currentCount = this.count.get();
+    long currentBytes = this.bytes.get();
+    double seconds = (double) (now - this.lastSampleTime) / (1000 * NANOS_PER_MILLI);
+
+    if (seconds > 0) {
+      this.countRate = smooth(this.countRate, (currentCount - this.lastCount) / seconds);
+      this.byteRate = smooth(this.byteRate, (currentBytes - this.lastBytes) / seconds);
+
+      this.lastSampleTime = now;
+      this.lastCount = currentCount;
+      this.lastBytes = currentBytes;
+    }
+
+    long eta = UNKNOWN;
+    if (this.total >= 0 && this.countRate > 0) {
+      eta = (long) (Math.max(this.total - currentCount, 0) / this.countRate * 1000);
+    }
+
+    return new Sample(this.stage, this.unit, currentCount, this.total, currentBytes,
+        this.pages.get(), Math.max(this.countRate, 0), Math.max(this.byteRate, 0), eta);
+  }
+
+  private static double smooth(double rate, double sample) {
+    if (rate < 0) {
+      return sample;
+    }
+
+    return SMOOTHING * sample + (1 - SMOOTHING) * rate;
+  }
+
+  /**
+   * Progress of a stage at 1 point in time
+   */
+  public static class Sample {
+    private final String stage;
+    private final String unit;
+    private final long count;
+    private final long total;
+    private final long bytes;
+    private final long pages;
+    private final double countPerSecond;
+    private final double bytesPerSecond;
+    private final long etaMillis;
+
+    Sample(String stage, String unit, long count, long total, long bytes, long pages,
+        double countPerSecond, double bytesPerSecond, long etaMillis) {
+      this.stage = stage;
+      this.unit = unit;
+      this.count = count;
+      this.total = total;
+      this.bytes = bytes;
+      this.pages = pages;
+      this.countPerSecond = countPerSecond;
+      this.bytesPerSecond = bytesPerSecond;
+      this.etaMillis = etaMillis;
+    }
+
+    public String getStage() {
+      return stage;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getTotal() {
+      return total;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public long getPages() {
+      return pages;
+    }
+
+    public double getCountPerSecond() {
+      return countPerSecond;
+    }
+
+    public double getBytesPerSecond() {
+      return bytesPerSecond;
+    }
+
+    /**
+     * @return Estimated milliseconds until the end of the stage, UNKNOWN without a total
+     */
+    public long getEtaMillis() {
+      return etaMillis;
+    }
+
+    /**
+     * @return Percentage done, null without a total
+     */
+    public Integer getPercent() {
+      if (total < 0) {
+        return null;
+      }
+
+      if (total == 0) {
+        return 100;
+      }
+
+      return (int) Math.min(count * 100 / total, 100);
+    }
+
+    /**
+     * @return Stage followed by counts, rates and ETA, such as
+     * "Writing rows | 1200/5000 rows, 400 rows/s, 1.2 MB/s, ETA 10s"
+     */
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder(stage).append(DETAIL_SEPARATOR).append(count);
+
+      if (total >= 0) {
+        builder.append('/').append(total);
+      }
+      builder.append(' ').append(unit);
+
+      if (pages > 0) {
+        builder.append(", ").append(pages).append(" pages");
+      }
+
+      builder.append(", ").append(Math.round(countPerSecond)).append(' ').append(unit)
+          .append("/s");
+
+      if (bytes > 0) {
+        builder.append(", ").append(formatBytes(bytesPerSecond)).append("/s");
+      }
+
+      if (etaMillis >= 0) {
+        builder.append(", ETA ").append(formatDuration(etaMillis));
+      }
+
+      return builder.toString();
+    }
+
+    private static String formatBytes(double bytes) {
+      if (bytes >= 1024 * 1024) {
+        return String.format("%.1f MB", bytes / (1024 * 1024));
+      }
+
+      if (bytes >= 1024) {
+        return String.format("%.1f KB", bytes / 1024);
+      }
+
+      return Math.round(bytes) + " B";
+    }
+
+    private static String formatDuration(long millis) {
+      long seconds = (millis + 999) / 1000;
+
+      if (seconds >= 3600) {
+        return String.format("%dh%02dm", seconds / 3600, seconds % 3600 / 60);
+      }
+
+      if (seconds >= 60) {
+        return String.format("%dm%02ds", seconds / 60, seconds % 60);
+      }
+
+      return seconds + "s";
+    }
+  }
+
+  /**
+   * @param text String of a Sample, or any other status
+   * @return The stage part of text
+   */
+  public static String getStage(String text) {
+    int separator = text.indexOf(DETAIL_SEPARATOR);
+
+    return separator < 0 ? text : text.substring(0, separator);
+  }
+}
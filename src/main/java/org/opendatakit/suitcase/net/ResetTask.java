@@ -3,7 +3,6 @@ package org.opendatakit.suitcase.net;
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.opendatakit.suitcase.ui.DialogUtils;
-import org.opendatakit.suitcase.ui.ProgressBarStatus;
 import org.opendatakit.suitcase.ui.SuitcaseProgressBar;
 
 import java.io.IOException;
@@ -12,9 +11,14 @@ import java.util.concurrent.ExecutionException;
 
 import static org.opendatakit.suitcase.ui.MessageString.*;
 
-public class ResetTask extends SuitcaseSwingWorker<Void> {
+public class ResetTask extends SuitcaseTask<Void> {
   private static final String IN_PROGRESS_STRING = "Deleting...";
   private static final int RESET_FINISH_WAIT = 5000;
+  private static final String DELETING_FILES = "Stage 1/3: Delete app level files";
+  private static final String DELETING_TABLES = "Stage 2/3: Delete table definitions";
+  private static final String DELETING_BAD_TABLES =
+      "Stage 3/3: Delete tables that are in bad states";
+  private static final String REFRESHING_TABLES = "Refreshing table list";
 
   private String version;
   private boolean isGUI;
@@ -29,45 +33,41 @@ public class ResetTask extends SuitcaseSwingWorker<Void> {
   @Override
   protected Void doInBackground() throws JSONException, IOException, InterruptedException {
     setString(IN_PROGRESS_STRING);
+    startSampling();
 
     SyncWrapper syncWrapper = SyncWrapper.getInstance();
 
     // first delete all app level files
-    publish(new ProgressBarStatus(0, "Stage 1/3: Delete app level files", false));
+    tracker.startStage(DELETING_FILES, ProgressTracker.FILES, ProgressTracker.UNKNOWN);
     JSONArray appFiles = syncWrapper.getManifestForAppLevelFiles(version).getJSONArray("files");
+    tracker.setTotal(appFiles.size());
     for (int i = 0; i < appFiles.size(); i++) {
       String filename = appFiles.getJSONObject(i).getString("filename");
       syncWrapper.deleteFile(filename, version);
-
-      int progress = (int) ((double) i / appFiles.size() * 100);
-      publish(new ProgressBarStatus(progress, "Stage 1/3: Deleted " + filename, null));
+      tracker.addCount(1);
     }
 
     // then delete all table definitions
-    publish(new ProgressBarStatus(0, "Stage 2/3: Delete table definitions", false));
+    tracker.startStage(DELETING_TABLES, ProgressTracker.TABLES, ProgressTracker.UNKNOWN);
     Set<String> tables = syncWrapper.updateTableList();
-    int tableCounter = 0;
+    tracker.setTotal(tables.size());
     for (String table : tables) {
       // for large data sets deletion might timeout
       // so tables must be repeatedly deleted
 
-      int retryCounter = 1;
       int status;
-      while ((status = syncWrapper.deleteTableDefinition(table)) == 500) {
-        int progress = (int) ((double) tableCounter / tables.size() * 100);
-        String msg = "Stage 2/3: Deleting " + table + " retry #" + retryCounter++;
-        publish(new ProgressBarStatus(progress, msg, null));
-      }
+      while ((status = syncWrapper.deleteTableDefinition(table)) == 500);
       if (status < 200 || status > 299) {
         throw new IllegalStateException("Unexpected status code: " + status);
       }
-      tableCounter++;
+      tracker.addCount(1);
     }
 
-    publish(new ProgressBarStatus(0, "Stage 3/3: Delete tables that are in bad states", true));
+    tracker.startStage(DELETING_BAD_TABLES, ProgressTracker.TABLES, ProgressTracker.UNKNOWN);
     // the table id and schemaETag can be anything
     while ((syncWrapper.deleteTableDefinition("table", "etag")) == 500);
 
+    tracker.startStage(REFRESHING_TABLES, ProgressTracker.TABLES, ProgressTracker.UNKNOWN);
     Thread.sleep(RESET_FINISH_WAIT);
     syncWrapper.updateTableList();
 
@@ -84,7 +84,7 @@ public class ResetTask extends SuitcaseSwingWorker<Void> {
       e.printStackTrace();
       DialogUtils.showError(GENERIC_ERR, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } catch (ExecutionException e) {
       Throwable cause = e.getCause();
 
@@ -100,7 +100,7 @@ public class ResetTask extends SuitcaseSwingWorker<Void> {
       cause.printStackTrace();
       DialogUtils.showError(errMsg, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } finally {
       setIndeterminate(false);
     }
@@ -0,0 +1,232 @@
+package org.opendatakit.suitcase.net;
+
+import org.apache.wink.json4j.JSONException;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups the rows of an update into 1 batch per operation and partition, and sends a batch as
+ * soon as it is full, so rows can be sent while the rest of the csv is still being read.
+ *
+ * Rows are partitioned by rowId, all rows of a rowId are in batches of the same partition.
+ * Operations on the same rowId are sent in the order they were added. Adding a row whose rowId
+ * is waiting in the batch of another operation sends that batch first.
+ * Batches still waiting at the end are sent in the order of the operations given to the
+ * constructor.
+ *
+ * A batch is full once it holds batchSize rows, or the size given by an AdaptiveSizer if there
+ * is one. A batch is also sent before a row would take it over maxBytes, by estimate.
+ *
+ * !!!ATTENTION!!! Not thread safe
+ */
+public class RowBatcher {
+  /**
+   * Sends 1 batch of rows to the server
+   */
+  public interface BatchSender {
+    /**
+     * @param operation
+     * @param partition Partition of every row in rows
+     * @param rows
+     * @throws IOException
+     * @throws JSONException
+     */
+    void send(String operation, int partition, ArrayList<Row> rows)
+        throws IOException, JSONException;
+  }
+
+  //Estimated bytes of the keys and punctuation of a row and of each of its values
+  private static final long ROW_OVERHEAD_BYTES = 300;
+  private static final long VALUE_OVERHEAD_BYTES = 30;
+
+  private final BatchSender sender;
+  private final int batchSize;
+  private final int partitions;
+  //Batch of each partition of each operation, in the order batches are sent at the end
+  private final Map<String, List<ArrayList<Row>>> batches;
+  //Estimated bytes of each batch
+  private final Map<String, long[]> batchBytes;
+  private long maxBytes;
+  //Shared with the threads sending batches, guarded by itself
+  private AdaptiveSizer sizer;
+  //Operation of the batch each waiting rowId is in
+  private final Map<String, String> waitingRowIds;
+
+  /**
+   * @param sender
+   * @param batchSize  Maximum number of rows per batch, unless there is an AdaptiveSizer
+   * @param partitions Number of partitions rows are divided into
+   * @param operations Every operation rows can be added with
+   */
+  public RowBatcher(BatchSender sender, int batchSize, int partitions, List<String> operations) {
+    if (batchSize < 1 || partitions < 1) {
+      throw new IllegalArgumentException("batchSize and partitions must be positive");
+    }
+
+    this.sender = sender;
+    this.batchSize = batchSize;
+    this.partitions = partitions;
+    this.batches = new LinkedHashMap<>();
+    this.waitingRowIds = new HashMap<>();
+    this.batchBytes = new HashMap<>();
+    this.maxBytes = Long.MAX_VALUE;
+    this.sizer = null;
+
+    for (String operation : operations) {
+      List<ArrayList<Row>> partitionBatches = new ArrayList<>();
+      for (int i = 0; i < partitions; i++) {
+        partitionBatches.add(new ArrayList<Row>());
+      }
+
+      this.batches.put(operation, partitionBatches);
+      this.batchBytes.put(operation, new long[partitions]);
+    }
+  }
+
+  /**
+   * Sets maximum estimated bytes of a batch, a single row larger than that is sent on its own
+   *
+   * @param maxBytes
+   */
+  public void setMaxBytes(long maxBytes) {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("maxBytes must be positive");
+    }
+
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Sets the AdaptiveSizer deciding the number of rows per batch instead of batchSize.
+   * Whoever records requests in sizer has to synchronize on it.
+   *
+   * @param sizer null to go back to batchSize
+   */
+  public void setAdaptiveSizer(AdaptiveSizer sizer) {
+    this.sizer = sizer;
+  }
+
+  /**
+   * Adds a row, sending batches as needed
+   *
+   * @param operation
+   * @param row
+   * @throws IOException
+   * @throws JSONException
+   */
+  public void add(String operation, Row row) throws IOException, JSONException {
+    List<ArrayList<Row>> partitionBatches = this.batches.get(operation);
+    if (partitionBatches == null) {
+      throw new IllegalArgumentException("Operation " + operation + " is not supported");
+    }
+
+    int partition = getPartition(row.getRowId());
+
+    String waitingOperation = this.waitingRowIds.get(row.getRowId());
+    if (waitingOperation != null && !waitingOperation.equals(operation)) {
+      send(waitingOperation, partition);
+    }
+
+    long rowBytes = estimateBytes(row);
+    long[] partitionBytes = this.batchBytes.get(operation);
+    if (partitionBytes[partition] + rowBytes > this.maxBytes) {
+      send(operation, partition);
+    }
+
+    ArrayList<Row> batch = partitionBatches.get(partition);
+    batch.add(row);
+    partitionBytes[partition] += rowBytes;
+    this.waitingRowIds.put(row.getRowId(), operation);
+
+    if (batch.size() >= getBatchSize()) {
+      send(operation, partition);
+    }
+  }
+
+  /**
+   * Sends every batch that is waiting
+   *
+   * @throws IOException
+   * @throws JSONException
+   */
+  public void flush() throws IOException, JSONException {
+    for (String operation : this.batches.keySet()) {
+      for (int i = 0; i < this.partitions; i++) {
+        send(operation, i);
+      }
+    }
+  }
+
+  /**
+   * @param rowId
+   * @return Partition of the rows of rowId
+   */
+  public int getPartition(String rowId) {
+    if (rowId == null) {
+      return 0;
+    }
+
+    return (rowId.hashCode() & Integer.MAX_VALUE) % this.partitions;
+  }
+
+  /**
+   * @return Number of rows a batch is sent at
+   */
+  public int getBatchSize() {
+    if (this.sizer == null) {
+      return this.batchSize;
+    }
+
+    synchronized (this.sizer) {
+      return this.sizer.getSize();
+    }
+  }
+
+  /**
+   * Estimates the size of row once it is sent, without serializing it
+   *
+   * @param row
+   * @return
+   */
+  public static long estimateBytes(Row row) {
+    long bytes = ROW_OVERHEAD_BYTES + length(row.getRowId()) + length(row.getRowETag()) +
+        length(row.getFormId()) + length(row.getLocale()) + length(row.getSavepointType()) +
+        length(row.getSavepointTimestamp()) + length(row.getSavepointCreator());
+
+    if (row.getValues() != null) {
+      for (DataKeyValue value : row.getValues()) {
+        bytes += VALUE_OVERHEAD_BYTES + length(value.column) + length(value.value);
+      }
+    }
+
+    return bytes;
+  }
+
+  private static int length(String s) {
+    return s == null ? 0 : s.length();
+  }
+
+  private void send(String operation, int partition) throws IOException, JSONException {
+    List<ArrayList<Row>> partitionBatches = this.batches.get(operation);
+    ArrayList<Row> batch = partitionBatches.get(partition);
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    //a new list, the sender may hold on to the rows it was given
+    partitionBatches.set(partition, new ArrayList<Row>());
+    this.batchBytes.get(operation)[partition] = 0;
+    for (Row row : batch) {
+      this.waitingRowIds.remove(row.getRowId());
+    }
+
+    this.sender.send(operation, partition, batch);
+  }
+}
@@ -0,0 +1,342 @@
+package org.opendatakit.suitcase.net;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * rowId to rowETag of every row of a table, kept on disk between updates so an update does not
+ * have to retrieve the whole table again.
+ *
+ * The index is complete as of its dataETag, rows changed since are retrieved by refresh.
+ * Without a dataETag the index is incomplete and should not be relied on.
+ *
+ * On disk it is a log of changes, 1 per line, read back into memory when opened and rewritten
+ * when it has grown much larger than the rows it holds. Every line ends with a tab, so a line
+ * cut short by a crash is recognized and ignored. A log with such a line, a last line without
+ * line break or a record it doesn't know is rewritten when opened, so nothing is appended to it.
+ */
+public class RowETagIndex implements Closeable {
+  private static final String SCHEMA_ETAG_RECORD = "S";
+  private static final String DATA_ETAG_RECORD = "D";
+  private static final String PUT_RECORD = "P";
+  private static final String REMOVE_RECORD = "R";
+  private static final String SEPARATOR = "\t";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String DELETED_JSON = "deleted";
+  //Log is rewritten once it has this many lines per row, and at least MIN_COMPACT_LINES
+  private static final int COMPACT_LINES_PER_ROW = 2;
+  private static final int MIN_COMPACT_LINES = 10000;
+
+  private final Path path;
+  private final String schemaETag;
+  private final Map<String, String> rowETags;
+  private String dataETag;
+  private BufferedWriter log;
+  //Lines of the log that were cut short or not understood, anything appended to a line cut
+  //short would be lost
+  private int brokenLines;
+
+  /**
+   * Opens the index at path, an index of another schemaETag is emptied
+   *
+   * @param path
+   * @param schemaETag Current schemaETag of the table
+   * @throws IOException
+   */
+  public RowETagIndex(Path path, String schemaETag) throws IOException {
+    if (schemaETag == null || !isStorable(schemaETag)) {
+      throw new IllegalArgumentException("schemaETag cannot be stored: " + schemaETag);
+    }
+
+    this.path = path;
+    this.schemaETag = schemaETag;
+    this.rowETags = new HashMap<>();
+    this.dataETag = null;
+    this.brokenLines = 0;
+
+    int lines = read();
+
+    if (lines < 0) {
+      //another schema, or no index yet
+      this.rowETags.clear();
+      this.dataETag = null;
+      rewrite();
+    } else if (this.brokenLines > 0 || (lines >= MIN_COMPACT_LINES &&
+        lines > COMPACT_LINES_PER_ROW * this.rowETags.size())) {
+      rewrite();
+    } else {
+      this.log = Files.newBufferedWriter(
+          path, StandardCharsets.UTF_8, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+      );
+    }
+  }
+
+  /**
+   * @return dataETag the index is complete as of, null when incomplete
+   */
+  public synchronized String getDataETag() {
+    return this.dataETag;
+  }
+
+  /**
+   * @param dataETag dataETag the index is now complete as of
+   * @throws IOException
+   */
+  public synchronized void setDataETag(String dataETag) throws IOException {
+    if (dataETag == null || !isStorable(dataETag)) {
+      throw new IllegalArgumentException("dataETag cannot be stored: " + dataETag);
+    }
+
+    this.dataETag = dataETag;
+    append(DATA_ETAG_RECORD, dataETag);
+  }
+
+  /**
+   * @param rowId
+   * @return rowETag of rowId, null when rowId is not in the index
+   */
+  public synchronized String get(String rowId) {
+    return this.rowETags.get(rowId);
+  }
+
+  public synchronized void put(String rowId, String rowETag) throws IOException {
+    if (rowId == null || rowETag == null || !isStorable(rowId)) {
+      return;
+    }
+    if (!isStorable(rowETag)) {
+      // better no rowETag than a wrong one
+      remove(rowId);
+      return;
+    }
+
+    if (!rowETag.equals(this.rowETags.put(rowId, rowETag))) {
+      append(PUT_RECORD, rowId, rowETag);
+    }
+  }
+
+  public synchronized void remove(String rowId) throws IOException {
+    if (this.rowETags.remove(rowId) != null) {
+      append(REMOVE_RECORD, rowId);
+    }
+  }
+
+  /**
+   * Empties the index, it is incomplete until setDataETag
+   *
+   * @throws IOException
+   */
+  public synchronized void reset() throws IOException {
+    this.rowETags.clear();
+    this.dataETag = null;
+    rewrite();
+  }
+
+  /**
+   * Records the rowETag of each row of a page of rows, removing deleted rows
+   *
+   * @param rows
+   * @throws IOException
+   * @throws JSONException
+   */
+  public synchronized void putRows(JSONArray rows) throws IOException, JSONException {
+    for (int i = 0; i < rows.size(); i++) {
+      JSONObject rowObj = rows.getJSONObject(i);
+      String rowId = rowObj.isNull(SyncClient.ID_JSON) ?
+          null : rowObj.optString(SyncClient.ID_JSON, null);
+
+      if (rowObj.optBoolean(DELETED_JSON, false)) {
+        remove(rowId);
+      } else {
+        put(rowId, rowObj.isNull(SyncClient.ROW_ETAG_JSON) ?
+            null : rowObj.optString(SyncClient.ROW_ETAG_JSON, null));
+      }
+    }
+  }
+
+  /**
+   * Brings the index up to date with the table, retrieving only the rows changed since its
+   * dataETag. An incomplete index retrieves the whole table.
+   *
+   * @param syncWrapper
+   * @param tableId
+   * @param tracker     Counts the rows retrieved, in the current stage
+   * @throws IOException
+   * @throws JSONException
+   */
+  public void refresh(SyncWrapper syncWrapper, String tableId, ProgressTracker tracker)
+      throws IOException, JSONException {
+    String sinceDataETag = getDataETag();
+    if (sinceDataETag == null) {
+      reset();
+    }
+
+    // the first page has the dataETag from before any change made while paging,
+    // so changes made meanwhile are retrieved again by the next refresh
+    String newDataETag = null;
+    JSONObject rows;
+    String cursor = null;
+    do {
+      if (sinceDataETag == null) {
+        rows = syncWrapper.getRows(tableId, cursor);
+      } else {
+        rows = syncWrapper.getRowsSince(tableId, sinceDataETag, cursor);
+      }
+      // the dataETag is only moved on at the end, pages recorded so far are retrieved again
+      if (rows == null) {
+        throw new IOException("Unable to retrieve rows of " + tableId + " at cursor " + cursor);
+      }
+
+      if (newDataETag == null && !rows.isNull(SyncClient.DATA_ETAG_JSON)) {
+        newDataETag = rows.optString(SyncClient.DATA_ETAG_JSON, null);
+      }
+
+      cursor = rows.optString(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON);
+      JSONArray rowsArray = rows.getJSONArray(SyncClient.ROWS_STR_JSON);
+      putRows(rowsArray);
+      tracker.addCount(rowsArray.size());
+      tracker.addPage();
+    } while (rows.getBoolean(SyncClient.HAS_MORE_RESULTS_JSON));
+
+    if (newDataETag != null && isStorable(newDataETag)) {
+      setDataETag(newDataETag);
+    }
+    flush();
+  }
+
+  public synchronized void flush() throws IOException {
+    if (this.log != null) {
+      this.log.flush();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (this.log != null) {
+      this.log.close();
+      this.log = null;
+    }
+  }
+
+  /**
+   * Reads the log into memory
+   *
+   * @return Number of lines read, -1 when there is no log or it belongs to another schemaETag
+   * @throws IOException
+   */
+  private int read() throws IOException {
+    if (Files.notExists(this.path)) {
+      return -1;
+    }
+
+    int lines = 0;
+    BufferedReader reader = Files.newBufferedReader(this.path, StandardCharsets.UTF_8);
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(SEPARATOR, -1);
+        // a complete record ends with a tab, so its last field is empty
+        if (fields.length < 2 || !fields[fields.length - 1].isEmpty()) {
+          this.brokenLines++;
+          continue;
+        }
+
+        if (lines++ == 0) {
+          if (!fields[0].equals(SCHEMA_ETAG_RECORD) || fields.length != 3 ||
+              !fields[1].equals(this.schemaETag)) {
+            return -1;
+          }
+          continue;
+        }
+
+        if (fields[0].equals(PUT_RECORD) && fields.length == 4) {
+          this.rowETags.put(fields[1], fields[2]);
+        } else if (fields[0].equals(REMOVE_RECORD) && fields.length == 3) {
+          this.rowETags.remove(fields[1]);
+        } else if (fields[0].equals(DATA_ETAG_RECORD) && fields.length == 3) {
+          this.dataETag = fields[1];
+        } else {
+          this.brokenLines++;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    // the next line would be appended to the last one
+    if (!endsWithLineBreak()) {
+      this.brokenLines++;
+    }
+
+    return lines;
+  }
+
+  private boolean endsWithLineBreak() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(this.path.toFile(), "r");
+    try {
+      if (file.length() == 0) {
+        return true;
+      }
+
+      file.seek(file.length() - 1);
+      return file.read() == '\n';
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Replaces the log with 1 line per row in 1 step, so it is never seen half written
+   *
+   * @throws IOException
+   */
+  private void rewrite() throws IOException {
+    close();
+
+    Files.createDirectories(this.path.getParent());
+    Path tempPath = this.path.resolveSibling(this.path.getFileName() + TEMP_SUFFIX);
+    this.log = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8);
+    append(SCHEMA_ETAG_RECORD, this.schemaETag);
+    for (Map.Entry<String, String> entry : this.rowETags.entrySet()) {
+      append(PUT_RECORD, entry.getKey(), entry.getValue());
+    }
+    if (this.dataETag != null) {
+      append(DATA_ETAG_RECORD, this.dataETag);
+    }
+    close();
+
+    Files.move(tempPath, this.path,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    this.log = Files.newBufferedWriter(
+        this.path, StandardCharsets.UTF_8, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+    );
+  }
+
+  private static boolean isStorable(String field) {
+    return !field.contains(SEPARATOR) && !field.contains("\n") && !field.contains("\r");
+  }
+
+  private void append(String record, String... fields) throws IOException {
+    this.log.write(record);
+    for (String field : fields) {
+      this.log.write(SEPARATOR);
+      this.log.write(field);
+    }
+    this.log.write(SEPARATOR);
+    this.log.newLine();
+  }
+}
@@ -0,0 +1,226 @@
+package org.opendatakit.suitcase.net;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retrieves the current rowETag of a set of rows of a table.
+ *
+ * The table is scanned page by page, keeping only the rowETags asked for. Once the rows still
+ * missing are few compared to the rows scanned so far, each of them is retrieved on its own
+ * instead, several at the same time. A small update of a large table then costs about 1 page
+ * and 1 request per row, while an update touching most of the table still costs 1 request per
+ * page.
+ */
+public class RowETagLookup {
+  public static final int DEFAULT_LOOKUP_THREADS = 8;
+  //Rows of the table scanned for each row that is retrieved on its own instead
+  private static final int ROWS_SCANNED_PER_LOOKUP = 10;
+  private static final String THREAD_NAME_PREFIX = "row-etag-lookup-";
+
+  private final SyncWrapper syncWrapper;
+  private final String tableId;
+  private final ProgressTracker tracker;
+  private final int lookupThreads;
+  private RowETagIndex index;
+
+  /**
+   * @param syncWrapper
+   * @param tableId
+   * @param tracker       Counts the rowIds done, in the current stage
+   * @param lookupThreads Number of rows retrieved on their own at the same time
+   */
+  public RowETagLookup(SyncWrapper syncWrapper, String tableId, ProgressTracker tracker,
+      int lookupThreads) {
+    if (lookupThreads < 1) {
+      throw new IllegalArgumentException("lookupThreads must be positive");
+    }
+
+    this.syncWrapper = syncWrapper;
+    this.tableId = tableId;
+    this.tracker = tracker;
+    this.lookupThreads = lookupThreads;
+    this.index = null;
+  }
+
+  /**
+   * Records every row scanned in index. Scanning the whole table completes index, otherwise
+   * it is left incomplete.
+   *
+   * @param index null to record nothing
+   */
+  public void setIndex(RowETagIndex index) {
+    this.index = index;
+  }
+
+  /**
+   * Puts the rowETag of each row of rowIds that exists in the table in rowETags
+   *
+   * @param rowIds
+   * @param rowETags
+   * @throws IOException
+   * @throws JSONException
+   */
+  public void lookup(Set<String> rowIds, Map<String, String> rowETags)
+      throws IOException, JSONException {
+    if (rowIds.isEmpty()) {
+      return;
+    }
+
+    Set<String> remaining = new HashSet<>(rowIds);
+    long scanned = 0;
+    String dataETag = null;
+
+    if (this.index != null) {
+      this.index.reset();
+    }
+
+    JSONObject rows;
+    String cursor = null;
+    while (true) {
+      rows = this.syncWrapper.getRows(this.tableId, cursor);
+      if (rows == null) {
+        throw new IOException("Unable to retrieve rows of " + this.tableId + " at cursor " +
+            cursor);
+      }
+      cursor = rows.optString(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON);
+      JSONArray rowsArray = rows.getJSONArray(SyncClient.ROWS_STR_JSON);
+
+      if (this.index != null) {
+        // the dataETag from before any change made while scanning
+        if (dataETag == null && !rows.isNull(SyncClient.DATA_ETAG_JSON)) {
+          dataETag = rows.optString(SyncClient.DATA_ETAG_JSON, null);
+        }
+        this.index.putRows(rowsArray);
+      }
+
+      int found = 0;
+      for (int i = 0; i < rowsArray.size(); i++) {
+        if (putRowETag(rowsArray.getJSONObject(i), remaining, rowETags)) {
+          found++;
+        }
+      }
+
+      scanned += rowsArray.size();
+      this.tracker.addCount(found);
+      this.tracker.addPage();
+
+      if (!rows.getBoolean(SyncClient.HAS_MORE_RESULTS_JSON)) {
+        break;
+      }
+
+      if (remaining.isEmpty()) {
+        return;
+      }
+
+      if ((long) remaining.size() * ROWS_SCANNED_PER_LOOKUP <= scanned) {
+        lookupEach(remaining, rowETags);
+        return;
+      }
+    }
+
+    // scanned the whole table, the rest are not in it
+    this.tracker.addCount(remaining.size());
+
+    if (this.index != null && dataETag != null) {
+      this.index.setDataETag(dataETag);
+      this.index.flush();
+    }
+  }
+
+  private void lookupEach(Set<String> rowIds, final Map<String, String> rowETags)
+      throws IOException, JSONException {
+    final AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(this.lookupThreads, rowIds.size()), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, THREAD_NAME_PREFIX + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }
+    );
+
+    try {
+      List<Future<Void>> lookups = new ArrayList<>();
+      for (final String rowId : rowIds) {
+        lookups.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            // null only when the server says the row doesn't exist, a failed request throws
+            JSONObject row = syncWrapper.getRow(tableId, rowId);
+            if (row != null) {
+              putRowETag(row, null, rowETags);
+            }
+
+            tracker.addCount(1);
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> lookup : lookups) {
+        lookup.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while retrieving rowETags");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof JSONException) {
+        throw (JSONException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @param rowObj
+   * @param wanted   Only rows of these rowIds are kept, removed once found. Null to keep any row
+   * @param rowETags
+   * @return True if the rowETag of rowObj was kept
+   * @throws JSONException
+   */
+  private static boolean putRowETag(JSONObject rowObj, Set<String> wanted,
+      Map<String, String> rowETags) throws JSONException {
+    String rowId = rowObj.has(SyncClient.ID_JSON) && !rowObj.isNull(SyncClient.ID_JSON) ? rowObj
+        .getString(SyncClient.ID_JSON) : null;
+    String rowETag = rowObj.has(SyncClient.ROW_ETAG_JSON)
+        && !rowObj.isNull(SyncClient.ROW_ETAG_JSON) ? rowObj
+        .getString(SyncClient.ROW_ETAG_JSON) : null;
+
+    if (rowId == null || rowETag == null || (wanted != null && !wanted.remove(rowId))) {
+      return false;
+    }
+
+    rowETags.put(rowId, rowETag);
+    return true;
+  }
+}
@@ -0,0 +1,311 @@
+package org.opendatakit.suitcase.net;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Retrieves the rows of a table, or the rows changed since a dataETag, on its own thread by
+ * following the resume cursor.
+ * Pages are handed over through a bounded queue, so the next page is retrieved while the caller
+ * is still processing the current one, and retrieval pauses when the caller falls behind.
+ *
+ * !!!ATTENTION!!! One consumer per fetcher
+ */
+public class RowPageFetcher implements Runnable, RowPageSource {
+  public static final int DEFAULT_QUEUE_CAPACITY = 2;
+  //Bounds of the page size in adaptive mode
+  private static final int MIN_ADAPTIVE_FETCH_LIMIT = 100;
+  private static final int MAX_ADAPTIVE_FETCH_LIMIT = 10000;
+  //Rows serialized to estimate the size of a page
+  private static final int SIZE_SAMPLE_ROWS = 3;
+  private static final String THREAD_NAME_PREFIX = "row-fetcher-";
+
+  //Marks the end of the table or a failed retrieval
+  private static final Page END = new Page(null, null, false, null);
+
+  public static class Page {
+    private final JSONArray rows;
+    private final String cursor;
+    private final boolean hasMore;
+    private final String dataETag;
+
+    Page(JSONArray rows, String cursor, boolean hasMore, String dataETag) {
+      this.rows = rows;
+      this.cursor = cursor;
+      this.hasMore = hasMore;
+      this.dataETag = dataETag;
+    }
+
+    public JSONArray getRows() {
+      return rows;
+    }
+
+    /**
+     * @return Cursor to resume retrieval right after this page
+     */
+    public String getCursor() {
+      return cursor;
+    }
+
+    public boolean hasMore() {
+      return hasMore;
+    }
+
+    /**
+     * @return dataETag of the table when this page was retrieved, null if Aggregate didn't say
+     */
+    public String getDataETag() {
+      return dataETag;
+    }
+  }
+
+  private final SyncWrapper syncWrapper;
+  private final String tableId;
+  //null to retrieve all rows
+  private final String sinceDataETag;
+  private final String startCursor;
+  private final BlockingQueue<Page> queue;
+  private volatile Throwable error;
+  private volatile boolean ended;
+  private Thread thread;
+  //null to use the fetch limit of SyncWrapper
+  private AdaptiveSizer sizer;
+
+  public RowPageFetcher(String tableId) {
+    this(tableId, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @param tableId
+   * @param capacity Maximum number of pages retrieved ahead of the consumer
+   */
+  public RowPageFetcher(String tableId, int capacity) {
+    this(tableId, capacity, null);
+  }
+
+  /**
+   * @param tableId
+   * @param capacity      Maximum number of pages retrieved ahead of the consumer
+   * @param sinceDataETag Only retrieve rows changed or deleted since this dataETag,
+   *                      null to retrieve all rows
+   */
+  public RowPageFetcher(String tableId, int capacity, String sinceDataETag) {
+    this(tableId, capacity, sinceDataETag, null);
+  }
+
+  /**
+   * @param tableId
+   * @param capacity      Maximum number of pages retrieved ahead of the consumer
+   * @param sinceDataETag Only retrieve rows changed or deleted since this dataETag,
+   *                      null to retrieve all rows
+   * @param startCursor   Cursor to resume retrieval from, null to start from the first row
+   */
+  public RowPageFetcher(String tableId, int capacity, String sinceDataETag, String startCursor) {
+    this(SyncWrapper.getInstance(), tableId, capacity, sinceDataETag, startCursor);
+  }
+
+  /**
+   * @param syncWrapper   SyncWrapper to retrieve rows through
+   * @param tableId
+   * @param capacity      Maximum number of pages retrieved ahead of the consumer
+   * @param sinceDataETag Only retrieve rows changed or deleted since this dataETag,
+   *                      null to retrieve all rows
+   * @param startCursor   Cursor to resume retrieval from, null to start from the first row
+   */
+  public RowPageFetcher(SyncWrapper syncWrapper, String tableId, int capacity,
+      String sinceDataETag, String startCursor) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+
+    this.syncWrapper = syncWrapper;
+    this.tableId = tableId;
+    this.sinceDataETag = sinceDataETag;
+    this.startCursor = startCursor;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.error = null;
+    this.ended = false;
+  }
+
+  /**
+   * Lets page size follow response time and size instead of the fixed fetch limit,
+   * to be called before start
+   *
+   * @param sizer null to use the fetch limit of SyncWrapper
+   */
+  public void setAdaptiveSizer(AdaptiveSizer sizer) {
+    if (this.thread != null) {
+      throw new IllegalStateException("RowPageFetcher has already been started");
+    }
+
+    this.sizer = sizer;
+  }
+
+  @Override
+  public void start() {
+    if (this.thread != null) {
+      throw new IllegalStateException("RowPageFetcher has already been started");
+    }
+
+    this.thread = new Thread(this, THREAD_NAME_PREFIX + tableId);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  @Override
+  public void run() {
+    try {
+      JSONObject rows;
+      String cursor = startCursor;
+      boolean hasMore;
+
+      do {
+        int fetchLimit = sizer != null ? sizer.getSize() : syncWrapper.getFetchLimit(tableId);
+        long startTime = System.nanoTime();
+
+        if (sinceDataETag == null) {
+          rows = syncWrapper.getRows(tableId, cursor, fetchLimit);
+        } else {
+          rows = syncWrapper.getRowsSince(tableId, sinceDataETag, cursor, fetchLimit);
+        }
+        if (rows == null) {
+          throw new IOException("Unable to retrieve rows of " + tableId);
+        }
+
+        recordPage(sizer, rows.getJSONArray(SyncClient.ROWS_STR_JSON), startTime);
+
+        cursor = rows.optString(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON);
+        hasMore = rows.getBoolean(SyncClient.HAS_MORE_RESULTS_JSON);
+        String dataETag = rows.isNull(SyncClient.DATA_ETAG_JSON) ?
+            null : rows.optString(SyncClient.DATA_ETAG_JSON, null);
+        queue.put(new Page(rows.getJSONArray(SyncClient.ROWS_STR_JSON), cursor, hasMore, dataETag));
+      } while (hasMore);
+    } catch (InterruptedException e) {
+      //consumer gave up, nothing left to do
+      return;
+    } catch (Throwable t) {
+      this.error = t;
+    }
+
+    try {
+      queue.put(END);
+    } catch (InterruptedException e) {
+      //consumer gave up
+    }
+  }
+
+  @Override
+  public Page take() throws IOException, JSONException, InterruptedException {
+    if (this.ended) {
+      return null;
+    }
+
+    Page page = queue.take();
+
+    if (page == END) {
+      this.ended = true;
+      rethrow(this.error);
+      return null;
+    }
+
+    return page;
+  }
+
+  @Override
+  public void close() {
+    this.ended = true;
+
+    if (this.thread != null) {
+      this.thread.interrupt();
+    }
+    queue.clear();
+  }
+
+  /**
+   * Creates an AdaptiveSizer for retrieving rows of tableId,
+   * starting from the fetch limit of SyncWrapper
+   *
+   * @param tableId
+   * @return
+   */
+  public static AdaptiveSizer newAdaptiveSizer(String tableId) {
+    return newAdaptiveSizer(SyncWrapper.getInstance(), tableId);
+  }
+
+  /**
+   * Creates an AdaptiveSizer for retrieving rows of tableId,
+   * starting from the fetch limit of syncWrapper
+   *
+   * @param syncWrapper
+   * @param tableId
+   * @return
+   */
+  public static AdaptiveSizer newAdaptiveSizer(SyncWrapper syncWrapper, String tableId) {
+    return new AdaptiveSizer(
+        syncWrapper.getFetchLimit(tableId),
+        MIN_ADAPTIVE_FETCH_LIMIT, MAX_ADAPTIVE_FETCH_LIMIT,
+        AdaptiveSizer.DEFAULT_TARGET_MILLIS, AdaptiveSizer.DEFAULT_MAX_BYTES
+    );
+  }
+
+  /**
+   * Records a retrieved page in sizer
+   *
+   * @param sizer     null to do nothing
+   * @param rows
+   * @param startTime System.nanoTime() when the request was sent
+   * @throws JSONException
+   */
+  static void recordPage(AdaptiveSizer sizer, JSONArray rows, long startTime)
+      throws JSONException {
+    if (sizer == null) {
+      return;
+    }
+
+    long millis = (System.nanoTime() - startTime) / 1000000;
+
+    //serializing the whole page would cost about as much as parsing it did
+    long sampleBytes = 0;
+    int sampled = 0;
+    int step = Math.max(rows.size() / SIZE_SAMPLE_ROWS, 1);
+    for (int i = 0; i < rows.size() && sampled < SIZE_SAMPLE_ROWS; i += step) {
+      sampleBytes += rows.getJSONObject(i).toString().length();
+      sampled++;
+    }
+    long bytes = sampled == 0 ? 0 : sampleBytes * rows.size() / sampled;
+
+    sizer.record(rows.size(), millis, bytes);
+  }
+
+  /**
+   * Rethrows a failure of a retrieving thread on the consumer's thread
+   *
+   * @param t null when there was no failure
+   * @throws IOException
+   * @throws JSONException
+   */
+  static void rethrow(Throwable t) throws IOException, JSONException {
+    if (t == null) {
+      return;
+    }
+    if (t instanceof IOException) {
+      throw (IOException) t;
+    }
+    if (t instanceof JSONException) {
+      throw (JSONException) t;
+    }
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    throw new IOException(t);
+  }
+}
@@ -0,0 +1,30 @@
+package org.opendatakit.suitcase.net;
+
+import org.apache.wink.json4j.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Hands over the rows of a table page by page, retrieving them in the background
+ *
+ * !!!ATTENTION!!! One consumer per source
+ */
+public interface RowPageSource {
+  void start() throws IOException, JSONException;
+
+  /**
+   * Waits for the next page.
+   * Failures on the retrieving threads are rethrown here.
+   *
+   * @return Next page, or null after the last page
+   * @throws IOException
+   * @throws JSONException
+   * @throws InterruptedException
+   */
+  RowPageFetcher.Page take() throws IOException, JSONException, InterruptedException;
+
+  /**
+   * Stops retrieval, to be called when the consumer is done or gives up
+   */
+  void close();
+}
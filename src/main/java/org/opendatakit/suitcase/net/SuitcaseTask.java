@@ -0,0 +1,294 @@
+package org.opendatakit.suitcase.net;
+
+import org.opendatakit.suitcase.ui.ProgressBarStatus;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base of the operations run by the GUI and the CLI, without any dependency on Swing.
+ *
+ * doInBackground runs on a shared pool of task threads. Property change events and finished()
+ * run through the Executor given to execute, in the order they were fired.
+ * The GUI passes an Executor that runs them on the event dispatch thread, see
+ * EventDispatchExecutor, while blockingExecute runs them on the task thread.
+ */
+public abstract class SuitcaseTask<T> {
+  public static final String STRING_PROPERTY = "string";
+  public static final String INDETERMINATE_PROPERTY = "indeterminate";
+  public static final String PROGRESS_PROPERTY = "progress";
+  public static final String DONE_PROPERTY = "done";
+  public static final int errorCode = 2;
+  public static final int okCode = 0;
+
+  private static final long PROGRESS_SAMPLE_MILLIS = 250;
+  private static final String SAMPLER_THREAD_NAME = "progress-sampler";
+  private static final String TASK_THREAD_NAME_PREFIX = "suitcase-task-";
+
+  //Idle threads are reused. Platform threads rather than virtual threads, which Java 7 doesn't
+  //have: there is 1 per running task and they mostly wait on fetchers and executors, so they
+  //cost little. SyncClients are lent by SyncWrapper's shared pool and aren't tied to a thread.
+  private static final ExecutorService TASK_EXECUTOR =
+      Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, TASK_THREAD_NAME_PREFIX + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  //Runs events on the thread that fired them
+  private static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  protected T result;
+  protected int returnCode;
+  //Counted by tasks as they go, published every PROGRESS_SAMPLE_MILLIS once sampling started
+  protected final ProgressTracker tracker;
+  private final FutureTask<T> future;
+  private final CountDownLatch doneLatch;
+  private final PropertyChangeSupport propertyChangeSupport;
+  //Events fired from the task thread and the sampler are delivered 1 at a time
+  private final Object eventLock;
+  private Executor eventExecutor;
+  private volatile boolean isFinishing;
+  private ScheduledExecutorService sampler;
+
+  public SuitcaseTask() {
+    this.result = null;
+    this.returnCode = okCode;
+    this.tracker = new ProgressTracker();
+    this.future = new FutureTask<>(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return doInBackground();
+      }
+    });
+    this.doneLatch = new CountDownLatch(1);
+    this.propertyChangeSupport = new PropertyChangeSupport(this);
+    this.eventLock = new Object();
+    this.eventExecutor = null;
+    this.isFinishing = false;
+  }
+
+  /**
+   * Does the work of the task on a task thread
+   *
+   * @return Result of the task, available to finished() through get()
+   * @throws Exception
+   */
+  protected abstract T doInBackground() throws Exception;
+
+  /**
+   * Called once doInBackground returned or threw, through the event Executor
+   */
+  protected abstract void finished();
+
+  /**
+   * Starts the task and returns right away
+   *
+   * @param eventExecutor Runs property change events and finished()
+   */
+  public void execute(Executor eventExecutor) {
+    synchronized (this.eventLock) {
+      if (this.eventExecutor != null) {
+        throw new IllegalStateException("Task has already been started");
+      }
+
+      this.eventExecutor = eventExecutor;
+    }
+
+    TASK_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        future.run();
+
+        dispatch(new Runnable() {
+          @Override
+          public void run() {
+            done();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Runs the task and waits until it has finished.
+   * Events and finished() run on the task thread, so no event dispatch thread is needed.
+   *
+   * @return Return code of the task
+   */
+  public int blockingExecute() {
+    execute(DIRECT_EXECUTOR);
+
+    boolean interrupted = false;
+    while (true) {
+      try {
+        this.doneLatch.await();
+        break;
+      } catch (InterruptedException e) {
+        //the task is not cancelled, so keep waiting for it
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    return this.returnCode;
+  }
+
+  /**
+   * @return True once finished() has run
+   */
+  public boolean isDone() {
+    return this.doneLatch.getCount() == 0;
+  }
+
+  /**
+   * @return Result of doInBackground
+   * @throws InterruptedException
+   * @throws ExecutionException   Wrapping what doInBackground threw
+   */
+  public final T get() throws InterruptedException, ExecutionException {
+    return this.future.get();
+  }
+
+  public void addPropertyChangeListener(PropertyChangeListener listener) {
+    this.propertyChangeSupport.addPropertyChangeListener(listener);
+  }
+
+  public void removePropertyChangeListener(PropertyChangeListener listener) {
+    this.propertyChangeSupport.removePropertyChangeListener(listener);
+  }
+
+  /**
+   * Starts publishing samples of tracker at a fixed rate until the task is done.
+   * Meant to be called from doInBackground, before the first stage of tracker.
+   */
+  protected synchronized void startSampling() {
+    if (this.sampler != null) {
+      return;
+    }
+
+    this.sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, SAMPLER_THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    this.sampler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        ProgressTracker.Sample sample = tracker.sample();
+
+        if (sample != null) {
+          Integer percent = sample.getPercent();
+          publish(new ProgressBarStatus(percent, sample.toString(), percent == null));
+        }
+      }
+    }, 0, PROGRESS_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void stopSampling() {
+    if (this.sampler != null) {
+      this.sampler.shutdownNow();
+      this.sampler = null;
+    }
+  }
+
+  private void publish(final ProgressBarStatus status) {
+    dispatch(new Runnable() {
+      @Override
+      public void run() {
+        if (!isFinishing) {
+          //samples published before the task ended must not replace its final status
+          setStatus(status);
+        }
+      }
+    });
+  }
+
+  private void done() {
+    try {
+      isFinishing = true;
+      stopSampling();
+      finished();
+    } finally {
+      notifyDone();
+      this.doneLatch.countDown();
+    }
+  }
+
+  protected void setStatus(ProgressBarStatus status) {
+    if (status.getProgress() != null) {
+      setProgress(status.getProgress());
+    }
+    setString(status.getString());
+    setIndeterminate(status.isIndeterminate());
+  }
+
+  protected void setProgress(int progress) {
+    if (progress < 0 || progress > 100) {
+      throw new IllegalArgumentException("progress must be from 0 to 100");
+    }
+
+    firePropertyChange(PROGRESS_PROPERTY, null, progress);
+  }
+
+  protected void setString(String string) {
+    firePropertyChange(STRING_PROPERTY, null, string);
+  }
+
+  protected void setIndeterminate(Boolean indeterminate) {
+    firePropertyChange(INDETERMINATE_PROPERTY, null, indeterminate);
+  }
+
+  protected void firePropertyChange(final String propertyName, final Object oldValue,
+      final Object newValue) {
+    dispatch(new Runnable() {
+      @Override
+      public void run() {
+        propertyChangeSupport.firePropertyChange(propertyName, oldValue, newValue);
+      }
+    });
+  }
+
+  private void notifyDone() {
+    firePropertyChange(DONE_PROPERTY, null, true);
+  }
+
+  private void dispatch(final Runnable event) {
+    this.eventExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (eventLock) {
+          event.run();
+        }
+      }
+    });
+  }
+}
@@ -5,6 +5,7 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.aggregate.odktables.rest.entity.Error.ErrorType;
 import org.opendatakit.aggregate.odktables.rest.entity.Row;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinitionResource;
@@ -17,24 +18,49 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.DataFormatException;
 
 import static org.opendatakit.sync.client.SyncClient.*;
 
 public class SyncWrapper {
   
-  private static final String FETCH_LIMIT = "1000";
+  public static final int DEFAULT_FETCH_LIMIT = 1000;
+  //Message of the IllegalArgumentException SyncClient throws when the dataETag changed
+  public static final String STALE_DATA_ETAG_MESSAGE = "The dataETag supplied is not correct";
+  //Error entity Aggregate answers with instead of a row that doesn't exist
+  private static final String ERROR_TYPE_JSON = "type";
+  private static final String NOT_FOUND_ERROR_TYPE = ErrorType.RESOURCE_NOT_FOUND.name();
   private static final int DELETE_TABLE_DEF_WAIT = 1000;
   private static final int PUSH_DONE_WAIT = 5000;
 
   private AggregateInfo aggInfo;
-  private SyncClient sc;
+  private String host;
+  //SyncClient holds per-client authentication state, so a client serves 1 request at a time.
+  //Clients are borrowed for a request and returned after, so there are only as many clients
+  //as requests ever in flight at once, however many threads come and go.
+  private final List<SyncClient> allClients;
+  private final Deque<SyncClient> idleClients;
+  //Rows per page when retrieving rows
+  private volatile int fetchLimit;
+  private final Map<String, Integer> tableFetchLimits;
   private boolean hasInit;
 
-  private SyncWrapper() {
+  /**
+   * Use getInstance, subclasses are only meant to stand in for a server in tests
+   */
+  protected SyncWrapper() {
     this.hasInit = false;
+    this.allClients = new ArrayList<>();
+    this.idleClients = new ArrayDeque<>();
+    this.fetchLimit = DEFAULT_FETCH_LIMIT;
+    this.tableFetchLimits = new ConcurrentHashMap<>();
   }
 
   private static class InstanceHolder {
@@ -48,7 +74,6 @@ public class SyncWrapper {
   public void init(AggregateInfo aggInfo) throws IOException, JSONException {
     if (!hasInit) {
       this.aggInfo = aggInfo;
-      this.sc = new SyncClient();
       
       String agg_url = aggInfo.getHostUrl();
       if (agg_url.endsWith("/")) {
@@ -56,9 +81,9 @@ public class SyncWrapper {
       }
       
       URL url = new URL(agg_url);
-      String host = url.getHost();
+      this.host = url.getHost();
 
-      this.sc.init(host, this.aggInfo.getUserName(), this.aggInfo.getPassword());
+      closeClients();
       
       updateTableList();
 
@@ -66,6 +91,40 @@ public class SyncWrapper {
     }
   }
 
+  /**
+   * Sets number of rows per page when retrieving rows of tables without a fetch limit of
+   * their own
+   *
+   * @param fetchLimit
+   */
+  public void setFetchLimit(int fetchLimit) {
+    if (fetchLimit < 1) {
+      throw new IllegalArgumentException("fetchLimit must be positive");
+    }
+
+    this.fetchLimit = fetchLimit;
+  }
+
+  /**
+   * Sets number of rows per page when retrieving rows of tableId
+   *
+   * @param tableId
+   * @param fetchLimit
+   */
+  public void setFetchLimit(String tableId, int fetchLimit) {
+    if (fetchLimit < 1) {
+      throw new IllegalArgumentException("fetchLimit must be positive");
+    }
+
+    this.tableFetchLimits.put(tableId, fetchLimit);
+  }
+
+  public int getFetchLimit(String tableId) {
+    Integer limit = this.tableFetchLimits.get(tableId);
+
+    return limit != null ? limit : this.fetchLimit;
+  }
+
   public void reset() {
     this.hasInit = false;
   }
@@ -74,9 +133,66 @@ public class SyncWrapper {
     return hasInit;
   }
 
+  /**
+   * Borrows an idle SyncClient, creating one with the current credentials when all are in use.
+   * It has to be given back with returnClient once the request is done.
+   *
+   * @return
+   */
+  private SyncClient borrowClient() {
+    synchronized (this.allClients) {
+      SyncClient client = this.idleClients.pollFirst();
+      if (client != null) {
+        return client;
+      }
+    }
+
+    SyncClient client = new SyncClient();
+    client.init(this.host, this.aggInfo.getUserName(), this.aggInfo.getPassword());
+
+    synchronized (this.allClients) {
+      this.allClients.add(client);
+    }
+
+    return client;
+  }
+
+  /**
+   * Gives back a client from borrowClient, closing it when it was made before the last init
+   *
+   * @param client
+   */
+  private void returnClient(SyncClient client) {
+    synchronized (this.allClients) {
+      if (this.allClients.contains(client)) {
+        this.idleClients.addFirst(client);
+        return;
+      }
+    }
+
+    client.close();
+  }
+
+  private void closeClients() {
+    synchronized (this.allClients) {
+      //clients in use are closed when they are returned
+      for (SyncClient client : this.idleClients) {
+        client.close();
+      }
+      this.idleClients.clear();
+      this.allClients.clear();
+    }
+  }
+
   public Set<String> updateTableList() throws IOException, JSONException {
-    JSONArray tables =
-        sc.getTables(aggInfo.getServerUrl(), aggInfo.getAppId()).getJSONArray(TABLES_JSON);
+    JSONArray tables;
+    SyncClient client = borrowClient();
+    try {
+      tables =
+          client.getTables(aggInfo.getServerUrl(), aggInfo.getAppId()).getJSONArray(TABLES_JSON);
+    } finally {
+      returnClient(client);
+    }
 
     for (int i = 0; i < tables.size(); i++) {
       String tableId = tables.getJSONObject(i).getString(TABLE_ID_JSON);
@@ -90,7 +206,12 @@ public class SyncWrapper {
   public void pushAllData(String dataPath, String version)
       throws JSONException, IOException, DataFormatException {
 //    System.out.println("pushAllData " + aggInfo.getServerUrl() + " " +aggInfo.getAppId() + " " + dataPath +" "+version);
-    sc.pushAllDataToUri(aggInfo.getServerUrl(), aggInfo.getAppId(), dataPath, version);
+    SyncClient client = borrowClient();
+    try {
+      client.pushAllDataToUri(aggInfo.getServerUrl(), aggInfo.getAppId(), dataPath, version);
+    } finally {
+      returnClient(client);
+    }
 
     try {
       Thread.sleep(PUSH_DONE_WAIT);
@@ -100,11 +221,22 @@ public class SyncWrapper {
   }
 
   public int deleteFile(String filename, String version) throws IOException {
-    return sc.deleteFile(aggInfo.getServerUrl(), aggInfo.getAppId(), filename, version);
+    SyncClient client = borrowClient();
+    try {
+      return client.deleteFile(aggInfo.getServerUrl(), aggInfo.getAppId(), filename, version);
+    } finally {
+      returnClient(client);
+    }
   }
 
   public JSONObject getManifestForAppLevelFiles(String version) throws IOException, JSONException {
-    return sc.getManifestForAppLevelFiles(aggInfo.getServerUrl(), aggInfo.getAppId(), version);
+    SyncClient client = borrowClient();
+    try {
+      return client.getManifestForAppLevelFiles(
+          aggInfo.getServerUrl(), aggInfo.getAppId(), version);
+    } finally {
+      returnClient(client);
+    }
   }
   
   public int createTable(String tableId, String csvFilePath) {
@@ -121,8 +253,9 @@ public class SyncWrapper {
       throw new IllegalArgumentException("createTable: CSV file must exist and be a valid file");
     }
 
+    SyncClient client = borrowClient();
     try {
-      sc.createTableWithCSV(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, null, csvFilePath);
+      client.createTableWithCSV(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, null, csvFilePath);
     } catch (FileNotFoundException fnfe) {
       fnfe.printStackTrace();
     } catch (DataFormatException dfe) {
@@ -131,6 +264,8 @@ public class SyncWrapper {
       ioe.printStackTrace();
     } catch (JSONException je) {
       je.printStackTrace();
+    } finally {
+      returnClient(client);
     }
 
     return 0;
@@ -148,15 +283,18 @@ public class SyncWrapper {
       throw new IllegalArgumentException("uploadPermissionCSV: CSV file must exist and be a valid file");
     }
 
+    SyncClient client = borrowClient();
     try {
       String agg_url = aggInfo.getHostUrl();
       if (agg_url.endsWith("/")) {
         agg_url = agg_url.substring(0, agg_url.length() - 1);
       }
-      rspCode = sc.uploadPermissionCSV(aggInfo.getHostUrl(), aggInfo.getAppId(), csvFilePath);
+      rspCode = client.uploadPermissionCSV(aggInfo.getHostUrl(), aggInfo.getAppId(), csvFilePath);
     } catch (IOException ioe) {
       ioe.printStackTrace();
-    } 
+    } finally {
+      returnClient(client);
+    }
 
     return rspCode;
   }
@@ -179,7 +317,13 @@ public class SyncWrapper {
     
     String schemaETag = aggInfo.getSchemaETag(tableId);
     
-    tableDef = sc.getTableDefinition(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag);
+    SyncClient client = borrowClient();
+    try {
+      tableDef = client.getTableDefinition(
+          aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag);
+    } finally {
+      returnClient(client);
+    }
    
     return tableDef;
   }
@@ -197,8 +341,14 @@ public class SyncWrapper {
       schemaETag = aggInfo.getSchemaETag(tableId);
     }
 
-    int result =
-        sc.deleteTableDefinition(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag);
+    int result;
+    SyncClient client = borrowClient();
+    try {
+      result = client.deleteTableDefinition(
+          aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag);
+    } finally {
+      returnClient(client);
+    }
 
     try {
       Thread.sleep(DELETE_TABLE_DEF_WAIT);
@@ -216,22 +366,146 @@ public class SyncWrapper {
     
     String schemaETag = verifyTableIdAndSchemaETag(tableId);
 
-    return sc.getManifestForRow(
-        aggInfo.getServerUrl(), aggInfo.getAppId(), tableId,
-        schemaETag, rowId);
+    SyncClient client = borrowClient();
+    try {
+      return client.getManifestForRow(
+          aggInfo.getServerUrl(), aggInfo.getAppId(), tableId,
+          schemaETag, rowId);
+    } finally {
+      returnClient(client);
+    }
+  }
+
+  /**
+   * Retrieves 1 row of tableId
+   *
+   * @param tableId
+   * @param rowId
+   * @return The row, null when tableId has no row with rowId
+   * @throws IOException When the server didn't answer with the row or that it doesn't exist
+   * @throws JSONException
+   */
+  public JSONObject getRow(String tableId, String rowId) throws IOException, JSONException {
+    if (!aggInfo.tableIdExists(tableId)) {
+      throw new IllegalArgumentException("tableId: " + tableId + " does not exist");
+    }
+
+    String schemaETag = verifyTableIdAndSchemaETag(tableId);
+
+    JSONObject row;
+    SyncClient client = borrowClient();
+    try {
+      row = client.getRow(
+          aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag, rowId
+      );
+    } catch (JSONException e) {
+      // not JSON, such as the error page of a proxy
+      throw new IOException("Unable to retrieve row " + rowId + " of " + tableId, e);
+    } finally {
+      returnClient(client);
+    }
+
+    if (row != null && row.has(ID_JSON)) {
+      return row;
+    }
+
+    // a missing row is answered with an error of its own type, any other answer is a failure
+    if (row != null && NOT_FOUND_ERROR_TYPE.equals(row.optString(ERROR_TYPE_JSON, null))) {
+      return null;
+    }
+    throw new IOException("Unable to retrieve row " + rowId + " of " + tableId + ": " + row);
   }
 
   public JSONObject getRows(String tableId, String cursor) throws IOException, JSONException {
+    return getRows(tableId, cursor, getFetchLimit(tableId));
+  }
+
+  public JSONObject getRows(String tableId, String cursor, int fetchLimit)
+      throws IOException, JSONException {
     if (!aggInfo.tableIdExists(tableId)) {
       throw new IllegalArgumentException("tableId: " + tableId + " does not exist");
     }
     
     String schemaETag = verifyTableIdAndSchemaETag(tableId);
 
-    return sc.getRows(
-        aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag,
-        cursor, FETCH_LIMIT
-    );
+    SyncClient client = borrowClient();
+    try {
+      return client.getRows(
+          aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag,
+          cursor, String.valueOf(fetchLimit)
+      );
+    } finally {
+      returnClient(client);
+    }
+  }
+
+  /**
+   * Retrieves rows changed or deleted since dataETag
+   *
+   * @param tableId
+   * @param dataETag
+   * @param cursor
+   * @return
+   * @throws IOException
+   * @throws JSONException
+   */
+  public JSONObject getRowsSince(String tableId, String dataETag, String cursor)
+      throws IOException, JSONException {
+    return getRowsSince(tableId, dataETag, cursor, getFetchLimit(tableId));
+  }
+
+  public JSONObject getRowsSince(String tableId, String dataETag, String cursor, int fetchLimit)
+      throws IOException, JSONException {
+    if (!aggInfo.tableIdExists(tableId)) {
+      throw new IllegalArgumentException("tableId: " + tableId + " does not exist");
+    }
+
+    String schemaETag = verifyTableIdAndSchemaETag(tableId);
+
+    SyncClient client = borrowClient();
+    try {
+      return client.getRowsSince(
+          aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag,
+          cursor, String.valueOf(fetchLimit), dataETag
+      );
+    } finally {
+      returnClient(client);
+    }
+  }
+
+  /**
+   * Retrieves rows with a savepoint timestamp between startTime and endTime
+   *
+   * @param tableId
+   * @param startTime In the format of SyncClient's time range queries
+   * @param endTime   In the format of SyncClient's time range queries
+   * @param cursor
+   * @return
+   * @throws IOException
+   * @throws JSONException
+   */
+  public JSONObject getRowsInSavepointRange(String tableId, String startTime, String endTime,
+      String cursor) throws IOException, JSONException {
+    return getRowsInSavepointRange(tableId, startTime, endTime, cursor, getFetchLimit(tableId));
+  }
+
+  public JSONObject getRowsInSavepointRange(String tableId, String startTime, String endTime,
+      String cursor, int fetchLimit) throws IOException, JSONException {
+    if (!aggInfo.tableIdExists(tableId)) {
+      throw new IllegalArgumentException("tableId: " + tableId + " does not exist");
+    }
+
+    String schemaETag = verifyTableIdAndSchemaETag(tableId);
+
+    SyncClient client = borrowClient();
+    try {
+      return client.queryRowsInTimeRangeWithSavepointTimestamp(
+          aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag,
+          startTime, endTime, cursor, String.valueOf(fetchLimit)
+      );
+    } finally {
+      returnClient(client);
+    }
   }
 
   public void getFileForRow(String tableId, String rowId, String savePath, String relPathOnServer)
@@ -242,9 +516,14 @@ public class SyncWrapper {
     
     String schemaETag = verifyTableIdAndSchemaETag(tableId);
 
-    sc.getFileForRow(
-        aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag,
-        rowId, false, savePath, relPathOnServer);
+    SyncClient client = borrowClient();
+    try {
+      client.getFileForRow(
+          aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag,
+          rowId, false, savePath, relPathOnServer);
+    } finally {
+      returnClient(client);
+    }
   }
 
   public void batchGetFilesForRow(String tableId, String rowId, String savePath, JSONObject files)
@@ -255,16 +534,22 @@ public class SyncWrapper {
 
     String schemaETag = verifyTableIdAndSchemaETag(tableId);
     
-    sc.batchGetFilesForRow(
-        aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag,
-        rowId, savePath, files, -1);
+    SyncClient client = borrowClient();
+    try {
+      client.batchGetFilesForRow(
+          aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag,
+          rowId, savePath, files, -1);
+    } finally {
+      returnClient(client);
+    }
   }
   
   public String getDataETag(String tableId, String tableSchemaETag) {
     String dataETag = null;
     
+    SyncClient client = borrowClient();
     try{
-      JSONObject res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, tableSchemaETag, null, null,
+      JSONObject res = client.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, tableSchemaETag, null, null,
           null);
       
       if (res.containsKey(DATA_ETAG_JSON) && !res.isNull(DATA_ETAG_JSON)) {
@@ -277,11 +562,25 @@ public class SyncWrapper {
       ioe.printStackTrace();
     } catch (JSONException je) {
       je.printStackTrace();
-    }  
+    } finally {
+      returnClient(client);
+    }
 
     return dataETag;
   }
-  
+
+  /**
+   * Uploads rows against the current dataETag of the table
+   *
+   * @param tableId
+   * @param rowArrayList
+   * @return
+   * @throws IllegalArgumentException With STALE_DATA_ETAG_MESSAGE when the dataETag changed
+   *                                  between retrieving and using it, the rows were not altered
+   * @throws ClientProtocolException
+   * @throws IOException
+   * @throws JSONException
+   */
   public RowOutcomeList alterRowsUsingSingleBatch(String tableId, ArrayList<Row> rowArrayList) 
       throws ClientProtocolException, IOException, JSONException {    
     if (tableId == null || tableId.length() == 0) {
@@ -290,9 +589,15 @@ public class SyncWrapper {
     
     String schemaETag = verifyTableIdAndSchemaETag(tableId);
     
-    String dataETag = getDataETag(tableId, schemaETag);
-    
-    return sc.alterRowsUsingSingleBatch(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag, dataETag, rowArrayList);
+    SyncClient client = borrowClient();
+    try {
+      // only the dataETag of the table is needed, not its rows
+      String dataETag = client.getTableDataETag(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId);
+
+      return client.alterRowsUsingSingleBatch(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, schemaETag, dataETag, rowArrayList);
+    } finally {
+      returnClient(client);
+    }
   }
   
   public void deleteRowsUsingBulkUpload(String tableId, ArrayList<Row> rowArrayList) 
@@ -305,8 +610,13 @@ public class SyncWrapper {
     
     String dataETag = getDataETag(tableId, schemaETag);
     
-    sc.deleteRowsUsingBulkUpload(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId, 
-        schemaETag, dataETag, rowArrayList, 0);
+    SyncClient client = borrowClient();
+    try {
+      client.deleteRowsUsingBulkUpload(aggInfo.getServerUrl(), aggInfo.getAppId(), tableId,
+          schemaETag, dataETag, rowArrayList, 0);
+    } finally {
+      returnClient(client);
+    }
     
   }
   
@@ -22,8 +22,11 @@ import org.opendatakit.sync.client.SyncClient;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-public class TableTask extends SuitcaseSwingWorker<Void> {
+public class TableTask extends SuitcaseTask<Void> {
   private static final String IN_PROGRESS_STRING = "Updating Table...";
+  private static final String RETRIEVING_ROW = "Retrieving rows to delete";
+  private static final String DELETING_ROW = "Deleting rows";
+  private static final String REFRESHING_TABLES = "Refreshing table list";
   private static final int PUSH_FINISH_WAIT = 5000;
 
   public final static String CREATE_OP = "CREATE";
@@ -55,6 +58,8 @@ public class TableTask extends SuitcaseSwingWorker<Void> {
   @Override
   protected Void doInBackground() throws IOException, JSONException, InterruptedException {
     setString(IN_PROGRESS_STRING);
+    startSampling();
+    tracker.startStage(IN_PROGRESS_STRING, ProgressTracker.TABLES, ProgressTracker.UNKNOWN);
 
     SyncWrapper syncWrapper = SyncWrapper.getInstance();
 
@@ -99,6 +104,7 @@ public class TableTask extends SuitcaseSwingWorker<Void> {
       ArrayList<Row> rowList = new ArrayList<Row>();
       ObjectMapper mapper = new ObjectMapper();
 
+      tracker.startStage(RETRIEVING_ROW, ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
       do {
         rows = wrapper.getRows(tableId, cursor);
 
@@ -115,10 +121,14 @@ public class TableTask extends SuitcaseSwingWorker<Void> {
           rowList.add(row);
         }
         cursor = rows.optString(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON);
+        tracker.addCount(rowResArrayList.size());
+        tracker.addPage();
       } while (rows.getBoolean(SyncClient.HAS_MORE_RESULTS_JSON));
       
       if (rowList.size() > 0) {
+        tracker.startStage(DELETING_ROW, ProgressTracker.ROWS, rowList.size());
         wrapper.deleteRowsUsingBulkUpload(tableId, rowList);
+        tracker.addCount(rowList.size());
       }
 
       break;
@@ -127,6 +137,7 @@ public class TableTask extends SuitcaseSwingWorker<Void> {
       break;
     }
 
+    tracker.startStage(REFRESHING_TABLES, ProgressTracker.TABLES, ProgressTracker.UNKNOWN);
     Thread.sleep(PUSH_FINISH_WAIT);
     syncWrapper.updateTableList();
 
@@ -144,7 +155,7 @@ public class TableTask extends SuitcaseSwingWorker<Void> {
       e.printStackTrace();
       DialogUtils.showError(GENERIC_ERR, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } catch (ExecutionException e) {
       Throwable cause = e.getCause();
 
@@ -162,7 +173,7 @@ public class TableTask extends SuitcaseSwingWorker<Void> {
       DialogUtils.showError(errMsg, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
       cause.printStackTrace();
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } finally {
       setIndeterminate(false);
     }
@@ -7,18 +7,20 @@ import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.util.concurrent.ExecutionException;
 import java.util.zip.DataFormatException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.opendatakit.suitcase.model.AggregateInfo;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
-import org.apache.wink.json4j.JSONObject;
 import org.opendatakit.aggregate.odktables.rest.RFC4180CsvReader;
 import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.Row;
@@ -31,15 +33,27 @@ import org.opendatakit.suitcase.ui.DialogUtils;
 import org.opendatakit.suitcase.ui.SuitcaseProgressBar;
 import org.opendatakit.suitcase.utils.FileUtils;
 
-public class UpdateTask extends SuitcaseSwingWorker<Void> {
+public class UpdateTask extends SuitcaseTask<Void> {
   private static final String IN_PROGRESS_STRING = "Updating...";
+  private static final String RETRIEVING_ROW_ETAG = "Retrieving rowETags";
+  private static final String REFRESHING_ROW_ETAG = "Retrieving changed rowETags";
+  private static final String UPLOADING = "Uploading rows";
+  private static final String REFRESHING_TABLES = "Refreshing table list";
   private static final int PUSH_FINISH_WAIT = 5000;
   public static final String FORCE_UPDATE_OP = "FORCE_UPDATE";
   public static final String UPDATE_OP = "UPDATE";
   public static final String NEW_OP = "NEW";
   public static final String DELETE_OP = "DELETE";
   public static final String OP_STR = "operation";
-  public static final int MAX_BATCH_SIZE = 500;
+  //Number of rows of the first batch, later batches are sized from how the server responds
+  public static final int INITIAL_BATCH_SIZE = 500;
+  public static final int DEFAULT_MIN_BATCH_SIZE = 10;
+  public static final int DEFAULT_MAX_BATCH_SIZE = 5000;
+  //Times rows without outcome are uploaded again
+  private static final int MAX_RESUBMITS = 3;
+  private static final long RESUBMIT_WAIT = 1000;
+  //Times a batch is sent again right away when another batch changed the dataETag first
+  private static final int MAX_STALE_DATA_ETAG_RETRIES = 10;
   public static final String DEFAULT_OUTCOME_FILE_NAME = "outcomeFile.txt";
 
   private AggregateInfo aggInfo;
@@ -48,6 +62,17 @@ public class UpdateTask extends SuitcaseSwingWorker<Void> {
   private String version;
   private String tableId;
   private boolean isGUI;
+  private int concurrentBatches;
+  private int minBatchSize;
+  private int maxBatchSize;
+  private long batchMillis;
+  private long batchBytes;
+  //Shared by the threads sending batches, guarded by itself
+  private AdaptiveSizer batchSizer;
+  //Latest known rowETag of each row, updated from row outcomes while batches are in flight
+  private final Map<String, String> rowETags;
+  //rowETags of the whole table kept between updates, updated from row outcomes as well
+  private RowETagIndex rowETagIndex;
 
   public UpdateTask(AggregateInfo aggInfo, String dataPath, String version, String tableId,
       String outcomePath, boolean isGUI) {
@@ -58,6 +83,13 @@ public class UpdateTask extends SuitcaseSwingWorker<Void> {
     this.version = version;
     this.tableId = tableId;
     this.isGUI = isGUI;
+    this.concurrentBatches = 1;
+    this.minBatchSize = DEFAULT_MIN_BATCH_SIZE;
+    this.maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    this.batchMillis = AdaptiveSizer.DEFAULT_TARGET_MILLIS;
+    this.batchBytes = AdaptiveSizer.DEFAULT_MAX_BYTES;
+    this.rowETags = new ConcurrentHashMap<>();
+    this.batchSizer = newBatchSizer();
 
     this.outcomePath = outcomePath;
     if (this.outcomePath == null || this.outcomePath.length() == 0) {
@@ -66,11 +98,59 @@ public class UpdateTask extends SuitcaseSwingWorker<Void> {
     }
   }
 
+  /**
+   * Sets number of batches uploaded at the same time, rows are divided among them by rowId
+   *
+   * @param concurrentBatches
+   */
+  public void setConcurrentBatches(int concurrentBatches) {
+    if (concurrentBatches < 1) {
+      throw new IllegalArgumentException("concurrentBatches must be positive");
+    }
+
+    this.concurrentBatches = concurrentBatches;
+  }
+
+  /**
+   * Sets the limits batches are sized within. Batches grow while the server answers within
+   * batchMillis, and shrink when it answers slower or a batch fails.
+   * Equal minBatchSize and maxBatchSize fix the number of rows per batch.
+   *
+   * @param minBatchSize Minimum number of rows per batch
+   * @param maxBatchSize Maximum number of rows per batch
+   * @param batchMillis  Time a batch should take
+   * @param batchBytes   Maximum estimated size of a batch
+   */
+  public void setBatchLimits(int minBatchSize, int maxBatchSize, long batchMillis,
+      long batchBytes) {
+    if (minBatchSize < 1 || maxBatchSize < minBatchSize) {
+      throw new IllegalArgumentException(
+          "Invalid batch size range: " + minBatchSize + " to " + maxBatchSize);
+    }
+
+    if (batchMillis < 1 || batchBytes < 1) {
+      throw new IllegalArgumentException("batchMillis and batchBytes must be positive");
+    }
+
+    this.minBatchSize = minBatchSize;
+    this.maxBatchSize = maxBatchSize;
+    this.batchMillis = batchMillis;
+    this.batchBytes = batchBytes;
+    this.batchSizer = newBatchSizer();
+  }
+
+  private AdaptiveSizer newBatchSizer() {
+    return new AdaptiveSizer(
+        INITIAL_BATCH_SIZE, this.minBatchSize, this.maxBatchSize, this.batchMillis, this.batchBytes
+    );
+  }
+
   @Override
   protected Void doInBackground() throws IOException, JSONException, InterruptedException {
     setString(IN_PROGRESS_STRING);
+    startSampling();
 
-    SyncWrapper syncWrapper = SyncWrapper.getInstance();
+    final SyncWrapper syncWrapper = SyncWrapper.getInstance();
 
     // We always want to update the table list as
     // things could have changed during the update
@@ -154,201 +234,324 @@ public class UpdateTask extends SuitcaseSwingWorker<Void> {
           "The number of columns in CSV does not contain the last set of metadata columns");
     }
     
-    // Get the current rows in the table
-    // in order to pull the rowETags
-    SortedMap<String, String> rowIdToRowETag = new TreeMap<>();
-    JSONObject rows;
-    String cursor = null;
-    JSONArray rowResArray = new JSONArray();
-    do {
-      rows = syncWrapper.getRows(tableId, cursor);
-      cursor = rows.optString(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON);
-      JSONArray rowsArray = rows.getJSONArray(SyncClient.ROWS_STR_JSON);
-      rowResArray.addAll(rowsArray);
-    } while (rows.getBoolean(SyncClient.HAS_MORE_RESULTS_JSON));
-
-    setupRowIdToRowETagMap(rowIdToRowETag, rowResArray);
-
-    String[] lineIn;
-    ArrayList<Row> newRowArrayList = new ArrayList<Row>();
-    ArrayList<Row> deletedRowArrayList = new ArrayList<Row>();
-    ArrayList<Row> updatedRowArrayList = new ArrayList<Row>();
-    ArrayList<Row> forceUpdatedRowArrayList = new ArrayList<Row>();
-    while ((lineIn = csvReader.readNext()) != null) {
-
-      operation = lineIn[opIdx];
-      rowId = lineIn[rowIdIdx];
-      rowFormId = lineIn[rowFormIdIdx];
-      rowLocale = lineIn[rowLocaleIdx];
-      rowSavepointType = lineIn[rowSavepointTypeIdx];
-      rowSavepointTimestamp = lineIn[rowSavepointTimestampIdx];
-      rowSavepointCreator = lineIn[rowSavepointCreatorIdx];
-      rowETag = lineIn[rowETagIdx];
-      rowFilterType = lineIn[rowFilterTypeIdx];
-      rowFilterValue = lineIn[rowFilterValueIdx];
-
-      ArrayList<DataKeyValue> dkvl = new ArrayList<DataKeyValue>();
-      for (int i = 7; i < lineIn.length - 3; i++) {
-        DataKeyValue dkv = new DataKeyValue(firstLine[i], lineIn[i]);
-        dkvl.add(dkv);
+    ConcurrentBatchSender sender = null;
+    rowETagIndex = null;
+    batchSizer = newBatchSizer();
+    try {
+      String schemaETag = aggInfo.getSchemaETag(tableId);
+      if (schemaETag == null) {
+        throw new IllegalArgumentException("tableId: " + tableId + " does not exist");
       }
-
-      String opToCompare = operation.toUpperCase();
-
-      String existingRowETag = rowIdToRowETag.get(rowId);
-
-      switch (opToCompare) {
-      // Figure out what rows need to be force updated
-      case FORCE_UPDATE_OP:
-        Row forceUpdatedRow = Row.forUpdate(rowId, rowETag, rowFormId, rowLocale, rowSavepointType,
-            rowSavepointTimestamp, rowSavepointCreator,
-            RowFilterScope.asRowFilter(rowFilterType, rowFilterValue), dkvl);
-        if (existingRowETag != null) {
-          forceUpdatedRow.setRowETag(existingRowETag);
-        }
-        forceUpdatedRowArrayList.add(forceUpdatedRow);
-        break;
-
-      // Figure out what rows need to be updated
-      case UPDATE_OP:
-        Row updatedRow = Row.forUpdate(rowId, rowETag, rowFormId, rowLocale, rowSavepointType,
-            rowSavepointTimestamp, rowSavepointCreator,
-            RowFilterScope.asRowFilter(rowFilterType, rowFilterValue), dkvl);
-        if (existingRowETag != null) {
-          updatedRow.setRowETag(existingRowETag);
+      rowETagIndex = new RowETagIndex(
+          FileUtils.getRowETagIndexPath(aggInfo, tableId), schemaETag
+      );
+      retrieveRowETags(syncWrapper, readRowIds(f, rowIdIdx));
+
+      // Rows are sent in batches while the csv is read, without any getting ahead of an earlier
+      // operation on the same rowId
+      sender = new ConcurrentBatchSender(new RowBatcher.BatchSender() {
+        @Override
+        public void send(String operation, int partition, ArrayList<Row> rows)
+            throws IOException, JSONException {
+          sendBatch(syncWrapper, operation, rows);
         }
-        updatedRowArrayList.add(updatedRow);
-        break;
-
-      // Figure out what rows need to be added
-      case NEW_OP:
-        Row insertedRow = Row.forInsert(rowId, rowFormId, rowLocale, rowSavepointType,
-            rowSavepointTimestamp, rowSavepointCreator,
-            RowFilterScope.asRowFilter(rowFilterType, rowFilterValue), dkvl);
-        if (existingRowETag != null) {
-          insertedRow.setRowETag(existingRowETag);
+      }, concurrentBatches);
+      RowBatcher batcher = new RowBatcher(sender, INITIAL_BATCH_SIZE, concurrentBatches,
+          Arrays.asList(NEW_OP, DELETE_OP, UPDATE_OP, FORCE_UPDATE_OP));
+      batcher.setAdaptiveSizer(batchSizer);
+      batcher.setMaxBytes(batchBytes);
+
+      String[] lineIn;
+      tracker.startStage(UPLOADING, ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
+      while ((lineIn = csvReader.readNext()) != null) {
+        operation = lineIn[opIdx];
+        rowId = lineIn[rowIdIdx];
+        rowFormId = lineIn[rowFormIdIdx];
+        rowLocale = lineIn[rowLocaleIdx];
+        rowSavepointType = lineIn[rowSavepointTypeIdx];
+        rowSavepointTimestamp = lineIn[rowSavepointTimestampIdx];
+        rowSavepointCreator = lineIn[rowSavepointCreatorIdx];
+        rowETag = lineIn[rowETagIdx];
+        rowFilterType = lineIn[rowFilterTypeIdx];
+        rowFilterValue = lineIn[rowFilterValueIdx];
+
+        ArrayList<DataKeyValue> dkvl = new ArrayList<DataKeyValue>();
+        for (int i = 7; i < lineIn.length - 3; i++) {
+          DataKeyValue dkv = new DataKeyValue(firstLine[i], lineIn[i]);
+          dkvl.add(dkv);
         }
-        newRowArrayList.add(insertedRow);
-        break;
-
-      // Figure out what rows need to be deleted
-      case DELETE_OP:
-        Row deletedRow = Row.forUpdate(rowId, rowETag, rowFormId, rowLocale, rowSavepointType,
-            rowSavepointTimestamp, rowSavepointCreator,
-            RowFilterScope.asRowFilter(rowFilterType, rowFilterValue), dkvl);
-        if (existingRowETag != null) {
-          deletedRow.setRowETag(existingRowETag);
+
+        String opToCompare = operation.toUpperCase();
+
+        Row row;
+        switch (opToCompare) {
+        case NEW_OP:
+          row = Row.forInsert(rowId, rowFormId, rowLocale, rowSavepointType,
+              rowSavepointTimestamp, rowSavepointCreator,
+              RowFilterScope.asRowFilter(rowFilterType, rowFilterValue), dkvl);
+          break;
+
+        case FORCE_UPDATE_OP:
+        case UPDATE_OP:
+        case DELETE_OP:
+          row = Row.forUpdate(rowId, rowETag, rowFormId, rowLocale, rowSavepointType,
+              rowSavepointTimestamp, rowSavepointCreator,
+              RowFilterScope.asRowFilter(rowFilterType, rowFilterValue), dkvl);
+          if (opToCompare.equals(DELETE_OP)) {
+            row.setDeleted(true);
+          }
+          break;
+
+        default:
+          throw new IllegalArgumentException("Operation " + operation + " is not supported");
         }
-        deletedRow.setDeleted(true);
-        deletedRowArrayList.add(deletedRow);
-        break;
 
-      default:
-        throw new IllegalArgumentException("Operation " + operation + " is not supported");
+        batcher.add(opToCompare, row);
       }
-    }
 
-    // Get the schemaETag
-    // Get the dataETag
-    // Finally bulk upload the rows with the different collections
-    String schemaETag = null;
-    if (aggInfo.tableIdExists(tableId)) {
-      schemaETag = aggInfo.getSchemaETag(tableId);
+      batcher.flush();
+      sender.finish();
+    } finally {
+      if (sender != null) {
+        sender.close();
+      }
+      csvReader.close();
+      if (rowETagIndex != null) {
+        rowETagIndex.close();
+      }
     }
 
-    // Used to handle row outcomes
-    ArrayList<RowOutcome> outcomeList = null;
-    
-    // Handle the new rows
-    String dataETag = null;
-    if (newRowArrayList.size() > 0) {
-      dataETag = syncWrapper.getDataETag(tableId, schemaETag);
-      outcomeList = handleRowBatches(syncWrapper, dataPath, tableId, newRowArrayList);
-      if (outcomeList != null && outcomeList.size() > 0) {
-        handleRowOutcomeList(outcomeList);
+    tracker.startStage(REFRESHING_TABLES, ProgressTracker.TABLES, ProgressTracker.UNKNOWN);
+    Thread.sleep(PUSH_FINISH_WAIT);
+    syncWrapper.updateTableList();
+
+    return null;
+  }
+
+  /**
+   * Puts the current rowETag of each row of rowIds in rowETags.
+   * A complete rowETagIndex only retrieves the rows changed since the last update, otherwise
+   * the rowETags are looked up, completing rowETagIndex if the whole table is scanned.
+   *
+   * @param syncWrapper
+   * @param rowIds
+   * @throws IOException
+   * @throws JSONException
+   */
+  private void retrieveRowETags(SyncWrapper syncWrapper, Set<String> rowIds)
+      throws IOException, JSONException {
+    if (rowETagIndex.getDataETag() != null) {
+      tracker.startStage(REFRESHING_ROW_ETAG, ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
+      rowETagIndex.refresh(syncWrapper, tableId, tracker);
+
+      for (String rowId : rowIds) {
+        String rowETag = rowETagIndex.get(rowId);
+        if (rowETag != null) {
+          rowETags.put(rowId, rowETag);
+        }
       }
+    } else {
+      tracker.startStage(RETRIEVING_ROW_ETAG, ProgressTracker.ROWS, rowIds.size());
+      RowETagLookup lookup = new RowETagLookup(
+          syncWrapper, tableId, tracker, RowETagLookup.DEFAULT_LOOKUP_THREADS
+      );
+      lookup.setIndex(rowETagIndex);
+      lookup.lookup(rowIds, rowETags);
     }
+  }
 
-    // Handle the deleted rows
-    if (deletedRowArrayList.size() > 0) {
-      dataETag = syncWrapper.getDataETag(tableId, schemaETag);
-      outcomeList = handleRowBatches(syncWrapper, dataPath, tableId, deletedRowArrayList);
-      if (outcomeList != null && outcomeList.size() > 0) {
-        handleRowOutcomeList(outcomeList);
+  /**
+   * Uploads 1 batch of rows, counting them in tracker and recording their outcomes.
+   * Called for multiple batches at the same time, but never for 2 batches with a rowId in common.
+   * Force updated rows that fail are uploaded once more.
+   */
+  protected void sendBatch(SyncWrapper syncWrapper, String operation, ArrayList<Row> rows)
+      throws ClientProtocolException, IOException, JSONException {
+    for (Row row : rows) {
+      // an earlier batch may have changed the row since the csv was read
+      String rowETag = rowETags.get(row.getRowId());
+      if (rowETag != null) {
+        row.setRowETag(rowETag);
       }
     }
 
-    // Handle the updated rows
-    if (updatedRowArrayList.size() > 0) {
-      dataETag = syncWrapper.getDataETag(tableId, schemaETag);
-      outcomeList = handleRowBatches(syncWrapper, dataPath, tableId, updatedRowArrayList);
-      if (outcomeList != null && outcomeList.size() > 0) {
-        handleRowOutcomeList(outcomeList);
+    ArrayList<RowOutcome> outcomes = alterRows(syncWrapper, rows);
+
+    if (operation.equals(FORCE_UPDATE_OP)) {
+      // Re-run processing on any row that is not successful
+      ArrayList<RowOutcome> succeeded = new ArrayList<RowOutcome>();
+      ArrayList<Row> failed = new ArrayList<Row>();
+      for (RowOutcome outcome : outcomes) {
+        if (outcome.getOutcome() == OutcomeType.SUCCESS) {
+          succeeded.add(outcome);
+        } else {
+          failed.add(outcome);
+        }
+      }
+
+      if (failed.size() > 0) {
+        succeeded.addAll(alterRows(syncWrapper, failed));
+        outcomes = succeeded;
       }
     }
 
-    // Handle the force-updated rows
-    if (forceUpdatedRowArrayList.size() > 0) {
-      dataETag = syncWrapper.getDataETag(tableId, schemaETag);
-      outcomeList = handleRowBatches(syncWrapper, dataPath, tableId, forceUpdatedRowArrayList);
-      if (outcomeList != null && outcomeList.size() > 0) {
-        // Re-run processing on any row that is not successful
-        ArrayList<Row> forceUpdatedRowArrayList2 = new ArrayList<Row>();
-        for (int i = 0; i < outcomeList.size(); i++) {
-          RowOutcome outcome = outcomeList.get(i);
-          if (outcome.getOutcome() != OutcomeType.SUCCESS) {
-            forceUpdatedRowArrayList2.add(outcome);
-          }
+    for (RowOutcome outcome : outcomes) {
+      if (outcome.getOutcome() == OutcomeType.SUCCESS && outcome.getRowETag() != null) {
+        rowETags.put(outcome.getRowId(), outcome.getRowETag());
+
+        if (rowETagIndex == null) {
+          continue;
         }
-        
-        if (forceUpdatedRowArrayList2.size() > 0) {
-          dataETag = syncWrapper.getDataETag(tableId, schemaETag);
-          outcomeList = handleRowBatches(syncWrapper, dataPath, tableId, forceUpdatedRowArrayList2);
+        if (outcome.isDeleted()) {
+          rowETagIndex.remove(outcome.getRowId());
+        } else {
+          rowETagIndex.put(outcome.getRowId(), outcome.getRowETag());
         }
-
-        // Then handleRowOutcomeList
-        handleRowOutcomeList(outcomeList);
       }
     }
+    if (rowETagIndex != null) {
+      rowETagIndex.flush();
+    }
 
-    Thread.sleep(PUSH_FINISH_WAIT);
-    syncWrapper.updateTableList();
+    tracker.addCount(rows.size());
+    tracker.addPage();
 
-    return null;
+    if (outcomes.size() > 0) {
+      handleRowOutcomeList(outcomes);
+    }
   }
 
-  protected ArrayList<RowOutcome> handleRowBatches(SyncWrapper syncWrapper, String dataPath, String tableId,
-      ArrayList<Row> rows) throws ClientProtocolException, IOException, JSONException {
-
-    ArrayList<Row> batchedRows = new ArrayList<Row>();
-    RowOutcomeList rowOutcomeList = null;
+  /**
+   * Uploads rows in batches of the current batch size, then uploads again the rows that got no
+   * outcome up to MAX_RESUBMITS times.
+   * Rows get no outcome when the request fails, or when other batches kept changing the
+   * dataETag of the table, see alterBatch.
+   *
+   * @return Outcome of each row, UNKNOWN for rows that never got one
+   */
+  private ArrayList<RowOutcome> alterRows(SyncWrapper syncWrapper, ArrayList<Row> rows)
+      throws ClientProtocolException, IOException, JSONException {
     ArrayList<RowOutcome> outcomes = new ArrayList<RowOutcome>();
-    int i = 0;
-    while (i < rows.size()) {
-      batchedRows.add(rows.get(i));
-
-      if (batchedRows.size() > MAX_BATCH_SIZE) {
-        rowOutcomeList = syncWrapper.alterRowsUsingSingleBatch(tableId, batchedRows);
-        if (rowOutcomeList != null) {
-          outcomes.addAll(rowOutcomeList.getRows());
+    ArrayList<Row> pending = rows;
+
+    for (int attempt = 0; attempt <= MAX_RESUBMITS && pending.size() > 0; attempt++) {
+      if (attempt > 0) {
+        waitBeforeResubmit(attempt);
+      }
+
+      ArrayList<Row> unanswered = new ArrayList<Row>();
+      // a batch that failed shrank the batch size, so its rows are sent again in smaller batches
+      int batchSize = getBatchSize();
+      for (int start = 0; start < pending.size(); start += batchSize) {
+        ArrayList<Row> batch = new ArrayList<Row>(
+            pending.subList(start, Math.min(start + batchSize, pending.size()))
+        );
+
+        long startTime = System.nanoTime();
+        RowOutcomeList rowOutcomeList = alterBatch(syncWrapper, batch);
+        long millis = (System.nanoTime() - startTime) / 1000000;
+
+        if (rowOutcomeList == null) {
+          // not the server struggling, so the batch size stays
+          unanswered.addAll(batch);
+          continue;
+        }
+
+        Set<String> answeredRowIds = new HashSet<String>();
+        for (RowOutcome outcome : rowOutcomeList.getRows()) {
+          outcomes.add(outcome);
+          answeredRowIds.add(outcome.getRowId());
         }
 
-        batchedRows = new ArrayList<Row>();
+        int answered = 0;
+        for (Row row : batch) {
+          if (answeredRowIds.contains(row.getRowId())) {
+            answered++;
+          } else {
+            unanswered.add(row);
+          }
+        }
+
+        // SyncClient hides timeouts and server errors behind a missing outcome
+        recordBatch(batch, millis, answered == batch.size());
+      }
+      pending = unanswered;
+    }
+
+    for (Row row : pending) {
+      RowOutcome outcome = new RowOutcome(row);
+      outcome.setOutcome(OutcomeType.UNKNOWN);
+      outcomes.add(outcome);
+    }
+
+    return outcomes;
+  }
+
+  /**
+   * Uploads 1 batch. Batches sent at the same time race to change the dataETag of the table, a
+   * batch that loses is rejected before any of its rows is altered and is sent again right away
+   * with the new dataETag, up to MAX_STALE_DATA_ETAG_RETRIES times.
+   *
+   * @return Outcomes of the batch, null when the dataETag changed on every try
+   */
+  private RowOutcomeList alterBatch(SyncWrapper syncWrapper, ArrayList<Row> batch)
+      throws ClientProtocolException, IOException, JSONException {
+    for (int retry = 0; ; retry++) {
+      try {
+        RowOutcomeList rowOutcomeList = syncWrapper.alterRowsUsingSingleBatch(tableId, batch);
+        // no outcomes at all, the request failed
+        return rowOutcomeList != null ?
+            rowOutcomeList : new RowOutcomeList(new ArrayList<RowOutcome>(), null);
+      } catch (IllegalArgumentException e) {
+        if (!SyncWrapper.STALE_DATA_ETAG_MESSAGE.equals(e.getMessage())) {
+          throw e;
+        }
+        if (retry == MAX_STALE_DATA_ETAG_RETRIES) {
+          return null;
+        }
       }
-      i++;
+    }
+  }
+
+  private int getBatchSize() {
+    synchronized (batchSizer) {
+      return batchSizer.getSize();
+    }
+  }
+
+  /**
+   * Adjusts the batch size to how the server handled batch
+   *
+   * @param batch
+   * @param millis    How long the request took
+   * @param succeeded False when rows got no outcome
+   */
+  private void recordBatch(ArrayList<Row> batch, long millis, boolean succeeded) {
+    long bytes = 0;
+    for (Row row : batch) {
+      bytes += RowBatcher.estimateBytes(row);
     }
 
-    if (batchedRows.size() > 0) {
-      rowOutcomeList = syncWrapper.alterRowsUsingSingleBatch(tableId, batchedRows);
-      if (rowOutcomeList != null) {
-        outcomes.addAll(rowOutcomeList.getRows());
+    synchronized (batchSizer) {
+      if (succeeded) {
+        batchSizer.record(batch.size(), millis, bytes);
+      } else {
+        batchSizer.recordFailure();
       }
+    }
+  }
 
+  private static void waitBeforeResubmit(int attempt) throws InterruptedIOException {
+    try {
+      Thread.sleep(RESUBMIT_WAIT * attempt);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to upload rows again");
     }
-    return outcomes;
   }
 
-  public void handleRowOutcomeList(ArrayList<RowOutcome> outcomes) throws IOException {
+  public synchronized void handleRowOutcomeList(ArrayList<RowOutcome> outcomes)
+      throws IOException {
     FileWriter fw = null;
 
     try {
@@ -380,22 +583,31 @@ public class UpdateTask extends SuitcaseSwingWorker<Void> {
     }
   }
 
-  public void setupRowIdToRowETagMap(SortedMap<String, String> idToETagMap, JSONArray rowsArray) {
+  /**
+   * @param csvFile
+   * @param rowIdIdx
+   * @return Every rowId in csvFile, without the header
+   * @throws IOException
+   */
+  private static Set<String> readRowIds(File csvFile, int rowIdIdx) throws IOException {
+    Set<String> rowIds = new HashSet<String>();
+    RFC4180CsvReader csvReader = new RFC4180CsvReader(
+        new InputStreamReader(new FileInputStream(csvFile))
+    );
+
     try {
-      for (int i = 0; i < rowsArray.size(); i++) {
-        JSONObject rowObj = rowsArray.getJSONObject(i);
-        String rowId = rowObj.has(SyncClient.ID_JSON) && !rowObj.isNull(SyncClient.ID_JSON) ? rowObj
-            .getString(SyncClient.ID_JSON) : null;
-        String rowETag = rowObj.has(SyncClient.ROW_ETAG_JSON)
-            && !rowObj.isNull(SyncClient.ROW_ETAG_JSON) ? rowObj
-            .getString(SyncClient.ROW_ETAG_JSON) : null;
-        if (rowId != null && rowETag != null) {
-          idToETagMap.put(rowId, rowETag);
+      // skip the header
+      String[] lineIn = csvReader.readNext();
+      while (lineIn != null && (lineIn = csvReader.readNext()) != null) {
+        if (lineIn.length > rowIdIdx && lineIn[rowIdIdx] != null) {
+          rowIds.add(lineIn[rowIdIdx]);
         }
       }
-    } catch (JSONException e) {
-      e.printStackTrace();
+    } finally {
+      csvReader.close();
     }
+
+    return rowIds;
   }
 
   @Override
@@ -408,7 +620,7 @@ public class UpdateTask extends SuitcaseSwingWorker<Void> {
       e.printStackTrace();
       DialogUtils.showError(GENERIC_ERR, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } catch (ExecutionException e) {
       Throwable cause = e.getCause();
 
@@ -426,7 +638,7 @@ public class UpdateTask extends SuitcaseSwingWorker<Void> {
       DialogUtils.showError(errMsg, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
       cause.printStackTrace();
-      returnCode = SuitcaseSwingWorker.errorCode; 
+      returnCode = SuitcaseTask.errorCode; 
     } finally {
       setIndeterminate(false);
     }
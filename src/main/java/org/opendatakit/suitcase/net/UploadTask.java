@@ -11,7 +11,7 @@ import java.util.zip.DataFormatException;
 
 import static org.opendatakit.suitcase.ui.MessageString.*;
 
-public class UploadTask extends SuitcaseSwingWorker<Void> {
+public class UploadTask extends SuitcaseTask<Void> {
   private static final String IN_PROGRESS_STRING = "Uploading...";
   private static final int PUSH_FINISH_WAIT = 5000;
 
@@ -53,7 +53,7 @@ public class UploadTask extends SuitcaseSwingWorker<Void> {
       e.printStackTrace();
       DialogUtils.showError(GENERIC_ERR, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
-      returnCode = SuitcaseSwingWorker.errorCode;
+      returnCode = SuitcaseTask.errorCode;
     } catch (ExecutionException e) {
       Throwable cause = e.getCause();
 
@@ -71,7 +71,7 @@ public class UploadTask extends SuitcaseSwingWorker<Void> {
       DialogUtils.showError(errMsg, isGUI);
       setString(SuitcaseProgressBar.PB_ERROR);
       cause.printStackTrace();
-      returnCode = SuitcaseSwingWorker.errorCode;  
+      returnCode = SuitcaseTask.errorCode;  
     } finally {
       setIndeterminate(false);
     }
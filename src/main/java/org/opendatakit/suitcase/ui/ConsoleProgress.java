@@ -0,0 +1,85 @@
+package org.opendatakit.suitcase.ui;
+
+import org.opendatakit.suitcase.net.ProgressTracker;
+import org.opendatakit.suitcase.net.SuitcaseTask;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.PrintStream;
+
+/**
+ * Prints the status of a SuitcaseTask for the CLI.
+ *
+ * Events can come from multiple threads, they are printed 1 at a time.
+ *
+ * On a terminal the status is kept on 1 line that is rewritten in place.
+ * Otherwise, such as when output is redirected to a file, only the first status of each stage
+ * is printed, so logs are not flooded with samples.
+ */
+public class ConsoleProgress implements PropertyChangeListener {
+  private final PrintStream out;
+  private final boolean interactive;
+  //length of the line being rewritten, 0 when there is none
+  private int lineLength;
+  private String lastStage;
+
+  public ConsoleProgress(PrintStream out) {
+    this(out, System.console() != null);
+  }
+
+  /**
+   * @param out
+   * @param interactive True to rewrite 1 line in place
+   */
+  public ConsoleProgress(PrintStream out, boolean interactive) {
+    this.out = out;
+    this.interactive = interactive;
+    this.lineLength = 0;
+    this.lastStage = null;
+  }
+
+  @Override
+  public synchronized void propertyChange(PropertyChangeEvent evt) {
+    if (evt.getNewValue() == null) {
+      return;
+    }
+
+    switch (evt.getPropertyName()) {
+    case SuitcaseTask.STRING_PROPERTY:
+      print((String) evt.getNewValue());
+      break;
+    case SuitcaseTask.DONE_PROPERTY:
+      endLine();
+      break;
+    }
+  }
+
+  private void print(String status) {
+    if (!this.interactive) {
+      String stage = ProgressTracker.getStage(status);
+
+      if (!stage.equals(this.lastStage)) {
+        this.out.println(status);
+        this.lastStage = stage;
+      }
+      return;
+    }
+
+    StringBuilder line = new StringBuilder("\r").append(status);
+    //blank out the rest of a longer previous line
+    for (int i = status.length(); i < this.lineLength; i++) {
+      line.append(' ');
+    }
+
+    this.out.print(line);
+    this.out.flush();
+    this.lineLength = status.length();
+  }
+
+  private void endLine() {
+    if (this.lineLength > 0) {
+      this.out.println();
+      this.lineLength = 0;
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package org.opendatakit.suitcase.ui;
+
+import javax.swing.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs commands on the event dispatch thread, for SuitcaseTasks started by the GUI.
+ * Commands from other threads are queued in order, commands from the event dispatch thread
+ * itself run right away.
+ */
+public class EventDispatchExecutor implements Executor {
+  public static final EventDispatchExecutor INSTANCE = new EventDispatchExecutor();
+
+  private EventDispatchExecutor() {
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    if (SwingUtilities.isEventDispatchThread()) {
+      command.run();
+    } else {
+      SwingUtilities.invokeLater(command);
+    }
+  }
+}
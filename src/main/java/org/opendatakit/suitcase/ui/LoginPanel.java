@@ -2,7 +2,7 @@ package org.opendatakit.suitcase.ui;
 
 import org.opendatakit.suitcase.model.AggregateInfo;
 import org.opendatakit.suitcase.net.LoginTask;
-import org.opendatakit.suitcase.net.SuitcaseSwingWorker;
+import org.opendatakit.suitcase.net.SuitcaseTask;
 import org.opendatakit.suitcase.net.SyncWrapper;
 import org.opendatakit.suitcase.utils.FieldsValidatorUtils;
 
@@ -49,7 +49,7 @@ public class LoginPanel extends JPanel implements PropertyChangeListener {
           LoginTask worker = new LoginTask(aggInfo, true);
           worker.addPropertyChangeListener(parent.getProgressBar());
           worker.addPropertyChangeListener(LoginPanel.this);
-          worker.execute();
+          worker.execute(EventDispatchExecutor.INSTANCE);
         } catch (MalformedURLException e1) {
           DialogUtils.showError(MessageString.BAD_URL, true);
           e1.printStackTrace();
@@ -140,7 +140,7 @@ public class LoginPanel extends JPanel implements PropertyChangeListener {
 
   @Override
   public void propertyChange(PropertyChangeEvent evt) {
-    if (evt.getNewValue() != null && evt.getPropertyName().equals(SuitcaseSwingWorker.DONE_PROPERTY)) {
+    if (evt.getNewValue() != null && evt.getPropertyName().equals(SuitcaseTask.DONE_PROPERTY)) {
       // restore buttons
       sLoginButton.setText(LOGIN_LABEL);
       sLoginButton.setEnabled(true);
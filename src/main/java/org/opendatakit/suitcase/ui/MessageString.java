@@ -23,6 +23,8 @@ public class MessageString {
   public static final String IO_WRITE_ERR = UNABLE_PREFIX + "write file.";
   public static final String IO_READ_ERR = UNABLE_PREFIX + "read file.";
   public static final String HTTP_IO_ERROR = UNABLE_PREFIX + "reach " + AGGREGATE + " server.";
+  public static final String ATTACHMENT_DOWNLOAD_ERR = UNABLE_PREFIX + "download some attachments.";
+  public static final String DOWNLOAD_INCOMPLETE = "Download incomplete, %d attachments missing.";
 
   // ... does not exist error
   private static final String NONEXISTENCE_SUFFIX = " does not exist";
@@ -4,7 +4,7 @@ import org.opendatakit.suitcase.model.CsvConfig;
 import org.opendatakit.suitcase.model.ODKCsv;
 import org.opendatakit.suitcase.net.AttachmentManager;
 import org.opendatakit.suitcase.net.DownloadTask;
-import org.opendatakit.suitcase.net.SuitcaseSwingWorker;
+import org.opendatakit.suitcase.net.SuitcaseTask;
 import org.apache.wink.json4j.JSONException;
 import org.opendatakit.suitcase.utils.FieldsValidatorUtils;
 import org.opendatakit.suitcase.utils.FileUtils;
@@ -116,7 +116,7 @@ public class PullPanel extends JPanel implements PropertyChangeListener {
           DownloadTask worker = new DownloadTask(parent.getAggInfo(), csv, config, savePathChooser.getPath(), true);
           worker.addPropertyChangeListener(parent.getProgressBar());
           worker.addPropertyChangeListener(PullPanel.this);
-          worker.execute();
+          worker.execute(EventDispatchExecutor.INSTANCE);
         }
       }
     });
@@ -126,7 +126,7 @@ public class PullPanel extends JPanel implements PropertyChangeListener {
 
   @Override
   public void propertyChange(PropertyChangeEvent evt) {
-    if (evt.getNewValue() != null && evt.getPropertyName().equals(SuitcaseSwingWorker.DONE_PROPERTY)) {
+    if (evt.getNewValue() != null && evt.getPropertyName().equals(SuitcaseTask.DONE_PROPERTY)) {
       // re-enable download button and restore its label
       sPullButton.setText(DOWNLOAD_LABEL);
       sPullButton.setEnabled(true);
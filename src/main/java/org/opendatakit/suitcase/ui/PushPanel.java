@@ -1,7 +1,7 @@
 package org.opendatakit.suitcase.ui;
 
 import org.opendatakit.suitcase.net.ResetTask;
-import org.opendatakit.suitcase.net.SuitcaseSwingWorker;
+import org.opendatakit.suitcase.net.SuitcaseTask;
 import org.opendatakit.suitcase.net.UploadTask;
 import org.opendatakit.suitcase.utils.FieldsValidatorUtils;
 import org.opendatakit.suitcase.utils.FileUtils;
@@ -98,7 +98,7 @@ public class PushPanel extends JPanel implements PropertyChangeListener {
               sVersionPushText.getText(), true);
           worker.addPropertyChangeListener(parent.getProgressBar());
           worker.addPropertyChangeListener(PushPanel.this);
-          worker.execute();
+          worker.execute(EventDispatchExecutor.INSTANCE);
         }
       }
     });
@@ -120,7 +120,7 @@ public class PushPanel extends JPanel implements PropertyChangeListener {
           ResetTask worker = new ResetTask(sVersionPushText.getText(), true);
           worker.addPropertyChangeListener(parent.getProgressBar());
           worker.addPropertyChangeListener(PushPanel.this);
-          worker.execute();
+          worker.execute(EventDispatchExecutor.INSTANCE);
         }
       }
     });
@@ -136,7 +136,7 @@ public class PushPanel extends JPanel implements PropertyChangeListener {
 
   @Override
   public void propertyChange(PropertyChangeEvent evt) {
-    if (evt.getNewValue() != null && evt.getPropertyName().equals(SuitcaseSwingWorker.DONE_PROPERTY)) {
+    if (evt.getNewValue() != null && evt.getPropertyName().equals(SuitcaseTask.DONE_PROPERTY)) {
       setButtonState(true);
       sPushButton.setText(PUSH_LABEL);
       sResetButton.setText(RESET_LABEL);
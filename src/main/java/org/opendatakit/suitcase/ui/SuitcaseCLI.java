@@ -6,10 +6,14 @@ import org.opendatakit.suitcase.model.ODKCsv;
 import org.apache.commons.cli.*;
 import org.apache.wink.json4j.JSONException;
 import org.opendatakit.suitcase.net.*;
+import org.opendatakit.suitcase.utils.CsvFileWriter;
 import org.opendatakit.suitcase.utils.FieldsValidatorUtils;
 import org.opendatakit.suitcase.utils.FileUtils;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.opendatakit.suitcase.ui.MessageString.*;
 
@@ -17,7 +21,7 @@ public class SuitcaseCLI {
   
   public static final int PARAM_ERROR_CODE = 1;
   private enum Operation {
-    DOWNLOAD, UPLOAD, UPDATE, RESET, INFO, TABLE_OP, PERMISSION
+    DOWNLOAD, UPLOAD, UPDATE, RESET, INFO, TABLE_OP, PERMISSION, DAEMON
   }
 
   private static final String[] REQUIRED_ARGS = new String[]{"aggregateUrl", "tableId", "appId"};
@@ -34,10 +38,36 @@ public class SuitcaseCLI {
   private boolean downloadAttachment;
   private boolean scanFormatting;
   private boolean extraMetadata;
+  private boolean compress;
+  private boolean archiveAttachments;
+  private int attachmentThreads;
+  private boolean incremental;
+  private boolean resume;
+  private int partitions;
+  private int tableThreads;
+  private boolean adaptiveFetch;
+  private boolean fsync;
   private boolean force;
+  private int port;
+  private int jobThreads;
+  private int concurrentBatches;
+  private int minBatchSize;
+  private int maxBatchSize;
+  private int batchMillis;
+  private int batchKB;
 
   public SuitcaseCLI(String[] args) {
     this.args = args;
+    this.attachmentThreads = AttachmentManager.DEFAULT_CONCURRENT_DOWNLOADS;
+    this.partitions = 1;
+    this.tableThreads = 1;
+    this.port = SuitcaseDaemon.DEFAULT_PORT;
+    this.jobThreads = SuitcaseDaemon.DEFAULT_JOB_THREADS;
+    this.concurrentBatches = 1;
+    this.minBatchSize = UpdateTask.DEFAULT_MIN_BATCH_SIZE;
+    this.maxBatchSize = UpdateTask.DEFAULT_MAX_BATCH_SIZE;
+    this.batchMillis = (int) AdaptiveSizer.DEFAULT_TARGET_MILLIS;
+    this.batchKB = (int) (AdaptiveSizer.DEFAULT_MAX_BYTES / 1024);
 
     this.cliOptions = buildOptions();
   }
@@ -56,19 +86,17 @@ public class SuitcaseCLI {
 
     switch (operation) {
     case DOWNLOAD:
-      AttachmentManager attMngr = new AttachmentManager(aggInfo, tableId, path);
-      ODKCsv csv = null;
-      try {
-        csv = new ODKCsv(attMngr, aggInfo, tableId);
-      } catch (JSONException e) { /* should never happen */} 
-      CsvConfig config = new CsvConfig(downloadAttachment, scanFormatting, extraMetadata);
+      if (MultiTableDownload.isMultiTable(tableId)) {
+        retCode = downloadTables();
+        break;
+      }
 
       error = FieldsValidatorUtils.checkDownloadFields(tableId, path, aggInfo);
       if (error != null) {
         DialogUtils.showError(error, false);
         retCode = PARAM_ERROR_CODE;
       } else {
-        retCode = new DownloadTask(aggInfo, csv, config, path, false).blockingExecute();
+        retCode = execute(newDownloadTask(tableId));
       }
       break;
     case UPLOAD:
@@ -78,7 +106,7 @@ public class SuitcaseCLI {
         DialogUtils.showError(error, false);
         retCode = PARAM_ERROR_CODE;
       } else {
-        retCode = new UploadTask(aggInfo, path, version, false).blockingExecute();
+        retCode = execute(new UploadTask(aggInfo, path, version, false));
       }
       break;
     case RESET:
@@ -88,7 +116,7 @@ public class SuitcaseCLI {
         DialogUtils.showError(error, false);
         retCode = PARAM_ERROR_CODE;
       } else {
-        retCode = new ResetTask(version, false).blockingExecute();
+        retCode = execute(new ResetTask(version, false));
       }
       break;
 
@@ -99,7 +127,10 @@ public class SuitcaseCLI {
         DialogUtils.showError(error, false);
         retCode = PARAM_ERROR_CODE;
       } else {
-        retCode = new UpdateTask(aggInfo, path, version, tableId, null, false).blockingExecute();
+        UpdateTask updateTask = new UpdateTask(aggInfo, path, version, tableId, null, false);
+        updateTask.setConcurrentBatches(concurrentBatches);
+        updateTask.setBatchLimits(minBatchSize, maxBatchSize, batchMillis, batchKB * 1024L);
+        retCode = execute(updateTask);
       }
       break;
       
@@ -110,7 +141,7 @@ public class SuitcaseCLI {
         DialogUtils.showError(error, false);
         retCode = PARAM_ERROR_CODE;
       } else {
-        retCode = new TableTask(aggInfo, tableId, path, version, tableOp, false).blockingExecute();
+        retCode = execute(new TableTask(aggInfo, tableId, path, version, tableOp, false));
       }
       break;
     
@@ -121,15 +152,122 @@ public class SuitcaseCLI {
         DialogUtils.showError(error, false);
         retCode = PARAM_ERROR_CODE;
       } else {
-        retCode = new PermissionTask(aggInfo, path, version, false).blockingExecute();
+        retCode = execute(new PermissionTask(aggInfo, path, version, false));
       }
       
       break;
+
+    case DAEMON:
+      if (!SyncWrapper.getInstance().isInitialized()) {
+        // login failed, error has been shown
+        retCode = SuitcaseTask.errorCode;
+        break;
+      }
+
+      try {
+        new SuitcaseDaemon(aggInfo, path, port, jobThreads).run();
+      } catch (IOException e) {
+        e.printStackTrace();
+        DialogUtils.showError(e.getMessage(), false);
+        retCode = SuitcaseTask.errorCode;
+      }
+      break;
     }
     
     return retCode;
   }
 
+  /**
+   * Runs task to completion while printing its progress
+   *
+   * @param task
+   * @return Return code of task
+   */
+  private int execute(SuitcaseTask<?> task) {
+    task.addPropertyChangeListener(new ConsoleProgress(System.err));
+    return task.blockingExecute();
+  }
+
+  /**
+   * Downloads every table named by the tableId argument, tableThreads of them at a time,
+   * then prints a summary
+   *
+   * @return
+   */
+  private int downloadTables() {
+    List<String> tableIds = MultiTableDownload.resolveTableIds(aggInfo, tableId);
+    List<String> validTableIds = new ArrayList<>();
+    int retCode = 0;
+
+    for (String id : tableIds) {
+      String error = FieldsValidatorUtils.checkDownloadFields(id, path, aggInfo);
+      if (error != null) {
+        DialogUtils.showError(id + ": " + error, false);
+        retCode = PARAM_ERROR_CODE;
+      } else {
+        validTableIds.add(id);
+      }
+    }
+
+    if (validTableIds.isEmpty()) {
+      DialogUtils.showError(BAD_TABLE_ID, false);
+      return PARAM_ERROR_CODE;
+    }
+
+    List<MultiTableDownload.TableResult> results;
+    try {
+      results = new MultiTableDownload(tableThreads).run(
+          validTableIds, new MultiTableDownload.TaskFactory() {
+            @Override
+            public DownloadTask newTask(String tableId) {
+              return newDownloadTask(tableId);
+            }
+          }
+      );
+    } catch (InterruptedException e) {
+      DialogUtils.showError(GENERIC_ERR, false);
+      return SuitcaseTask.errorCode;
+    }
+
+    for (MultiTableDownload.TableResult result : results) {
+      if (result.getReturnCode() != SuitcaseTask.okCode && retCode == 0) {
+        retCode = result.getReturnCode();
+      }
+    }
+    for (String line : MultiTableDownload.getSummary(results)) {
+      System.out.println(line);
+    }
+
+    return retCode;
+  }
+
+  /**
+   * Creates a DownloadTask of tableId with the csv options given to the CLI
+   *
+   * @param tableId
+   * @return
+   */
+  private DownloadTask newDownloadTask(String tableId) {
+    AttachmentManager attMngr = new AttachmentManager(aggInfo, tableId, path);
+    attMngr.setConcurrentDownloads(attachmentThreads);
+    ODKCsv csv = null;
+    try {
+      csv = new ODKCsv(attMngr, aggInfo, tableId);
+    } catch (JSONException e) { /* should never happen */}
+    CsvConfig config = new CsvConfig(downloadAttachment, scanFormatting, extraMetadata, compress);
+
+    DownloadTask downloadTask = new DownloadTask(aggInfo, csv, config, path, false, true);
+    downloadTask.setIncremental(incremental);
+    downloadTask.setResume(resume);
+    downloadTask.setPartitions(partitions);
+    downloadTask.setAdaptiveFetch(adaptiveFetch);
+    if (fsync) {
+      downloadTask.setSyncPolicy(CsvFileWriter.SyncPolicy.ON_FLUSH);
+    }
+    downloadTask.setArchiveAttachments(archiveAttachments);
+    return downloadTask;
+  }
+
   private Options buildOptions() {
     Options opt = new Options();
 
@@ -141,6 +279,8 @@ public class SuitcaseCLI {
     operation.addOption(new Option("update", false, "Update tableId using csv specified by path"));
     operation.addOption(new Option("tableop", true, "Create, delete, or clear tableId using csv specified by path"));
     operation.addOption(new Option("permission", false, "Upload user permissions using csv specified by path"));
+    operation.addOption(new Option("daemon", false, "Stay logged in and run jobs submitted as JSON "
+                                                  + "to http://localhost:<port>/jobs"));
     operation.addOption(new Option("h", "help", false, "print this message"));
     operation.addOption(new Option("v", "version", false, "prints version information"));
     operation.setRequired(true);
@@ -153,7 +293,8 @@ public class SuitcaseCLI {
     Option appId = new Option("appId", true, "app id");
     opt.addOption(appId);
 
-    Option tableId = new Option("tableId", true, "table id");
+    Option tableId = new Option("tableId", true, "table id, or for download a comma separated "
+                                               + "list of table ids and globs such as \"survey_*\"");
     opt.addOption(tableId);
 
     opt.addOption("username", true, "username"); // not required
@@ -167,11 +308,52 @@ public class SuitcaseCLI {
     opt.addOption("a", "attachment", false, "download attachments");
     opt.addOption("s", "scan", false, "apply Scan formatting");
     opt.addOption("e", "extra", false, "add extra metadata columns");
+    opt.addOption("gzip", false, "write the csv gzip compressed, compressing on all cores");
+    opt.addOption("archiveAttachments", false, "move downloaded attachments into a single "
+                                             + "instances.zip instead of a directory, the csv "
+                                             + "links still point into instances, extract the "
+                                             + "archive there to follow them");
+    opt.addOption("incremental", false, "only retrieve rows changed since the last download "
+                                      + "and merge them into the existing csv");
+    opt.addOption("resume", false, "continue an interrupted download from its last checkpoint");
+    opt.addOption("partitions", true, "number of connections a table is downloaded over, "
+                                    + "each retrieving a slice of its savepoint timestamps");
+    opt.addOption("tableThreads", true, "number of tables downloaded at the same time when "
+                                      + "tableId is a comma separated list or a glob such as \"*\"");
+    opt.addOption("fetchLimit", true, "number of rows per request when downloading, default is "
+                                    + SyncWrapper.DEFAULT_FETCH_LIMIT);
+    opt.addOption("tableFetchLimit", true, "number of rows per request for specific tables, "
+                                         + "such as \"census=5000,photos=200\"");
+    opt.addOption("adaptiveFetch", false, "adjust number of rows per request to response time "
+                                        + "and size, starting from the fetch limit");
+    opt.addOption("attachmentThreads", true, "number of attachments downloaded at the same time, "
+                                           + "default is " + AttachmentManager.DEFAULT_CONCURRENT_DOWNLOADS);
+    opt.addOption("fsync", false, "force csv to disk after each page, so a checkpoint survives "
+                                + "a system crash");
 
     opt.addOption("path", true, "Specify a custom path to output csv or to upload from. "
                               + "Default csv directory is ./Download/ "
                               + "Default upload directory is ./Upload/ ");
 
+    //update options
+    opt.addOption("concurrentBatches", true, "number of batches of rows uploaded at the same "
+                                           + "time when updating, default is 1");
+    opt.addOption("minBatchSize", true, "minimum number of rows per batch when updating, "
+                                      + "default is " + UpdateTask.DEFAULT_MIN_BATCH_SIZE);
+    opt.addOption("maxBatchSize", true, "maximum number of rows per batch when updating, "
+                                      + "default is " + UpdateTask.DEFAULT_MAX_BATCH_SIZE);
+    opt.addOption("batchMillis", true, "time in milliseconds a batch should take when updating, "
+                                     + "batches grow or shrink to it, default is "
+                                     + AdaptiveSizer.DEFAULT_TARGET_MILLIS);
+    opt.addOption("batchKB", true, "maximum size of a batch in kilobytes when updating, "
+                                 + "default is " + AdaptiveSizer.DEFAULT_MAX_BYTES / 1024);
+
+    //daemon options
+    opt.addOption("port", true, "port the daemon listens on, default is "
+                              + SuitcaseDaemon.DEFAULT_PORT);
+    opt.addOption("jobThreads", true, "number of jobs the daemon runs at the same time, "
+                                    + "default is " + SuitcaseDaemon.DEFAULT_JOB_THREADS);
+
     //UI
     opt.addOption("f", "force", false, "do not prompt, overwrite existing files");
 
@@ -215,17 +397,21 @@ public class SuitcaseCLI {
         operation = Operation.TABLE_OP;
       } else if (line.hasOption("permission")) {
         operation = Operation.PERMISSION;
+      } else if (line.hasOption("daemon")) {
+        operation = Operation.DAEMON;
       }
       else {
         operation = Operation.DOWNLOAD;
       }
 
-      if (operation != Operation.DOWNLOAD && !line.hasOption("dataVersion")) {
+      if (operation != Operation.DOWNLOAD && operation != Operation.DAEMON &&
+          !line.hasOption("dataVersion")) {
         throw new ParseException("Data version is required for upload, update, tableop, permission and reset");
       }
 
       for (String arg : REQUIRED_ARGS) {
-        if (!line.hasOption(arg)) {
+        // jobs of the daemon name their own table
+        if (!line.hasOption(arg) && !(operation == Operation.DAEMON && arg.equals("tableId"))) {
           throw new ParseException(arg + "is required");
         }
       }
@@ -261,6 +447,32 @@ public class SuitcaseCLI {
         downloadAttachment = line.hasOption("a");
         scanFormatting = line.hasOption("s");
         extraMetadata = line.hasOption("e");
+        compress = line.hasOption("gzip");
+        archiveAttachments = line.hasOption("archiveAttachments");
+        incremental = line.hasOption("incremental");
+        resume = line.hasOption("resume");
+        partitions = parsePositiveInt(line, "partitions", 1);
+        tableThreads = parsePositiveInt(line, "tableThreads", 1);
+        adaptiveFetch = line.hasOption("adaptiveFetch");
+        fsync = line.hasOption("fsync");
+
+        SyncWrapper syncWrapper = SyncWrapper.getInstance();
+        syncWrapper.setFetchLimit(
+            parsePositiveInt(line, "fetchLimit", SyncWrapper.DEFAULT_FETCH_LIMIT)
+        );
+        if (line.hasOption("tableFetchLimit")) {
+          for (String entry : line.getOptionValue("tableFetchLimit").split(",")) {
+            String[] tableLimit = entry.split("=");
+            if (tableLimit.length != 2) {
+              throw new ParseException("tableFetchLimit has to look like table1=500,table2=5000");
+            }
+
+            syncWrapper.setFetchLimit(tableLimit[0].trim(), parsePositiveInt(tableLimit[1].trim(),
+                "tableFetchLimit"));
+          }
+        }
+        attachmentThreads = parsePositiveInt(line, "attachmentThreads",
+            AttachmentManager.DEFAULT_CONCURRENT_DOWNLOADS);
       }
 
       path = line.getOptionValue("path", FileUtils.getDefaultSavePath().toString());
@@ -268,6 +480,23 @@ public class SuitcaseCLI {
       version = line.getOptionValue("dataVersion");
 
       force = line.hasOption("f");
+
+      if (operation == Operation.UPDATE) {
+        concurrentBatches = parsePositiveInt(line, "concurrentBatches", 1);
+        minBatchSize = parsePositiveInt(line, "minBatchSize", UpdateTask.DEFAULT_MIN_BATCH_SIZE);
+        maxBatchSize = parsePositiveInt(line, "maxBatchSize", UpdateTask.DEFAULT_MAX_BATCH_SIZE);
+        batchMillis = parsePositiveInt(line, "batchMillis",
+            (int) AdaptiveSizer.DEFAULT_TARGET_MILLIS);
+        batchKB = parsePositiveInt(line, "batchKB", (int) (AdaptiveSizer.DEFAULT_MAX_BYTES / 1024));
+        if (maxBatchSize < minBatchSize) {
+          throw new ParseException("maxBatchSize has to be at least minBatchSize");
+        }
+      }
+
+      if (operation == Operation.DAEMON) {
+        port = parsePositiveInt(line, "port", SuitcaseDaemon.DEFAULT_PORT);
+        jobThreads = parsePositiveInt(line, "jobThreads", SuitcaseDaemon.DEFAULT_JOB_THREADS);
+      }
     } catch (ParseException e) {
       e.printStackTrace();
     } catch (MalformedURLException e) {
@@ -277,4 +506,43 @@ public class SuitcaseCLI {
 
     return operation;
   }
+
+  /**
+   * Parses an option that has to be a positive integer
+   *
+   * @param line
+   * @param option
+   * @param defaultValue Returned when option is absent
+   * @return
+   * @throws ParseException
+   */
+  private int parsePositiveInt(CommandLine line, String option, int defaultValue)
+      throws ParseException {
+    if (!line.hasOption(option)) {
+      return defaultValue;
+    }
+
+    return parsePositiveInt(line.getOptionValue(option), option);
+  }
+
+  /**
+   * Parses the value of an option that has to be a positive integer
+   *
+   * @param value
+   * @param option Name of the option, for the error message
+   * @return
+   * @throws ParseException
+   */
+  private int parsePositiveInt(String value, String option) throws ParseException {
+    try {
+      int parsed = Integer.parseInt(value);
+      if (parsed > 0) {
+        return parsed;
+      }
+    } catch (NumberFormatException e) {
+      // handled below
+    }
+
+    throw new ParseException(option + " has to be a positive integer");
+  }
 }
@@ -0,0 +1,620 @@
+package org.opendatakit.suitcase.ui;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.suitcase.model.AggregateInfo;
+import org.opendatakit.suitcase.model.CsvConfig;
+import org.opendatakit.suitcase.model.ODKCsv;
+import org.opendatakit.suitcase.net.*;
+import org.opendatakit.suitcase.utils.CsvFileWriter;
+import org.opendatakit.suitcase.utils.FieldsValidatorUtils;
+import org.opendatakit.suitcase.utils.FileUtils;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps 1 JVM and 1 Aggregate login warm and runs jobs submitted over a local HTTP/JSON API,
+ * so callers don't pay for startup and login on every operation.
+ *
+ * POST /jobs      submits a job, such as {"operation": "download", "tableId": "census"},
+ *                 and responds with the job
+ * GET  /jobs      responds with all jobs, in the order they were submitted
+ * GET  /jobs/{id} responds with 1 job
+ *
+ * Operations are download, update, tableop and permission, options are named like their CLI
+ * arguments. Jobs run up to jobThreads at a time, a job on a table that already has a queued or
+ * running job is rejected.
+ *
+ * Every request has to carry the token of the daemon in the X-Suitcase-Token header. The token is
+ * random, written at startup to daemon.token in the default path, readable by the user only, and
+ * deleted on shutdown. Requests with an Origin header are rejected, and so are POSTs that aren't
+ * application/json, so a web page can't submit jobs through the browser.
+ *
+ * !!!ATTENTION!!! Only listens on the loopback interface
+ */
+public class SuitcaseDaemon {
+  public static final int DEFAULT_PORT = 8642;
+  public static final int DEFAULT_JOB_THREADS = 4;
+
+  private static final String JOBS_PATH = "/jobs";
+  private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+  private static final String JSON_MEDIA_TYPE = "application/json";
+  private static final String TOKEN_HEADER = "X-Suitcase-Token";
+  private static final String ORIGIN_HEADER = "Origin";
+  private static final String TOKEN_FILE_NAME = "daemon.token";
+  private static final int TOKEN_BYTES = 32;
+  //Oldest finished jobs are forgotten beyond this
+  private static final int MAX_FINISHED_JOBS = 1000;
+
+  private static final int HTTP_OK = 200;
+  private static final int HTTP_ACCEPTED = 202;
+  private static final int HTTP_BAD_REQUEST = 400;
+  private static final int HTTP_UNAUTHORIZED = 401;
+  private static final int HTTP_FORBIDDEN = 403;
+  private static final int HTTP_NOT_FOUND = 404;
+  private static final int HTTP_BAD_METHOD = 405;
+  private static final int HTTP_CONFLICT = 409;
+  private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+  private static final String DOWNLOAD_OP = "download";
+  private static final String UPDATE_OP = "update";
+  private static final String TABLE_OP = "tableop";
+  private static final String PERMISSION_OP = "permission";
+
+  private enum Status {
+    QUEUED, RUNNING, SUCCEEDED, FAILED
+  }
+
+  private final AggregateInfo aggInfo;
+  private final String defaultPath;
+  private final int port;
+  private final ExecutorService jobExecutor;
+  private final byte[] token;
+  //guarded by jobs
+  private final Map<Integer, Job> jobs;
+  private final Set<String> busyTableIds;
+  private int nextJobId;
+  private HttpServer server;
+  private Path tokenPath;
+  private Thread shutdownHook;
+
+  /**
+   * @param aggInfo     Aggregate server the SyncWrapper is logged in to
+   * @param defaultPath Path of jobs that don't specify one
+   * @param port        0 for any free port
+   * @param jobThreads  Number of jobs run at the same time
+   */
+  public SuitcaseDaemon(AggregateInfo aggInfo, String defaultPath, int port, int jobThreads) {
+    if (jobThreads < 1) {
+      throw new IllegalArgumentException("jobThreads must be positive");
+    }
+
+    this.aggInfo = aggInfo;
+    this.defaultPath = defaultPath;
+    this.port = port;
+    this.jobExecutor = Executors.newFixedThreadPool(jobThreads);
+    this.token = newToken().getBytes(StandardCharsets.US_ASCII);
+    this.jobs = new LinkedHashMap<>();
+    this.busyTableIds = new HashSet<>();
+    this.nextJobId = 1;
+  }
+
+  /**
+   * Starts serving and blocks until the JVM exits
+   *
+   * @throws IOException When the port can't be bound or the token can't be written
+   */
+  public void run() throws IOException {
+    start();
+
+    System.out.println("Accepting jobs on http://" +
+        InetAddress.getLoopbackAddress().getHostAddress() + ":" + getPort() + JOBS_PATH);
+    System.out.println("Send the token in " + this.tokenPath + " in the " + TOKEN_HEADER +
+        " header");
+
+    try {
+      new CountDownLatch(1).await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      stop();
+    }
+  }
+
+  /**
+   * Writes the token and starts serving in the background, the daemon stops on its own when the
+   * JVM exits
+   *
+   * @throws IOException When the port can't be bound or the token can't be written
+   */
+  public synchronized void start() throws IOException {
+    if (this.server != null) {
+      throw new IllegalStateException("Daemon already started");
+    }
+
+    this.tokenPath = Paths.get(this.defaultPath, TOKEN_FILE_NAME).toAbsolutePath();
+    writeToken(this.tokenPath);
+
+    try {
+      this.server = HttpServer.create(
+          new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port), 0
+      );
+    } catch (IOException e) {
+      Files.deleteIfExists(this.tokenPath);
+      throw e;
+    }
+    this.server.createContext(JOBS_PATH, new JobsHandler());
+    this.server.start();
+
+    // Ctrl-C and SIGTERM never get past the latch in run()
+    this.shutdownHook = new Thread() {
+      @Override
+      public void run() {
+        shutdown();
+      }
+    };
+    Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+  }
+
+  /**
+   * Stops serving, cancels running jobs and deletes the token
+   */
+  public synchronized void stop() {
+    if (this.shutdownHook != null) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+      } catch (IllegalStateException e) {
+        //the JVM is already exiting, the hook takes care of it
+        return;
+      }
+      this.shutdownHook = null;
+    }
+
+    shutdown();
+  }
+
+  private synchronized void shutdown() {
+    if (this.server != null) {
+      this.server.stop(0);
+    }
+    this.jobExecutor.shutdownNow();
+
+    try {
+      if (this.tokenPath != null) {
+        Files.deleteIfExists(this.tokenPath);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * @return Port the daemon listens on, assigned by the system when started with port 0
+   */
+  public int getPort() {
+    return this.server.getAddress().getPort();
+  }
+
+  /**
+   * @return File holding the token, once started
+   */
+  public Path getTokenPath() {
+    return this.tokenPath;
+  }
+
+  /**
+   * Writes the token to tokenPath in 1 step, readable and writable by the user only
+   *
+   * @param tokenPath
+   * @throws IOException
+   */
+  private void writeToken(Path tokenPath) throws IOException {
+    Files.createDirectories(tokenPath.getParent());
+    Path tempPath = tokenPath.resolveSibling(TOKEN_FILE_NAME + ".tmp");
+    Files.deleteIfExists(tempPath);
+
+    try {
+      Files.createFile(tempPath,
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      //not POSIX, take the permissions away from everyone then give them back to the owner
+      Files.createFile(tempPath);
+      File tempFile = tempPath.toFile();
+      if (!tempFile.setReadable(false, false) || !tempFile.setWritable(false, false) ||
+          !tempFile.setReadable(true, true) || !tempFile.setWritable(true, true)) {
+        Files.deleteIfExists(tempPath);
+        throw new IOException("Unable to restrict access to " + tempPath);
+      }
+    }
+
+    Files.write(tempPath, this.token);
+    Files.move(tempPath, tokenPath,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String newToken() {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(bytes);
+
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * @param exchange
+   * @return True if the request carries the token of the daemon
+   */
+  private boolean isAuthorized(HttpExchange exchange) {
+    String sent = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+
+    // compared in constant time, so the token can't be guessed byte by byte
+    return sent != null &&
+        MessageDigest.isEqual(this.token, sent.trim().getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static boolean isJson(HttpExchange exchange) {
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+
+    return contentType != null &&
+        contentType.trim().toLowerCase().startsWith(JSON_MEDIA_TYPE);
+  }
+
+  private class JobsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+
+        // browsers send an Origin header, nothing else talking to the daemon needs one
+        if (exchange.getRequestHeaders().containsKey(ORIGIN_HEADER)) {
+          respondError(exchange, HTTP_FORBIDDEN, "Requests from web pages are not accepted");
+          return;
+        }
+        if (!isAuthorized(exchange)) {
+          respondError(exchange, HTTP_UNAUTHORIZED, "Missing or wrong " + TOKEN_HEADER);
+          return;
+        }
+
+        if (path.equals(JOBS_PATH) || path.equals(JOBS_PATH + "/")) {
+          if (method.equals("GET")) {
+            respond(exchange, HTTP_OK, listJobs());
+          } else if (method.equals("POST")) {
+            if (isJson(exchange)) {
+              submit(exchange);
+            } else {
+              respondError(exchange, HTTP_UNSUPPORTED_MEDIA_TYPE, "Content-Type has to be " +
+                  JSON_MEDIA_TYPE);
+            }
+          } else {
+            respondError(exchange, HTTP_BAD_METHOD, "Use GET or POST");
+          }
+        } else if (method.equals("GET")) {
+          Job job = findJob(path.substring(JOBS_PATH.length() + 1));
+
+          if (job == null) {
+            respondError(exchange, HTTP_NOT_FOUND, "No such job");
+          } else {
+            respond(exchange, HTTP_OK, job.toJson());
+          }
+        } else {
+          respondError(exchange, HTTP_BAD_METHOD, "Use GET");
+        }
+      } catch (JSONException e) {
+        respondError(exchange, HTTP_BAD_REQUEST, "Invalid JSON: " + e.getMessage());
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        respondError(exchange, HTTP_BAD_REQUEST, String.valueOf(e.getMessage()));
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private void submit(HttpExchange exchange) throws IOException, JSONException {
+    JSONObject request = new JSONObject(
+        new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)
+    );
+
+    String operation = request.optString("operation", "");
+    String tableId = request.optString("tableId", "");
+    String path = request.optString("path", this.defaultPath);
+    String version = request.optString("dataVersion", "");
+
+    String error;
+    SuitcaseTask<?> task;
+
+    switch (operation) {
+    case DOWNLOAD_OP:
+      error = checkDownloadFields(tableId, path);
+      task = error == null ? newDownloadTask(request, tableId, path) : null;
+      break;
+    case UPDATE_OP:
+      error = FieldsValidatorUtils.checkUpdateFields(tableId, version, path);
+      task = error == null ? newUpdateTask(request, tableId, path, version) : null;
+      break;
+    case TABLE_OP:
+      String tableOp = request.optString("tableOp", "");
+      error = FieldsValidatorUtils.checkTableOpFields(tableId, version, path, tableOp);
+      task = error == null ? new TableTask(aggInfo, tableId, path, version, tableOp, false) : null;
+      break;
+    case PERMISSION_OP:
+      //not bound to a table
+      tableId = null;
+      error = FieldsValidatorUtils.checkPermissionFields(version, path);
+      task = error == null ? new PermissionTask(aggInfo, path, version, false) : null;
+      break;
+    default:
+      error = "operation has to be one of " + DOWNLOAD_OP + ", " + UPDATE_OP + ", " + TABLE_OP +
+          ", " + PERMISSION_OP;
+      task = null;
+    }
+
+    if (error != null) {
+      respondError(exchange, HTTP_BAD_REQUEST, error);
+      return;
+    }
+
+    Job job = null;
+    synchronized (this.jobs) {
+      if (tableId == null || this.busyTableIds.add(tableId)) {
+        job = new Job(this.nextJobId++, operation, tableId, task);
+        this.jobs.put(job.id, job);
+        forgetFinishedJobs();
+      }
+    }
+
+    if (job == null) {
+      respondError(exchange, HTTP_CONFLICT, "A job on " + tableId + " is already queued or running");
+      return;
+    }
+
+    execute(job);
+    respond(exchange, HTTP_ACCEPTED, job.toJson());
+  }
+
+  /**
+   * Queues a job accepted by the daemon, its table stays busy until the job has run
+   *
+   * @param job
+   */
+  protected void execute(Runnable job) {
+    this.jobExecutor.execute(job);
+  }
+
+  private String checkDownloadFields(String tableId, String path) {
+    if (!tableId.isEmpty() && !aggInfo.tableIdExists(tableId)) {
+      //the table may have been created since the table list was retrieved
+      try {
+        SyncWrapper.getInstance().updateTableList();
+      } catch (IOException | JSONException e) {
+        e.printStackTrace();
+      }
+    }
+
+    return FieldsValidatorUtils.checkDownloadFields(tableId, path, aggInfo);
+  }
+
+  private DownloadTask newDownloadTask(JSONObject request, String tableId, String path) {
+    AttachmentManager attMngr = new AttachmentManager(aggInfo, tableId, path);
+    attMngr.setConcurrentDownloads(request.optInt("attachmentThreads",
+        AttachmentManager.DEFAULT_CONCURRENT_DOWNLOADS));
+    ODKCsv csv = null;
+    try {
+      csv = new ODKCsv(attMngr, aggInfo, tableId);
+    } catch (JSONException e) { /* should never happen */}
+    CsvConfig config = new CsvConfig(request.optBoolean("attachment", false),
+        request.optBoolean("scan", false), request.optBoolean("extra", false),
+        request.optBoolean("gzip", false));
+
+    DownloadTask downloadTask = new DownloadTask(aggInfo, csv, config, path, false, true);
+    downloadTask.setIncremental(request.optBoolean("incremental", false));
+    downloadTask.setResume(request.optBoolean("resume", false));
+    downloadTask.setPartitions(request.optInt("partitions", 1));
+    downloadTask.setAdaptiveFetch(request.optBoolean("adaptiveFetch", false));
+    if (request.optBoolean("fsync", false)) {
+      downloadTask.setSyncPolicy(CsvFileWriter.SyncPolicy.ON_FLUSH);
+    }
+    downloadTask.setArchiveAttachments(request.optBoolean("archiveAttachments", false));
+    return downloadTask;
+  }
+
+  private UpdateTask newUpdateTask(JSONObject request, String tableId, String path,
+      String version) {
+    UpdateTask updateTask = new UpdateTask(aggInfo, path, version, tableId,
+        request.optString("outcomePath", getOutcomePath(tableId)), false);
+    updateTask.setConcurrentBatches(request.optInt("concurrentBatches", 1));
+    updateTask.setBatchLimits(
+        request.optInt("minBatchSize", UpdateTask.DEFAULT_MIN_BATCH_SIZE),
+        request.optInt("maxBatchSize", UpdateTask.DEFAULT_MAX_BATCH_SIZE),
+        request.optInt("batchMillis", (int) AdaptiveSizer.DEFAULT_TARGET_MILLIS),
+        request.optInt("batchKB", (int) (AdaptiveSizer.DEFAULT_MAX_BYTES / 1024)) * 1024L
+    );
+    return updateTask;
+  }
+
+  /**
+   * @param tableId
+   * @return Outcome file of tableId, so concurrent updates of different tables don't share 1
+   */
+  private static String getOutcomePath(String tableId) {
+    return FileUtils.getUpdateSavePath().toString() + File.separator + tableId + "_" +
+        UpdateTask.DEFAULT_OUTCOME_FILE_NAME;
+  }
+
+  private JSONArray listJobs() throws JSONException {
+    List<Job> snapshot;
+    synchronized (this.jobs) {
+      snapshot = new ArrayList<>(this.jobs.values());
+    }
+
+    JSONArray array = new JSONArray();
+    for (Job job : snapshot) {
+      array.add(job.toJson());
+    }
+    return array;
+  }
+
+  private Job findJob(String id) {
+    try {
+      synchronized (this.jobs) {
+        return this.jobs.get(Integer.parseInt(id));
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Drops the oldest finished jobs beyond MAX_FINISHED_JOBS, caller holds the lock on jobs
+   */
+  private void forgetFinishedJobs() {
+    int finished = 0;
+    for (Job job : this.jobs.values()) {
+      if (job.isFinished()) {
+        finished++;
+      }
+    }
+
+    Iterator<Job> iterator = this.jobs.values().iterator();
+    while (finished > MAX_FINISHED_JOBS && iterator.hasNext()) {
+      if (iterator.next().isFinished()) {
+        iterator.remove();
+        finished--;
+      }
+    }
+  }
+
+  private void release(Job job) {
+    synchronized (this.jobs) {
+      if (job.tableId != null) {
+        this.busyTableIds.remove(job.tableId);
+      }
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int code, Object json) throws IOException {
+    byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+
+    exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE);
+    exchange.sendResponseHeaders(code, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static void respondError(HttpExchange exchange, int code, String message)
+      throws IOException {
+    JSONObject error = new JSONObject();
+    try {
+      error.put("error", message);
+    } catch (JSONException e) { /* should never happen */}
+
+    respond(exchange, code, error);
+  }
+
+  private class Job implements Runnable, PropertyChangeListener {
+    private final int id;
+    private final String operation;
+    private final String tableId;
+    private final SuitcaseTask<?> task;
+    private final long submitted;
+    private volatile Status status;
+    private volatile String progress;
+    private volatile int returnCode;
+    private volatile long started;
+    private volatile long finished;
+
+    Job(int id, String operation, String tableId, SuitcaseTask<?> task) {
+      this.id = id;
+      this.operation = operation;
+      this.tableId = tableId;
+      this.task = task;
+      this.submitted = System.currentTimeMillis();
+      this.status = Status.QUEUED;
+      this.progress = null;
+
+      task.addPropertyChangeListener(this);
+    }
+
+    @Override
+    public void run() {
+      this.started = System.currentTimeMillis();
+      this.status = Status.RUNNING;
+
+      try {
+        this.returnCode = this.task.blockingExecute();
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        this.returnCode = SuitcaseTask.errorCode;
+      } finally {
+        this.finished = System.currentTimeMillis();
+        this.status = this.returnCode == SuitcaseTask.okCode ? Status.SUCCEEDED : Status.FAILED;
+        release(this);
+      }
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+      if (evt.getNewValue() != null &&
+          evt.getPropertyName().equals(SuitcaseTask.STRING_PROPERTY)) {
+        this.progress = (String) evt.getNewValue();
+      }
+    }
+
+    boolean isFinished() {
+      return this.status == Status.SUCCEEDED || this.status == Status.FAILED;
+    }
+
+    JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("id", this.id);
+      json.put("operation", this.operation);
+      json.put("tableId", this.tableId);
+      json.put("status", this.status.name().toLowerCase());
+      json.put("progress", this.progress);
+      json.put("submitted", this.submitted);
+
+      if (this.started > 0) {
+        json.put("started", this.started);
+      }
+      if (isFinished()) {
+        json.put("finished", this.finished);
+        json.put("returnCode", this.returnCode);
+      }
+      return json;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+package org.opendatakit.suitcase.utils;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+
+/**
+ * Writes RFC 4180 csv to a file as UTF-8, producing the same output as RFC4180CsvWriter.
+ *
+ * Rows are encoded straight into 1 reusable buffer that is written to a FileChannel when full,
+ * on flush and on close. Fields without a separator, quote or line break are copied as they are.
+ * A null field is written as nothing, an empty field as "".
+ *
+ * Output can be gzip compressed on multiple threads, see ParallelGzipOutputStream. Each flush
+ * then ends a gzip member, so the file is a complete gzip file after every flush.
+ *
+ * !!!ATTENTION!!! Not thread safe
+ */
+public class CsvFileWriter implements Closeable, Flushable {
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+  private static final byte SEPARATOR = ',';
+  private static final byte QUOTE = '"';
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+  //Written in place of unpaired surrogates, like String.getBytes does
+  private static final byte REPLACEMENT = '?';
+
+  /**
+   * When written data is forced to the storage device
+   */
+  public enum SyncPolicy {
+    //left to the operating system
+    NONE,
+    //on every flush and on close
+    ON_FLUSH,
+    //on close only
+    ON_CLOSE
+  }
+
+  private final FileChannel channel;
+  private final SyncPolicy syncPolicy;
+  //null when output is not compressed
+  private final ParallelGzipOutputStream gzip;
+  private final byte[] buffer;
+  private final ByteBuffer byteBuffer;
+  private int position;
+  //bytes encoded before the ones in buffer
+  private long drained;
+
+  public CsvFileWriter(Path path, boolean append) throws IOException {
+    this(path, append, SyncPolicy.NONE, DEFAULT_BUFFER_SIZE, 0);
+  }
+
+  /**
+   * @param path
+   * @param append     True to write after the existing content of path, false to replace it
+   * @param syncPolicy
+   * @param bufferSize Size of the buffer in bytes, at least 4
+   * @param gzipThreads Number of threads compressing output, 0 to write it uncompressed
+   * @throws IOException
+   */
+  public CsvFileWriter(Path path, boolean append, SyncPolicy syncPolicy, int bufferSize,
+      int gzipThreads) throws IOException {
+    this(path, append, syncPolicy, bufferSize, null, gzipThreads);
+  }
+
+  /**
+   * @param path
+   * @param append       True to write after the existing content of path, false to replace it
+   * @param syncPolicy
+   * @param bufferSize   Size of the buffer in bytes, at least 4
+   * @param gzipExecutor Pool compressing output, shared with other writers and left running on
+   *                     close, see ParallelGzipOutputStream.newExecutor.
+   *                     null to compress on a pool of this writer's own.
+   * @param gzipThreads  Number of threads compressing output, 0 to write it uncompressed
+   * @throws IOException
+   */
+  public CsvFileWriter(Path path, boolean append, SyncPolicy syncPolicy, int bufferSize,
+      ExecutorService gzipExecutor, int gzipThreads) throws IOException {
+    if (bufferSize < 4) {
+      //has to fit any UTF-8 encoded character
+      throw new IllegalArgumentException("bufferSize must be at least 4");
+    }
+
+    this.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+        append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+    this.syncPolicy = syncPolicy;
+    if (gzipThreads <= 0) {
+      this.gzip = null;
+    } else if (gzipExecutor == null) {
+      this.gzip =
+          new ParallelGzipOutputStream(Channels.newOutputStream(this.channel), gzipThreads);
+    } else {
+      this.gzip = new ParallelGzipOutputStream(Channels.newOutputStream(this.channel),
+          gzipExecutor, gzipThreads, Deflater.DEFAULT_COMPRESSION,
+          ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+    }
+    this.buffer = new byte[bufferSize];
+    this.byteBuffer = ByteBuffer.wrap(this.buffer);
+    this.position = 0;
+  }
+
+  /**
+   * Writes 1 row, does nothing when row is null
+   *
+   * @param row
+   * @throws IOException
+   */
+  public void writeNext(String[] row) throws IOException {
+    if (row == null) {
+      return;
+    }
+
+    for (int i = 0; i < row.length; i++) {
+      if (i > 0) {
+        writeByte(SEPARATOR);
+      }
+
+      String field = row[i];
+      if (field == null) {
+        continue;
+      }
+
+      if (field.isEmpty() || needsQuote(field)) {
+        writeQuoted(field);
+      } else {
+        writeChars(field, 0, field.length());
+      }
+    }
+
+    writeByte(CR);
+    writeByte(LF);
+  }
+
+  /**
+   * @return Number of bytes of csv written through this writer, before compression
+   */
+  public long getBytesWritten() {
+    return this.drained + this.position;
+  }
+
+  /**
+   * @return Size of the file once buffered data is written, only exact right after flush when
+   * output is compressed
+   * @throws IOException
+   */
+  public long size() throws IOException {
+    return this.channel.position() + (this.gzip == null ? this.position : 0);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    drain();
+
+    if (this.gzip != null) {
+      this.gzip.finish();
+    }
+
+    if (this.syncPolicy == SyncPolicy.ON_FLUSH) {
+      this.channel.force(false);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!this.channel.isOpen()) {
+      return;
+    }
+
+    try {
+      drain();
+
+      if (this.gzip != null) {
+        this.gzip.finish();
+      }
+
+      if (this.syncPolicy != SyncPolicy.NONE) {
+        this.channel.force(false);
+      }
+    } finally {
+      if (this.gzip != null) {
+        this.gzip.close();
+      }
+      this.channel.close();
+    }
+  }
+
+  private static boolean needsQuote(String field) {
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+
+      if (c == SEPARATOR || c == QUOTE || c == CR || c == LF) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private void writeQuoted(String field) throws IOException {
+    writeByte(QUOTE);
+
+    //copy runs between quotes as they are, doubling each quote
+    int start = 0;
+    int quote;
+    while ((quote = field.indexOf(QUOTE, start)) >= 0) {
+      writeChars(field, start, quote + 1);
+      writeByte(QUOTE);
+      start = quote + 1;
+    }
+    writeChars(field, start, field.length());
+
+    writeByte(QUOTE);
+  }
+
+  /**
+   * Encodes chars from (inclusive) to end (exclusive) of s as UTF-8
+   */
+  private void writeChars(String s, int from, int end) throws IOException {
+    byte[] buf = this.buffer;
+
+    for (int i = from; i < end; i++) {
+      char c = s.charAt(i);
+
+      if (c < 0x80) {
+        if (this.position == buf.length) {
+          drain();
+        }
+        buf[this.position++] = (byte) c;
+      } else if (c < 0x800) {
+        ensureSpace(2);
+        buf[this.position++] = (byte) (0xC0 | (c >> 6));
+        buf[this.position++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < end &&
+          Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        ensureSpace(4);
+        buf[this.position++] = (byte) (0xF0 | (codePoint >> 18));
+        buf[this.position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buf[this.position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buf[this.position++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        writeByte(REPLACEMENT);
+      } else {
+        ensureSpace(3);
+        buf[this.position++] = (byte) (0xE0 | (c >> 12));
+        buf[this.position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buf[this.position++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private void writeByte(byte b) throws IOException {
+    if (this.position == this.buffer.length) {
+      drain();
+    }
+
+    this.buffer[this.position++] = b;
+  }
+
+  private void ensureSpace(int bytes) throws IOException {
+    if (this.position + bytes > this.buffer.length) {
+      drain();
+    }
+  }
+
+  private void drain() throws IOException {
+    this.drained += this.position;
+
+    if (this.gzip != null) {
+      this.gzip.write(this.buffer, 0, this.position);
+      this.position = 0;
+      return;
+    }
+
+    this.byteBuffer.clear().limit(this.position);
+
+    while (this.byteBuffer.hasRemaining()) {
+      this.channel.write(this.byteBuffer);
+    }
+
+    this.position = 0;
+  }
+}
@@ -3,9 +3,18 @@ package org.opendatakit.suitcase.utils;
 import org.opendatakit.suitcase.model.AggregateInfo;
 import org.opendatakit.suitcase.model.CsvConfig;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 public class FileUtils {
   // paths
@@ -18,12 +27,19 @@ public class FileUtils {
 
   // csv names
   private static final String CSV_EXTENSION = ".csv";
+  private static final String GZIP_EXTENSION = ".gz";
+  private static final String ARCHIVE_EXTENSION = ".zip";
   private static final String CSV_MODIFIER_SEPARATOR = "_";
   private static final String DATA_CSV_MODIFIER = "data";
   private static final String LINK_CSV_MODIFIER = "link";
   private static final String FORMATTED_CSV_MODIFIER = "formatted";
   private static final String UNFORMATTED_CSV_MODIFIER = "unformatted";
   private static final String EXTRA_DATA_CSV_MODIFIER = "extra";
+  private static final String EXPORT_STATE_EXTENSION = ".state";
+  private static final String CHECKPOINT_EXTENSION = ".checkpoint";
+  private static final String ATTACHMENT_LOG_EXTENSION = ".attachments";
+  private static final String ROW_ETAG_INDEX_PATH = "rowETags";
+  private static final String ROW_ETAG_INDEX_EXTENSION = ".index";
 
   /**
    * Checks whether a table is downloaded
@@ -61,6 +77,70 @@ public class FileUtils {
     return getBasePath(aggInfo, tableId, savePath).resolve(getCSVName(config));
   }
 
+  /**
+   * Finds the Path to the file that records which state of the table a csv reflects,
+   * it sits next to the csv
+   *
+   * @param aggInfo
+   * @param tableId
+   * @param config
+   * @param savePath
+   * @return absolute Path
+   */
+  public static Path getExportStatePath(AggregateInfo aggInfo, String tableId, CsvConfig config,
+      String savePath) {
+    return getBasePath(aggInfo, tableId, savePath)
+        .resolve(getCSVName(config) + EXPORT_STATE_EXTENSION);
+  }
+
+  /**
+   * Finds the Path to the checkpoint of an unfinished download of a csv, it sits next to the csv
+   *
+   * @param aggInfo
+   * @param tableId
+   * @param config
+   * @param savePath
+   * @return absolute Path
+   */
+  public static Path getCheckpointPath(AggregateInfo aggInfo, String tableId, CsvConfig config,
+      String savePath) {
+    return getBasePath(aggInfo, tableId, savePath)
+        .resolve(getCSVName(config) + CHECKPOINT_EXTENSION);
+  }
+
+  /**
+   * Finds the Path to the list of rows whose attachments have been downloaded for an unfinished
+   * download of a csv, it sits next to the csv
+   *
+   * @param aggInfo
+   * @param tableId
+   * @param config
+   * @param savePath
+   * @return absolute Path
+   */
+  public static Path getAttachmentLogPath(AggregateInfo aggInfo, String tableId, CsvConfig config,
+      String savePath) {
+    return getBasePath(aggInfo, tableId, savePath)
+        .resolve(getCSVName(config) + ATTACHMENT_LOG_EXTENSION);
+  }
+
+  /**
+   * Finds the Path to the rowETag index of a table, 1 per server, appId and tableId
+   *
+   * @param aggInfo
+   * @param tableId
+   * @return absolute Path
+   */
+  public static Path getRowETagIndexPath(AggregateInfo aggInfo, String tableId) {
+    String server = aggInfo.getHostUrl().replaceAll("[^A-Za-z0-9.-]", "_");
+
+    return getUpdateSavePath()
+        .resolve(ROW_ETAG_INDEX_PATH)
+        .resolve(server)
+        .resolve(aggInfo.getAppId())
+        .resolve(tableId + ROW_ETAG_INDEX_EXTENSION);
+  }
+
   /**
    * Returns the default save path
    *
@@ -118,6 +198,19 @@ public class FileUtils {
     return getBasePath(aggInfo, tableId, savePath).resolve(INSTANCES_PATH);
   }
 
+  /**
+   * Finds the Path to the archive that replaces the instances directory when it is archived
+   *
+   * @param aggInfo
+   * @param tableId
+   * @param savePath
+   * @return absolute Path
+   */
+  public static Path getInstancesArchivePath(AggregateInfo aggInfo, String tableId,
+      String savePath) {
+    return getBasePath(aggInfo, tableId, savePath).resolve(INSTANCES_PATH + ARCHIVE_EXTENSION);
+  }
+
   public static String getCSVName(CsvConfig config) {
     StringBuilder csvNameBuilder = new StringBuilder();
 
@@ -134,7 +227,13 @@ public class FileUtils {
           .append(EXTRA_DATA_CSV_MODIFIER);
     }
 
-    return csvNameBuilder.append(CSV_EXTENSION).toString();
+    csvNameBuilder.append(CSV_EXTENSION);
+
+    if (config.isCompressed()) {
+      csvNameBuilder.append(GZIP_EXTENSION);
+    }
+
+    return csvNameBuilder.toString();
   }
 
   public static void createDirectory(AggregateInfo aggInfo, CsvConfig config, String tableId,
@@ -149,10 +248,82 @@ public class FileUtils {
   public static void deleteCsv(AggregateInfo aggInfo, CsvConfig config, String tableId, String
       savePath) throws IOException {
     if (config.isDownloadAttachment() || config.isScanFormatting()) {
-      deleteDirectory(getInstancesPath(aggInfo, tableId, savePath));
+      Path insPath = getInstancesPath(aggInfo, tableId, savePath);
+      if (Files.exists(insPath)) {
+        deleteDirectory(insPath);
+      }
+      Files.deleteIfExists(getInstancesArchivePath(aggInfo, tableId, savePath));
     }
 
     Files.delete(getCSVPath(aggInfo, tableId, config, savePath));
+    Files.deleteIfExists(getExportStatePath(aggInfo, tableId, config, savePath));
+    Files.deleteIfExists(getCheckpointPath(aggInfo, tableId, config, savePath));
+    Files.deleteIfExists(getAttachmentLogPath(aggInfo, tableId, config, savePath));
+  }
+
+  /**
+   * Moves the files of a directory into a zip archive, then deletes the directory.
+   * Entries of an existing archive are kept unless the directory has a file with the same name.
+   * The archive is written to a temporary file first, so it is never left half written.
+   *
+   * @param directory
+   * @param archive
+   * @throws IOException
+   */
+  public static void archiveDirectory(final Path directory, Path archive) throws IOException {
+    Path tempArchive = archive.resolveSibling(archive.getFileName() + ".tmp");
+
+    final ZipOutputStream zipOut = new ZipOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(tempArchive))
+    );
+    try {
+      //attachments are mostly already compressed media
+      zipOut.setLevel(Deflater.BEST_SPEED);
+      final Set<String> names = new HashSet<>();
+
+      Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          String name = directory.relativize(file).toString().replace(File.separatorChar, '/');
+          names.add(name);
+
+          zipOut.putNextEntry(new ZipEntry(name));
+          Files.copy(file, zipOut);
+          zipOut.closeEntry();
+
+          return FileVisitResult.CONTINUE;
+        }
+      });
+
+      if (Files.exists(archive)) {
+        ZipInputStream zipIn = new ZipInputStream(
+            new BufferedInputStream(Files.newInputStream(archive))
+        );
+        try {
+          ZipEntry entry;
+          byte[] buffer = new byte[8192];
+          while ((entry = zipIn.getNextEntry()) != null) {
+            if (names.add(entry.getName())) {
+              zipOut.putNextEntry(new ZipEntry(entry.getName()));
+
+              int count;
+              while ((count = zipIn.read(buffer)) > 0) {
+                zipOut.write(buffer, 0, count);
+              }
+              zipOut.closeEntry();
+            }
+          }
+        } finally {
+          zipIn.close();
+        }
+      }
+    } finally {
+      zipOut.close();
+    }
+
+    Files.move(tempArchive, archive, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    deleteDirectory(directory);
   }
 
   public static boolean checkUploadDir(String path) {
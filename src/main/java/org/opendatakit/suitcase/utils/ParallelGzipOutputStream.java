@@ -0,0 +1,339 @@
+package org.opendatakit.suitcase.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a standard gzip stream, compressing blocks of input on multiple threads like pigz does.
+ *
+ * Each block is deflated on its own, primed with the last 32 KiB of the block before it, and
+ * ends on a byte boundary so the compressed blocks can simply be written one after another.
+ * Only a bounded number of blocks is compressed ahead of the writer.
+ *
+ * finish ends the current gzip member, after which the output is a complete gzip file.
+ * Writing afterwards starts a new member, gzip readers treat consecutive members as 1 stream.
+ *
+ * !!!ATTENTION!!! Not thread safe
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+  public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+  private static final String THREAD_NAME_PREFIX = "gzip-block-";
+
+  //magic, deflate, no flags, no mtime, no extra flags, unknown OS
+  private static final byte[] HEADER = {
+      0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+  //empty fixed huffman block with the final bit set
+  private static final byte[] LAST_BLOCK = {0x03, 0x00};
+
+  private final OutputStream out;
+  private final int level;
+  private final int blockSize;
+  private final ExecutorService executor;
+  //true when executor is shut down on close
+  private final boolean ownsExecutor;
+  private final int window;
+  private final Deque<Future<byte[]>> pending;
+  private final CRC32 crc;
+  private byte[] block;
+  private int blockLength;
+  //last input of the current member, null at its start
+  private byte[] dictionary;
+  private long memberSize;
+  private boolean memberStarted;
+  private boolean anyMemberWritten;
+  private boolean closed;
+
+  public ParallelGzipOutputStream(OutputStream out, int threads) {
+    this(out, threads, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * @param out
+   * @param threads   Number of blocks compressed at the same time
+   * @param level     Deflate level, from Deflater
+   * @param blockSize Size of input blocks in bytes
+   */
+  public ParallelGzipOutputStream(OutputStream out, int threads, int level, int blockSize) {
+    this(out, newExecutor(threads), true, threads, level, blockSize);
+  }
+
+  /**
+   * @param out
+   * @param executor  Pool shared with other streams, usually from newExecutor.
+   *                  It is left running on close.
+   * @param threads   Number of threads of executor
+   * @param level     Deflate level, from Deflater
+   * @param blockSize Size of input blocks in bytes
+   */
+  public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int threads,
+      int level, int blockSize) {
+    this(out, executor, false, threads, level, blockSize);
+  }
+
+  private ParallelGzipOutputStream(OutputStream out, ExecutorService executor,
+      boolean ownsExecutor, int threads, int level, int blockSize) {
+    if (threads < 1 || blockSize < 1) {
+      throw new IllegalArgumentException("threads and blockSize must be positive");
+    }
+
+    this.out = out;
+    this.level = level;
+    this.blockSize = blockSize;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    //keep every thread busy while the oldest block is written
+    this.window = threads * 2;
+    this.pending = new ArrayDeque<>();
+    this.crc = new CRC32();
+    this.block = new byte[blockSize];
+    this.blockLength = 0;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+
+    if (this.blockLength == this.blockSize) {
+      submitBlock();
+    }
+    this.block[this.blockLength++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+
+    while (len > 0) {
+      if (this.blockLength == this.blockSize) {
+        submitBlock();
+      }
+
+      int copied = Math.min(len, this.blockSize - this.blockLength);
+      System.arraycopy(b, off, this.block, this.blockLength, copied);
+      this.blockLength += copied;
+      off += copied;
+      len -= copied;
+    }
+  }
+
+  /**
+   * Compresses and writes everything written so far, without ending the member
+   *
+   * @throws IOException
+   */
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+
+    submitBlock();
+    while (!this.pending.isEmpty()) {
+      writeOldestBlock();
+    }
+    this.out.flush();
+  }
+
+  /**
+   * Ends the current member, does nothing when nothing has been written since the last call
+   *
+   * @throws IOException
+   */
+  public void finish() throws IOException {
+    ensureOpen();
+
+    if (!this.memberStarted && this.blockLength == 0) {
+      return;
+    }
+
+    flush();
+
+    this.out.write(LAST_BLOCK);
+    writeIntLE((int) this.crc.getValue());
+    //size modulo 2^32, as gzip defines it
+    writeIntLE((int) this.memberSize);
+    this.out.flush();
+
+    this.crc.reset();
+    this.memberSize = 0;
+    this.dictionary = null;
+    this.memberStarted = false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+
+    try {
+      if (!this.anyMemberWritten) {
+        //an empty stream is still 1 member
+        startMember();
+      }
+      finish();
+    } finally {
+      this.closed = true;
+      if (this.ownsExecutor) {
+        this.executor.shutdownNow();
+      } else {
+        //blocks left after a failure would otherwise still take up the shared pool
+        for (Future<byte[]> block : this.pending) {
+          block.cancel(true);
+        }
+      }
+      this.pending.clear();
+      this.out.close();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    if (this.blockLength == 0) {
+      return;
+    }
+
+    startMember();
+
+    final byte[] input = this.block;
+    final int length = this.blockLength;
+    final byte[] primer = this.dictionary;
+
+    this.crc.update(input, 0, length);
+    this.memberSize += length;
+    this.dictionary = nextDictionary(primer, input, length);
+
+    this.pending.add(this.executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return deflate(input, length, primer);
+      }
+    }));
+
+    this.block = new byte[this.blockSize];
+    this.blockLength = 0;
+
+    while (this.pending.size() > this.window) {
+      writeOldestBlock();
+    }
+  }
+
+  private void startMember() throws IOException {
+    if (this.memberStarted) {
+      return;
+    }
+
+    //blocks of the previous member have all been written by finish
+    this.out.write(HEADER);
+    this.memberStarted = true;
+    this.anyMemberWritten = true;
+  }
+
+  private void writeOldestBlock() throws IOException {
+    try {
+      this.out.write(this.pending.poll().get());
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to compress block", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing", e);
+    }
+  }
+
+  /**
+   * Creates a pool of daemon threads for compressing blocks
+   *
+   * @param threads
+   * @return
+   */
+  public static ExecutorService newExecutor(int threads) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, THREAD_NAME_PREFIX + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private void writeIntLE(int value) throws IOException {
+    this.out.write(value & 0xff);
+    this.out.write((value >>> 8) & 0xff);
+    this.out.write((value >>> 16) & 0xff);
+    this.out.write((value >>> 24) & 0xff);
+  }
+
+  private void ensureOpen() throws IOException {
+    if (this.closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  /**
+   * Deflates 1 block as raw deflate data that ends on a byte boundary without the final bit
+   *
+   * @param input
+   * @param length
+   * @param primer Preceding input to use as dictionary, null for none
+   * @return
+   */
+  private byte[] deflate(byte[] input, int length, byte[] primer) {
+    Deflater deflater = new Deflater(this.level, true);
+
+    try {
+      if (primer != null) {
+        deflater.setDictionary(primer);
+      }
+      deflater.setInput(input, 0, length);
+
+      //room for incompressible input plus block overhead
+      byte[] output = new byte[length + length / 8 + 64];
+      int written = 0;
+
+      while (true) {
+        int count =
+            deflater.deflate(output, written, output.length - written, Deflater.SYNC_FLUSH);
+        written += count;
+
+        if (written < output.length) {
+          //sync flush is complete once it leaves space unused
+          return Arrays.copyOf(output, written);
+        }
+
+        output = Arrays.copyOf(output, output.length * 2);
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @return Last DICTIONARY_SIZE bytes of the member after input
+   */
+  private static byte[] nextDictionary(byte[] previous, byte[] input, int length) {
+    if (length >= DICTIONARY_SIZE || previous == null) {
+      return Arrays.copyOfRange(input, Math.max(0, length - DICTIONARY_SIZE), length);
+    }
+
+    int kept = Math.min(previous.length, DICTIONARY_SIZE - length);
+    byte[] dictionary = new byte[kept + length];
+    System.arraycopy(previous, previous.length - kept, dictionary, 0, kept);
+    System.arraycopy(input, 0, dictionary, kept, length);
+
+    return dictionary;
+  }
+}
@@ -0,0 +1,96 @@
+package org.opendatakit.suitcase.test;
+
+import org.opendatakit.suitcase.net.AdaptiveSizer;
+
+import junit.framework.TestCase;
+
+public class AdaptiveSizerTest extends TestCase {
+  private static final long TARGET_MILLIS = 1000;
+  private static final long MAX_BYTES = Long.MAX_VALUE;
+
+  public void testGrowsUnderTarget_ExpectPass() {
+    AdaptiveSizer sizer = new AdaptiveSizer(100, 10, 1000, TARGET_MILLIS, MAX_BYTES);
+
+    // 1ms per row would allow 1000 rows, but the size at most doubles
+    sizer.record(100, 100, 0);
+    assertEquals(200, sizer.getSize());
+    sizer.record(200, 200, 0);
+    assertEquals(400, sizer.getSize());
+    sizer.record(400, 400, 0);
+    assertEquals(800, sizer.getSize());
+    sizer.record(800, 800, 0);
+    assertEquals(1000, sizer.getSize());
+    sizer.record(1000, 1, 0);
+    assertEquals(1000, sizer.getSize());
+  }
+
+  public void testShrinksOverTarget_ExpectPass() {
+    AdaptiveSizer sizer = new AdaptiveSizer(400, 10, 1000, TARGET_MILLIS, MAX_BYTES);
+
+    // 10ms per row allows 100 rows, but the size at most halves
+    sizer.record(400, 4000, 0);
+    assertEquals(200, sizer.getSize());
+    sizer.record(200, 2000, 0);
+    assertEquals(100, sizer.getSize());
+  }
+
+  public void testFailureHalves_ExpectPass() {
+    AdaptiveSizer sizer = new AdaptiveSizer(500, 100, 1000, TARGET_MILLIS, MAX_BYTES);
+
+    sizer.recordFailure();
+    assertEquals(250, sizer.getSize());
+    sizer.recordFailure();
+    assertEquals(125, sizer.getSize());
+    sizer.recordFailure();
+    assertEquals(100, sizer.getSize());
+    sizer.recordFailure();
+    assertEquals(100, sizer.getSize());
+  }
+
+  public void testMaxBytes_ExpectPass() {
+    AdaptiveSizer sizer = new AdaptiveSizer(100, 1, 1000, TARGET_MILLIS, 50 * 1000);
+
+    // fast, but 1000 bytes per row only leaves room for 50 rows
+    sizer.record(100, 1, 100 * 1000);
+    assertEquals(50, sizer.getSize());
+  }
+
+  public void testWithinLimits_ExpectPass() {
+    assertEquals(1000, new AdaptiveSizer(5000, 10, 1000, TARGET_MILLIS, MAX_BYTES).getSize());
+    assertEquals(10, new AdaptiveSizer(1, 10, 1000, TARGET_MILLIS, MAX_BYTES).getSize());
+
+    AdaptiveSizer sizer = new AdaptiveSizer(20, 10, 1000, TARGET_MILLIS, MAX_BYTES);
+    sizer.record(20, 100000, 0);
+    assertEquals(10, sizer.getSize());
+    sizer.record(10, 100000, 0);
+    assertEquals(10, sizer.getSize());
+  }
+
+  public void testFixedSize_ExpectPass() {
+    AdaptiveSizer sizer = new AdaptiveSizer(500, 100, 100, TARGET_MILLIS, MAX_BYTES);
+    assertEquals(100, sizer.getSize());
+
+    sizer.record(100, 1, 0);
+    assertEquals(100, sizer.getSize());
+    sizer.record(100, 100000, 0);
+    assertEquals(100, sizer.getSize());
+    sizer.recordFailure();
+    assertEquals(100, sizer.getSize());
+  }
+
+  public void testEmptyRequestIgnored_ExpectPass() {
+    AdaptiveSizer sizer = new AdaptiveSizer(100, 10, 1000, TARGET_MILLIS, MAX_BYTES);
+
+    sizer.record(0, 100000, 0);
+    assertEquals(100, sizer.getSize());
+  }
+
+  public void testInvalidLimits_ExpectFail() {
+    try {
+      new AdaptiveSizer(100, 200, 100, TARGET_MILLIS, MAX_BYTES);
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
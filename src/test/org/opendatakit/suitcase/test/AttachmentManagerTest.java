@@ -0,0 +1,269 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+import org.opendatakit.suitcase.model.AggregateInfo;
+import org.opendatakit.suitcase.net.AttachmentManager;
+import org.opendatakit.suitcase.net.SyncWrapper;
+
+import junit.framework.TestCase;
+
+public class AttachmentManagerTest extends TestCase {
+  private static final String TABLE_ID = "attachments";
+  private static final int THREADS = 4;
+
+  private Path dir;
+  private AggregateInfo aggInfo;
+  private FakeServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("attachmentManager");
+    aggInfo = new AggregateInfo("http://localhost/", "default", "user", "password");
+    server = new FakeServer();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtilities.deleteRecursive(dir);
+    super.tearDown();
+  }
+
+  public void testManifestBatch_ExpectPass() throws Exception {
+    AttachmentManager manager = newManager();
+    List<String> rowIds = rowIds(50);
+    // even rows have no attachments
+    for (int i = 0; i < rowIds.size(); i += 2) {
+      server.withoutFiles.add(rowIds.get(i));
+    }
+
+    manager.getListOfRowAttachments(rowIds);
+    assertEquals(50, server.manifestRequests.get());
+    assertTrue(server.maxConcurrent.get() > 1);
+    assertTrue(server.maxConcurrent.get() <= THREADS);
+
+    // known rows are not asked about again
+    manager.getListOfRowAttachments(rowIds);
+    assertEquals(50, server.manifestRequests.get());
+
+    assertNull(manager.getAttachmentUrl("uuid:0", "a.jpg", false));
+    assertEquals("http://localhost/files/uuid:1/a.jpg",
+        manager.getAttachmentUrl("uuid:1", "a.jpg", false).toString());
+  }
+
+  public void testConcurrentDownloads_ExpectPass() throws Exception {
+    AttachmentManager manager = newManager();
+    List<String> rowIds = rowIds(40);
+    manager.getListOfRowAttachments(rowIds);
+    server.maxConcurrent.set(0);
+
+    for (String rowId : rowIds) {
+      manager.queueAttachmentDownloads(rowId);
+    }
+    Map<String, Exception> failed = manager.awaitDownloads();
+
+    assertTrue(failed.isEmpty());
+    assertEquals(40, server.downloadedRows.size());
+    assertTrue(server.maxConcurrent.get() > 1);
+    assertTrue(server.maxConcurrent.get() <= THREADS);
+    for (String rowId : rowIds) {
+      assertEquals(1, countFiles(rowId, "a.jpg"));
+      assertEquals(1, countFiles(rowId, "b.txt"));
+    }
+  }
+
+  /*
+   * A row that fails as a whole is retried file by file, only the files that still fail are
+   * reported, and only once
+   */
+  public void testFailedDownloads_ExpectPass() throws Exception {
+    AttachmentManager manager = newManager();
+    List<String> rowIds = rowIds(10);
+    manager.getListOfRowAttachments(rowIds);
+    server.failedRows.add("uuid:3");
+    server.failedRows.add("uuid:7");
+    server.failedFiles.add("uuid:7/b.txt");
+
+    for (String rowId : rowIds) {
+      manager.queueAttachmentDownloads(rowId);
+    }
+    Map<String, Exception> failed = manager.awaitDownloads();
+
+    assertEquals(1, failed.size());
+    String failedPath = failed.keySet().iterator().next();
+    assertTrue(failedPath, failedPath.endsWith("b.txt"));
+    assertTrue(failedPath,
+        failedPath.contains(SyncClient.convertRowIdForInstances("uuid:7")));
+    assertEquals(1, countFiles("uuid:3", "b.txt"));
+    assertEquals(1, countFiles("uuid:7", "a.jpg"));
+
+    assertTrue(manager.awaitDownloads().isEmpty());
+  }
+
+  public void testCompletedRowLog_ExpectPass() throws Exception {
+    Path logPath = dir.resolve("attachments.log");
+    AttachmentManager manager = newManager();
+    manager.setCompletedRowLog(logPath);
+    List<String> rowIds = rowIds(10);
+    manager.getListOfRowAttachments(rowIds);
+    server.failedRows.add("uuid:4");
+    server.failedFiles.add("uuid:4/a.jpg");
+
+    for (String rowId : rowIds) {
+      manager.queueAttachmentDownloads(rowId);
+    }
+    assertEquals(1, manager.awaitDownloads().size());
+
+    Set<String> logged = new HashSet<String>(Files.readAllLines(logPath, StandardCharsets.UTF_8));
+    assertEquals(9, logged.size());
+    assertFalse(logged.contains("uuid:4"));
+
+    // resumed, only the incomplete row is downloaded again
+    server.downloadedRows.clear();
+    server.failedRows.clear();
+    server.failedFiles.clear();
+    manager = newManager();
+    manager.setCompletedRowLog(logPath);
+    manager.getListOfRowAttachments(rowIds);
+    for (String rowId : rowIds) {
+      manager.queueAttachmentDownloads(rowId);
+    }
+    assertTrue(manager.awaitDownloads().isEmpty());
+
+    assertEquals(Collections.singletonList("uuid:4"), new ArrayList<String>(server.downloadedRows));
+    assertEquals(10, Files.readAllLines(logPath, StandardCharsets.UTF_8).size());
+  }
+
+  private AttachmentManager newManager() {
+    AttachmentManager manager = new AttachmentManager(aggInfo, TABLE_ID, dir.toString(), server);
+    manager.setConcurrentDownloads(THREADS);
+    return manager;
+  }
+
+  /*
+   * Files named filename written to the directory of rowId that are still there
+   */
+  private int countFiles(String rowId, String filename) {
+    Set<Path> files = new HashSet<Path>();
+    synchronized (server.written) {
+      for (Path file : server.written) {
+        if (file.getParent().getFileName().toString()
+            .equals(SyncClient.convertRowIdForInstances(rowId)) &&
+            file.getFileName().toString().equals(filename) && Files.exists(file)) {
+          files.add(file);
+        }
+      }
+    }
+    return files.size();
+  }
+
+  private static List<String> rowIds(int count) {
+    List<String> rowIds = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      rowIds.add("uuid:" + i);
+    }
+    return rowIds;
+  }
+
+  /*
+   * Every row has a.jpg and b.txt unless listed in withoutFiles, requests take a few
+   * milliseconds so they overlap
+   */
+  private static class FakeServer extends SyncWrapper {
+    private final AtomicInteger manifestRequests = new AtomicInteger();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private final Set<String> withoutFiles =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    //rows whose batch download fails
+    private final Set<String> failedRows =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    //rowId/filename that fail on their own too
+    private final Set<String> failedFiles =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> downloadedRows =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final List<Path> written = Collections.synchronizedList(new ArrayList<Path>());
+
+    @Override
+    public JSONObject getManifestForRow(String tableId, String rowId) throws JSONException {
+      assertEquals(TABLE_ID, tableId);
+      manifestRequests.incrementAndGet();
+      busy();
+
+      JSONArray files = new JSONArray();
+      if (!withoutFiles.contains(rowId)) {
+        for (String filename : new String[] {"a.jpg", "b.txt"}) {
+          JSONObject file = new JSONObject();
+          file.put("filename", filename);
+          file.put("downloadUrl", "http://localhost/files/" + rowId + "/" + filename);
+          files.add(file);
+        }
+      }
+
+      JSONObject manifest = new JSONObject();
+      manifest.put("files", files);
+      return manifest;
+    }
+
+    @Override
+    public void batchGetFilesForRow(String tableId, String rowId, String savePath,
+        JSONObject files) throws IOException, JSONException {
+      busy();
+      downloadedRows.add(rowId);
+      if (failedRows.contains(rowId)) {
+        throw new IOException("batch of " + rowId + " failed");
+      }
+
+      JSONArray fileArray = files.getJSONArray("files");
+      for (int i = 0; i < fileArray.size(); i++) {
+        write(Paths.get(savePath, fileArray.getJSONObject(i).getString("filename")));
+      }
+    }
+
+    @Override
+    public void getFileForRow(String tableId, String rowId, String savePath,
+        String relPathOnServer) throws IOException {
+      if (failedFiles.contains(rowId + "/" + relPathOnServer)) {
+        throw new IOException(relPathOnServer + " of " + rowId + " failed");
+      }
+      write(Paths.get(savePath));
+    }
+
+    private void write(Path path) throws IOException {
+      Files.write(path, path.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+      written.add(path);
+    }
+
+    private void busy() {
+      int now = concurrent.incrementAndGet();
+      synchronized (maxConcurrent) {
+        maxConcurrent.set(Math.max(maxConcurrent.get(), now));
+      }
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        concurrent.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.wink.json4j.JSONException;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.suitcase.net.ConcurrentBatchSender;
+import org.opendatakit.suitcase.net.RowBatcher;
+
+import junit.framework.TestCase;
+
+/*
+ * Batches are told apart by their operation, which the sender passes through as is
+ */
+public class ConcurrentBatchSenderTest extends TestCase {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  /*
+   * Each partition gets its batches 1 at a time in the order they were sent, while partitions
+   * overlap
+   */
+  public void testPartitionOrder_ExpectPass() throws Exception {
+    final int partitions = 3;
+    final int batches = 30;
+    final List<List<String>> received = new ArrayList<List<String>>();
+    final AtomicInteger[] inFlight = new AtomicInteger[partitions];
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final AtomicInteger maxPartitionInFlight = new AtomicInteger();
+    final AtomicInteger total = new AtomicInteger();
+    for (int i = 0; i < partitions; i++) {
+      received.add(Collections.synchronizedList(new ArrayList<String>()));
+      inFlight[i] = new AtomicInteger();
+    }
+
+    ConcurrentBatchSender sender = new ConcurrentBatchSender(new RowBatcher.BatchSender() {
+      private final Random random = new Random(partitions);
+
+      @Override
+      public void send(String operation, int partition, ArrayList<Row> rows) throws IOException {
+        int partitionCount = inFlight[partition].incrementAndGet();
+        int all = total.incrementAndGet();
+        synchronized (maxInFlight) {
+          maxPartitionInFlight.set(Math.max(maxPartitionInFlight.get(), partitionCount));
+          maxInFlight.set(Math.max(maxInFlight.get(), all));
+        }
+
+        try {
+          int delay;
+          synchronized (random) {
+            delay = random.nextInt(3);
+          }
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        received.get(partition).add(operation);
+
+        total.decrementAndGet();
+        inFlight[partition].decrementAndGet();
+      }
+    }, partitions);
+
+    for (int i = 0; i < batches; i++) {
+      for (int partition = 0; partition < partitions; partition++) {
+        sender.send("batch " + i, partition, new ArrayList<Row>());
+      }
+    }
+    sender.finish();
+
+    for (int partition = 0; partition < partitions; partition++) {
+      List<String> expected = new ArrayList<String>();
+      for (int i = 0; i < batches; i++) {
+        expected.add("batch " + i);
+      }
+      assertEquals(expected, received.get(partition));
+    }
+    assertEquals(1, maxPartitionInFlight.get());
+    assertTrue(maxInFlight.get() > 1);
+  }
+
+  /*
+   * Once a partition has a batch in flight and 1 waiting, send blocks for that partition only
+   */
+  public void testBackpressure_ExpectPass() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch otherReceived = new CountDownLatch(1);
+    final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+    final ConcurrentBatchSender sender = new ConcurrentBatchSender(new RowBatcher.BatchSender() {
+      @Override
+      public void send(String operation, int partition, ArrayList<Row> rows) throws IOException {
+        if (partition == 0) {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        }
+        received.add(operation);
+        if (partition == 1) {
+          otherReceived.countDown();
+        }
+      }
+    }, 2);
+
+    try {
+      sender.send("in flight", 0, new ArrayList<Row>());
+      assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      sender.send("waiting", 0, new ArrayList<Row>());
+
+      final CountDownLatch sent = new CountDownLatch(1);
+      final AtomicReference<Exception> error = new AtomicReference<Exception>();
+      Thread blocked = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            sender.send("blocked", 0, new ArrayList<Row>());
+            sent.countDown();
+          } catch (Exception e) {
+            error.set(e);
+          }
+        }
+      });
+      blocked.start();
+
+      assertFalse(sent.await(200, TimeUnit.MILLISECONDS));
+      // the other partition isn't held up
+      sender.send("other", 1, new ArrayList<Row>());
+      assertTrue(otherReceived.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+      release.countDown();
+      assertTrue(sent.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      blocked.join();
+      assertNull(error.get());
+
+      sender.finish();
+      assertEquals(4, received.size());
+      assertEquals(received.indexOf("in flight") + 1, received.indexOf("waiting"));
+      assertEquals(received.indexOf("waiting") + 1, received.indexOf("blocked"));
+      // sent while the first batch was held
+      assertEquals(0, received.indexOf("other"));
+    } finally {
+      release.countDown();
+      sender.close();
+    }
+  }
+
+  /*
+   * The first failure is thrown by the next send and by finish, later failures are dropped and
+   * batches still waiting are skipped
+   */
+  public void testFirstFailure_ExpectFail() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+    ConcurrentBatchSender sender = new ConcurrentBatchSender(new RowBatcher.BatchSender() {
+      @Override
+      public void send(String operation, int partition, ArrayList<Row> rows)
+          throws IOException, JSONException {
+        received.add(operation);
+        if (operation.equals("slow")) {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+          throw new JSONException("second");
+        }
+        if (operation.equals("fails")) {
+          throw new IOException("first");
+        }
+      }
+    }, 3);
+
+    try {
+      sender.send("slow", 1, new ArrayList<Row>());
+      assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      sender.send("skipped", 1, new ArrayList<Row>());
+      sender.send("fails", 0, new ArrayList<Row>());
+
+      // until the failure is recorded, batches still go out
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+      try {
+        while (true) {
+          assertTrue(System.nanoTime() < deadline);
+          sender.send("fine", 2, new ArrayList<Row>());
+          Thread.sleep(1);
+        }
+      } catch (IOException e) {
+        assertEquals("first", e.getMessage());
+      }
+
+      release.countDown();
+      try {
+        sender.finish();
+        fail("IOException expected");
+      } catch (IOException e) {
+        assertEquals("first", e.getMessage());
+      }
+      assertFalse(received.contains("skipped"));
+      assertTrue(received.contains("slow"));
+    } finally {
+      release.countDown();
+      sender.close();
+    }
+  }
+
+  public void testRuntimeFailure_ExpectFail() throws Exception {
+    ConcurrentBatchSender sender = new ConcurrentBatchSender(new RowBatcher.BatchSender() {
+      @Override
+      public void send(String operation, int partition, ArrayList<Row> rows) {
+        throw new IllegalStateException(operation);
+      }
+    }, 1);
+
+    sender.send("broken", 0, new ArrayList<Row>());
+    try {
+      sender.finish();
+      fail("IllegalStateException expected");
+    } catch (IllegalStateException e) {
+      assertEquals("broken", e.getMessage());
+    }
+  }
+
+  public void testNoPartitions_ExpectFail() throws Exception {
+    try {
+      new ConcurrentBatchSender(null, 0);
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
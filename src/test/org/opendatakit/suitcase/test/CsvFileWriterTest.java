@@ -0,0 +1,98 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.RFC4180CsvWriter;
+import org.opendatakit.suitcase.utils.CsvFileWriter;
+
+import junit.framework.TestCase;
+
+/*
+ * CsvFileWriter has to write exactly what RFC4180CsvWriter writes
+ */
+public class CsvFileWriterTest extends TestCase {
+  private Path path;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    path = Files.createTempFile("csvFileWriter", ".csv");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Files.deleteIfExists(path);
+    super.tearDown();
+  }
+
+  public void testSpecialCharacters_ExpectPass() throws Exception {
+    List<String[]> rows = new ArrayList<String[]>();
+    rows.add(new String[] {"plain", "with,comma", "with\"quote\"", "\"", ",", "a\"\"b"});
+    rows.add(new String[] {"line\nbreak", "carriage\rreturn", "both\r\n", "\n", " spaces "});
+    rows.add(new String[] {null, "", null, "", "value"});
+    rows.add(new String[] {null});
+    rows.add(new String[] {""});
+    rows.add(new String[] {});
+
+    assertSameOutput(rows, CsvFileWriter.DEFAULT_BUFFER_SIZE);
+  }
+
+  public void testNonAscii_ExpectPass() throws Exception {
+    List<String[]> rows = new ArrayList<String[]>();
+    rows.add(new String[] {"caf\u00e9", "\u00fcber,alles", "\u65e5\u672c\u8a9e"});
+    // outside the basic multilingual plane, 2 chars and 4 bytes each
+    rows.add(new String[] {"\ud83d\ude00", "\"\ud83c\udf0d\"",
+        "\u0627\u0644\u0639\u0631\u0628"});
+
+    assertSameOutput(rows, CsvFileWriter.DEFAULT_BUFFER_SIZE);
+  }
+
+  /*
+   * Smallest buffer, so multibyte characters and quoted fields straddle the buffer boundary
+   */
+  public void testLargerThanBuffer_ExpectPass() throws Exception {
+    List<String[]> rows = new ArrayList<String[]>();
+    StringBuilder longField = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      longField.append("\u00e9\ud83d\ude00,\"x");
+    }
+    for (int i = 0; i < 200; i++) {
+      rows.add(new String[] {String.valueOf(i), "\u65e5\u672c" + i, longField.toString(), null,
+          "", "a,b"});
+    }
+
+    assertSameOutput(rows, 4);
+    assertSameOutput(rows, 7);
+    assertSameOutput(rows, 1024);
+  }
+
+  private void assertSameOutput(List<String[]> rows, int bufferSize) throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    RFC4180CsvWriter reference =
+        new RFC4180CsvWriter(new OutputStreamWriter(expected, StandardCharsets.UTF_8));
+    for (String[] row : rows) {
+      reference.writeNext(row);
+    }
+    reference.close();
+
+    CsvFileWriter writer = new CsvFileWriter(path, false, CsvFileWriter.SyncPolicy.NONE,
+        bufferSize, 0);
+    for (String[] row : rows) {
+      writer.writeNext(row);
+    }
+    writer.close();
+
+    byte[] actual = Files.readAllBytes(path);
+    assertTrue("output differs with buffer of " + bufferSize + " bytes",
+        Arrays.equals(expected.toByteArray(), actual));
+    assertEquals(actual.length, writer.getBytesWritten());
+  }
+}
@@ -0,0 +1,243 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.aggregate.odktables.rest.RFC4180CsvReader;
+import org.opendatakit.sync.client.SyncClient;
+import org.opendatakit.suitcase.model.AggregateInfo;
+import org.opendatakit.suitcase.model.CsvConfig;
+import org.opendatakit.suitcase.model.ODKCsv;
+import org.opendatakit.suitcase.net.AttachmentManager;
+import org.opendatakit.suitcase.net.DownloadTask;
+import org.opendatakit.suitcase.net.SuitcaseTask;
+import org.opendatakit.suitcase.net.SyncWrapper;
+import org.opendatakit.suitcase.utils.FileUtils;
+
+import junit.framework.TestCase;
+
+/*
+ * The csv links of attachments that have been moved into instances.zip
+ */
+public class DownloadTaskArchiveTest extends TestCase {
+  private static final String TABLE_ID = "archive";
+  private static final int ROWS = 12;
+  private static final String LINK_PREFIX = "=HYPERLINK(\"";
+
+  private Path dir;
+  private AggregateInfo aggInfo;
+  private CsvConfig csvConfig;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("downloadTaskArchive");
+    aggInfo = new AggregateInfo("http://localhost/", "default", "user", "password");
+    aggInfo.addTableId(TABLE_ID, "schemaETag:1");
+    csvConfig = new CsvConfig(true, false, false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtilities.deleteRecursive(dir);
+    super.tearDown();
+  }
+
+  /*
+   * The links keep pointing into instances/, every one of them is an entry of the archive, so
+   * extracting it in place makes them work again
+   */
+  public void testLinksAfterArchiving_ExpectPass() throws Exception {
+    assertEquals(SuitcaseTask.okCode, download(true));
+
+    Path instancesPath = FileUtils.getInstancesPath(aggInfo, TABLE_ID, dir.toString());
+    Path archivePath = FileUtils.getInstancesArchivePath(aggInfo, TABLE_ID, dir.toString());
+    assertFalse(Files.exists(instancesPath));
+    assertTrue(Files.exists(archivePath));
+
+    List<String> links = readLinks();
+    // rows without a photo have no link
+    assertEquals(ROWS - ROWS / 3, links.size());
+
+    Set<String> entries = readEntries(archivePath);
+    assertEquals(links.size(), entries.size());
+    for (String link : links) {
+      String entry = toInstancesEntry(instancesPath, link);
+      assertTrue(link, entries.contains(entry));
+      assertFalse(link, Files.exists(instancesPath.resolve(entry)));
+    }
+  }
+
+  /*
+   * Same csv with and without archiving
+   */
+  public void testSameCsv_ExpectPass() throws Exception {
+    assertEquals(SuitcaseTask.okCode, download(false));
+    Path instancesPath = FileUtils.getInstancesPath(aggInfo, TABLE_ID, dir.toString());
+    List<String> links = readLinks();
+    for (String link : links) {
+      assertTrue(link, Files.exists(instancesPath.resolve(toInstancesEntry(instancesPath, link))));
+    }
+
+    assertEquals(SuitcaseTask.okCode, download(true));
+    assertEquals(links, readLinks());
+  }
+
+  private int download(boolean archive) throws JSONException {
+    FakeServer server = new FakeServer();
+    ODKCsv csv = new ODKCsv(
+        new AttachmentManager(aggInfo, TABLE_ID, dir.toString(), server), aggInfo, TABLE_ID
+    );
+    DownloadTask task = new DownloadTask(aggInfo, csv, csvConfig, dir.toString(), false);
+    task.setSyncWrapper(server);
+    task.setArchiveAttachments(archive);
+    return task.blockingExecute();
+  }
+
+  /*
+   * Local path of each link in the csv
+   */
+  private List<String> readLinks() throws IOException {
+    List<String> links = new ArrayList<String>();
+    Path csvPath = FileUtils.getCSVPath(aggInfo, TABLE_ID, csvConfig, dir.toString());
+    RFC4180CsvReader reader =
+        new RFC4180CsvReader(Files.newBufferedReader(csvPath, StandardCharsets.UTF_8));
+    try {
+      String[] line;
+      while ((line = reader.readNext()) != null) {
+        for (String field : line) {
+          if (field != null && field.startsWith(LINK_PREFIX)) {
+            int end = field.indexOf('"', LINK_PREFIX.length());
+            String url = field.substring(LINK_PREFIX.length(), end);
+            assertTrue(url, url.startsWith("file:"));
+            links.add(url.substring("file:".length()).replaceFirst("^/+", "/"));
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return links;
+  }
+
+  /*
+   * Name of the archive entry of a link, which points into instancesPath
+   */
+  private static String toInstancesEntry(Path instancesPath, String link) {
+    Path path = Paths.get(link);
+    assertTrue(link, path.startsWith(instancesPath));
+    return instancesPath.relativize(path).toString().replace('\\', '/');
+  }
+
+  private static Set<String> readEntries(Path archivePath) throws IOException {
+    Set<String> entries = new HashSet<String>();
+    ZipInputStream in = new ZipInputStream(Files.newInputStream(archivePath));
+    try {
+      ZipEntry entry;
+      while ((entry = in.getNextEntry()) != null) {
+        entries.add(entry.getName());
+      }
+    } finally {
+      in.close();
+    }
+    return entries;
+  }
+
+  /*
+   * Serves ROWS rows in 1 page, every third without a photo
+   */
+  private static class FakeServer extends SyncWrapper {
+    @Override
+    public JSONObject getRows(String tableId, String cursor, int fetchLimit)
+        throws JSONException {
+      JSONArray rows = new JSONArray();
+      for (int i = 0; i < ROWS; i++) {
+        rows.add(row(i));
+      }
+
+      JSONObject page = new JSONObject();
+      page.put(SyncClient.ROWS_STR_JSON, rows);
+      page.put(SyncClient.HAS_MORE_RESULTS_JSON, false);
+      page.put(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON, String.valueOf(ROWS));
+      page.put(SyncClient.DATA_ETAG_JSON, "dataETag:1");
+      return page;
+    }
+
+    @Override
+    public JSONObject getManifestForRow(String tableId, String rowId) throws JSONException {
+      JSONArray files = new JSONArray();
+      if (hasPhoto(rowId)) {
+        JSONObject file = new JSONObject();
+        file.put("filename", photo(rowId));
+        file.put("downloadUrl", "http://localhost/files/" + rowId + "/" + photo(rowId));
+        files.add(file);
+      }
+
+      JSONObject manifest = new JSONObject();
+      manifest.put("files", files);
+      return manifest;
+    }
+
+    @Override
+    public void batchGetFilesForRow(String tableId, String rowId, String savePath,
+        JSONObject files) throws IOException, JSONException {
+      JSONArray fileArray = files.getJSONArray("files");
+      for (int i = 0; i < fileArray.size(); i++) {
+        String filename = fileArray.getJSONObject(i).getString("filename");
+        Files.write(Paths.get(savePath, filename), filename.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+    private static boolean hasPhoto(String rowId) {
+      return Integer.parseInt(rowId.substring("uuid:".length())) % 3 != 0;
+    }
+
+    private static String photo(String rowId) {
+      return rowId.substring("uuid:".length()) + ".jpg";
+    }
+
+    private static JSONObject row(int index) throws JSONException {
+      String rowId = "uuid:" + index;
+
+      JSONObject row = new JSONObject();
+      row.put(SyncClient.ID_JSON, rowId);
+      row.put(SyncClient.FORM_ID_JSON, TABLE_ID);
+      row.put(SyncClient.LOCALE_JSON, "en_US");
+      row.put(SyncClient.SAVEPOINT_TYPE_JSON, "COMPLETE");
+      row.put(SyncClient.SAVEPOINT_TIMESTAMP_JSON, "2016-07-21T17:31:02.123000000");
+      row.put(SyncClient.SAVEPOINT_CREATOR_JSON, "mailto:user@example.com");
+      row.put(SyncClient.ROW_ETAG_JSON, "rowETag:" + index);
+
+      JSONObject filterScope = new JSONObject();
+      filterScope.put("type", "DEFAULT");
+      filterScope.put("value", (Object) null);
+      row.put(SyncClient.FILTER_SCOPE_JSON, filterScope);
+
+      JSONArray columns = new JSONArray();
+      String[][] values = {
+          {"photo_contentType", hasPhoto(rowId) ? "image/jpeg" : null},
+          {"photo_uriFragment", hasPhoto(rowId) ? photo(rowId) : null}
+      };
+      for (String[] value : values) {
+        JSONObject column = new JSONObject();
+        column.put("column", value[0]);
+        column.put("value", (Object) value[1]);
+        columns.add(column);
+      }
+      row.put(SyncClient.ORDERED_COLUMNS_DEF, columns);
+      return row;
+    }
+  }
+}
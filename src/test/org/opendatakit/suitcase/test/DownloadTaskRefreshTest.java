@@ -0,0 +1,443 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.aggregate.odktables.rest.RFC4180CsvReader;
+import org.opendatakit.sync.client.SyncClient;
+import org.opendatakit.suitcase.model.AggregateInfo;
+import org.opendatakit.suitcase.model.CsvConfig;
+import org.opendatakit.suitcase.model.ODKCsv;
+import org.opendatakit.suitcase.net.AttachmentManager;
+import org.opendatakit.suitcase.net.DownloadTask;
+import org.opendatakit.suitcase.net.SuitcaseTask;
+import org.opendatakit.suitcase.net.SyncWrapper;
+import org.opendatakit.suitcase.utils.FileUtils;
+
+import junit.framework.TestCase;
+
+/*
+ * Downloads from a fake server through DownloadTask, no Aggregate needed
+ */
+public class DownloadTaskRefreshTest extends TestCase {
+  private static final String TABLE_ID = "download";
+  private static final int PAGE_SIZE = 20;
+
+  private Path dir;
+  private AggregateInfo aggInfo;
+  private CsvConfig csvConfig;
+  private FakeServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("downloadTaskRefresh");
+    aggInfo = new AggregateInfo("http://localhost/", "default", "user", "password");
+    aggInfo.addTableId(TABLE_ID, "schemaETag:1");
+    csvConfig = new CsvConfig();
+    server = new FakeServer();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtilities.deleteRecursive(dir);
+    super.tearDown();
+  }
+
+  /*
+   * Interrupted on the 3rd page, whatever was written after the last checkpoint is dropped and
+   * the download continues from the cursor of the 2nd page
+   */
+  public void testResume_ExpectPass() throws Exception {
+    server.addRows(0, 100);
+    server.failPage = 3;
+
+    DownloadTask task = newTask(true);
+    assertEquals(SuitcaseTask.errorCode, task.blockingExecute());
+    assertTrue(Files.exists(getCheckpointPath()));
+    assertEquals(2 * PAGE_SIZE, readCsv().size() - 1);
+
+    // half written line of the failed page
+    Files.write(getCsvPath(), "uuid:junk,\"half".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    server.failPage = 0;
+    server.cursors.clear();
+    task = newTask(true);
+    task.setResume(true);
+    assertEquals(SuitcaseTask.okCode, task.blockingExecute());
+
+    assertEquals(String.valueOf(2 * PAGE_SIZE), server.cursors.get(0));
+    assertEquals(3, server.cursors.size());
+    assertEquals(100, task.getRowsWritten());
+    assertEquals(server.rows.keySet(), new LinkedHashMap<String, String>(readValues()).keySet());
+    assertEquals(101, readCsv().size());
+    assertFalse(Files.exists(getCheckpointPath()));
+  }
+
+  /*
+   * Without resume an interrupted download starts over
+   */
+  public void testNoResume_ExpectPass() throws Exception {
+    server.addRows(0, 100);
+    server.failPage = 3;
+    assertEquals(SuitcaseTask.errorCode, newTask(true).blockingExecute());
+
+    server.failPage = 0;
+    server.cursors.clear();
+    assertEquals(SuitcaseTask.okCode, newTask(true).blockingExecute());
+
+    assertEquals(5, server.cursors.size());
+    assertEquals(101, readCsv().size());
+  }
+
+  /*
+   * Changed rows replace their line, deleted rows are dropped, new rows are appended, and the
+   * latest change of a row wins
+   */
+  public void testIncrementalMerge_ExpectPass() throws Exception {
+    server.addRows(0, 50);
+    assertEquals(SuitcaseTask.okCode, newTask(false).blockingExecute());
+    assertEquals("dataETag:50", readExportState());
+
+    server.change("uuid:3", "v3-2");
+    server.change("uuid:3", "v3-3");
+    server.delete("uuid:5");
+    server.change("uuid:7", "v7-2");
+    server.addRows(50, 52);
+    server.delete("uuid:7");
+    // more than a page of changes
+    for (int i = 20; i < 45; i++) {
+      server.change("uuid:" + i, "v" + i + "-2");
+    }
+    server.cursors.clear();
+
+    DownloadTask task = newTask(false);
+    task.setIncremental(true);
+    assertEquals(SuitcaseTask.okCode, task.blockingExecute());
+
+    // only the changes were retrieved
+    assertEquals(Collections.singletonList("dataETag:50"), server.sinceDataETags);
+    assertEquals(2, server.cursors.size());
+    assertEquals(server.rows, readValues());
+    assertEquals(new ArrayList<String>(server.rows.keySet()),
+        new ArrayList<String>(readValues().keySet()));
+    assertEquals(server.rows.size(), task.getRowsWritten());
+    assertEquals(server.getDataETag(), readExportState());
+
+    // nothing changed since
+    server.sinceDataETags.clear();
+    task = newTask(false);
+    task.setIncremental(true);
+    assertEquals(SuitcaseTask.okCode, task.blockingExecute());
+    assertEquals(Collections.singletonList(server.getDataETag()), server.sinceDataETags);
+    assertEquals(server.rows, readValues());
+  }
+
+  /*
+   * A line cut short before its _id fails the refresh with the row it is on
+   */
+  public void testIncrementalShortLine_ExpectFail() throws Exception {
+    server.addRows(0, 10);
+    assertEquals(SuitcaseTask.okCode, newTask(false).blockingExecute());
+
+    List<String> lines = Files.readAllLines(getCsvPath(), StandardCharsets.UTF_8);
+    lines.set(4, "");
+    Files.write(getCsvPath(), lines, StandardCharsets.UTF_8);
+
+    server.change("uuid:1", "v1-2");
+    DownloadTask task = newTask(false);
+    task.setIncremental(true);
+    assertEquals(SuitcaseTask.errorCode, task.blockingExecute());
+
+    try {
+      task.get();
+      fail("ExecutionException expected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("Row 4 of"));
+    }
+    // the previous export is left as it was
+    assertEquals(lines, Files.readAllLines(getCsvPath(), StandardCharsets.UTF_8));
+  }
+
+  /*
+   * A refresh that fails keeps the previous export and its state, the next one starts over
+   * from the same dataETag
+   */
+  public void testInterruptedRefresh_ExpectPass() throws Exception {
+    server.addRows(0, 50);
+    assertEquals(SuitcaseTask.okCode, newTask(false).blockingExecute());
+    List<String> lines = Files.readAllLines(getCsvPath(), StandardCharsets.UTF_8);
+
+    for (int i = 10; i < 40; i++) {
+      server.change("uuid:" + i, "v" + i + "-2");
+    }
+    server.delete("uuid:2");
+    // the 2nd page of changes fails
+    server.failPage = server.pageRequests + 2;
+
+    DownloadTask task = newTask(false);
+    task.setIncremental(true);
+    assertEquals(SuitcaseTask.errorCode, task.blockingExecute());
+    assertEquals("dataETag:50", readExportState());
+    assertEquals(lines, Files.readAllLines(getCsvPath(), StandardCharsets.UTF_8));
+
+    server.failPage = 0;
+    server.sinceDataETags.clear();
+    task = newTask(false);
+    task.setIncremental(true);
+    assertEquals(SuitcaseTask.okCode, task.blockingExecute());
+    assertEquals(Collections.singletonList("dataETag:50"), server.sinceDataETags);
+    assertEquals(server.rows, readValues());
+    assertEquals(server.getDataETag(), readExportState());
+  }
+
+  /*
+   * Stopped after the merged csv was moved into place but before the state was replaced, the
+   * next refresh applies the same changes again and ends up with the same csv
+   */
+  public void testRefreshBeforeStateWritten_ExpectPass() throws Exception {
+    server.addRows(0, 30);
+    assertEquals(SuitcaseTask.okCode, newTask(false).blockingExecute());
+    Path statePath = getExportStatePath();
+    byte[] oldState = Files.readAllBytes(statePath);
+
+    server.change("uuid:4", "v4-2");
+    server.delete("uuid:6");
+    server.addRows(30, 33);
+
+    DownloadTask task = newTask(false);
+    task.setIncremental(true);
+    assertEquals(SuitcaseTask.okCode, task.blockingExecute());
+    List<String> lines = Files.readAllLines(getCsvPath(), StandardCharsets.UTF_8);
+    Files.write(statePath, oldState);
+
+    server.sinceDataETags.clear();
+    task = newTask(false);
+    task.setIncremental(true);
+    assertEquals(SuitcaseTask.okCode, task.blockingExecute());
+    assertEquals(Collections.singletonList("dataETag:30"), server.sinceDataETags);
+    assertEquals(lines, Files.readAllLines(getCsvPath(), StandardCharsets.UTF_8));
+    assertEquals(server.rows, readValues());
+    assertEquals(server.getDataETag(), readExportState());
+  }
+
+  /*
+   * The state goes as soon as the csv is rewritten from scratch, so a full download that fails
+   * isn't taken for the previous export
+   */
+  public void testFailedRewriteDropsState_ExpectPass() throws Exception {
+    server.addRows(0, 30);
+    assertEquals(SuitcaseTask.okCode, newTask(false).blockingExecute());
+    assertTrue(Files.exists(getExportStatePath()));
+
+    server.failPage = server.pageRequests + 1;
+    assertEquals(SuitcaseTask.errorCode, newTask(false).blockingExecute());
+    assertFalse(Files.exists(getExportStatePath()));
+
+    // nothing to refresh from, downloaded in full
+    server.failPage = 0;
+    server.sinceDataETags.clear();
+    DownloadTask task = newTask(false);
+    task.setIncremental(true);
+    assertEquals(SuitcaseTask.okCode, task.blockingExecute());
+    assertTrue(server.sinceDataETags.isEmpty());
+    assertEquals(server.rows, readValues());
+    assertEquals(server.getDataETag(), readExportState());
+  }
+
+  private DownloadTask newTask(boolean streaming) throws JSONException {
+    ODKCsv csv = new ODKCsv(
+        new AttachmentManager(aggInfo, TABLE_ID, dir.toString(), server), aggInfo, TABLE_ID
+    );
+    DownloadTask task = new DownloadTask(aggInfo, csv, csvConfig, dir.toString(), false,
+        streaming);
+    task.setSyncWrapper(server);
+    return task;
+  }
+
+  private Path getCsvPath() {
+    return FileUtils.getCSVPath(aggInfo, TABLE_ID, csvConfig, dir.toString());
+  }
+
+  private Path getCheckpointPath() {
+    return FileUtils.getCheckpointPath(aggInfo, TABLE_ID, csvConfig, dir.toString());
+  }
+
+  private Path getExportStatePath() {
+    return FileUtils.getExportStatePath(aggInfo, TABLE_ID, csvConfig, dir.toString());
+  }
+
+  private String readExportState() throws IOException {
+    Properties state = new Properties();
+    Reader reader = Files.newBufferedReader(getExportStatePath(), StandardCharsets.UTF_8);
+    try {
+      state.load(reader);
+    } finally {
+      reader.close();
+    }
+    return state.getProperty("dataETag");
+  }
+
+  private List<String[]> readCsv() throws IOException {
+    List<String[]> lines = new ArrayList<String[]>();
+    RFC4180CsvReader reader =
+        new RFC4180CsvReader(Files.newBufferedReader(getCsvPath(), StandardCharsets.UTF_8));
+    try {
+      String[] line;
+      while ((line = reader.readNext()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  /*
+   * _id -> value column of each row, in csv order, every _id once
+   */
+  private Map<String, String> readValues() throws IOException {
+    List<String[]> lines = readCsv();
+    List<String> header = Arrays.asList(lines.get(0));
+    int idIndex = header.indexOf(SyncClient.ID_ROW_DEF);
+    int valueIndex = header.indexOf("value");
+
+    Map<String, String> values = new LinkedHashMap<String, String>();
+    for (String[] line : lines.subList(1, lines.size())) {
+      assertNull(line[idIndex], values.put(line[idIndex], line[valueIndex]));
+    }
+    return values;
+  }
+
+  /*
+   * Serves its rows in insertion order, PAGE_SIZE at a time, and the changes since a dataETag
+   * in the order they were made. The dataETag counts changes.
+   */
+  private static class FakeServer extends SyncWrapper {
+    //_id -> value, null once deleted
+    private final Map<String, String> rows = new LinkedHashMap<String, String>();
+    private final List<JSONObject> changes = new ArrayList<JSONObject>();
+    private final List<String> cursors = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> sinceDataETags =
+        Collections.synchronizedList(new ArrayList<String>());
+    private int pageRequests;
+    //page answered with null like SyncClient after an error, counting from 1, 0 for none
+    private int failPage;
+
+    synchronized void addRows(int from, int to) throws JSONException {
+      for (int i = from; i < to; i++) {
+        change("uuid:" + i, "v" + i);
+      }
+    }
+
+    synchronized void change(String rowId, String value) throws JSONException {
+      rows.put(rowId, value);
+      changes.add(row(rowId, value));
+    }
+
+    synchronized void delete(String rowId) throws JSONException {
+      rows.remove(rowId);
+      JSONObject row = row(rowId, null);
+      row.put("deleted", true);
+      changes.add(row);
+    }
+
+    synchronized String getDataETag() {
+      return "dataETag:" + changes.size();
+    }
+
+    @Override
+    public int getFetchLimit(String tableId) {
+      return PAGE_SIZE;
+    }
+
+    @Override
+    public synchronized JSONObject getRows(String tableId, String cursor, int fetchLimit)
+        throws JSONException {
+      assertEquals(TABLE_ID, tableId);
+      cursors.add(cursor);
+      if (++pageRequests == failPage) {
+        return null;
+      }
+
+      List<JSONObject> current = new ArrayList<JSONObject>();
+      for (Map.Entry<String, String> row : rows.entrySet()) {
+        current.add(row(row.getKey(), row.getValue()));
+      }
+      return page(current, cursor, fetchLimit);
+    }
+
+    @Override
+    public synchronized JSONObject getRowsSince(String tableId, String dataETag, String cursor,
+        int fetchLimit) throws JSONException {
+      assertEquals(TABLE_ID, tableId);
+      cursors.add(cursor);
+      if (cursor == null || cursor.isEmpty()) {
+        sinceDataETags.add(dataETag);
+      }
+      if (++pageRequests == failPage) {
+        return null;
+      }
+
+      int since = Integer.parseInt(dataETag.substring("dataETag:".length()));
+      return page(changes.subList(since, changes.size()), cursor, fetchLimit);
+    }
+
+    private JSONObject page(List<JSONObject> all, String cursor, int fetchLimit)
+        throws JSONException {
+      int offset = cursor == null || cursor.isEmpty() ? 0 : Integer.parseInt(cursor);
+      int end = Math.min(all.size(), offset + fetchLimit);
+
+      JSONArray pageRows = new JSONArray();
+      pageRows.addAll(all.subList(offset, end));
+
+      JSONObject page = new JSONObject();
+      page.put(SyncClient.ROWS_STR_JSON, pageRows);
+      page.put(SyncClient.HAS_MORE_RESULTS_JSON, end < all.size());
+      page.put(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON, String.valueOf(end));
+      page.put(SyncClient.DATA_ETAG_JSON, getDataETag());
+      return page;
+    }
+
+    private static JSONObject row(String rowId, String value) throws JSONException {
+      JSONObject row = new JSONObject();
+      row.put(SyncClient.ID_JSON, rowId);
+      row.put(SyncClient.FORM_ID_JSON, TABLE_ID);
+      row.put(SyncClient.LOCALE_JSON, "en_US");
+      row.put(SyncClient.SAVEPOINT_TYPE_JSON, "COMPLETE");
+      row.put(SyncClient.SAVEPOINT_TIMESTAMP_JSON, "2016-07-21T17:31:02.123000000");
+      row.put(SyncClient.SAVEPOINT_CREATOR_JSON, "mailto:user@example.com");
+      row.put(SyncClient.ROW_ETAG_JSON, "rowETag:" + value);
+
+      JSONObject filterScope = new JSONObject();
+      filterScope.put("type", "DEFAULT");
+      filterScope.put("value", (Object) null);
+      row.put(SyncClient.FILTER_SCOPE_JSON, filterScope);
+
+      JSONObject column = new JSONObject();
+      column.put("column", "value");
+      column.put("value", (Object) value);
+      JSONArray columns = new JSONArray();
+      columns.add(column);
+      row.put(SyncClient.ORDERED_COLUMNS_DEF, columns);
+      return row;
+    }
+  }
+}
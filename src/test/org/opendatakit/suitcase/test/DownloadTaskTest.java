@@ -17,7 +17,7 @@ import org.opendatakit.suitcase.model.ODKCsv;
 import org.opendatakit.suitcase.net.AttachmentManager;
 import org.opendatakit.suitcase.net.DownloadTask;
 import org.opendatakit.suitcase.net.LoginTask;
-import org.opendatakit.suitcase.net.SuitcaseSwingWorker;
+import org.opendatakit.suitcase.net.SuitcaseTask;
 import org.opendatakit.suitcase.net.UpdateTask;
 import org.opendatakit.sync.client.SyncClient;
 
@@ -81,7 +81,7 @@ public class DownloadTaskTest extends TestCase{
       
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       // Check the entire file path
       String fullSavePath = savePath + File.separator + appId + File.separator + 
@@ -99,7 +99,7 @@ public class DownloadTaskTest extends TestCase{
       
       DownloadTask dTask = new DownloadTask(aggInfo, csv, csvConfig, savePath, false);
       retCode = dTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       f = new File(savePath);
       assertTrue(f.exists());
@@ -164,7 +164,7 @@ public class DownloadTaskTest extends TestCase{
 
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       JSONObject result = sc.createTableWithCSV(aggInfo.getServerUrl(), aggInfo.getAppId(),
           testTableId, null, csvFile);
@@ -185,7 +185,7 @@ public class DownloadTaskTest extends TestCase{
       
       UpdateTask updateTask = new UpdateTask(aggInfo, dataPath, version, testTableId, null, false);
       retCode = updateTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       JSONObject res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId,
           tableSchemaETag, null, null, null);
@@ -215,7 +215,7 @@ public class DownloadTaskTest extends TestCase{
       
       DownloadTask dTask = new DownloadTask(aggInfo, csv, csvConfig, savePath, false);
       retCode = dTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       f = new File(savePath);
       assertTrue(f.exists());
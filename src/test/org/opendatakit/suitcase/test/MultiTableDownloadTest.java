@@ -0,0 +1,215 @@
+package org.opendatakit.suitcase.test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+import org.opendatakit.suitcase.model.AggregateInfo;
+import org.opendatakit.suitcase.model.CsvConfig;
+import org.opendatakit.suitcase.model.ODKCsv;
+import org.opendatakit.suitcase.net.AttachmentManager;
+import org.opendatakit.suitcase.net.DownloadTask;
+import org.opendatakit.suitcase.net.MultiTableDownload;
+import org.opendatakit.suitcase.net.SuitcaseTask;
+import org.opendatakit.suitcase.net.SyncWrapper;
+import org.opendatakit.suitcase.utils.FileUtils;
+
+import junit.framework.TestCase;
+
+public class MultiTableDownloadTest extends TestCase {
+  private static final String BROKEN_TABLE_ID = "broken";
+  private static final String UNKNOWN_TABLE_ID = "unknown";
+
+  private AggregateInfo aggInfo;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    aggInfo = new AggregateInfo("http://localhost/", "default", "user", "password");
+    for (String tableId : new String[] {"survey_b", "census", "survey_a", "plots", "survey_10"}) {
+      aggInfo.addTableId(tableId, "schemaETag:" + tableId);
+    }
+  }
+
+  public void testResolveTableIds_ExpectPass() throws Exception {
+    assertEquals(Arrays.asList("census"),
+        MultiTableDownload.resolveTableIds(aggInfo, "census"));
+    assertEquals(Arrays.asList("survey_10", "survey_a", "survey_b"),
+        MultiTableDownload.resolveTableIds(aggInfo, "survey_*"));
+    assertEquals(Arrays.asList("survey_a", "survey_b"),
+        MultiTableDownload.resolveTableIds(aggInfo, "survey_?"));
+    assertEquals(Arrays.asList("census", "plots"),
+        MultiTableDownload.resolveTableIds(aggInfo, "[cp]*"));
+    assertEquals(Arrays.asList("census", "plots", "survey_10", "survey_a", "survey_b"),
+        MultiTableDownload.resolveTableIds(aggInfo, "*"));
+  }
+
+  /*
+   * Entries keep their order, duplicates are dropped, plain ids are kept even when unknown
+   */
+  public void testResolveTableIdList_ExpectPass() throws Exception {
+    assertEquals(Arrays.asList("plots", "survey_a", "census", "missing"),
+        MultiTableDownload.resolveTableIds(aggInfo, " plots, survey_a ,,census,survey_a,missing"));
+    assertEquals(Arrays.asList("plots", "survey_10", "survey_a", "survey_b"),
+        MultiTableDownload.resolveTableIds(aggInfo, "plots,survey_*,survey_a"));
+    assertEquals(Collections.<String>emptyList(),
+        MultiTableDownload.resolveTableIds(aggInfo, "nothing_*"));
+  }
+
+  public void testIsMultiTable_ExpectPass() throws Exception {
+    assertFalse(MultiTableDownload.isMultiTable("census"));
+    assertTrue(MultiTableDownload.isMultiTable("census,plots"));
+    assertTrue(MultiTableDownload.isMultiTable("survey_*"));
+    assertTrue(MultiTableDownload.isMultiTable("survey_?"));
+    assertTrue(MultiTableDownload.isMultiTable("[cp]lots"));
+  }
+
+  public void testNoWorkers_ExpectFail() throws Exception {
+    try {
+      new MultiTableDownload(0);
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /*
+   * A table that fails, and one whose task can't even be created, don't stop the others
+   */
+  public void testFailureIsolation_ExpectPass() throws Exception {
+    aggInfo.addTableId(BROKEN_TABLE_ID, "schemaETag:" + BROKEN_TABLE_ID);
+    final Path dir = Files.createTempDirectory("multiTableDownload");
+    final FakeServer server = new FakeServer();
+    final CsvConfig csvConfig = new CsvConfig();
+
+    try {
+      List<String> tableIds =
+          Arrays.asList("census", BROKEN_TABLE_ID, "plots", UNKNOWN_TABLE_ID, "survey_a");
+      List<MultiTableDownload.TableResult> results = new MultiTableDownload(2).run(tableIds,
+          new MultiTableDownload.TaskFactory() {
+            @Override
+            public DownloadTask newTask(String tableId) {
+              try {
+                ODKCsv csv = new ODKCsv(
+                    new AttachmentManager(aggInfo, tableId, dir.toString(), server),
+                    aggInfo, tableId
+                );
+                DownloadTask task =
+                    new DownloadTask(aggInfo, csv, csvConfig, dir.toString(), false);
+                task.setSyncWrapper(server);
+                return task;
+              } catch (JSONException e) {
+                throw new IllegalStateException(e);
+              }
+            }
+          }
+      );
+
+      assertEquals(tableIds.size(), results.size());
+      int[] rows = {25, 0, 3, 0, 12};
+      String[] statuses = {
+          MultiTableDownload.STATUS_OK, MultiTableDownload.STATUS_ERROR,
+          MultiTableDownload.STATUS_OK, MultiTableDownload.STATUS_ERROR,
+          MultiTableDownload.STATUS_OK
+      };
+      for (int i = 0; i < results.size(); i++) {
+        MultiTableDownload.TableResult result = results.get(i);
+        assertEquals(tableIds.get(i), result.getTableId());
+        assertEquals(statuses[i], result.getStatus());
+        assertEquals(rows[i], result.getRows());
+        assertEquals(MultiTableDownload.STATUS_OK.equals(statuses[i]) ?
+            SuitcaseTask.okCode : SuitcaseTask.errorCode, result.getReturnCode());
+
+        if (rows[i] > 0) {
+          Path csvPath = FileUtils.getCSVPath(aggInfo, tableIds.get(i), csvConfig, dir.toString());
+          // header and 1 line per row
+          assertEquals(rows[i] + 1, Files.readAllLines(csvPath, StandardCharsets.UTF_8).size());
+        }
+      }
+
+      List<String> summary = MultiTableDownload.getSummary(results);
+      assertEquals(tableIds.size() + 2, summary.size());
+      assertTrue(summary.get(0).startsWith("Table ID"));
+      for (int i = 0; i < results.size(); i++) {
+        List<String> fields = Arrays.asList(summary.get(i + 1).trim().split(" +"));
+        assertEquals(tableIds.get(i), fields.get(0));
+        assertEquals(statuses[i], fields.get(1));
+        assertEquals(String.valueOf(rows[i]), fields.get(2));
+      }
+      assertEquals(Arrays.asList("Total", "40"),
+          Arrays.asList(summary.get(summary.size() - 1).trim().split(" +")));
+    } finally {
+      TestUtilities.deleteRecursive(dir);
+    }
+  }
+
+  public void testNoTables_ExpectPass() throws Exception {
+    assertTrue(new MultiTableDownload(2).run(Collections.<String>emptyList(), null).isEmpty());
+    assertEquals(2, MultiTableDownload.getSummary(
+        Collections.<MultiTableDownload.TableResult>emptyList()).size());
+  }
+
+  /*
+   * Serves census, plots and survey_a in 1 page each, fails every request for broken
+   */
+  private static class FakeServer extends SyncWrapper {
+    @Override
+    public JSONObject getRows(String tableId, String cursor, int fetchLimit)
+        throws JSONException {
+      int count;
+      if (tableId.equals("census")) {
+        count = 25;
+      } else if (tableId.equals("plots")) {
+        count = 3;
+      } else if (tableId.equals("survey_a")) {
+        count = 12;
+      } else {
+        // like SyncClient after an error
+        return null;
+      }
+
+      JSONArray rows = new JSONArray();
+      for (int i = 0; i < count; i++) {
+        rows.add(row(tableId, i));
+      }
+
+      JSONObject page = new JSONObject();
+      page.put(SyncClient.ROWS_STR_JSON, rows);
+      page.put(SyncClient.HAS_MORE_RESULTS_JSON, false);
+      page.put(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON, String.valueOf(count));
+      page.put(SyncClient.DATA_ETAG_JSON, "dataETag:" + tableId);
+      return page;
+    }
+
+    private static JSONObject row(String tableId, int index) throws JSONException {
+      JSONObject row = new JSONObject();
+      row.put(SyncClient.ID_JSON, "uuid:" + index);
+      row.put(SyncClient.FORM_ID_JSON, tableId);
+      row.put(SyncClient.LOCALE_JSON, "en_US");
+      row.put(SyncClient.SAVEPOINT_TYPE_JSON, "COMPLETE");
+      row.put(SyncClient.SAVEPOINT_TIMESTAMP_JSON, "2016-07-21T17:31:02.123000000");
+      row.put(SyncClient.SAVEPOINT_CREATOR_JSON, "mailto:user@example.com");
+      row.put(SyncClient.ROW_ETAG_JSON, "rowETag:" + index);
+
+      JSONObject filterScope = new JSONObject();
+      filterScope.put("type", "DEFAULT");
+      filterScope.put("value", (Object) null);
+      row.put(SyncClient.FILTER_SCOPE_JSON, filterScope);
+
+      JSONObject column = new JSONObject();
+      column.put("column", "value");
+      column.put("value", (Object) (tableId + index));
+      JSONArray columns = new JSONArray();
+      columns.add(column);
+      row.put(SyncClient.ORDERED_COLUMNS_DEF, columns);
+      return row;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package org.opendatakit.suitcase.test;
+
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+import org.opendatakit.suitcase.model.AggregateInfo;
+import org.opendatakit.suitcase.model.CsvConfig;
+import org.opendatakit.suitcase.model.ODKCsv;
+import org.opendatakit.suitcase.net.AttachmentManager;
+
+import junit.framework.TestCase;
+
+/*
+ * Rows read back from ODKCsv's columnar pages, dictionary encoded columns included
+ */
+public class ODKCsvStorageTest extends TestCase {
+  private static final String TABLE_ID = "storage";
+  // StringDictionary's cap
+  private static final int MAX_ENTRIES = 1 << 16;
+
+  private Path dir;
+  private AggregateInfo aggInfo;
+  private CsvConfig csvConfig;
+  private ODKCsv csv;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("odkCsvStorage");
+    aggInfo = new AggregateInfo("http://localhost/", "default", "user", "password");
+    aggInfo.addTableId(TABLE_ID, "schemaETag:1");
+    csvConfig = new CsvConfig();
+    csv = new ODKCsv(new AttachmentManager(aggInfo, TABLE_ID, dir.toString()), aggInfo, TABLE_ID);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtilities.deleteRecursive(dir);
+    super.tearDown();
+  }
+
+  /*
+   * Repeated, empty, null and non-ASCII values across pages of different sizes
+   */
+  public void testRoundTrip_ExpectPass() throws Exception {
+    String[] creators = {"mailto:a@example.com", "", "mailto:\u00e9l\u00e8ve@example.com"};
+    String[] values = {"plain", "", null, "\u00fcber \u2713", "\ud83d\ude00 emoji", "a,\"b\"\n"};
+
+    int[] pageSizes = {1, 7, 100, 3};
+    int index = 0;
+    for (int pageSize : pageSizes) {
+      JSONArray rows = new JSONArray();
+      for (int i = 0; i < pageSize; i++, index++) {
+        rows.add(row(index, creators[index % creators.length], values[index % values.length]));
+      }
+      assertTrue(csv.tryAdd(rows));
+    }
+    assertEquals(index, csv.getSize());
+
+    String[] header = csv.getHeader(csvConfig);
+    int creatorIndex = indexOf(header, "_savepoint_creator");
+    int valueIndex = indexOf(header, "value");
+    int contentTypeIndex = indexOf(header, "photo_contentType");
+    for (int i = 0; i < index; i++) {
+      String[] line = csv.get(i, csvConfig);
+      assertEquals(header.length, line.length);
+      assertEquals("uuid:" + i, line[indexOf(header, "_id")]);
+      assertEquals(TABLE_ID, line[indexOf(header, "_form_id")]);
+      assertEquals(creators[i % creators.length], line[creatorIndex]);
+      String value = values[i % values.length];
+      assertEquals(value == null ? "null" : value, line[valueIndex]);
+      assertEquals(contentType(i), line[contentTypeIndex]);
+    }
+
+    // ranges crossing pages read the same as single rows
+    List<String[]> lines = csv.get(0, index, csvConfig);
+    for (int i = 0; i < index; i++) {
+      assertTrue(Arrays.equals(csv.get(i, csvConfig), lines.get(i)));
+    }
+    assertEquals(7, csv.get(5, 12, csvConfig).size());
+  }
+
+  /*
+   * A column with more distinct values than a dictionary holds: the page that fills it up
+   * switches to plain values partway through, later pages start out with plain values and
+   * earlier pages still decode through the dictionary
+   */
+  public void testDictionaryCap_ExpectPass() throws Exception {
+    int[] pageSizes = {MAX_ENTRIES / 2, MAX_ENTRIES / 2 + 1000, 500};
+    int index = 0;
+    for (int pageSize : pageSizes) {
+      JSONArray rows = new JSONArray();
+      for (int i = 0; i < pageSize; i++, index++) {
+        rows.add(row(index, creator(index), "v" + index));
+      }
+      assertTrue(csv.tryAdd(rows));
+    }
+    // the savepoint creator filled up during the second page
+    assertEquals(1, countFullDictionaries());
+
+    // values seen before the dictionary filled up are still encoded in the last page
+    JSONArray rows = new JSONArray();
+    rows.add(row(index, creator(0), "known"));
+    rows.add(row(index + 1, creator(index + 1), "new"));
+    index += 2;
+    assertTrue(csv.tryAdd(rows));
+    assertEquals(1, countFullDictionaries());
+
+    String[] header = csv.getHeader(csvConfig);
+    int creatorIndex = indexOf(header, "_savepoint_creator");
+    int contentTypeIndex = indexOf(header, "photo_contentType");
+    for (int i = 0; i < index; i++) {
+      String[] line = csv.get(i, csvConfig);
+      assertEquals("uuid:" + i, line[indexOf(header, "_id")]);
+      assertEquals(i == index - 2 ? creator(0) : creator(i), line[creatorIndex]);
+      assertEquals(contentType(i), line[contentTypeIndex]);
+    }
+  }
+
+  /*
+   * Number of dictionaries holding MAX_ENTRIES values, none may hold more
+   */
+  private int countFullDictionaries() throws Exception {
+    Field dictionariesField = ODKCsv.class.getDeclaredField("dictionaries");
+    dictionariesField.setAccessible(true);
+    Object[] dictionaries = (Object[]) dictionariesField.get(csv);
+
+    int dictionaryCount = 0;
+    int fullCount = 0;
+    for (Object dictionary : dictionaries) {
+      if (dictionary != null) {
+        Field valuesField = dictionary.getClass().getDeclaredField("values");
+        valuesField.setAccessible(true);
+        int size = ((List<?>) valuesField.get(dictionary)).size();
+        assertTrue(String.valueOf(size), size <= MAX_ENTRIES);
+        dictionaryCount++;
+        if (size == MAX_ENTRIES) {
+          fullCount++;
+        }
+      }
+    }
+    // metadata and the content type column
+    assertTrue(dictionaryCount > 1);
+    return fullCount;
+  }
+
+  private static int indexOf(String[] header, String column) {
+    int index = Arrays.asList(header).indexOf(column);
+    assertTrue(column, index >= 0);
+    return index;
+  }
+
+  private static String creator(int index) {
+    return "mailto:user" + index + "@example.com";
+  }
+
+  private static String contentType(int index) {
+    return index % 2 == 0 ? "image/jpeg" : "image/png";
+  }
+
+  private static JSONObject row(int index, String creator, String value) throws JSONException {
+    JSONObject row = new JSONObject();
+    row.put(SyncClient.ID_JSON, "uuid:" + index);
+    row.put(SyncClient.FORM_ID_JSON, TABLE_ID);
+    row.put(SyncClient.LOCALE_JSON, "en_US");
+    row.put(SyncClient.SAVEPOINT_TYPE_JSON, "COMPLETE");
+    row.put(SyncClient.SAVEPOINT_TIMESTAMP_JSON, "2016-07-21T17:31:02.123000000");
+    row.put(SyncClient.SAVEPOINT_CREATOR_JSON, creator);
+    row.put(SyncClient.ROW_ETAG_JSON, "rowETag:" + index);
+
+    JSONObject filterScope = new JSONObject();
+    filterScope.put("type", "DEFAULT");
+    filterScope.put("value", (Object) null);
+    row.put(SyncClient.FILTER_SCOPE_JSON, filterScope);
+
+    JSONArray columns = new JSONArray();
+    String[][] cells = {{"value", value}, {"photo_contentType", contentType(index)}};
+    for (String[] cell : cells) {
+      JSONObject column = new JSONObject();
+      column.put("column", cell[0]);
+      column.put("value", (Object) cell[1]);
+      columns.add(column);
+    }
+    row.put(SyncClient.ORDERED_COLUMNS_DEF, columns);
+    return row;
+  }
+}
@@ -0,0 +1,208 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.opendatakit.suitcase.utils.CsvFileWriter;
+import org.opendatakit.suitcase.utils.ParallelGzipOutputStream;
+
+import junit.framework.TestCase;
+
+public class ParallelGzipOutputStreamTest extends TestCase {
+  private static final int BLOCK_SIZE = 1000;
+
+  public void testMultipleBlocks_ExpectPass() throws Exception {
+    byte[] data = newData(50 * BLOCK_SIZE + 123);
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    ParallelGzipOutputStream gzip = newStream(compressed);
+    // single bytes and arrays of every size across block boundaries
+    int off = 0;
+    for (int len = 0; off < data.length; len = (len + 137) % (3 * BLOCK_SIZE)) {
+      if (len == 0) {
+        gzip.write(data[off++]);
+      } else {
+        int written = Math.min(len, data.length - off);
+        gzip.write(data, off, written);
+        off += written;
+      }
+    }
+    gzip.close();
+
+    assertTrue(Arrays.equals(data, gunzip(compressed.toByteArray())));
+  }
+
+  public void testFlushAndFinish_ExpectPass() throws Exception {
+    byte[] data = newData(20 * BLOCK_SIZE);
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    ParallelGzipOutputStream gzip = newStream(compressed);
+    for (int i = 0; i < 20; i++) {
+      gzip.write(data, i * BLOCK_SIZE, BLOCK_SIZE / 2);
+      gzip.flush();
+      gzip.write(data, i * BLOCK_SIZE + BLOCK_SIZE / 2, BLOCK_SIZE / 2);
+      if (i % 3 == 0) {
+        gzip.finish();
+        // a finished member is a complete gzip file
+        assertTrue(Arrays.equals(Arrays.copyOf(data, (i + 1) * BLOCK_SIZE),
+            gunzip(compressed.toByteArray())));
+        // nothing written since, nothing to finish
+        int size = compressed.size();
+        gzip.finish();
+        assertEquals(size, compressed.size());
+      }
+    }
+    gzip.close();
+
+    assertTrue(Arrays.equals(data, gunzip(compressed.toByteArray())));
+  }
+
+  public void testEmpty_ExpectPass() throws Exception {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    newStream(compressed).close();
+
+    assertEquals(0, gunzip(compressed.toByteArray()).length);
+  }
+
+  /*
+   * Output cut back to where it was at a finish, then continued by a new stream, like a resumed
+   * download does
+   */
+  public void testTruncateAfterFinishAndResume_ExpectPass() throws Exception {
+    byte[] data = newData(10 * BLOCK_SIZE);
+    int finishedAt = 4 * BLOCK_SIZE + 10;
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    ParallelGzipOutputStream gzip = newStream(compressed);
+    gzip.write(data, 0, finishedAt);
+    gzip.finish();
+    int checkpoint = compressed.size();
+    // interrupted partway through the next member
+    gzip.write(data, finishedAt, 3 * BLOCK_SIZE);
+    gzip.flush();
+    assertTrue(compressed.size() > checkpoint);
+
+    ByteArrayOutputStream resumed = new ByteArrayOutputStream();
+    resumed.write(compressed.toByteArray(), 0, checkpoint);
+    gzip = newStream(resumed);
+    gzip.write(data, finishedAt, data.length - finishedAt);
+    gzip.close();
+
+    assertTrue(Arrays.equals(data, gunzip(resumed.toByteArray())));
+  }
+
+  /*
+   * Streams written at the same time on 1 pool, which is still usable after they are closed
+   */
+  public void testSharedExecutor_ExpectPass() throws Exception {
+    byte[] data = newData(30 * BLOCK_SIZE + 7);
+    ExecutorService executor = ParallelGzipOutputStream.newExecutor(2);
+
+    try {
+      for (int round = 0; round < 2; round++) {
+        ByteArrayOutputStream[] compressed = new ByteArrayOutputStream[3];
+        ParallelGzipOutputStream[] streams = new ParallelGzipOutputStream[compressed.length];
+        for (int i = 0; i < streams.length; i++) {
+          compressed[i] = new ByteArrayOutputStream();
+          streams[i] = new ParallelGzipOutputStream(compressed[i], executor, 2,
+              Deflater.DEFAULT_COMPRESSION, BLOCK_SIZE);
+        }
+
+        for (int off = 0; off < data.length; off += BLOCK_SIZE) {
+          for (ParallelGzipOutputStream stream : streams) {
+            stream.write(data, off, Math.min(BLOCK_SIZE, data.length - off));
+          }
+        }
+        for (int i = 0; i < streams.length; i++) {
+          streams[i].close();
+          assertTrue(Arrays.equals(data, gunzip(compressed[i].toByteArray())));
+        }
+        assertFalse(executor.isShutdown());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testCsvFileWriterResume_ExpectPass() throws Exception {
+    Path path = Files.createTempFile("parallelGzip", ".csv.gz");
+    try {
+      CsvFileWriter writer = new CsvFileWriter(path, false, CsvFileWriter.SyncPolicy.NONE,
+          CsvFileWriter.DEFAULT_BUFFER_SIZE, 2);
+      StringBuilder expected = new StringBuilder();
+      writeRows(writer, 0, 500, expected);
+      writer.flush();
+      long checkpoint = writer.size();
+      writeRows(writer, 500, 800, new StringBuilder());
+      writer.close();
+
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+      try {
+        channel.truncate(checkpoint);
+      } finally {
+        channel.close();
+      }
+
+      writer = new CsvFileWriter(path, true, CsvFileWriter.SyncPolicy.NONE,
+          CsvFileWriter.DEFAULT_BUFFER_SIZE, 2);
+      writeRows(writer, 500, 1000, expected);
+      writer.close();
+
+      assertEquals(expected.toString(),
+          new String(gunzip(Files.readAllBytes(path)), StandardCharsets.UTF_8));
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  private static ParallelGzipOutputStream newStream(ByteArrayOutputStream out) {
+    return new ParallelGzipOutputStream(out, 3, Deflater.DEFAULT_COMPRESSION, BLOCK_SIZE);
+  }
+
+  private static void writeRows(CsvFileWriter writer, int from, int to, StringBuilder written)
+      throws IOException {
+    for (int i = from; i < to; i++) {
+      writer.writeNext(new String[] {String.valueOf(i), "row " + i});
+      written.append(i).append(",row ").append(i).append("\r\n");
+    }
+  }
+
+  /*
+   * Half repetitive text, half random bytes, so blocks compress very differently
+   */
+  private static byte[] newData(int length) {
+    byte[] data = new byte[length];
+    Random random = new Random(length);
+    for (int i = 0; i < length; i++) {
+      data[i] = (i / 700) % 2 == 0 ? (byte) ('a' + i % 7) : (byte) random.nextInt();
+    }
+    return data;
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+}
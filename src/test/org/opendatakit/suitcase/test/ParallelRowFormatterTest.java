@@ -0,0 +1,221 @@
+package org.opendatakit.suitcase.test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+import org.opendatakit.suitcase.model.AggregateInfo;
+import org.opendatakit.suitcase.model.CsvConfig;
+import org.opendatakit.suitcase.model.ODKCsv;
+import org.opendatakit.suitcase.net.AttachmentManager;
+import org.opendatakit.suitcase.net.ParallelRowFormatter;
+
+import junit.framework.TestCase;
+
+/*
+ * Chunks formatted on several threads come back in the order of the csv
+ */
+public class ParallelRowFormatterTest extends TestCase {
+  private static final String TABLE_ID = "formatter";
+  private static final int[] PAGE_SIZES = {1, 300, 17, 64, 2};
+
+  private Path dir;
+  private AggregateInfo aggInfo;
+  private CsvConfig csvConfig;
+  private ODKCsv csv;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("parallelRowFormatter");
+    aggInfo = new AggregateInfo("http://localhost/", "default", "user", "password");
+    aggInfo.addTableId(TABLE_ID, "schemaETag:1");
+    csvConfig = new CsvConfig(false, false, true);
+    csv = newCsv();
+
+    int index = 0;
+    for (int pageSize : PAGE_SIZES) {
+      JSONArray rows = new JSONArray();
+      for (int i = 0; i < pageSize; i++) {
+        rows.add(row(index++));
+      }
+      assertTrue(csv.tryAdd(rows));
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtilities.deleteRecursive(dir);
+    super.tearDown();
+  }
+
+  /*
+   * Same lines as the sequential iterator for chunks smaller than, across and larger than pages,
+   * with chunks finishing out of order
+   */
+  public void testOrder_ExpectPass() throws Exception {
+    List<List<String>> expected = new ArrayList<List<String>>();
+    ODKCsv.ODKCSVIterator iterator = csv.getODKCSVIterator();
+    while (iterator.hasNext()) {
+      expected.add(Arrays.asList(iterator.next(csvConfig)));
+    }
+
+    for (int threads : new int[] {1, 2, 4}) {
+      ExecutorService executor = newShuffledExecutor(threads);
+      try {
+        int[] chunkSizes = {
+            1, 7, ParallelRowFormatter.MIN_CHUNK_SIZE, 100,
+            ParallelRowFormatter.getChunkSize(csv.getSize(), threads), csv.getSize() + 1
+        };
+        for (int chunkSize : chunkSizes) {
+          ParallelRowFormatter formatter =
+              new ParallelRowFormatter(csv, csvConfig, executor, threads, chunkSize);
+
+          List<List<String>> lines = new ArrayList<List<String>>();
+          List<String[]> chunk;
+          while ((chunk = formatter.nextChunk()) != null) {
+            assertTrue(chunk.size() <= chunkSize);
+            for (String[] line : chunk) {
+              lines.add(Arrays.asList(line));
+            }
+          }
+
+          assertEquals(threads + " threads, chunks of " + chunkSize, expected, lines);
+          assertNull(formatter.nextChunk());
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  public void testCancel_ExpectPass() throws Exception {
+    ExecutorService executor = newShuffledExecutor(2);
+    try {
+      ParallelRowFormatter formatter = new ParallelRowFormatter(csv, csvConfig, executor, 2, 10);
+      List<String[]> chunk = formatter.nextChunk();
+      assertEquals(10, chunk.size());
+      assertEquals("uuid:0", chunk.get(0)[0]);
+
+      formatter.cancel();
+      assertNull(formatter.nextChunk());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testEmptyCsv_ExpectPass() throws Exception {
+    ExecutorService executor = ParallelRowFormatter.newExecutor(2);
+    try {
+      assertNull(new ParallelRowFormatter(newCsv(), csvConfig, executor, 2, 10).nextChunk());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testGetChunkSize_ExpectPass() throws Exception {
+    assertEquals(ParallelRowFormatter.MIN_CHUNK_SIZE, ParallelRowFormatter.getChunkSize(0, 4));
+    assertEquals(ParallelRowFormatter.MIN_CHUNK_SIZE, ParallelRowFormatter.getChunkSize(50, 4));
+    // 2 chunks per thread
+    assertEquals(125, ParallelRowFormatter.getChunkSize(1000, 4));
+    assertEquals(126, ParallelRowFormatter.getChunkSize(1001, 4));
+    assertEquals(ParallelRowFormatter.MAX_CHUNK_SIZE,
+        ParallelRowFormatter.getChunkSize(100000, 4));
+    assertEquals(ParallelRowFormatter.getChunkSize(1000, 1),
+        ParallelRowFormatter.getChunkSize(1000, 0));
+  }
+
+  /*
+   * Attachments can't be touched from several threads
+   */
+  public void testNotParallelizable_ExpectFail() throws Exception {
+    ExecutorService executor = ParallelRowFormatter.newExecutor(1);
+    try {
+      for (CsvConfig config : new CsvConfig[] {
+          new CsvConfig(true, false, false), new CsvConfig(false, true, false)}) {
+        try {
+          new ParallelRowFormatter(csv, config, executor, 1, 10);
+          fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+          // expected
+        }
+      }
+
+      try {
+        new ParallelRowFormatter(csv, csvConfig, executor, 1, 0);
+        fail("IllegalArgumentException expected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private ODKCsv newCsv() throws JSONException {
+    return new ODKCsv(new AttachmentManager(aggInfo, TABLE_ID, dir.toString()), aggInfo, TABLE_ID);
+  }
+
+  /*
+   * Holds each chunk back for a random time, so later chunks often finish first
+   */
+  private static ExecutorService newShuffledExecutor(int threads) {
+    final Random random = new Random(threads);
+
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>()) {
+      @Override
+      protected void beforeExecute(Thread t, Runnable r) {
+        try {
+          int delay;
+          synchronized (random) {
+            delay = random.nextInt(3);
+          }
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          t.interrupt();
+        }
+        super.beforeExecute(t, r);
+      }
+    };
+  }
+
+  private static JSONObject row(int index) throws JSONException {
+    JSONObject row = new JSONObject();
+    row.put(SyncClient.ID_JSON, "uuid:" + index);
+    row.put(SyncClient.FORM_ID_JSON, TABLE_ID);
+    row.put(SyncClient.LOCALE_JSON, "en_US");
+    row.put(SyncClient.SAVEPOINT_TYPE_JSON, "COMPLETE");
+    row.put(SyncClient.SAVEPOINT_TIMESTAMP_JSON, "2016-07-21T17:31:02.123000000");
+    row.put(SyncClient.SAVEPOINT_CREATOR_JSON, "mailto:user" + index % 4 + "@example.com");
+    row.put(SyncClient.ROW_ETAG_JSON, "rowETag:" + index);
+    row.put("createUser", "mailto:creator@example.com");
+
+    JSONObject filterScope = new JSONObject();
+    filterScope.put("type", "DEFAULT");
+    filterScope.put("value", (Object) null);
+    row.put(SyncClient.FILTER_SCOPE_JSON, filterScope);
+
+    JSONArray columns = new JSONArray();
+    String[][] cells = {{"value", "value " + index}, {"count", String.valueOf(index * 7)}};
+    for (String[] cell : cells) {
+      JSONObject column = new JSONObject();
+      column.put("column", cell[0]);
+      column.put("value", (Object) cell[1]);
+      columns.add(column);
+    }
+    row.put(SyncClient.ORDERED_COLUMNS_DEF, columns);
+    return row;
+  }
+}
@@ -0,0 +1,160 @@
+package org.opendatakit.suitcase.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+import org.opendatakit.suitcase.net.PartitionedRowFetcher;
+import org.opendatakit.suitcase.net.RowPageFetcher;
+import org.opendatakit.suitcase.net.SyncWrapper;
+
+import junit.framework.TestCase;
+
+public class PartitionedRowFetcherTest extends TestCase {
+  private static final String TABLE_ID = "slices";
+  private static final int SLICES = 4;
+  private static final int PAGE_SIZE = 100;
+
+  /*
+   * First page only holds the oldest rows, the rest are spread over a year.
+   * Every slice should still get a fair share of the rows.
+   */
+  public void testRowsSpreadAcrossSlices_ExpectPass() throws Exception {
+    List<String> times = new ArrayList<>();
+    // first page: 100 rows within the first hour of 2016
+    for (int i = 0; i < PAGE_SIZE; i++) {
+      times.add(String.format("2016-01-01T00:%02d:%02d.000000000", i / 60, i % 60));
+    }
+    // then 1 row a day for the rest of the year
+    for (int day = 1; day < 366; day++) {
+      times.add(String.format("2016-%02d-%02dT12:00:00.000000000",
+          dayToMonth(day), dayOfMonth(day)));
+    }
+
+    FakeServer server = new FakeServer(times);
+    PartitionedRowFetcher fetcher = new PartitionedRowFetcher(server, TABLE_ID, SLICES);
+    fetcher.start();
+
+    Set<String> rowIds = new HashSet<>();
+    RowPageFetcher.Page page;
+    while ((page = fetcher.take()) != null) {
+      JSONArray rows = page.getRows();
+      for (int i = 0; i < rows.size(); i++) {
+        assertTrue("row handed over twice",
+            rowIds.add(rows.getJSONObject(i).getString(SyncClient.ID_JSON)));
+      }
+    }
+
+    assertEquals(times.size(), rowIds.size());
+    assertEquals(SLICES, server.rowsPerSlice.size());
+
+    // with the range taken from the first page only, the last slice got 365 of 465 rows
+    for (Map.Entry<String, Integer> slice : server.rowsPerSlice.entrySet()) {
+      assertTrue("slice " + slice.getKey() + " got " + slice.getValue() + " rows",
+          slice.getValue() < times.size() / 2);
+    }
+  }
+
+  public void testSingleTimestamp_ExpectPass() throws Exception {
+    List<String> times = new ArrayList<>();
+    for (int i = 0; i < PAGE_SIZE * 3; i++) {
+      times.add("2016-06-01T00:00:00.000000000");
+    }
+
+    FakeServer server = new FakeServer(times);
+    PartitionedRowFetcher fetcher = new PartitionedRowFetcher(server, TABLE_ID, SLICES);
+    fetcher.start();
+
+    int rowCount = 0;
+    RowPageFetcher.Page page;
+    while ((page = fetcher.take()) != null) {
+      rowCount += page.getRows().size();
+    }
+
+    assertEquals(times.size(), rowCount);
+  }
+
+  private static int dayToMonth(int day) {
+    return Math.min(12, day / 31 + 1);
+  }
+
+  private static int dayOfMonth(int day) {
+    return Math.min(28, day % 31 + 1);
+  }
+
+  /*
+   * Serves rows in the order given, time range queries include both ends like the server does
+   */
+  private static class FakeServer extends SyncWrapper {
+    private final List<String> times;
+    //rows returned by the range queries of each slice, keyed by start time
+    private final Map<String, Integer> rowsPerSlice;
+
+    FakeServer(List<String> times) {
+      this.times = times;
+      this.rowsPerSlice = new HashMap<>();
+    }
+
+    @Override
+    public JSONObject getRows(String tableId, String cursor, int fetchLimit)
+        throws JSONException {
+      List<Integer> matching = new ArrayList<>();
+      for (int i = 0; i < this.times.size(); i++) {
+        matching.add(i);
+      }
+      return page(matching, cursor, PAGE_SIZE);
+    }
+
+    @Override
+    public JSONObject getRowsInSavepointRange(String tableId, String startTime, String endTime,
+        String cursor, int fetchLimit) throws JSONException {
+      List<Integer> matching = new ArrayList<>();
+      for (int i = 0; i < this.times.size(); i++) {
+        String time = this.times.get(i).replace('T', ':');
+        if (time.compareTo(startTime) >= 0 && time.compareTo(endTime) <= 0) {
+          matching.add(i);
+        }
+      }
+
+      JSONObject page = page(matching, cursor, Math.min(fetchLimit, PAGE_SIZE));
+      if (fetchLimit > 1) {
+        // a slice, not a search for the ends of the range
+        synchronized (this.rowsPerSlice) {
+          Integer count = this.rowsPerSlice.get(startTime);
+          this.rowsPerSlice.put(startTime, (count == null ? 0 : count) +
+              page.getJSONArray(SyncClient.ROWS_STR_JSON).size());
+        }
+      }
+      return page;
+    }
+
+    private JSONObject page(List<Integer> matching, String cursor, int limit)
+        throws JSONException {
+      int offset = cursor == null || cursor.isEmpty() ? 0 : Integer.parseInt(cursor);
+      int end = Math.min(matching.size(), offset + limit);
+
+      JSONArray rows = new JSONArray();
+      for (int i = offset; i < end; i++) {
+        int index = matching.get(i);
+        JSONObject row = new JSONObject();
+        row.put(SyncClient.ID_JSON, "uuid:" + index);
+        row.put(SyncClient.SAVEPOINT_TIMESTAMP_JSON, this.times.get(index));
+        rows.add(row);
+      }
+
+      JSONObject page = new JSONObject();
+      page.put(SyncClient.ROWS_STR_JSON, rows);
+      page.put(SyncClient.HAS_MORE_RESULTS_JSON, end < matching.size());
+      page.put(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON, String.valueOf(end));
+      page.put(SyncClient.DATA_ETAG_JSON, "dataETag");
+      return page;
+    }
+  }
+}
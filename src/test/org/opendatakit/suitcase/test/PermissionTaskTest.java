@@ -10,7 +10,7 @@ import junit.framework.TestCase;
 import org.opendatakit.suitcase.model.AggregateInfo;
 import org.opendatakit.suitcase.net.LoginTask;
 import org.opendatakit.suitcase.net.PermissionTask;
-import org.opendatakit.suitcase.net.SuitcaseSwingWorker;
+import org.opendatakit.suitcase.net.SuitcaseTask;
 import org.opendatakit.sync.client.SyncClient;
 
 public class PermissionTaskTest extends TestCase {
@@ -52,11 +52,11 @@ public class PermissionTaskTest extends TestCase {
       
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       PermissionTask pTask = new PermissionTask(aggInfo, dataPath, version, false);
       retCode = pTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       // Check that user exists
       ArrayList<Map<String, Object>> result = sc.getUsers(agg_url);
@@ -0,0 +1,138 @@
+package org.opendatakit.suitcase.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.opendatakit.suitcase.net.ProgressTracker;
+
+import junit.framework.TestCase;
+
+public class ProgressTrackerTest extends TestCase {
+  private static final String STAGE = "Writing rows";
+
+  public void testNoStage_ExpectPass() throws Exception {
+    ProgressTracker tracker = new ProgressTracker();
+    tracker.addCount(5);
+    assertNull(tracker.sample());
+  }
+
+  /*
+   * Counts from many threads at once add up
+   */
+  public void testConcurrentCounts_ExpectPass() throws Exception {
+    final ProgressTracker tracker = new ProgressTracker();
+    tracker.startStage(STAGE, ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
+
+    final int threadCount = 4;
+    final int perThread = 10000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < perThread; j++) {
+            tracker.addCount(1);
+            tracker.addBytes(3);
+            if (j % 100 == 0) {
+              tracker.addPage();
+            }
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    ProgressTracker.Sample sample = tracker.sample();
+    assertEquals(threadCount * perThread, sample.getCount());
+    assertEquals(3L * threadCount * perThread, sample.getBytes());
+    assertEquals(threadCount * perThread / 100, sample.getPages());
+  }
+
+  /*
+   * A new stage starts every counter over
+   */
+  public void testStartStage_ExpectPass() throws Exception {
+    ProgressTracker tracker = new ProgressTracker();
+    tracker.startStage(STAGE, ProgressTracker.ROWS, 10);
+    tracker.addCount(4);
+    tracker.addBytes(100);
+    tracker.addPage();
+
+    tracker.startStage("Downloading attachments", ProgressTracker.FILES, ProgressTracker.UNKNOWN);
+    ProgressTracker.Sample sample = tracker.sample();
+    assertEquals("Downloading attachments", sample.getStage());
+    assertEquals(0, sample.getCount());
+    assertEquals(0, sample.getBytes());
+    assertEquals(0, sample.getPages());
+    assertEquals(ProgressTracker.UNKNOWN, sample.getTotal());
+    assertNull(sample.getPercent());
+    assertEquals(ProgressTracker.UNKNOWN, sample.getEtaMillis());
+    assertEquals("Downloading attachments | 0 files, 0 files/s", sample.toString());
+  }
+
+  public void testPercent_ExpectPass() throws Exception {
+    ProgressTracker tracker = new ProgressTracker();
+    tracker.startStage(STAGE, ProgressTracker.ROWS, 0);
+    assertEquals(Integer.valueOf(100), tracker.sample().getPercent());
+
+    tracker.setTotal(200);
+    tracker.addCount(50);
+    assertEquals(Integer.valueOf(25), tracker.sample().getPercent());
+
+    // counts past the total stop at 100
+    tracker.addCount(500);
+    assertEquals(Integer.valueOf(100), tracker.sample().getPercent());
+  }
+
+  /*
+   * Rates cover the time since the previous sample, the ETA follows from them
+   */
+  public void testRatesAndEta_ExpectPass() throws Exception {
+    ProgressTracker tracker = new ProgressTracker();
+    tracker.startStage(STAGE, ProgressTracker.ROWS, 1000000);
+
+    Thread.sleep(20);
+    tracker.addCount(100);
+    tracker.addBytes(4096);
+    ProgressTracker.Sample sample = tracker.sample();
+    assertTrue(sample.getCountPerSecond() > 0);
+    assertTrue(sample.getBytesPerSecond() > 0);
+    assertTrue(sample.getEtaMillis() > 0);
+    // under 20ms for 100 rows would be over 5000 rows/s
+    assertTrue(sample.getCountPerSecond() <= 5000);
+
+    // nothing since the previous sample pulls the rates down
+    Thread.sleep(20);
+    ProgressTracker.Sample next = tracker.sample();
+    assertTrue(next.getCountPerSecond() < sample.getCountPerSecond());
+    assertEquals(100, next.getCount());
+  }
+
+  public void testToString_ExpectPass() throws Exception {
+    ProgressTracker tracker = new ProgressTracker();
+    tracker.startStage(STAGE, ProgressTracker.ROWS, 5000);
+    tracker.addCount(1200);
+    tracker.addBytes(10);
+    tracker.addPage();
+    tracker.addPage();
+
+    String text = tracker.sample().toString();
+    assertTrue(text, text.startsWith(STAGE + " | 1200/5000 rows, 2 pages, "));
+    assertTrue(text, text.matches(".* rows/s, [0-9.]+ [KM]?B/s, ETA [0-9hms]+"));
+    assertEquals(STAGE, ProgressTracker.getStage(text));
+    assertEquals("Done", ProgressTracker.getStage("Done"));
+  }
+}
@@ -0,0 +1,315 @@
+package org.opendatakit.suitcase.test;
+
+import static org.opendatakit.sync.client.SyncClient.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.suitcase.model.AggregateInfo;
+import org.opendatakit.suitcase.model.CsvConfig;
+import org.opendatakit.suitcase.model.ODKCsv;
+import org.opendatakit.suitcase.model.ScanJson;
+import org.opendatakit.suitcase.net.AttachmentManager;
+import org.opendatakit.suitcase.net.SyncWrapper;
+
+import junit.framework.TestCase;
+
+/*
+ * Compares the rows ODKCsv fills from its projection plans with the per row formatting of the
+ * JSON rows they replaced, for every CsvConfig
+ */
+public class ProjectionPlanTest extends TestCase {
+  private static final String TABLE_ID = "projection";
+  private static final String NULL = "null";
+  private static final String[] DATA_HEADER = {
+      "name", "raw_uriFragment", "raw_contentType", "photo_uriFragment", "photo_contentType"
+  };
+  private static final String[] FRONT = {
+      ID_ROW_DEF, FORM_ID_ROW_DEF, LOCALE_ROW_DEF, SAVEPOINT_TYPE_ROW_DEF,
+      SAVEPOINT_TIMESTAMP_ROW_DEF, SAVEPOINT_CREATOR_ROW_DEF, "_create_user", "_last_update_user"
+  };
+  private static final String[] FRONT_JSON = {
+      ID_JSON, FORM_ID_JSON, LOCALE_JSON, SAVEPOINT_TYPE_JSON, SAVEPOINT_TIMESTAMP_JSON,
+      SAVEPOINT_CREATOR_JSON, "createUser", "lastUpdateUser"
+  };
+  private static final String[] END = {ROW_ETAG_ROW_DEF, FILTER_TYPE_ROW_DEF, FILTER_VALUE_ROW_DEF};
+
+  private Path dir;
+  private AggregateInfo aggInfo;
+  private FakeServer server;
+  private ODKCsv csv;
+  private List<JSONObject> rows;
+  // separate from the one of csv, like an export run before the change
+  private AttachmentManager reference;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("projectionPlan");
+    aggInfo = new AggregateInfo("http://localhost/", "default", "user", "password");
+    aggInfo.addTableId(TABLE_ID, "schemaETag:1");
+    server = new FakeServer();
+    csv = new ODKCsv(
+        new AttachmentManager(aggInfo, TABLE_ID, dir.toString(), server), aggInfo, TABLE_ID
+    );
+    reference = new AttachmentManager(aggInfo, TABLE_ID, dir.toString(), server);
+
+    rows = new ArrayList<JSONObject>();
+    int[] pageSizes = {4, 1, 10};
+    for (int pageSize : pageSizes) {
+      JSONArray page = new JSONArray();
+      for (int i = 0; i < pageSize; i++) {
+        JSONObject row = row(rows.size());
+        rows.add(row);
+        page.add(row);
+      }
+      assertTrue(csv.tryAdd(page));
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    csv.awaitAttachmentDownloads();
+    TestUtilities.deleteRecursive(dir);
+    super.tearDown();
+  }
+
+  public void testAllConfigs_ExpectPass() throws Exception {
+    for (int flags = 0; flags < 8; flags++) {
+      CsvConfig config = new CsvConfig((flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0);
+      String[] header = expectedHeader(config);
+      assertEquals(Arrays.asList(header), Arrays.asList(csv.getHeader(config)));
+
+      for (int i = 0; i < rows.size(); i++) {
+        String[] line = expectedLine(rows.get(i), config);
+        assertEquals(header.length, line.length);
+        assertEquals(flags + ", row " + i, Arrays.asList(line),
+            Arrays.asList(csv.get(i, config)));
+      }
+
+      if (csv.isParallelizable(config)) {
+        List<String[]> lines = csv.get(0, rows.size(), config);
+        for (int i = 0; i < rows.size(); i++) {
+          assertEquals(Arrays.asList(expectedLine(rows.get(i), config)),
+              Arrays.asList(lines.get(i)));
+        }
+      }
+    }
+
+    // the reference did read Scan's raw JSON
+    CsvConfig scanConfig = new CsvConfig(false, true, false);
+    List<String> line = Arrays.asList(csv.get(1, scanConfig));
+    assertEquals("scanned 1",
+        line.get(Arrays.asList(csv.getHeader(scanConfig)).indexOf("raw_photo_uriFragment")));
+  }
+
+  /*
+   * Plans are cached per CsvConfig, equal configs share them
+   */
+  public void testEqualConfigs_ExpectPass() throws Exception {
+    CsvConfig config = new CsvConfig(false, false, true);
+    String[] header = csv.getHeader(config);
+    assertSame(header, csv.getHeader(new CsvConfig(false, false, true)));
+    assertEquals(Arrays.asList(header), Arrays.asList(expectedHeader(config)));
+    assertFalse(header.length == csv.getHeader(new CsvConfig()).length);
+  }
+
+  /*
+   * Header the way getHeader worked it out for every call
+   */
+  private static String[] expectedHeader(CsvConfig config) {
+    List<String> header = new ArrayList<String>();
+
+    for (int i = 0; i < FRONT.length; i++) {
+      if (config.isExtraMetadata() || !isExtra(FRONT[i])) {
+        header.add(FRONT[i]);
+      }
+    }
+
+    for (String col : DATA_HEADER) {
+      if (isScanRaw(col)) {
+        header.add(config.isScanFormatting() ? "raw_" + header.get(header.size() - 1) : col);
+      } else if (!isFiltered(col) || !config.isScanFormatting()) {
+        header.add(col);
+      }
+    }
+
+    header.addAll(Arrays.asList(END));
+    return header.toArray(new String[] {});
+  }
+
+  /*
+   * Line the way get assembled it from the JSON row, front metadata, data and end metadata
+   */
+  private String[] expectedLine(JSONObject row, CsvConfig config)
+      throws IOException, JSONException {
+    List<String> line = new ArrayList<String>();
+    String rowId = row.optString(ID_JSON);
+
+    for (int i = 0; i < FRONT.length; i++) {
+      if (config.isExtraMetadata() || !isExtra(FRONT[i])) {
+        line.add(row.optString(FRONT_JSON[i], NULL));
+      }
+    }
+
+    ScanJson scanRaw = null;
+    if (config.isScanFormatting() || config.isDownloadAttachment()) {
+      reference.getListOfRowAttachments(rowId);
+
+      if (config.isScanFormatting()) {
+        reference.downloadAttachments(rowId, true);
+        scanRaw = new ScanJson(reference.getScanRawJsonStream(rowId));
+      }
+    }
+
+    JSONArray columns = row.getJSONArray(ORDERED_COLUMNS_DEF);
+    for (int i = 0; i < DATA_HEADER.length; i++) {
+      String col = DATA_HEADER[i];
+      String value = columns.getJSONObject(i).optString("value", NULL);
+
+      if (isScanRaw(col)) {
+        line.add(config.isScanFormatting() ? scanRaw.getValue(DATA_HEADER[i - 1]) : value);
+      } else if (isFiltered(col)) {
+        if (!config.isScanFormatting()) {
+          line.add(value);
+        }
+      } else if (col.endsWith("uriFragment")) {
+        line.add(makeLink(value, rowId, config.isDownloadAttachment()));
+      } else {
+        line.add(value);
+      }
+    }
+
+    line.add(row.optString(ROW_ETAG_JSON, NULL));
+    JSONObject filterScope = row.getJSONObject(FILTER_SCOPE_JSON);
+    line.add(filterScope.optString("type", NULL));
+    line.add(filterScope.optString("value", NULL));
+    return line.toArray(new String[] {});
+  }
+
+  private String makeLink(String fileName, String rowId, boolean localLink) throws IOException {
+    String template = "=HYPERLINK(\"%s\", \"Ctrl + Click to view\")";
+    String attachmentUrlStr;
+    if (localLink) {
+      URL attachmentUrl = reference.getAttachmentUrl(rowId, fileName, true);
+      if (attachmentUrl == null) {
+        return "File is missing on Aggregate server.";
+      }
+      attachmentUrlStr = attachmentUrl.toString();
+    } else {
+      attachmentUrlStr = aggInfo.getServerUrl() + "/tables/" + aggInfo.getAppId() + "/" +
+          TABLE_ID + "/ref/" + aggInfo.getSchemaETag(TABLE_ID) + "/attachments/" + rowId +
+          "/file/" + fileName;
+    }
+
+    return String.format(template, attachmentUrlStr);
+  }
+
+  private static boolean isExtra(String col) {
+    return col.equals("_create_user") || col.equals("_last_update_user");
+  }
+
+  private static boolean isScanRaw(String col) {
+    return col.endsWith("contentType") && !isFiltered(col);
+  }
+
+  private static boolean isFiltered(String col) {
+    return col.equals("raw_contentType");
+  }
+
+  private static boolean hasAttachments(String rowId) {
+    return Integer.parseInt(rowId.substring("uuid:".length())) % 3 != 0;
+  }
+
+  private static JSONObject row(int index) throws JSONException {
+    String rowId = "uuid:" + index;
+
+    JSONObject row = new JSONObject();
+    row.put(ID_JSON, rowId);
+    row.put(FORM_ID_JSON, TABLE_ID);
+    row.put(LOCALE_JSON, index % 2 == 0 ? "en_US" : "fr_FR");
+    row.put(SAVEPOINT_TYPE_JSON, index % 4 == 0 ? "INCOMPLETE" : "COMPLETE");
+    row.put(SAVEPOINT_TIMESTAMP_JSON, "2016-07-21T17:31:02.12300000" + index % 10);
+    row.put(SAVEPOINT_CREATOR_JSON, "mailto:user" + index % 3 + "@example.com");
+    row.put(ROW_ETAG_JSON, "rowETag:" + index);
+    // only some rows carry the extra metadata
+    if (index % 2 == 1) {
+      row.put("createUser", "mailto:creator@example.com");
+      row.put("lastUpdateUser", (Object) ("mailto:updater" + index + "@example.com"));
+    }
+
+    JSONObject filterScope = new JSONObject();
+    filterScope.put("type", index % 5 == 0 ? "HIDDEN" : "DEFAULT");
+    filterScope.put("value", index % 5 == 0 ? (Object) "mailto:owner@example.com" : null);
+    row.put(FILTER_SCOPE_JSON, filterScope);
+
+    boolean attachments = hasAttachments(rowId);
+    String[] values = {
+        "name " + index,
+        attachments ? "raw_uuid" + index + ".json" : null,
+        attachments ? "application/json" : null,
+        attachments ? index + ".jpg" : null,
+        attachments ? "image/jpeg" : null
+    };
+    JSONArray columns = new JSONArray();
+    for (int i = 0; i < DATA_HEADER.length; i++) {
+      JSONObject column = new JSONObject();
+      column.put("column", DATA_HEADER[i]);
+      column.put("value", (Object) values[i]);
+      columns.add(column);
+    }
+    row.put(ORDERED_COLUMNS_DEF, columns);
+    return row;
+  }
+
+  /*
+   * Rows whose index isn't a multiple of 3 have a photo and Scan's raw JSON
+   */
+  private static class FakeServer extends SyncWrapper {
+    @Override
+    public JSONObject getManifestForRow(String tableId, String rowId) throws JSONException {
+      JSONArray files = new JSONArray();
+      if (hasAttachments(rowId)) {
+        String index = rowId.substring("uuid:".length());
+        for (String filename : new String[] {index + ".jpg", "raw_uuid" + index + ".json"}) {
+          JSONObject file = new JSONObject();
+          file.put("filename", filename);
+          file.put("downloadUrl", "http://localhost/files/" + rowId + "/" + filename);
+          files.add(file);
+        }
+      }
+
+      JSONObject manifest = new JSONObject();
+      manifest.put("files", files);
+      return manifest;
+    }
+
+    @Override
+    public void getFileForRow(String tableId, String rowId, String savePath,
+        String relativePathOnServer) throws IOException {
+      String index = rowId.substring("uuid:".length());
+      String json = "{\"fields\": [" +
+          "{\"name\": \"photo_uriFragment\", \"value\": \"scanned " + index + "\"}]}";
+
+      Path path = Paths.get(savePath);
+      Files.createDirectories(path.getParent());
+      Files.write(path, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void batchGetFilesForRow(String tableId, String rowId, String savePath,
+        JSONObject files) throws IOException, JSONException {
+      Files.createDirectories(Paths.get(savePath));
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package org.opendatakit.suitcase.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.suitcase.net.RowBatcher;
+
+import junit.framework.TestCase;
+
+public class RowBatcherTest extends TestCase {
+  private static final String NEW = "NEW";
+  private static final String UPDATE = "UPDATE";
+  private static final String DELETE = "DELETE";
+  private static final List<String> OPERATIONS = Arrays.asList(NEW, DELETE, UPDATE);
+
+  private RecordingSender sender;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    sender = new RecordingSender();
+  }
+
+  /*
+   * A row waiting in the batch of another operation sends that batch first,
+   * even though its operation is otherwise sent later
+   */
+  public void testSameRowIdInOrder_ExpectPass() throws Exception {
+    RowBatcher batcher = new RowBatcher(sender, 10, 1, Arrays.asList(UPDATE, NEW, DELETE));
+    batcher.add(NEW, row("a"));
+    batcher.add(NEW, row("b"));
+    batcher.add(UPDATE, row("a"));
+    batcher.add(DELETE, row("a"));
+    batcher.add(UPDATE, row("c"));
+    assertEquals(2, sender.batches.size());
+    batcher.flush();
+
+    assertEquals(4, sender.batches.size());
+    assertBatch(sender.batches.get(0), NEW, 0, "a", "b");
+    assertBatch(sender.batches.get(1), UPDATE, 0, "a");
+    // then in the order of the operations given
+    assertBatch(sender.batches.get(2), UPDATE, 0, "c");
+    assertBatch(sender.batches.get(3), DELETE, 0, "a");
+  }
+
+  public void testPartitions_ExpectPass() throws Exception {
+    RowBatcher batcher = new RowBatcher(sender, 7, 4, OPERATIONS);
+    for (int i = 0; i < 200; i++) {
+      batcher.add(i % 2 == 0 ? NEW : UPDATE, row("uuid:" + (i % 50)));
+    }
+    batcher.flush();
+
+    Map<String, Integer> partitionOfRowId = new HashMap<String, Integer>();
+    Set<Integer> usedPartitions = new HashSet<Integer>();
+    int rowCount = 0;
+    for (Batch batch : sender.batches) {
+      usedPartitions.add(batch.partition);
+      for (String rowId : batch.rowIds) {
+        assertEquals(batcher.getPartition(rowId), batch.partition);
+        Integer earlier = partitionOfRowId.put(rowId, batch.partition);
+        assertTrue(earlier == null || earlier == batch.partition);
+        rowCount++;
+      }
+    }
+
+    assertEquals(200, rowCount);
+    assertTrue(usedPartitions.size() > 1);
+    assertEquals(0, batcher.getPartition(null));
+  }
+
+  public void testByteCap_ExpectPass() throws Exception {
+    long rowBytes = RowBatcher.estimateBytes(row("uuid:00"));
+    RowBatcher batcher = new RowBatcher(sender, 100, 1, OPERATIONS);
+    batcher.setMaxBytes(rowBytes * 3);
+
+    for (int i = 0; i < 10; i++) {
+      batcher.add(NEW, row(String.format("uuid:%02d", i)));
+    }
+    Row large = row("uuid:large");
+    large.getValues().add(new DataKeyValue("large", new String(new char[(int) rowBytes * 4])));
+    batcher.add(NEW, large);
+    batcher.add(NEW, row("uuid:10"));
+    batcher.flush();
+
+    List<Integer> sizes = new ArrayList<Integer>();
+    for (Batch batch : sender.batches) {
+      sizes.add(batch.rowIds.size());
+    }
+    // 3 rows fit, the large row goes on its own
+    assertEquals(Arrays.asList(3, 3, 3, 1, 1, 1), sizes);
+    assertEquals(Arrays.asList("uuid:large"), sender.batches.get(4).rowIds);
+  }
+
+  public void testBatchSizeBoundary_ExpectPass() throws Exception {
+    RowBatcher batcher = new RowBatcher(sender, 500, 1, OPERATIONS);
+    for (int i = 0; i < 499; i++) {
+      batcher.add(NEW, row("uuid:" + i));
+    }
+    assertEquals(0, sender.batches.size());
+
+    // the 500th row fills the batch, not the 501st
+    batcher.add(NEW, row("uuid:499"));
+    assertEquals(1, sender.batches.size());
+    assertEquals(500, sender.batches.get(0).rowIds.size());
+
+    batcher.add(NEW, row("uuid:500"));
+    assertEquals(1, sender.batches.size());
+    batcher.flush();
+    assertEquals(2, sender.batches.size());
+    assertEquals(1, sender.batches.get(1).rowIds.size());
+
+    // nothing left to send
+    batcher.flush();
+    assertEquals(2, sender.batches.size());
+  }
+
+  private static void assertBatch(Batch batch, String operation, int partition,
+      String... rowIds) {
+    assertEquals(operation, batch.operation);
+    assertEquals(partition, batch.partition);
+    assertEquals(Arrays.asList(rowIds), batch.rowIds);
+  }
+
+  private static Row row(String rowId) {
+    ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+    values.add(new DataKeyValue("column", "value"));
+    return Row.forInsert(rowId, null, null, null, null, null, null, values);
+  }
+
+  private static class Batch {
+    private final String operation;
+    private final int partition;
+    private final List<String> rowIds;
+
+    Batch(String operation, int partition, List<String> rowIds) {
+      this.operation = operation;
+      this.partition = partition;
+      this.rowIds = rowIds;
+    }
+  }
+
+  private static class RecordingSender implements RowBatcher.BatchSender {
+    private final List<Batch> batches = new ArrayList<Batch>();
+
+    @Override
+    public void send(String operation, int partition, ArrayList<Row> rows) {
+      List<String> rowIds = new ArrayList<String>();
+      for (Row row : rows) {
+        rowIds.add(row.getRowId());
+      }
+      batches.add(new Batch(operation, partition, rowIds));
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+import org.opendatakit.suitcase.net.ProgressTracker;
+import org.opendatakit.suitcase.net.RowETagIndex;
+import org.opendatakit.suitcase.net.SyncWrapper;
+
+import junit.framework.TestCase;
+
+public class RowETagIndexTest extends TestCase {
+  private static final String TABLE_ID = "index";
+  private static final String SCHEMA_ETAG = "schema1";
+
+  private Path dir;
+  private Path path;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("rowETagIndex");
+    path = dir.resolve("index.log");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (Path file : Files.newDirectoryStream(dir)) {
+      Files.delete(file);
+    }
+    Files.delete(dir);
+    super.tearDown();
+  }
+
+  public void testReplay_ExpectPass() throws Exception {
+    RowETagIndex index = new RowETagIndex(path, SCHEMA_ETAG);
+    index.put("a", "1");
+    index.put("b", "1");
+    index.put("a", "2");
+    index.remove("b");
+    index.put("c", "1");
+    index.setDataETag("data1");
+    index.close();
+
+    index = new RowETagIndex(path, SCHEMA_ETAG);
+    assertEquals("2", index.get("a"));
+    assertNull(index.get("b"));
+    assertEquals("1", index.get("c"));
+    assertEquals("data1", index.getDataETag());
+    index.close();
+  }
+
+  public void testTornLastLine_ExpectPass() throws Exception {
+    RowETagIndex index = new RowETagIndex(path, SCHEMA_ETAG);
+    index.put("a", "1");
+    index.setDataETag("data1");
+    index.close();
+
+    // cut short in the middle of a record
+    append("P\tb\t");
+    index = new RowETagIndex(path, SCHEMA_ETAG);
+    assertNull(index.get("b"));
+    index.put("c", "1");
+    index.close();
+
+    index = new RowETagIndex(path, SCHEMA_ETAG);
+    assertEquals("1", index.get("a"));
+    assertEquals("1", index.get("c"));
+    assertEquals("data1", index.getDataETag());
+    index.close();
+  }
+
+  public void testLastLineWithoutLineBreak_ExpectPass() throws Exception {
+    RowETagIndex index = new RowETagIndex(path, SCHEMA_ETAG);
+    index.put("a", "1");
+    index.close();
+
+    // complete record, only the line break is missing
+    append("P\tb\t1\t");
+    index = new RowETagIndex(path, SCHEMA_ETAG);
+    index.put("c", "1");
+    index.close();
+
+    index = new RowETagIndex(path, SCHEMA_ETAG);
+    assertEquals("1", index.get("a"));
+    assertEquals("1", index.get("b"));
+    assertEquals("1", index.get("c"));
+    index.close();
+  }
+
+  public void testUnknownRecord_ExpectPass() throws Exception {
+    RowETagIndex index = new RowETagIndex(path, SCHEMA_ETAG);
+    index.put("a", "1");
+    index.close();
+
+    append("P\tb\t\n");
+    append("X\tc\t1\t\n");
+    index = new RowETagIndex(path, SCHEMA_ETAG);
+    assertNull(index.get("b"));
+    assertNull(index.get("c"));
+    index.close();
+
+    // rewritten without the records it didn't understand
+    for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+      assertFalse(line, line.startsWith("X") || line.equals("P\tb\t"));
+    }
+  }
+
+  public void testCompaction_ExpectPass() throws Exception {
+    RowETagIndex index = new RowETagIndex(path, SCHEMA_ETAG);
+    for (int i = 0; i < 12000; i++) {
+      index.put("row" + (i % 10), String.valueOf(i));
+    }
+    index.close();
+    assertTrue(countLines() > 12000);
+
+    index = new RowETagIndex(path, SCHEMA_ETAG);
+    // schemaETag and 1 line per row
+    assertEquals(11, countLines());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(String.valueOf(11990 + i), index.get("row" + i));
+    }
+    index.close();
+  }
+
+  public void testOtherSchemaETag_ExpectPass() throws Exception {
+    RowETagIndex index = new RowETagIndex(path, SCHEMA_ETAG);
+    index.put("a", "1");
+    index.setDataETag("data1");
+    index.close();
+
+    index = new RowETagIndex(path, "schema2");
+    assertNull(index.get("a"));
+    assertNull(index.getDataETag());
+    index.close();
+
+    index = new RowETagIndex(path, SCHEMA_ETAG);
+    assertNull(index.get("a"));
+    index.close();
+  }
+
+  public void testRefresh_ExpectPass() throws Exception {
+    RowETagIndex index = new RowETagIndex(path, SCHEMA_ETAG);
+    index.put("a", "1");
+    index.put("b", "1");
+    index.put("c", "1");
+    index.setDataETag("data1");
+
+    FakeServer server = new FakeServer();
+    server.pages.add(page(new String[][] {{"a", "2", "false"}, {"b", "1", "true"}}, true,
+        "data3"));
+    server.pages.add(page(new String[][] {{"d", "1", "false"}}, false, "data4"));
+
+    ProgressTracker tracker = new ProgressTracker();
+    tracker.startStage("refresh", ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
+    index.refresh(server, TABLE_ID, tracker);
+    index.close();
+
+    assertEquals(2, server.requests);
+    assertEquals("data1", server.sinceDataETag);
+
+    index = new RowETagIndex(path, SCHEMA_ETAG);
+    assertEquals("2", index.get("a"));
+    assertNull(index.get("b"));
+    assertEquals("1", index.get("c"));
+    assertEquals("1", index.get("d"));
+    // the dataETag of the first page, changes made while paging are retrieved again next time
+    assertEquals("data3", index.getDataETag());
+    index.close();
+  }
+
+  public void testRefreshFailedPage_ExpectFail() throws Exception {
+    RowETagIndex index = new RowETagIndex(path, SCHEMA_ETAG);
+    index.put("a", "1");
+    index.setDataETag("data1");
+
+    FakeServer server = new FakeServer();
+    server.pages.add(page(new String[][] {{"a", "2", "false"}}, true, "data3"));
+    // like SyncClient after an error
+    server.pages.add(null);
+
+    ProgressTracker tracker = new ProgressTracker();
+    tracker.startStage("refresh", ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
+    try {
+      index.refresh(server, TABLE_ID, tracker);
+      fail("IOException expected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(TABLE_ID));
+    }
+    index.close();
+
+    // still at the old dataETag, the next refresh retrieves the first page again
+    index = new RowETagIndex(path, SCHEMA_ETAG);
+    assertEquals("data1", index.getDataETag());
+    index.close();
+  }
+
+  private void append(String text) throws IOException {
+    Files.write(path, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+  }
+
+  private int countLines() throws IOException {
+    return Files.readAllLines(path, StandardCharsets.UTF_8).size();
+  }
+
+  private static JSONObject page(String[][] rows, boolean hasMore, String dataETag)
+      throws JSONException {
+    JSONArray rowsArray = new JSONArray();
+    for (String[] row : rows) {
+      JSONObject rowObj = new JSONObject();
+      rowObj.put(SyncClient.ID_JSON, row[0]);
+      rowObj.put(SyncClient.ROW_ETAG_JSON, row[1]);
+      rowObj.put("deleted", Boolean.parseBoolean(row[2]));
+      rowsArray.add(rowObj);
+    }
+
+    JSONObject page = new JSONObject();
+    page.put(SyncClient.ROWS_STR_JSON, rowsArray);
+    page.put(SyncClient.HAS_MORE_RESULTS_JSON, hasMore);
+    page.put(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON, "cursor");
+    page.put(SyncClient.DATA_ETAG_JSON, dataETag);
+    return page;
+  }
+
+  /*
+   * Hands out the pages of changed rows in order
+   */
+  private static class FakeServer extends SyncWrapper {
+    private final List<JSONObject> pages = new ArrayList<JSONObject>();
+    private int requests;
+    private String sinceDataETag;
+
+    @Override
+    public JSONObject getRowsSince(String tableId, String dataETag, String cursor,
+        int fetchLimit) {
+      assertEquals(TABLE_ID, tableId);
+      assertEquals(requests == 0, cursor == null);
+      this.sinceDataETag = dataETag;
+      return pages.get(requests++);
+    }
+
+    @Override
+    public JSONObject getRows(String tableId, String cursor, int fetchLimit) {
+      fail("a complete index should only retrieve changed rows");
+      return null;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+import org.opendatakit.suitcase.net.ProgressTracker;
+import org.opendatakit.suitcase.net.RowETagIndex;
+import org.opendatakit.suitcase.net.RowETagLookup;
+import org.opendatakit.suitcase.net.SyncWrapper;
+
+import junit.framework.TestCase;
+
+public class RowETagLookupTest extends TestCase {
+  private static final String TABLE_ID = "lookup";
+  private static final int PAGE_SIZE = 100;
+
+  private ProgressTracker tracker;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tracker = new ProgressTracker();
+    tracker.startStage("lookup", ProgressTracker.ROWS, ProgressTracker.UNKNOWN);
+  }
+
+  /*
+   * After the first page 3 rows are missing, 3 * 10 <= 100 scanned, so each is retrieved on its own
+   */
+  public void testSwitchAfterFirstPage_ExpectPass() throws Exception {
+    FakeServer server = new FakeServer(1000);
+    Map<String, String> rowETags = lookup(server, "uuid:5", "uuid:500", "uuid:900", "uuid:new");
+
+    assertEquals(1, server.pageRequests.get());
+    assertEquals(3, server.rowRequests.get());
+    assertEquals(3, rowETags.size());
+    assertEquals("rowETag:5", rowETags.get("uuid:5"));
+    assertEquals("rowETag:500", rowETags.get("uuid:500"));
+    assertEquals("rowETag:900", rowETags.get("uuid:900"));
+    assertFalse(rowETags.containsKey("uuid:new"));
+    assertEquals(4, tracker.sample().getCount());
+  }
+
+  /*
+   * 18 rows missing after 100 scanned, then 16 after 200, 160 <= 200
+   */
+  public void testSwitchAtThreshold_ExpectPass() throws Exception {
+    FakeServer server = new FakeServer(1000);
+    String[] rowIds = new String[20];
+    for (int i = 0; i < rowIds.length; i++) {
+      rowIds[i] = "uuid:" + (i * 50);
+    }
+    Map<String, String> rowETags = lookup(server, rowIds);
+
+    assertEquals(2, server.pageRequests.get());
+    assertEquals(16, server.rowRequests.get());
+    assertEquals(20, rowETags.size());
+    assertEquals(20, tracker.sample().getCount());
+  }
+
+  public void testAllFoundWhileScanning_ExpectPass() throws Exception {
+    FakeServer server = new FakeServer(1000);
+    Map<String, String> rowETags = lookup(server, "uuid:1", "uuid:99");
+
+    assertEquals(1, server.pageRequests.get());
+    assertEquals(0, server.rowRequests.get());
+    assertEquals(2, rowETags.size());
+  }
+
+  /*
+   * Too many rows missing to switch, the whole table is scanned and the index completed
+   */
+  public void testFullScanCompletesIndex_ExpectPass() throws Exception {
+    FakeServer server = new FakeServer(250);
+    Set<String> rowIds = new HashSet<String>();
+    for (int i = 0; i < 250; i++) {
+      rowIds.add("uuid:" + i);
+    }
+    for (int i = 0; i < 30; i++) {
+      rowIds.add("uuid:new" + i);
+    }
+
+    Path dir = Files.createTempDirectory("rowETagLookup");
+    Path path = dir.resolve("index.log");
+    try {
+      RowETagIndex index = new RowETagIndex(path, "schema1");
+      index.put("uuid:deleted", "rowETag:old");
+
+      RowETagLookup lookup = new RowETagLookup(server, TABLE_ID, tracker, 4);
+      lookup.setIndex(index);
+      Map<String, String> rowETags = new HashMap<String, String>();
+      lookup.lookup(rowIds, rowETags);
+      index.close();
+
+      assertEquals(3, server.pageRequests.get());
+      assertEquals(0, server.rowRequests.get());
+      assertEquals(250, rowETags.size());
+      // the rows not in the table are done too
+      assertEquals(280, tracker.sample().getCount());
+
+      index = new RowETagIndex(path, "schema1");
+      assertEquals("dataETag:1", index.getDataETag());
+      assertEquals("rowETag:0", index.get("uuid:0"));
+      assertEquals("rowETag:249", index.get("uuid:249"));
+      // scanning started over
+      assertNull(index.get("uuid:deleted"));
+      index.close();
+    } finally {
+      Files.deleteIfExists(path);
+      Files.delete(dir);
+    }
+  }
+
+  public void testFailedPage_ExpectFail() throws Exception {
+    FakeServer server = new FakeServer(1000);
+    server.failPage = 2;
+
+    try {
+      // 20 rows spread out, the second page is needed
+      String[] rowIds = new String[20];
+      for (int i = 0; i < rowIds.length; i++) {
+        rowIds[i] = "uuid:" + (i * 50);
+      }
+      lookup(server, rowIds);
+      fail("IOException expected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(TABLE_ID));
+      assertTrue(e.getMessage(), e.getMessage().contains("cursor " + PAGE_SIZE));
+    }
+  }
+
+  public void testFailedRow_ExpectFail() throws Exception {
+    FakeServer server = new FakeServer(1000);
+    server.failRowId = "uuid:500";
+
+    try {
+      lookup(server, "uuid:5", "uuid:500", "uuid:900", "uuid:new");
+      fail("IOException expected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("uuid:500"));
+    }
+    // the failed row is not counted as done
+    assertTrue(tracker.sample().getCount() < 4);
+  }
+
+  private Map<String, String> lookup(SyncWrapper server, String... rowIds)
+      throws IOException, JSONException {
+    Set<String> rowIdSet = new HashSet<String>();
+    for (String rowId : rowIds) {
+      rowIdSet.add(rowId);
+    }
+
+    Map<String, String> rowETags = new HashMap<String, String>();
+    new RowETagLookup(server, TABLE_ID, tracker, 4).lookup(rowIdSet, rowETags);
+    return rowETags;
+  }
+
+  /*
+   * Table of rows uuid:0 to uuid:{rowCount - 1}, served in that order
+   */
+  private static class FakeServer extends SyncWrapper {
+    private final int rowCount;
+    private final AtomicInteger pageRequests = new AtomicInteger();
+    private final AtomicInteger rowRequests = new AtomicInteger();
+    //page answered with null like SyncClient after an error, counting from 1, 0 for none
+    private int failPage;
+    private String failRowId;
+
+    FakeServer(int rowCount) {
+      this.rowCount = rowCount;
+    }
+
+    @Override
+    public JSONObject getRows(String tableId, String cursor) throws JSONException {
+      assertEquals(TABLE_ID, tableId);
+      if (pageRequests.incrementAndGet() == failPage) {
+        return null;
+      }
+
+      int offset = cursor == null || cursor.isEmpty() ? 0 : Integer.parseInt(cursor);
+      int end = Math.min(rowCount, offset + PAGE_SIZE);
+      JSONArray rows = new JSONArray();
+      for (int i = offset; i < end; i++) {
+        rows.add(row(i));
+      }
+
+      JSONObject page = new JSONObject();
+      page.put(SyncClient.ROWS_STR_JSON, rows);
+      page.put(SyncClient.HAS_MORE_RESULTS_JSON, end < rowCount);
+      page.put(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON, String.valueOf(end));
+      page.put(SyncClient.DATA_ETAG_JSON, "dataETag:" + pageRequests.get());
+      return page;
+    }
+
+    @Override
+    public JSONObject getRow(String tableId, String rowId) throws IOException, JSONException {
+      assertEquals(TABLE_ID, tableId);
+      rowRequests.incrementAndGet();
+      if (rowId.equals(failRowId)) {
+        throw new IOException("Unable to retrieve row " + rowId + " of " + tableId);
+      }
+
+      int index;
+      try {
+        index = Integer.parseInt(rowId.substring("uuid:".length()));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      return index < rowCount ? row(index) : null;
+    }
+
+    private static JSONObject row(int index) throws JSONException {
+      JSONObject row = new JSONObject();
+      row.put(SyncClient.ID_JSON, "uuid:" + index);
+      row.put(SyncClient.ROW_ETAG_JSON, "rowETag:" + index);
+      return row;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.suitcase.model.ScanJson;
+
+import junit.framework.TestCase;
+
+/*
+ * Compares ScanJson with the JSONObject based parsing it replaced
+ */
+public class ScanJsonTest extends TestCase {
+  private static final String[] FIXTURES = {
+      // plain values
+      "{\"fields\": [{\"name\": \"a\", \"value\": \"text\"}, {\"name\": \"b\", \"value\": \"\"}]}",
+      // missing value, null value
+      "{\"fields\": [{\"name\": \"missing\"}, {\"name\": \"null\", \"value\": null}]}",
+      // numbers
+      "{\"fields\": [{\"name\": \"int\", \"value\": 42}, {\"name\": \"neg\", \"value\": -7}," +
+          "{\"name\": \"long\", \"value\": 12345678901234}," +
+          "{\"name\": \"float\", \"value\": 1.5}, {\"name\": \"zeros\", \"value\": -2.50}," +
+          "{\"name\": \"whole\", \"value\": 3.0}, {\"name\": \"small\", \"value\": 0.1}," +
+          "{\"name\": \"exp\", \"value\": 1e10}, {\"name\": \"tiny\", \"value\": 1.25E-7}]}",
+      // booleans
+      "{\"fields\": [{\"name\": \"yes\", \"value\": true}, {\"name\": \"no\", \"value\": false}]}",
+      // escapes and non-ASCII
+      "{\"fields\": [{\"name\": \"quote\", \"value\": \"a \\\"b\\\" \\\\ c\\nd\"}," +
+          "{\"name\": \"caf\\u00e9\", \"value\": \"\u00fcber \\u2713\"}]}",
+      // other keys of a field, other members of the document, before and after fields
+      "{\"template\": {\"fields\": [{\"name\": \"decoy\", \"value\": 1}]}, \"id\": 3," +
+          "\"fields\": [{\"type\": \"int\", \"segments\": [{\"x\": 1}, {\"y\": [2, 3]}]," +
+          "\"name\": \"seg\", \"value\": \"8\", \"confidence\": 0.9}]," +
+          "\"after\": [[], {}, null]}",
+      // value first, repeated name keeps the last
+      "{\"fields\": [{\"value\": \"first\", \"name\": \"dup\"}, {\"name\": \"dup\", " +
+          "\"value\": \"second\"}]}",
+      // structured values
+      "{\"fields\": [{\"name\": \"obj\", \"value\": {\"k\": \"v\"}}," +
+          "{\"name\": \"arr\", \"value\": [1, \"x\", null]}]}",
+      // no fields
+      "{\"fields\": []}",
+  };
+
+  public void testParity_ExpectPass() throws Exception {
+    ScanJson scanJson = new ScanJson();
+
+    for (String fixture : FIXTURES) {
+      Map<String, String> expected = parseWithJSONObject(fixture);
+
+      // reused like ODKCsv does, and new
+      scanJson.read(toStream(fixture));
+      ScanJson fresh = new ScanJson(toStream(fixture));
+
+      for (Map.Entry<String, String> entry : expected.entrySet()) {
+        assertEquals(fixture, entry.getValue(), scanJson.getValue(entry.getKey()));
+        assertEquals(fixture, entry.getValue(), fresh.getValue(entry.getKey()));
+      }
+      assertNull(scanJson.getValue("not a label"));
+      assertNull(scanJson.getValue("decoy"));
+    }
+  }
+
+  public void testValues_ExpectPass() throws Exception {
+    ScanJson scanJson = new ScanJson(toStream(FIXTURES[1]));
+    assertEquals("null", scanJson.getValue("missing"));
+    assertNull(scanJson.getValue("null"));
+
+    scanJson.read(toStream(FIXTURES[2]));
+    assertEquals("42", scanJson.getValue("int"));
+    assertEquals("12345678901234", scanJson.getValue("long"));
+    assertEquals("1.5", scanJson.getValue("float"));
+    assertEquals("-2.5", scanJson.getValue("zeros"));
+    assertEquals("3.0", scanJson.getValue("whole"));
+    assertEquals("1.0E10", scanJson.getValue("exp"));
+    // labels of the previous row are gone
+    assertNull(scanJson.getValue("missing"));
+  }
+
+  /*
+   * A row without raw JSON reads "null" for every label
+   */
+  public void testNoJson_ExpectPass() throws Exception {
+    ScanJson scanJson = new ScanJson(null);
+    assertEquals("null", scanJson.getValue("a"));
+
+    scanJson.read(toStream(FIXTURES[0]));
+    assertEquals("text", scanJson.getValue("a"));
+    scanJson.read(null);
+    assertEquals("null", scanJson.getValue("a"));
+  }
+
+  public void testNotAnObject_ExpectFail() throws Exception {
+    for (String json : new String[] {"[]", "{\"fields\": [1]}", "{\"fields\": [{\"name\": "}) {
+      try {
+        new ScanJson(toStream(json));
+        fail("exception expected for " + json);
+      } catch (Exception e) {
+        // expected, like JSONObject
+      }
+    }
+  }
+
+  /*
+   * How ScanJson read Scan's raw JSON before it streamed it
+   */
+  private static Map<String, String> parseWithJSONObject(String json) throws Exception {
+    Map<String, String> map = new HashMap<String, String>();
+
+    JSONArray fields = new JSONObject(toStream(json)).getJSONArray("fields");
+
+    for (int i = 0; i < fields.size(); i++) {
+      JSONObject field = fields.getJSONObject(i);
+      map.put(field.optString("name"), field.has("value") ? field.optString("value") : "null");
+    }
+
+    return map;
+  }
+
+  private static InputStream toStream(String json) {
+    return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+  }
+}
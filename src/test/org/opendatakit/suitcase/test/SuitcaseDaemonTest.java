@@ -0,0 +1,159 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opendatakit.suitcase.model.AggregateInfo;
+import org.opendatakit.suitcase.ui.SuitcaseDaemon;
+
+import junit.framework.TestCase;
+
+public class SuitcaseDaemonTest extends TestCase {
+  private static final String TABLE_OP_JOB =
+      "{\"operation\": \"tableop\", \"tableId\": \"census\", \"dataVersion\": \"2\", " +
+      "\"tableOp\": \"clear\"}";
+
+  private Path dir;
+  private HoldingDaemon daemon;
+  private String token;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("daemon");
+    daemon = new HoldingDaemon(
+        new AggregateInfo("http://localhost/", "default", "user", "password"), dir.toString()
+    );
+    daemon.start();
+    token = new String(Files.readAllBytes(daemon.getTokenPath()), StandardCharsets.US_ASCII);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    daemon.stop();
+    Files.deleteIfExists(dir.resolve("daemon.token"));
+    Files.delete(dir);
+    super.tearDown();
+  }
+
+  public void testToken_ExpectPass() throws Exception {
+    assertEquals(64, token.length());
+    assertEquals(200, request("GET", "/jobs", token, null, null));
+  }
+
+  public void testMissingToken_ExpectFail() throws Exception {
+    assertEquals(401, request("GET", "/jobs", null, null, null));
+    assertEquals(401, request("POST", "/jobs", null, "application/json", TABLE_OP_JOB));
+    assertEquals(0, daemon.held.size());
+  }
+
+  public void testWrongToken_ExpectFail() throws Exception {
+    String wrong = (token.charAt(0) == 'a' ? "b" : "a") + token.substring(1);
+    assertEquals(401, request("GET", "/jobs", wrong, null, null));
+    assertEquals(401, request("GET", "/jobs/1", token.substring(1), null, null));
+    assertEquals(401, request("POST", "/jobs", wrong, "application/json", TABLE_OP_JOB));
+    assertEquals(0, daemon.held.size());
+  }
+
+  public void testOrigin_ExpectFail() throws Exception {
+    // even with the right token
+    assertEquals(403, request("GET", "/jobs", token, null, null,
+        "Origin: http://example.com"));
+    assertEquals(403, request("POST", "/jobs", token, "application/json", TABLE_OP_JOB,
+        "Origin: null"));
+    assertEquals(0, daemon.held.size());
+  }
+
+  public void testNotJson_ExpectFail() throws Exception {
+    assertEquals(415, request("POST", "/jobs", token, "text/plain", TABLE_OP_JOB));
+    assertEquals(415, request("POST", "/jobs", token, "application/x-www-form-urlencoded",
+        TABLE_OP_JOB));
+    assertEquals(415, request("POST", "/jobs", token, null, TABLE_OP_JOB));
+    assertEquals(0, daemon.held.size());
+  }
+
+  public void testBusyTable_ExpectFail() throws Exception {
+    assertEquals(202, request("POST", "/jobs", token, "application/json", TABLE_OP_JOB));
+    assertEquals(1, daemon.held.size());
+
+    // the first job on census hasn't run yet
+    assertEquals(409, request("POST", "/jobs", token, "application/json; charset=utf-8",
+        TABLE_OP_JOB));
+    assertEquals(1, daemon.held.size());
+
+    assertEquals(202, request("POST", "/jobs", token, "application/json",
+        TABLE_OP_JOB.replace("census", "other")));
+    assertEquals(2, daemon.held.size());
+  }
+
+  public void testStopDeletesToken_ExpectPass() throws Exception {
+    assertTrue(Files.exists(daemon.getTokenPath()));
+    daemon.stop();
+    assertFalse(Files.exists(daemon.getTokenPath()));
+  }
+
+  /*
+   * Plain socket, HttpURLConnection doesn't send an Origin header
+   */
+  private int request(String method, String path, String token, String contentType,
+      String body, String... headers) throws IOException {
+    byte[] bodyBytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+
+    StringBuilder request = new StringBuilder();
+    request.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+    request.append("Host: localhost\r\n");
+    request.append("Connection: close\r\n");
+    if (token != null) {
+      request.append("X-Suitcase-Token: ").append(token).append("\r\n");
+    }
+    if (contentType != null) {
+      request.append("Content-Type: ").append(contentType).append("\r\n");
+    }
+    for (String header : headers) {
+      request.append(header).append("\r\n");
+    }
+    request.append("Content-Length: ").append(bodyBytes.length).append("\r\n\r\n");
+
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+    try {
+      OutputStream out = socket.getOutputStream();
+      out.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+      out.write(bodyBytes);
+      out.flush();
+
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+      // HTTP/1.1 401 Unauthorized
+      return Integer.parseInt(in.readLine().split(" ")[1]);
+    } finally {
+      socket.close();
+    }
+  }
+
+  /*
+   * Keeps accepted jobs instead of running them, so their tables stay busy
+   */
+  private static class HoldingDaemon extends SuitcaseDaemon {
+    private final List<Runnable> held =
+        Collections.synchronizedList(new ArrayList<Runnable>());
+
+    HoldingDaemon(AggregateInfo aggInfo, String defaultPath) {
+      super(aggInfo, defaultPath, 0, 1);
+    }
+
+    @Override
+    protected void execute(Runnable job) {
+      held.add(job);
+    }
+  }
+}
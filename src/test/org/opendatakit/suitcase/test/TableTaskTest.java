@@ -7,7 +7,7 @@ import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONObject;
 import org.opendatakit.suitcase.model.AggregateInfo;
 import org.opendatakit.suitcase.net.LoginTask;
-import org.opendatakit.suitcase.net.SuitcaseSwingWorker;
+import org.opendatakit.suitcase.net.SuitcaseTask;
 import org.opendatakit.suitcase.net.TableTask;
 import org.opendatakit.suitcase.net.UpdateTask;
 import org.opendatakit.sync.client.SyncClient;
@@ -53,11 +53,11 @@ public class TableTaskTest extends TestCase{
       
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       TableTask tTask = new TableTask(aggInfo, testTableId, dataPath, version, operation, false);
       retCode = tTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       String schemaETag = sc.getSchemaETagForTable(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId);
       JSONObject tableDefObj = sc.getTableDefinition(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, schemaETag);
@@ -97,7 +97,7 @@ public class TableTaskTest extends TestCase{
 
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       String schemaETag = null;
       sc.createTableWithCSV(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, schemaETag,
@@ -112,7 +112,7 @@ public class TableTaskTest extends TestCase{
       // operation
       TableTask tTask = new TableTask(aggInfo, testTableId, dataPath, version, operation, false);
       retCode = tTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       JSONObject obj = sc.getTable(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId);
       assertNull(obj);
@@ -146,7 +146,7 @@ public class TableTaskTest extends TestCase{
       
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       sc.createTableWithCSV(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, null, defPath);
       
@@ -158,7 +158,7 @@ public class TableTaskTest extends TestCase{
       // Need to add rows
       UpdateTask updateTask = new UpdateTask(aggInfo, dataPath, version, testTableId, null, false);
       retCode = updateTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       JSONObject rowsObj = sc.getRows(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, schemaETag, null, null);
       JSONArray rows = rowsObj.getJSONArray(SyncClient.ROWS_STR_JSON);
@@ -167,7 +167,7 @@ public class TableTaskTest extends TestCase{
       
       TableTask tTask = new TableTask(aggInfo, testTableId, dataPath, version, operation, false);
       retCode = tTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       rowsObj = sc.getRows(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, schemaETag, null, null);
       rows = rowsObj.getJSONArray(SyncClient.ROWS_STR_JSON);
@@ -209,7 +209,7 @@ public class TableTaskTest extends TestCase{
       
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       sc.createTableWithCSV(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, null, defPath);
       
@@ -221,7 +221,7 @@ public class TableTaskTest extends TestCase{
       // Need to add rows
       UpdateTask updateTask = new UpdateTask(aggInfo, dataPath, version, testTableId, null, false);
       retCode = updateTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       JSONObject rowsObj = sc.getRows(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, schemaETag, null, null);
       JSONArray rows = rowsObj.getJSONArray(SyncClient.ROWS_STR_JSON);
@@ -230,7 +230,7 @@ public class TableTaskTest extends TestCase{
       
       TableTask tTask = new TableTask(aggInfo, testTableId, null, version, operation, false);
       retCode = tTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       rowsObj = sc.getRows(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, schemaETag, null, null);
       rows = rowsObj.getJSONArray(SyncClient.ROWS_STR_JSON);
@@ -272,7 +272,7 @@ public class TableTaskTest extends TestCase{
       
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       sc.createTableWithCSV(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, null, defPath);
       
@@ -284,7 +284,7 @@ public class TableTaskTest extends TestCase{
       // Need to add rows
       UpdateTask updateTask = new UpdateTask(aggInfo, dataPath, version, testTableId, null, false);
       retCode = updateTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       JSONObject rowsObj = sc.getRows(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, schemaETag, null, null);
       JSONArray rows = rowsObj.getJSONArray(SyncClient.ROWS_STR_JSON);
@@ -293,7 +293,7 @@ public class TableTaskTest extends TestCase{
       
       TableTask tTask = new TableTask(aggInfo, testTableId, null, version, operation, false);
       retCode = tTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       rowsObj = sc.getRows(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, schemaETag, null, null);
       rows = rowsObj.getJSONArray(SyncClient.ROWS_STR_JSON);
@@ -334,7 +334,7 @@ public class TableTaskTest extends TestCase{
       
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       sc.createTableWithCSV(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, null, defPath);
       
@@ -350,7 +350,7 @@ public class TableTaskTest extends TestCase{
       
       TableTask tTask = new TableTask(aggInfo, testTableId, null, version, operation, false);
       retCode = tTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       rowsObj = sc.getRows(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, schemaETag, null, null);
       rows = rowsObj.getJSONArray(SyncClient.ROWS_STR_JSON);
@@ -0,0 +1,232 @@
+package org.opendatakit.suitcase.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome.OutcomeType;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
+import org.opendatakit.suitcase.net.SyncWrapper;
+import org.opendatakit.suitcase.net.UpdateTask;
+
+import junit.framework.TestCase;
+
+/*
+ * Uploads batches to a fake server through UpdateTask.sendBatch, no Aggregate needed
+ */
+public class UpdateTaskBatchTest extends TestCase {
+  private static final String TABLE_ID = "batches";
+
+  private File outcomeFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    outcomeFile = File.createTempFile("outcome", ".txt");
+    outcomeFile.deleteOnExit();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    outcomeFile.delete();
+    super.tearDown();
+  }
+
+  /*
+   * Every other request loses the race for the dataETag, the rows should still all go through
+   * right away, without waiting to resubmit
+   */
+  public void testIntermittentStaleDataETag_ExpectPass() throws Exception {
+    FakeServer server = new FakeServer();
+    server.staleEvery = 2;
+    BatchUpdateTask task = new BatchUpdateTask();
+
+    long start = System.currentTimeMillis();
+    task.send(server, UpdateTask.NEW_OP, newRows(1200));
+    long millis = System.currentTimeMillis() - start;
+
+    assertEquals(1200, server.altered.size());
+    assertEquals(1200, task.outcomes.size());
+    for (OutcomeType outcome : task.outcomes.values()) {
+      assertEquals(OutcomeType.SUCCESS, outcome);
+    }
+    assertTrue("stale dataETag waited " + millis + "ms", millis < 1000);
+  }
+
+  /*
+   * The dataETag never settles, the rows end up without outcome but the upload carries on
+   */
+  public void testAlwaysStaleDataETag_ExpectPass() throws Exception {
+    FakeServer server = new FakeServer();
+    server.staleEvery = 1;
+    BatchUpdateTask task = new BatchUpdateTask();
+
+    task.send(server, UpdateTask.NEW_OP, newRows(20));
+
+    assertEquals(0, server.altered.size());
+    assertEquals(20, task.outcomes.size());
+    for (OutcomeType outcome : task.outcomes.values()) {
+      assertEquals(OutcomeType.UNKNOWN, outcome);
+    }
+  }
+
+  public void testOtherIllegalArgument_ExpectFail() throws Exception {
+    FakeServer server = new FakeServer();
+    server.otherError = true;
+    BatchUpdateTask task = new BatchUpdateTask();
+
+    try {
+      task.send(server, UpdateTask.NEW_OP, newRows(20));
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException e) {
+      assertEquals("other", e.getMessage());
+    }
+  }
+
+  /*
+   * The fake server answers at once, far below the target latency, so batches keep growing
+   * until maxBatchSize
+   */
+  public void testBatchSizeGrows_ExpectPass() throws Exception {
+    FakeServer server = new FakeServer();
+    BatchUpdateTask task = new BatchUpdateTask();
+    task.setBatchLimits(10, 2000, 2000, Long.MAX_VALUE);
+
+    task.send(server, UpdateTask.NEW_OP, newRows(UpdateTask.INITIAL_BATCH_SIZE * 3));
+    assertEquals(Arrays.asList(500, 500, 500), server.batchSizes);
+
+    server.batchSizes.clear();
+    task.send(server, UpdateTask.NEW_OP, newRows(5000));
+    assertEquals(Arrays.asList(2000, 2000, 1000), server.batchSizes);
+    assertEquals(5000, task.outcomes.size());
+  }
+
+  /*
+   * A batch without outcomes halves the batch size, its rows are sent again in smaller batches
+   */
+  public void testBatchSizeHalvesOnMissingOutcomes_ExpectPass() throws Exception {
+    FakeServer server = new FakeServer();
+    server.dropRequests.add(1);
+    BatchUpdateTask task = new BatchUpdateTask();
+
+    task.send(server, UpdateTask.NEW_OP, newRows(UpdateTask.INITIAL_BATCH_SIZE));
+
+    assertEquals(Arrays.asList(500, 250, 250), server.batchSizes);
+    assertEquals(500, server.altered.size());
+    for (OutcomeType outcome : task.outcomes.values()) {
+      assertEquals(OutcomeType.SUCCESS, outcome);
+    }
+  }
+
+  public void testBatchSizeWithinLimits_ExpectPass() throws Exception {
+    FakeServer server = new FakeServer();
+    server.dropRequests.addAll(Arrays.asList(1, 2, 3));
+    BatchUpdateTask task = new BatchUpdateTask();
+    task.setBatchLimits(300, 600, 2000, Long.MAX_VALUE);
+
+    // every batch fails on the first attempt, the batch size stops halving at 300
+    task.send(server, UpdateTask.NEW_OP, newRows(1500));
+    assertEquals(Arrays.asList(500, 500, 500, 300, 300, 300, 300, 300), server.batchSizes);
+
+    // then grows, but not past 600
+    server.batchSizes.clear();
+    task.send(server, UpdateTask.NEW_OP, newRows(3000));
+    assertEquals(Arrays.asList(600, 600, 600, 600, 600), server.batchSizes);
+  }
+
+  public void testFixedBatchSize_ExpectPass() throws Exception {
+    FakeServer server = new FakeServer();
+    server.dropRequests.add(2);
+    BatchUpdateTask task = new BatchUpdateTask();
+    task.setBatchLimits(100, 100, 2000, Long.MAX_VALUE);
+
+    task.send(server, UpdateTask.NEW_OP, newRows(450));
+
+    assertEquals(Arrays.asList(100, 100, 100, 100, 50, 100), server.batchSizes);
+    assertEquals(450, server.altered.size());
+  }
+
+  static ArrayList<Row> newRows(int count) {
+    ArrayList<Row> rows = new ArrayList<Row>();
+    for (int i = 0; i < count; i++) {
+      ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+      values.add(new DataKeyValue("value", String.valueOf(i)));
+      rows.add(Row.forInsert("uuid:" + i, null, null, null, null, null, null, values));
+    }
+    return rows;
+  }
+
+  /*
+   * Exposes sendBatch and keeps the last outcome of each row
+   */
+  private class BatchUpdateTask extends UpdateTask {
+    private final Map<String, OutcomeType> outcomes;
+
+    BatchUpdateTask() {
+      super(null, null, "2", TABLE_ID, outcomeFile.getAbsolutePath(), false);
+      this.outcomes = new HashMap<String, OutcomeType>();
+    }
+
+    void send(SyncWrapper syncWrapper, String operation, ArrayList<Row> rows) throws Exception {
+      sendBatch(syncWrapper, operation, rows);
+    }
+
+    @Override
+    public synchronized void handleRowOutcomeList(ArrayList<RowOutcome> outcomes) {
+      for (RowOutcome outcome : outcomes) {
+        this.outcomes.put(outcome.getRowId(), outcome.getOutcome());
+      }
+    }
+  }
+
+  /*
+   * Alters every row it is sent, unless the request loses the race for the dataETag or is
+   * dropped
+   */
+  private static class FakeServer extends SyncWrapper {
+    private final List<String> altered = new ArrayList<String>();
+    private final List<Integer> batchSizes = new ArrayList<Integer>();
+    //requests answered without any outcome, counting from 1
+    private final Set<Integer> dropRequests = new HashSet<Integer>();
+    private int requests;
+    //every staleEvery-th request is rejected for a stale dataETag, 0 for none
+    private int staleEvery;
+    private boolean otherError;
+
+    @Override
+    public synchronized RowOutcomeList alterRowsUsingSingleBatch(String tableId,
+        ArrayList<Row> rowArrayList) {
+      if (otherError) {
+        throw new IllegalArgumentException("other");
+      }
+      requests++;
+      if (staleEvery > 0 && requests % staleEvery == 0) {
+        throw new IllegalArgumentException(SyncWrapper.STALE_DATA_ETAG_MESSAGE);
+      }
+
+      batchSizes.add(rowArrayList.size());
+      ArrayList<RowOutcome> outcomes = new ArrayList<RowOutcome>();
+      if (dropRequests.contains(requests)) {
+        // like SyncClient after a timeout
+        return new RowOutcomeList(outcomes, null);
+      }
+
+      for (Row row : rowArrayList) {
+        altered.add(row.getRowId());
+        RowOutcome outcome = new RowOutcome(row);
+        outcome.setRowETag("rowETag:" + row.getRowId());
+        outcome.setOutcome(OutcomeType.SUCCESS);
+        outcomes.add(outcome);
+      }
+      return new RowOutcomeList(outcomes, "dataETag:" + requests);
+    }
+  }
+}
@@ -6,7 +6,7 @@ import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONObject;
 import org.opendatakit.sync.client.SyncClient;
 import org.opendatakit.suitcase.net.LoginTask;
-import org.opendatakit.suitcase.net.SuitcaseSwingWorker;
+import org.opendatakit.suitcase.net.SuitcaseTask;
 import org.opendatakit.suitcase.net.UpdateTask;
 import org.opendatakit.suitcase.model.AggregateInfo;
 
@@ -68,7 +68,7 @@ public class UpdateTaskTest extends TestCase{
 
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       JSONObject result = sc.createTableWithCSV(aggInfo.getServerUrl(), aggInfo.getAppId(),
           testTableId, null, csvFile);
@@ -89,7 +89,7 @@ public class UpdateTaskTest extends TestCase{
 
       UpdateTask updateTask = new UpdateTask(aggInfo, dataPath, version, testTableId, null, false);
       retCode = updateTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       JSONObject res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId,
           tableSchemaETag, null, null, null);
@@ -158,11 +158,11 @@ public class UpdateTaskTest extends TestCase{
 
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       UpdateTask updateTask = new UpdateTask(aggInfo, dataPathAdd, version, testTableId, null, false);
       retCode = updateTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       JSONObject res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, tableSchemaETag, null, null,
           null);
@@ -178,7 +178,7 @@ public class UpdateTaskTest extends TestCase{
 
       UpdateTask taskDelete = new UpdateTask(aggInfo, dataPathDelete, version, testTableId, null, false);
       retCode = taskDelete.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, tableSchemaETag, null, null,
           null);
@@ -241,11 +241,11 @@ public class UpdateTaskTest extends TestCase{
 
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       UpdateTask updateTask = new UpdateTask(aggInfo, dataPathAdd, version, testTableId, null, false);
       retCode = updateTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       JSONObject res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId,
           tableSchemaETag, null, null, null);
@@ -261,7 +261,7 @@ public class UpdateTaskTest extends TestCase{
 
       UpdateTask taskUpdate = new UpdateTask(aggInfo, dataPathUpdate, version, testTableId, null, false);
       retCode = taskUpdate.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId,
           tableSchemaETag, null, null, null);
@@ -332,11 +332,11 @@ public class UpdateTaskTest extends TestCase{
 
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       UpdateTask task = new UpdateTask(aggInfo, dataPathAdd, version, testTableId, null, false);
       retCode = task.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       JSONObject res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, tableSchemaETag, null, null,
           null);
@@ -352,7 +352,7 @@ public class UpdateTaskTest extends TestCase{
 
       UpdateTask taskUpdate = new UpdateTask(aggInfo, dataPathUpdate, version, testTableId, null, false);
       retCode = taskUpdate.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, tableSchemaETag, null, null, null);
 
@@ -400,7 +400,7 @@ public class UpdateTaskTest extends TestCase{
       
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       sc.createTableWithCSV(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, null, defPath);
       
@@ -412,7 +412,7 @@ public class UpdateTaskTest extends TestCase{
       // Need to add rows
       UpdateTask updateTask = new UpdateTask(aggInfo, dataPath, version, testTableId, null, false);
       retCode = updateTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       JSONObject rowsObj = sc.getRows(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, schemaETag, null, null);
       JSONArray rows = rowsObj.getJSONArray(SyncClient.ROWS_STR_JSON);
@@ -471,11 +471,11 @@ public class UpdateTaskTest extends TestCase{
 
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       UpdateTask task = new UpdateTask(aggInfo, dataPathAdd, version, testTableId, null, false);
       retCode = task.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       JSONObject res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, tableSchemaETag, null, null,
           null);
@@ -486,7 +486,7 @@ public class UpdateTaskTest extends TestCase{
 
       UpdateTask taskUpdate = new UpdateTask(aggInfo, dataPathUpdate, version, testTableId, null, false);
       retCode = taskUpdate.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId, tableSchemaETag, null, null, null);
 
@@ -554,7 +554,7 @@ public class UpdateTaskTest extends TestCase{
 
       LoginTask lTask = new LoginTask(aggInfo, false);
       retCode = lTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
       
       // First check if this server allows permissions
       int rspCode = sc.uploadPermissionCSV(agg_url, appId, userPath);
@@ -583,7 +583,7 @@ public class UpdateTaskTest extends TestCase{
 
       UpdateTask updateTask = new UpdateTask(aggInfo, dataPath, version, testTableId, null, false);
       retCode = updateTask.blockingExecute();
-      assertEquals(retCode, SuitcaseSwingWorker.okCode);
+      assertEquals(retCode, SuitcaseTask.okCode);
 
       JSONObject res = sc.getRowsSince(aggInfo.getServerUrl(), aggInfo.getAppId(), testTableId,
           tableSchemaETag, null, null, null);